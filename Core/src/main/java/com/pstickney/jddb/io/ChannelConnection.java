@@ -0,0 +1,397 @@
+package com.pstickney.jddb.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A connection over a non-blocking socket channel that sends and receives
+ * {@link Frame}s. It is the counterpart of {@link ProcessSocketInput} that
+ * does not need a thread of its own, its channel is read and written by an
+ * {@link EventLoop}.<br><br>
+ * 
+ * Every connection has its own direct read buffer. Once the header of a
+ * frame has been read, a buffer of the exact size of its payload is made
+ * and the payload is moved into it in bulk, or read into it straight from
+ * the channel when nothing else is buffered, so the bytes of a payload are
+ * never looked at one by one. Output that does not fit into the channel
+ * yet waits in a queue of its own.<br><br>
+ * 
+ * This class contains an abstract function {@link #onFrameInput(Frame)}
+ * which needs to be defined by the user to determine what to do with every
+ * frame that arrives. The frames are handed to it on a pool of worker
+ * threads, one at a time and in the order they arrived, so a slow frame
+ * holds up the rest of its own connection but never the event loop.<br><br>
+ * 
+ * The frames waiting to be handled are limited to {@value #MAX_QUEUED}
+ * frames or {@value #MAX_QUEUED_BYTES} bytes. Once either is reached the
+ * event loop stops reading the channel, so a client sending faster than
+ * its frames are handled is held back by TCP instead of filling the heap.
+ * Reading goes on once the workers have handled half of the queue.
+ * 
+ * @author pstickne
+ */
+public abstract class ChannelConnection
+{
+	// Placed in the input queue once the connection has been closed
+	private static final Frame CLOSED = Frame.reply(0, new byte[0]);
+	
+	// Payloads this large are read into direct buffers
+	private static final int DIRECT_LENGTH = 64 << 10;
+	
+	// The most input that waits for the workers before the channel is no longer read
+	private static final int MAX_QUEUED = 1024;
+	private static final long MAX_QUEUED_BYTES = 16 << 20;
+	
+	private SocketChannel channel = null;
+	private String address = null;
+	private Executor workers = null;
+	
+	volatile EventLoop loop = null;
+	private SelectionKey key = null;
+	
+	private ByteBuffer in = null;
+	
+	// The header of the frame being read and the buffer its payload is read into
+	private byte opcode = 0;
+	private byte flags = 0;
+	private long id = 0;
+	private ByteBuffer payload = null;
+	
+	private Queue<ByteBuffer> out = null;
+	private Queue<Frame> input = null;
+	private AtomicBoolean handling = null;
+	private AtomicBoolean closed = null;
+	
+	// The frames and payload bytes in the input queue, and whether reading has stopped because of them
+	private AtomicLong queued = null;
+	private AtomicLong queuedBytes = null;
+	private AtomicBoolean paused = null;
+	
+	
+	/**
+	 * Creates a connection over a socket channel, which is switched to
+	 * non-blocking mode. Nothing is read from it until it is registered
+	 * with an {@link EventLoop}.
+	 * 
+	 * @param channel The connected socket channel
+	 * @param workers The threads to handle the input on, or null to handle it on the event loop
+	 * 
+	 * @throws IOException If the channel cannot be made non-blocking
+	 */
+	public ChannelConnection(SocketChannel channel, Executor workers) throws IOException
+	{
+		this.channel = channel;
+		this.workers = workers;
+		this.address = channel.socket().getInetAddress().getHostAddress() + ":" + channel.socket().getPort();
+		
+		in = ByteBuffer.allocateDirect(DIRECT_LENGTH);
+		out = new ArrayDeque<ByteBuffer>();
+		input = new ConcurrentLinkedQueue<Frame>();
+		handling = new AtomicBoolean();
+		closed = new AtomicBoolean();
+		queued = new AtomicLong();
+		queuedBytes = new AtomicLong();
+		paused = new AtomicBoolean();
+		
+		channel.configureBlocking(false);
+	}
+	
+	
+	/**
+	 * This function needs to be manually defined by the user.<br>
+	 * It gets called with every frame read from the channel.
+	 * 
+	 * @param frame The frame
+	 */
+	public abstract void onFrameInput(Frame frame);
+	
+	
+	/**
+	 * Called once, after the last frame, when the connection was closed
+	 * by either side. Does nothing unless overridden.
+	 */
+	public void onClose()
+	{
+	}
+	
+	
+	/**
+	 * @return The address and port of the other side of the connection
+	 */
+	public String getAddress()
+	{
+		return address;
+	}
+	
+	
+	/**
+	 * Sends a frame. As much of it as the channel takes is written right
+	 * away, the event loop writes the rest once the channel has room for it.
+	 * Frames sent after the connection has been closed are dropped.
+	 * 
+	 * @param frame The frame
+	 */
+	public void send(Frame frame)
+	{
+		ByteBuffer buffers[] = { frame.header(), frame.payload() };
+		
+		if( closed.get() )
+			return;
+		
+		try {
+			synchronized( out )
+			{
+				// Nothing can be written ahead of the output that is already waiting
+				boolean waiting = !out.isEmpty();
+				if( !waiting )
+					channel.write(buffers);
+				
+				for( ByteBuffer buffer : buffers )
+					if( buffer.hasRemaining() )
+						out.add(buffer);
+				
+				if( !waiting && !out.isEmpty() )
+					loop.flush(this);
+			}
+		} catch (IOException e) {
+			close();
+		}
+	}
+	
+	
+	/**
+	 * Closes the channel. The frames already read are still handed to
+	 * {@link #onFrameInput(Frame)}, then {@link #onClose()} is called.
+	 */
+	public void close()
+	{
+		if( !closed.compareAndSet(false, true) )
+			return;
+		
+		try {
+			if( key != null )
+				key.cancel();
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		
+		input.add(CLOSED);
+		handle();
+	}
+	
+	
+	/**
+	 * Registers the channel with the selector of the event loop, on the event loop
+	 */
+	void register(Selector selector)
+	{
+		try {
+			key = channel.register(selector, SelectionKey.OP_READ, this);
+		} catch (IOException e) {
+			close();
+		}
+	}
+	
+	
+	/**
+	 * Changes the operations the event loop waits for, on the event loop.
+	 * The channel is not read while the input queue is full.
+	 */
+	void interest(int ops)
+	{
+		if( paused.get() )
+			ops &= ~SelectionKey.OP_READ;
+		if( key != null && key.isValid() )
+			key.interestOps(ops);
+	}
+	
+	
+	/**
+	 * Reads the channel again after the input queue has been drained, on the event loop
+	 */
+	void resume()
+	{
+		// It may have filled up again since it asked to be read
+		if( !paused.get() && key != null && key.isValid() )
+			key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+	}
+	
+	
+	/**
+	 * Reads what the channel has and cuts it into frames, on the event loop
+	 */
+	void read()
+	{
+		int n = 0;
+		
+		try {
+			// The rest of a payload that nothing else is buffered for is read straight into it
+			if( payload != null && in.position() == 0 )
+				n = channel.read(payload);
+			else
+				n = channel.read(in);
+		} catch (IOException e) {
+			n = -1;
+		}
+		
+		if( n < 0 ) {
+			close();
+			return;
+		}
+		
+		in.flip();
+		while( true )
+		{
+			if( payload == null )
+			{
+				if( in.remaining() < Frame.HEADER )
+					break;
+				
+				opcode = in.get();
+				flags = in.get();
+				id = in.getLong();
+				
+				int length = in.getInt();
+				if( length < 0 || length > Frame.MAX_LENGTH ) {
+					close();
+					return;
+				}
+				payload = length >= DIRECT_LENGTH ? ByteBuffer.allocateDirect(length) : ByteBuffer.allocate(length);
+			}
+			
+			if( in.hasRemaining() && payload.hasRemaining() ) {
+				ByteBuffer bytes = in.duplicate();
+				bytes.limit(bytes.position() + Math.min(bytes.remaining(), payload.remaining()));
+				payload.put(bytes);
+				in.position(bytes.position());
+			}
+			
+			if( payload.hasRemaining() )
+				break;
+			
+			payload.flip();
+			queued.incrementAndGet();
+			queuedBytes.addAndGet(payload.remaining());
+			input.add(new Frame(opcode, flags, id, payload));
+			payload = null;
+		}
+		in.compact();
+		
+		if( queued.get() >= MAX_QUEUED || queuedBytes.get() >= MAX_QUEUED_BYTES )
+		{
+			paused.set(true);
+			interest(key.interestOps() & ~SelectionKey.OP_READ);
+			
+			// The workers may have drained the queue before they could see the pause
+			if( drained() && paused.compareAndSet(true, false) )
+				resume();
+		}
+		
+		handle();
+	}
+	
+	
+	/**
+	 * @return true if the input queue is down to half of its limits
+	 */
+	private boolean drained()
+	{
+		return queued.get() <= MAX_QUEUED / 2 && queuedBytes.get() <= MAX_QUEUED_BYTES / 2;
+	}
+	
+	
+	/**
+	 * Writes out the queued output, on the event loop. Once all of it
+	 * is written the event loop goes back to only reading the channel.
+	 */
+	void write()
+	{
+		try {
+			synchronized( out )
+			{
+				while( !out.isEmpty() )
+				{
+					channel.write(out.peek());
+					if( out.peek().hasRemaining() )
+						return;
+					out.poll();
+				}
+				interest(SelectionKey.OP_READ);
+			}
+		} catch (IOException e) {
+			close();
+		}
+	}
+	
+	
+	/**
+	 * Makes sure a worker is handing the queued frames to the connection,
+	 * unless one already is. Only one worker at a time handles the frames
+	 * of a connection, which keeps them in order.
+	 */
+	private void handle()
+	{
+		if( !handling.compareAndSet(false, true) )
+			return;
+		
+		Runnable task = new Runnable() {
+			@Override public void run() {
+				drain();
+			}
+		};
+		
+		try {
+			if( workers == null )
+				task.run();
+			else
+				workers.execute(task);
+		} catch (RejectedExecutionException e) {
+			// The workers were shut down, the server is stopping
+			handling.set(false);
+		}
+	}
+	
+	
+	/**
+	 * Hands the queued frames to the connection until none is left
+	 */
+	private void drain()
+	{
+		do {
+			Frame frame = null;
+			while( (frame = input.poll()) != null )
+			{
+				if( frame != CLOSED )
+				{
+					queued.decrementAndGet();
+					queuedBytes.addAndGet(-frame.getLength());
+					if( paused.get() && drained() && paused.compareAndSet(true, false) )
+						loop.resume(this);
+				}
+				
+				try {
+					if( frame == CLOSED )
+						onClose();
+					else
+						onFrameInput(frame);
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+			handling.set(false);
+			
+			// A frame may have arrived after the queue was found empty
+		} while( !input.isEmpty() && handling.compareAndSet(false, true) );
+	}
+}
@@ -0,0 +1,153 @@
+package com.pstickney.jddb.io;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A thread that does the reading and writing of many {@link ChannelConnection}s
+ * with a single {@link Selector}.<br><br>
+ * 
+ * The channels of the connections are non-blocking. The loop waits until
+ * some of them can be read from or written to, and then moves the bytes
+ * between the channels and the buffers of their connections. It never
+ * handles the input itself, so a thread of this kind can serve thousands
+ * of connections.<br><br>
+ * 
+ * Other threads never touch the selector. Connections to register,
+ * connections waiting to write and connections that can be read again
+ * are queued and the selector is woken up to pick them up.
+ * 
+ * @author pstickne
+ */
+public class EventLoop extends Thread
+{
+	private Selector selector = null;
+	private Queue<ChannelConnection> registering = null;
+	private Queue<ChannelConnection> writing = null;
+	private Queue<ChannelConnection> resuming = null;
+	
+	
+	/**
+	 * Creates an event loop with a selector of its own
+	 * 
+	 * @param name The name of the thread
+	 * 
+	 * @throws IOException If the selector cannot be opened
+	 */
+	public EventLoop(String name) throws IOException
+	{
+		super(name);
+		setDaemon(true);
+		
+		selector = Selector.open();
+		registering = new ConcurrentLinkedQueue<ChannelConnection>();
+		writing = new ConcurrentLinkedQueue<ChannelConnection>();
+		resuming = new ConcurrentLinkedQueue<ChannelConnection>();
+	}
+	
+	
+	/**
+	 * Hands a connection to this loop, which reads from it from then on
+	 * 
+	 * @param connection The connection
+	 */
+	public void register(ChannelConnection connection)
+	{
+		connection.loop = this;
+		registering.add(connection);
+		selector.wakeup();
+	}
+	
+	
+	/**
+	 * Asks this loop to write out the output of a connection that
+	 * did not fit into its channel when it was sent
+	 * 
+	 * @param connection The connection
+	 */
+	void flush(ChannelConnection connection)
+	{
+		writing.add(connection);
+		selector.wakeup();
+	}
+	
+	
+	/**
+	 * Asks this loop to read a connection again, which it stopped
+	 * reading while too much of its input was waiting to be handled
+	 * 
+	 * @param connection The connection
+	 */
+	void resume(ChannelConnection connection)
+	{
+		resuming.add(connection);
+		selector.wakeup();
+	}
+	
+	
+	/**
+	 * Stops the loop and closes every connection registered with it
+	 */
+	public void close()
+	{
+		try {
+			for( SelectionKey key : selector.keys() )
+				((ChannelConnection) key.attachment()).close();
+			selector.close();
+		} catch (ClosedSelectorException e) {
+			// Already closed
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	
+	@Override
+	public void run()
+	{
+		super.run();
+		
+		try {
+			while( selector.isOpen() )
+			{
+				selector.select();
+				
+				ChannelConnection connection = null;
+				while( (connection = registering.poll()) != null )
+					connection.register(selector);
+				while( (connection = writing.poll()) != null )
+					connection.interest(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				while( (connection = resuming.poll()) != null )
+					connection.resume();
+				
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while( keys.hasNext() )
+				{
+					SelectionKey key = keys.next();
+					keys.remove();
+					connection = (ChannelConnection) key.attachment();
+					
+					// Another thread can close the connection at any time
+					try {
+						if( key.isValid() && key.isWritable() )
+							connection.write();
+						if( key.isValid() && key.isReadable() )
+							connection.read();
+					} catch (CancelledKeyException e) {
+						connection.close();
+					}
+				}
+			}
+		} catch (ClosedSelectorException e) {
+			// The loop was closed
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
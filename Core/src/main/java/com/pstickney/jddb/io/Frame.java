@@ -0,0 +1,257 @@
+package com.pstickney.jddb.io;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A frame of the protocol between clients, the server and shards.<br><br>
+ * 
+ * Every frame starts with a header of {@value #HEADER} bytes, followed by
+ * a payload of any length:
+ * 
+ * <pre>
+ * opcode       1 byte    {@link #REQUEST} or {@link #REPLY}
+ * flags        1 byte    {@link #END} on the last frame of a reply
+ * request id   8 bytes   the id the sender gave the request
+ * length       4 bytes   the number of bytes in the payload
+ * payload      length bytes
+ * </pre>
+ * 
+ * Numbers are big-endian. The payload of a request is the command and the
+ * payload of a reply is the output of the command, both as UTF-8 text,
+ * which can span any number of lines.<br><br>
+ * 
+ * Since the length of a frame is known from its header, nobody has to scan
+ * the payload for the end of it, and a frame can be passed on with a new
+ * header but its payload untouched, see {@link #forward(long, int)}.
+ * 
+ * @author pstickne
+ */
+public class Frame
+{
+	public static final int HEADER = 14;
+	
+	// The largest payload that is accepted
+	public static final int MAX_LENGTH = 256 << 20;
+	
+	// Opcodes
+	public static final byte REQUEST = 1;
+	public static final byte REPLY = 2;
+	
+	// Flags
+	public static final byte END = 1;
+	
+	public static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private byte opcode = 0;
+	private byte flags = 0;
+	private long id = 0;
+	private ByteBuffer payload = null;
+	
+	
+	/**
+	 * Creates a frame
+	 * 
+	 * @param opcode The opcode
+	 * @param flags The flags
+	 * @param id The request id
+	 * @param payload The payload, from its position to its limit
+	 */
+	public Frame(byte opcode, byte flags, long id, ByteBuffer payload)
+	{
+		this.opcode = opcode;
+		this.flags = flags;
+		this.id = id;
+		this.payload = payload;
+	}
+	
+	
+	/**
+	 * Creates a request
+	 * 
+	 * @param id The request id
+	 * @param command The command
+	 * @return The frame
+	 */
+	public static Frame request(long id, String command)
+	{
+		return new Frame(REQUEST, (byte) 0, id, ByteBuffer.wrap(command.getBytes(UTF8)));
+	}
+	
+	
+	/**
+	 * Creates the last frame of a reply
+	 * 
+	 * @param id The id of the request
+	 * @param text The text of the reply
+	 * @return The frame
+	 */
+	public static Frame reply(long id, String text)
+	{
+		return reply(id, text.getBytes(UTF8));
+	}
+	/**
+	 * Creates the last frame of a reply from text that is already encoded
+	 * 
+	 * @param id The id of the request
+	 * @param text The UTF-8 text of the reply
+	 * @return The frame
+	 */
+	public static Frame reply(long id, byte text[])
+	{
+		return new Frame(REPLY, END, id, ByteBuffer.wrap(text));
+	}
+	
+	
+	/**
+	 * Creates a frame for the same payload with a new header. The payload
+	 * is shared, not copied.
+	 * 
+	 * @param id The new request id
+	 * @param flags The new flags
+	 * @return The frame
+	 */
+	public Frame forward(long id, int flags)
+	{
+		return new Frame(opcode, (byte) flags, id, payload.duplicate());
+	}
+	
+	
+	/**
+	 * @return The opcode, {@link #REQUEST} or {@link #REPLY}
+	 */
+	public byte getOpcode()
+	{
+		return opcode;
+	}
+	
+	
+	/**
+	 * @return The request id
+	 */
+	public long getId()
+	{
+		return id;
+	}
+	
+	
+	/**
+	 * @return true if this is the last frame of a reply
+	 */
+	public boolean isEnd()
+	{
+		return (flags & END) != 0;
+	}
+	
+	
+	/**
+	 * @return The number of bytes in the payload
+	 */
+	public int getLength()
+	{
+		return payload.remaining();
+	}
+	
+	
+	/**
+	 * Decodes the payload. The server only needs to do this for
+	 * the frames it reads, not for the ones it passes on.
+	 * 
+	 * @return The payload as text
+	 */
+	public String getText()
+	{
+		ByteBuffer bytes = payload.duplicate();
+		
+		if( bytes.hasArray() )
+			return new String(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining(), UTF8);
+		return UTF8.decode(bytes).toString();
+	}
+	
+	
+	/**
+	 * @return The header of this frame, ready to be written
+	 */
+	public ByteBuffer header()
+	{
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		
+		putHeader(header, opcode, flags, id, payload.remaining());
+		return header;
+	}
+	
+	
+	/**
+	 * Fills in a header at the start of a buffer, without moving its position
+	 * 
+	 * @param buffer The buffer
+	 * @param opcode The opcode
+	 * @param flags The flags
+	 * @param id The request id
+	 * @param length The number of bytes in the payload
+	 */
+	static void putHeader(ByteBuffer buffer, byte opcode, byte flags, long id, int length)
+	{
+		buffer.put(0, opcode).put(1, flags).putLong(2, id).putInt(10, length);
+	}
+	
+	
+	/**
+	 * @return The payload of this frame, ready to be written
+	 */
+	public ByteBuffer payload()
+	{
+		return payload.duplicate();
+	}
+	
+	
+	/**
+	 * Writes the frame to a stream, all at once so that frames
+	 * written by different threads are not mixed. The frame is copied
+	 * into a single array first, which is fine for the few requests of
+	 * a client. Replies are built in a {@link FrameOutputStream} instead.
+	 * 
+	 * @param stream The stream
+	 * 
+	 * @throws IOException If the frame cannot be written
+	 */
+	public void writeTo(OutputStream stream) throws IOException
+	{
+		byte bytes[] = new byte[HEADER + payload.remaining()];
+		
+		header().get(bytes, 0, HEADER);
+		payload().get(bytes, HEADER, bytes.length - HEADER);
+		
+		synchronized( stream ) {
+			stream.write(bytes);
+			stream.flush();
+		}
+	}
+	
+	
+	/**
+	 * Reads the next frame from a stream
+	 * 
+	 * @param in The stream
+	 * @return The frame
+	 * 
+	 * @throws IOException If the stream ends or does not hold a frame
+	 */
+	public static Frame readFrom(DataInputStream in) throws IOException
+	{
+		byte opcode = in.readByte();
+		byte flags = in.readByte();
+		long id = in.readLong();
+		int length = in.readInt();
+		
+		if( length < 0 || length > MAX_LENGTH )
+			throw new IOException("Frame of " + length + " bytes");
+		
+		byte payload[] = new byte[length];
+		in.readFully(payload);
+		return new Frame(opcode, flags, id, ByteBuffer.wrap(payload));
+	}
+}
@@ -0,0 +1,169 @@
+package com.pstickney.jddb.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * An output stream that builds the payload of a {@link Frame} straight in a
+ * direct buffer.<br><br>
+ * 
+ * The first {@value Frame#HEADER} bytes of the buffer are kept free for the
+ * header, which is filled in once the length of the payload is known, so the
+ * whole frame goes out to a channel with a single write. The bytes written
+ * to the stream are copied once, into the buffer, and the channel writes the
+ * direct buffer without copying it again.<br><br>
+ * 
+ * Direct buffers are costly to make, so the streams are reused. Take one with
+ * {@link #take()} and hand it back with {@link #release()} once the frame is
+ * written.
+ * 
+ * @author pstickne
+ */
+public class FrameOutputStream extends OutputStream
+{
+	// The size a stream starts out with, and the largest one kept for reuse
+	private static final int INITIAL = 8 << 10;
+	private static final int KEEP = 1 << 20;
+	
+	private static final Queue<FrameOutputStream> POOL = new ConcurrentLinkedQueue<FrameOutputStream>();
+	
+	private ByteBuffer buffer = null;
+	
+	
+	/**
+	 * Creates an empty stream
+	 */
+	public FrameOutputStream()
+	{
+		buffer = ByteBuffer.allocateDirect(INITIAL);
+		reset();
+	}
+	
+	
+	/**
+	 * @return An empty stream, one that was released before if there is one
+	 */
+	public static FrameOutputStream take()
+	{
+		FrameOutputStream stream = POOL.poll();
+		
+		return stream == null ? new FrameOutputStream() : stream;
+	}
+	
+	
+	/**
+	 * Hands the stream back to be reused, unless it grew too large to keep.
+	 * The stream must not be used any more.
+	 */
+	public void release()
+	{
+		reset();
+		if( buffer.capacity() <= KEEP )
+			POOL.add(this);
+	}
+	
+	
+	@Override
+	public void write(int b)
+	{
+		grow(1);
+		buffer.put((byte) b);
+	}
+	
+	
+	@Override
+	public void write(byte b[], int off, int len)
+	{
+		grow(len);
+		buffer.put(b, off, len);
+	}
+	
+	
+	/**
+	 * Drops everything written so far
+	 */
+	public void reset()
+	{
+		buffer.clear();
+		buffer.position(Frame.HEADER);
+	}
+	
+	
+	/**
+	 * @return The number of bytes written so far
+	 */
+	public int size()
+	{
+		return buffer.position() - Frame.HEADER;
+	}
+	
+	
+	/**
+	 * @param index The index of a byte written
+	 * @return The byte
+	 */
+	public byte byteAt(int index)
+	{
+		return buffer.get(Frame.HEADER + index);
+	}
+	
+	
+	/**
+	 * Drops the bytes at the end of the stream past a size
+	 * 
+	 * @param size The number of bytes to keep
+	 */
+	public void truncate(int size)
+	{
+		buffer.position(Frame.HEADER + Math.max(0, Math.min(size, size())));
+	}
+	
+	
+	/**
+	 * Writes the bytes written so far to a channel as the last frame of
+	 * a reply, all at once so that frames written by different threads
+	 * are not mixed
+	 * 
+	 * @param channel The channel, in blocking mode
+	 * @param id The id of the request
+	 * 
+	 * @throws IOException If the frame cannot be written
+	 */
+	public void writeReply(WritableByteChannel channel, long id) throws IOException
+	{
+		ByteBuffer frame = buffer.duplicate();
+		
+		frame.flip();
+		Frame.putHeader(frame, Frame.REPLY, Frame.END, id, size());
+		
+		synchronized( channel ) {
+			while( frame.hasRemaining() )
+				channel.write(frame);
+		}
+	}
+	
+	
+	/**
+	 * Makes room for more bytes, in a new buffer twice as large if needed
+	 * 
+	 * @param length The number of bytes about to be written
+	 */
+	private void grow(int length)
+	{
+		if( buffer.remaining() >= length )
+			return;
+		
+		long needed = (long) buffer.position() + length;
+		if( needed > Frame.HEADER + (long) Frame.MAX_LENGTH )
+			throw new IllegalStateException("Frame of more than " + Frame.MAX_LENGTH + " bytes");
+		
+		ByteBuffer larger = ByteBuffer.allocateDirect((int) Math.min(Math.max(needed, 2L * buffer.capacity()), Frame.HEADER + (long) Frame.MAX_LENGTH));
+		buffer.flip();
+		larger.put(buffer);
+		buffer = larger;
+	}
+}
@@ -0,0 +1,160 @@
+package com.pstickney.jddb.io;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Starts the threads of a node, either as ordinary platform threads or,
+ * when the node is configured with {@code virtualThreads=true} and runs on
+ * a JDK that has them, as virtual threads.<br><br>
+ * 
+ * A virtual thread that blocks on a socket or the console gives up its
+ * carrier thread until there is something to read, so the input listeners
+ * and request handlers keep their simple blocking style while a node can
+ * hold far more of them than it could hold platform threads, each with a
+ * full stack.<br><br>
+ * 
+ * Virtual threads are looked up by reflection, so the same build runs on
+ * Java 8, where the setting falls back to platform threads with a warning.
+ * 
+ * @author pstickne
+ */
+public class Threads
+{
+	private static final Method OF_VIRTUAL = method(Thread.class, "ofVirtual");
+	private static final Method NAME = method(type("java.lang.Thread$Builder"), "name", String.class);
+	private static final Method START = method(type("java.lang.Thread$Builder"), "start", Runnable.class);
+	private static final Method PER_TASK = method(Executors.class, "newVirtualThreadPerTaskExecutor");
+	
+	private static volatile boolean virtual = false;
+	private static Thread keepAlive = null;
+	
+	
+	private Threads()
+	{
+	}
+	
+	
+	/**
+	 * Turns virtual threads on or off for every thread started from now on
+	 * 
+	 * @param enable true to use virtual threads
+	 * @return true if virtual threads are used, which needs a JDK that has them
+	 */
+	public static boolean setVirtual(boolean enable)
+	{
+		if( enable && (OF_VIRTUAL == null || NAME == null || START == null || PER_TASK == null) ) {
+			System.err.println("Virtual threads need Java 21 or newer, using platform threads");
+			enable = false;
+		}
+		
+		virtual = enable;
+		return virtual;
+	}
+	
+	
+	/**
+	 * @return true if threads are started as virtual threads
+	 */
+	public static boolean isVirtual()
+	{
+		return virtual;
+	}
+	
+	
+	/**
+	 * Starts a thread running a task
+	 * 
+	 * @param name The name of the thread
+	 * @param task The task
+	 * @return The started thread
+	 */
+	public static Thread start(String name, Runnable task)
+	{
+		if( virtual ) {
+			try {
+				keepAlive();
+				return (Thread) START.invoke(NAME.invoke(OF_VIRTUAL.invoke(null), name), task);
+			} catch (ReflectiveOperationException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		Thread thread = new Thread(task, name);
+		thread.start();
+		return thread;
+	}
+	
+	
+	/**
+	 * Creates a pool to run tasks on. With virtual threads every task gets
+	 * a virtual thread of its own, which are cheap enough that the pool does
+	 * not need to be bounded.
+	 * 
+	 * @param threads The number of platform threads in the pool
+	 * @return The pool
+	 */
+	public static ExecutorService newPool(int threads)
+	{
+		if( virtual ) {
+			try {
+				return (ExecutorService) PER_TASK.invoke(null);
+			} catch (ReflectiveOperationException e) {
+				e.printStackTrace();
+			}
+		}
+		return Executors.newFixedThreadPool(threads);
+	}
+	
+	
+	/**
+	 * Virtual threads never keep the JVM running. The platform threads of the
+	 * input listeners used to, so the first virtual thread also starts a single
+	 * platform thread that does, until the JVM is stopped.
+	 */
+	private static synchronized void keepAlive()
+	{
+		if( keepAlive != null )
+			return;
+		
+		keepAlive = new Thread(new Runnable() {
+			@Override public void run() {
+				while( true ) {
+					try {
+						Thread.sleep(Long.MAX_VALUE);
+					} catch (InterruptedException e) {
+						// Keep waiting
+					}
+				}
+			}
+		}, "keep-alive");
+		keepAlive.start();
+	}
+	
+	
+	/**
+	 * @return The class of the name, or null if this JDK does not have it
+	 */
+	private static Class<?> type(String name)
+	{
+		try {
+			return Class.forName(name);
+		} catch (ClassNotFoundException e) {
+			return null;
+		}
+	}
+	
+	
+	/**
+	 * @return The public method, or null if this JDK does not have it
+	 */
+	private static Method method(Class<?> type, String name, Class<?> ...params)
+	{
+		try {
+			return type == null ? null : type.getMethod(name, params);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+}
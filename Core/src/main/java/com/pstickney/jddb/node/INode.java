@@ -1,7 +1,7 @@
-package com.pstickney.jddb.node;
-
-public interface INode
-{
-	void start();
-	void stop();
-}
+package com.pstickney.jddb.node;
+
+public interface INode
+{
+	void start();
+	void stop();
+}
@@ -1,32 +1,96 @@
-package com.pstickney.jddb.node;
-
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.Properties;
-
-public class Node implements INode
-{
-	protected String SERVER = null;
-	protected int PORT = 0;
-	
-	protected String BASEPATH = null;
-	protected String COLLECTIONFILE = null;
-	
-	protected Socket csock = null;
-	protected ServerSocket ssock = null;
-	
-	protected Properties properties = null;
-	
-	public Node(Properties prop)
-	{
-		properties = prop;
-	}
-
-    public void start() {
-        
-    }
-
-    public void stop() {
-
-    }
-}
+package com.pstickney.jddb.node;
+
+import com.pstickney.jddb.io.Threads;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+public class Node implements INode
+{
+	protected String SERVER = null;
+	protected int PORT = 0;
+	
+	protected String BASEPATH = null;
+	protected String COLLECTIONFILE = null;
+	
+	protected Socket csock = null;
+	protected ServerSocket ssock = null;
+	
+	protected Properties properties = null;
+	
+	public Node(Properties prop)
+	{
+		properties = prop;
+		
+		// Input listeners and worker pools run on virtual threads when asked to
+		Threads.setVirtual(Boolean.parseBoolean(properties.getProperty("virtualThreads", "false").trim()));
+	}
+
+    public void start() {
+
+    }
+
+    public void stop() {
+
+    }
+	
+	
+	/**
+	 * Split a string on a specific character. This will do a special split 
+	 * in which it will not split on the character if it is inside quotes {@code (")},
+	 * curly braces {@code ({})} or square brackets {@code ([])}, however deeply
+	 * they are nested.
+	 * 
+	 * @param str The string to split
+	 * @param c The character to split on
+	 * @return A string array of {@code str} tokenized by {@code c}.
+	 */
+	public static String[] splitOnCharacter(String str, Character c)
+	{
+		List<String> result = new ArrayList<>();
+		StringBuilder sb = new StringBuilder();
+		boolean inQuote = false;
+		int depth = 0;
+		
+		// Loop through every character in the array
+		for( int i = 0; i < str.length(); i++ )
+		{
+			/*
+			 * if the character is found and we are not in a
+			 * curly brace or quote, add to the result array
+			 * and clear the string buffer
+			 */
+			if( str.charAt(i) == c && depth == 0 && !inQuote ) {
+				result.add(sb.toString());
+				sb.setLength(0);
+				continue;
+			}
+			
+			// Keep an escaped character inside a quote as it is
+			if( str.charAt(i) == '\\' && inQuote && i + 1 < str.length() ) {
+				sb.append(str.charAt(i++));
+				sb.append(str.charAt(i));
+				continue;
+			}
+			
+			if( inQuote ) {
+				if( str.charAt(i) == '"' )
+					inQuote = false;
+			}
+			else if( str.charAt(i) == '{' || str.charAt(i) == '[' )	depth++;
+			else if( str.charAt(i) == '}' || str.charAt(i) == ']' )	depth--;
+			else if( str.charAt(i) == '"' )							inQuote = true;
+			
+			// Add every non-token character to the string buffer
+			sb.append(str.charAt(i));
+		}
+		
+		// Add everything in the string buffer after the last found token
+		result.add(sb.toString());
+		
+		return result.toArray(new String[result.size()]);
+	}
+}
@@ -0,0 +1,308 @@
+package com.pstickney.jddb.nosql;
+
+import org.json.simple.JSONArray;
+
+import java.util.List;
+
+/**
+ * The running value of one output field of a {@code $group} stage for
+ * one group, see {@link Pipeline}.<br><br>
+ * 
+ * An accumulator can be fed in two ways. {@link #add(Object)} adds the
+ * value of a document in the group, {@link #merge(Object)} adds the
+ * {@link #partial()} value of another accumulator of the same kind. This
+ * is what lets every shard group its own documents and the server merge
+ * the groups of all shards into the same result as grouping all of the
+ * documents in one place.
+ * 
+ * @author pstickne
+ */
+abstract class Accumulator
+{
+	/**
+	 * Creates an empty accumulator
+	 * 
+	 * @param op The accumulator operator, such as {@code $sum}
+	 * @return The accumulator
+	 * 
+	 * @throws IllegalArgumentException If the operator is unknown
+	 */
+	static Accumulator create(String op)
+	{
+		if( op.equals("$sum") )		return new Sum();
+		if( op.equals("$avg") )		return new Avg();
+		if( op.equals("$min") )		return new Extreme(1);
+		if( op.equals("$max") )		return new Extreme(-1);
+		if( op.equals("$first") )	return new First();
+		if( op.equals("$last") )	return new Last();
+		if( op.equals("$push") )	return new Push();
+		throw new IllegalArgumentException("Unknown accumulator " + op);
+	}
+	
+	
+	/**
+	 * Adds the value of a document in the group
+	 * 
+	 * @param value The value, or {@link Query#MISSING} if the document does not have it
+	 */
+	abstract void add(Object value);
+	
+	
+	/**
+	 * Adds the partial value of another accumulator
+	 * 
+	 * @param partial The value returned by {@link #partial()}
+	 */
+	abstract void merge(Object partial);
+	
+	
+	/**
+	 * @return The state of this accumulator as a JSON value, which can be merged into another one
+	 */
+	abstract Object partial();
+	
+	
+	/**
+	 * @return The final value of the output field
+	 */
+	abstract Object result();
+	
+	
+	/**
+	 * Adds two numbers the way {@code $inc} does. Whole numbers
+	 * stay whole numbers, adding a decimal to either side gives a decimal.
+	 */
+	static Number sum(Number a, Number b)
+	{
+		if( Query.isIntegral(a) && Query.isIntegral(b) )
+			return a.longValue() + b.longValue();
+		return a.doubleValue() + b.doubleValue();
+	}
+	
+	
+	/**
+	 * {@code $sum}, which skips values that are not numbers
+	 */
+	private static class Sum extends Accumulator
+	{
+		private Number total = 0L;
+		
+		@Override
+		void add(Object value)
+		{
+			if( value instanceof Number )
+				total = sum(total, (Number) value);
+		}
+		
+		@Override
+		void merge(Object partial)
+		{
+			add(partial);
+		}
+		
+		@Override
+		Object partial()
+		{
+			return total;
+		}
+		
+		@Override
+		Object result()
+		{
+			return total;
+		}
+	}
+	
+	
+	/**
+	 * {@code $avg}, which skips values that are not numbers. Its partial
+	 * value is the pair {@code [sum, count]}, since averages cannot be merged.
+	 */
+	private static class Avg extends Accumulator
+	{
+		private Number total = 0L;
+		private long count = 0;
+		
+		@Override
+		void add(Object value)
+		{
+			if( value instanceof Number ) {
+				total = sum(total, (Number) value);
+				count++;
+			}
+		}
+		
+		@Override
+		void merge(Object partial)
+		{
+			List<?> pair = (List<?>) partial;
+			total = sum(total, (Number) pair.get(0));
+			count += ((Number) pair.get(1)).longValue();
+		}
+		
+		@Override
+		@SuppressWarnings("unchecked")
+		Object partial()
+		{
+			JSONArray pair = new JSONArray();
+			pair.add(total);
+			pair.add(count);
+			return pair;
+		}
+		
+		@Override
+		Object result()
+		{
+			return count == 0 ? null : total.doubleValue() / count;
+		}
+	}
+	
+	
+	/**
+	 * {@code $min} and {@code $max}, which compare values in the order of a
+	 * {@link SortedIndex} and skip missing and null values
+	 */
+	private static class Extreme extends Accumulator
+	{
+		private int sign = 1;
+		private Object best = null;
+		
+		Extreme(int sign)
+		{
+			this.sign = sign;
+		}
+		
+		@Override
+		void add(Object value)
+		{
+			if( value == Query.MISSING || value == null )
+				return;
+			if( best == null || sign * SortedIndex.ORDER.compare(value, best) < 0 )
+				best = value;
+		}
+		
+		@Override
+		void merge(Object partial)
+		{
+			add(partial);
+		}
+		
+		@Override
+		Object partial()
+		{
+			return best;
+		}
+		
+		@Override
+		Object result()
+		{
+			return best;
+		}
+	}
+	
+	
+	/**
+	 * {@code $first}. Merged groups come in the order the shards answer.
+	 */
+	private static class First extends Accumulator
+	{
+		private boolean seen = false;
+		private Object value = null;
+		
+		@Override
+		void add(Object value)
+		{
+			if( seen )
+				return;
+			this.value = value == Query.MISSING ? null : value;
+			seen = true;
+		}
+		
+		@Override
+		void merge(Object partial)
+		{
+			add(partial);
+		}
+		
+		@Override
+		Object partial()
+		{
+			return value;
+		}
+		
+		@Override
+		Object result()
+		{
+			return value;
+		}
+	}
+	
+	
+	/**
+	 * {@code $last}. Merged groups come in the order the shards answer.
+	 */
+	private static class Last extends Accumulator
+	{
+		private Object value = null;
+		
+		@Override
+		void add(Object value)
+		{
+			this.value = value == Query.MISSING ? null : value;
+		}
+		
+		@Override
+		void merge(Object partial)
+		{
+			add(partial);
+		}
+		
+		@Override
+		Object partial()
+		{
+			return value;
+		}
+		
+		@Override
+		Object result()
+		{
+			return value;
+		}
+	}
+	
+	
+	/**
+	 * {@code $push}, which skips missing values
+	 */
+	private static class Push extends Accumulator
+	{
+		private JSONArray values = new JSONArray();
+		
+		@Override
+		@SuppressWarnings("unchecked")
+		void add(Object value)
+		{
+			if( value != Query.MISSING )
+				values.add(value);
+		}
+		
+		@Override
+		@SuppressWarnings("unchecked")
+		void merge(Object partial)
+		{
+			values.addAll((List<?>) partial);
+		}
+		
+		@Override
+		Object partial()
+		{
+			return values;
+		}
+		
+		@Override
+		Object result()
+		{
+			return values;
+		}
+	}
+}
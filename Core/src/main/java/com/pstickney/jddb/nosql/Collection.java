@@ -1,324 +1,1143 @@
-package com.pstickney.jddb.nosql;
-
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
-
-import java.io.*;
-import java.util.*;
-
-public class Collection 
-{
-	private File collectionFile = null;
-	private File tempFile = null;
-	
-	private JSONParser parser = null;
-	private JSONObject Jcollection = null;
-	private JSONArray Jdocuments = null;
-	
-	public Map<String, Object> collection = null;
-	public List<Document> documents = null;
-	
-	
-	/**
-	 * Construct an empty collection
-	 */
-	public Collection()
-	{
-		Jcollection = new JSONObject();
-		Jdocuments = new JSONArray();
-		
-		collection = new HashMap<String, Object>();
-		documents = new ArrayList<Document>();
-	}
-	
-	
-	/**
-	 * Construct a collection with a given path and file name
-	 * 
-	 * @param path The base path of the collection
-	 * @param name The file name of the collection
-	 */
-	public Collection(String path, String name)
-	{
-		Jcollection = new JSONObject();
-		Jdocuments = new JSONArray();
-		
-		collection = new HashMap<String, Object>();
-		documents = new ArrayList<Document>();
-		
-		try {
-			connectTo(path, name);
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		}
-	}
-	
-	
-	/**
-	 * Connects to a new collection file.
-	 * 
-	 * @param path The base path of the collection
-	 * @param name The file name of the collection
-	 * @return This collection
-	 * 
-	 * @throws FileNotFoundException
-	 */
-	public Collection connectTo(String path, String name) throws FileNotFoundException
-	{
-		tempFile = new File(path, name);
-		if( !tempFile.exists() )
-			throw new FileNotFoundException("File does not exist");
-		
-		collectionFile = tempFile;
-		return this;
-	}
-	
-	
-	/**
-	 * Loads the collection file off of disk.
-	 * 
-	 * @throws FileNotFoundException
-	 * @throws IOException
-	 */
-	public void load() throws FileNotFoundException, IOException 
-	{
-		parser = new JSONParser();
-
-		/*
-		 * If there currently is a collection file, load the
-		 * data contained in the file into memory so that we
-		 * can use it in this collection.
-		 * 
-		 * If no file exists, we already initialized all the
-		 * variables so they should be default.
-		 */
-		if( collectionFile.exists() )
-		{
-			try {
-				Jcollection = (JSONObject) parser.parse(new FileReader(collectionFile));
-			} catch (ParseException | ClassCastException e) {
-				Jcollection = new JSONObject();
-			}
-			
-			if( Jcollection.containsKey("documents") )
-				Jdocuments = (JSONArray) Jcollection.get("documents");
-			else
-				Jdocuments = new JSONArray();
-		}
-		
-		// Add the parsed documents to memory if there was a file
-		for( Object o : Jdocuments )
-			documents.add(new Document(o));
-	}
-	
-	
-	/**
-	 * Saves the collection to the disk.
-	 * 
-	 * This takes the in memory document list and converts it 
-	 * to a JSON compatible list of documents, then writes the 
-	 * JSON string to the file.
-	 * 
-	 * @throws IOException
-	 */
-	@SuppressWarnings("unchecked")
-	public void save() throws IOException
-	{
-		// Create the file if it doesn't exist
-		if( !collectionFile.exists() ) {
-			collectionFile.getParentFile().mkdirs();
-			collectionFile.createNewFile();
-		}
-		
-		// Add the documents to JSON array
-		Jdocuments.clear();
-		Jdocuments.addAll(documents);
-		Jcollection.put("documents", Jdocuments);
-
-		// Write the file out to disk
-		FileOutputStream out = new FileOutputStream(collectionFile);
-		out.write(Jcollection.toJSONString().getBytes());
-		out.flush();
-		out.getFD().sync();
-		out.close();
-	}
-	
-	
-	
-	public File getCurrentBasePathFile()
-	{
-		return collectionFile.getParentFile();
-	}
-	public String getCurrentBasePath()
-	{
-		try {
-			return collectionFile.getParentFile().getCanonicalPath();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		return null;
-	}
-	public String getCurrentCollectionFile()
-	{
-		return collectionFile.getName();
-	}
-	
-	
-	
-	/**
-	 * Deletes this collection file
-	 * 
-	 * @return true if the file was successfully deleted 
-	 */
-	public boolean drop()
-	{
-		return collectionFile.delete();
-	}
-	
-	
-	
-	
-	/**
-	 * Returns a database cursor for the matching Document query you are searching for
-	 * 
-	 * @param query The document query to search for
-	 * @return Database cursor matching the search query
-	 */
-	public Cursor find(Document query)
-	{
-		return find(query, new Document());
-	}
-	/**
-	 * Returns a database cursor for the matching Document query you are searching for
-	 * 
-	 * @param query The document query to search for
-	 * @param projection The JSON keys to keep or remove in the resulting cursor
-	 * @return Database cursor matching the seaerch query
-	 */
-	public Cursor find(Document query, Document projection)
-	{
-		return new Cursor(this, query, projection);
-	}
-	
-	
-	
-	
-	/**
-	 * Insert a new Document into the database
-	 * 
-	 * @param doc The Document to insert
-	 * @return true if successful, false otherwise
-	 */
-	public boolean insert(Document doc)
-	{
-		// generate a random key for the document if it does not contain one
-		if( !doc.containsKey("_id") )
-			doc.put("_id", UUID.randomUUID().toString());
-		
-		return documents.add(doc);
-	}
-	/**
-	 * Inserts a list of Documents into the database
-	 * 
-	 * @param docs The Documents to insert
-	 * @return true if all of the inserts were successful, false otherwise
-	 */
-	public boolean insert(List<Document> docs)
-	{
-		boolean result = true;
-		Iterator<Document> it = docs.iterator();
-		
-		while( it.hasNext() )
-			result &= insert(it.next());
-		
-		return result;
-	}
-	
-	
-	
-	
-	/**
-	 * Updates a single matching document in the database
-	 * 
-	 * @param query The Document query to search for
-	 * @param update The new Document to replace
-	 * @return true if successful, false otherwise
-	 */
-	public boolean update(Document query, Document update)
-	{
-		Map<String, Boolean> options = new HashMap<String, Boolean>();
-		options.put("upsert", false);
-		options.put("multi", false);
-		
-		return update(query, update, options);
-	}
-	/**
-	 * Updates single or multiple document(s) in the database
-	 * 
-	 * @param query The Document query to search for
-	 * @param update The new Document to replace 
-	 * @param options Option map containing upsert and multi values
-	 * @return true if successful, false otherwise
-	 */
-	public boolean update(Document query, Document update, Map<String, Boolean> options)
-	{
-		Document doc = null;
-		Cursor cursor = find(query);
-		
-		while( cursor.hasNext() )
-		{
-			doc = cursor.next();
-			doc.copy(update);
-			
-			// if multi is not set, then just break out of the loop
-			// after we do a single update
-			if( !options.get("multi").booleanValue() )
-				break;
-		}
-		
-		return true;
-	}
-	
-	
-	
-	
-	/**
-	 * Remove a single Document from the database
-	 * 
-	 * @param query The Document query to search for
-	 * @return true if successful, false otherwise
-	 */
-	public boolean remove(Document query)
-	{
-		return remove(query, false);
-	}
-	/**
-	 * Removes Document(s) from the database
-	 * 
-	 * @param query The Document query to search for
-	 * @param justOne true to remove a single Document, false to remove all matching Documents 
-	 * @return true if all removes were successful, false otherwise
-	 */
-	public boolean remove(Document query, boolean justOne)
-	{
-		boolean result = false;
-		Cursor cursor = find(query);
-		
-		while( cursor.hasNext() )
-		{
-			result &= cursor.remove(cursor.next());
-			if( justOne )
-				break;
-		}
-		
-		return result;
-	}
-	
-	@Override
-	public String toString() 
-	{
-		return documents.toString();
-	}
-}
+package com.pstickney.jddb.nosql;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import java.io.*;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class Collection 
+{
+	// Storage backends a collection can keep its documents in
+	public static final String MEMORY = "memory";
+	public static final String MAPPED = "mapped";
+	
+	// Ticket returned when an operation could not be logged
+	private static final long LOG_FAILED = Long.MIN_VALUE;
+	
+	private File collectionFile = null;
+	private File tempFile = null;
+	private File indexFile = null;
+	private OperationLog log = null;
+	
+	public Map<String, Object> collection = null;
+	
+	// The backend holding the documents of this collection
+	private String storage = MEMORY;
+	DocumentStore store = null;
+	
+	// Secondary indexes by the name of the indexed field
+	Map<String, Index> indexes = new LinkedHashMap<String, Index>();
+	
+	// Full scans of at least this many documents are run in parallel, 0 to disable
+	volatile int parallelThreshold = 10000;
+	
+	// Sorts of more than this many documents are merged from run files on disk
+	volatile int sortBuffer = Sorter.DEFAULT_BUFFER;
+	
+	/*
+	 * Writers hold the write lock for the whole of an operation. Readers only
+	 * hold the read lock while they use the indexes and open their view, the
+	 * documents themselves are read without a lock, see DocumentStore.
+	 */
+	final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	
+	// Sequence number of the last operation applied to this collection
+	private volatile long sequence = 0;
+	
+	// The snapshots being read by cursors, and the cursors dropped without being closed
+	private final Set<View> views = new HashSet<View>();
+	private final ReferenceQueue<Cursor> abandoned = new ReferenceQueue<Cursor>();
+	
+	// Group commit settings handed to the operation log
+	private long groupCommitWindow = 0;
+	private int groupCommitSize = 1;
+	
+	// Only one snapshot is written at a time, by the background snapshotter if there is one
+	private final Object snapshotLock = new Object();
+	private volatile long savedSequence = 0;
+	private Snapshotter snapshotter = null;
+	
+	// A collection file is never saved over until it has been loaded
+	private volatile boolean loaded = true;
+	
+	
+	/**
+	 * Construct an empty collection
+	 */
+	public Collection()
+	{
+		collection = new HashMap<String, Object>();
+		store = new MemoryDocumentStore(null);
+	}
+	
+	
+	/**
+	 * Construct a collection with a given path and file name
+	 * 
+	 * @param path The base path of the collection
+	 * @param name The file name of the collection
+	 */
+	public Collection(String path, String name)
+	{
+		this(path, name, MEMORY);
+	}
+	
+	
+	/**
+	 * Construct a collection with a given path and file name that keeps
+	 * its documents in the given storage backend.<br><br>
+	 * 
+	 * With {@link #MEMORY} every document is held on the heap and the file 
+	 * is a JSON snapshot. With {@link #MAPPED} the file is a memory-mapped 
+	 * binary store and documents are only decoded when they are read.
+	 * 
+	 * @param path The base path of the collection
+	 * @param name The file name of the collection
+	 * @param storage The storage backend, {@link #MEMORY} or {@link #MAPPED}
+	 */
+	public Collection(String path, String name, String storage)
+	{
+		collection = new HashMap<String, Object>();
+		store = new MemoryDocumentStore(null);
+		this.storage = storage;
+		
+		try {
+			connectTo(path, name);
+		} catch (FileNotFoundException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	
+	/**
+	 * Connects to a new collection file.
+	 * 
+	 * @param path The base path of the collection
+	 * @param name The file name of the collection
+	 * @return This collection
+	 * 
+	 * @throws FileNotFoundException
+	 */
+	public Collection connectTo(String path, String name) throws FileNotFoundException
+	{
+		tempFile = new File(path, name);
+		if( !tempFile.exists() )
+			throw new FileNotFoundException("File does not exist");
+		
+		lock.writeLock().lock();
+		try {
+			collectionFile = tempFile;
+			loaded = false;
+			
+			// Every collection file keeps its operations in a log next to it
+			try {
+				if( log != null )
+					log.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			log = new OperationLog(new File(path, name + ".log"));
+			log.setGroupCommit(groupCommitWindow, groupCommitSize);
+			
+			// ...and the specifications of its indexes in an index file
+			indexFile = new File(path, name + ".idx");
+			indexes.clear();
+			
+			// The documents are read from the new file on the next load
+			try {
+				store.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			if( MAPPED.equalsIgnoreCase(storage) )
+				store = new MappedDocumentStore(collectionFile);
+			else
+				store = new MemoryDocumentStore(collectionFile);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		
+		return this;
+	}
+	
+	
+	/**
+	 * Loads the collection file off of disk.<br><br>
+	 * 
+	 * The file holds the last saved snapshot of the collection and is 
+	 * read by the storage backend. Any operations that were logged after 
+	 * that snapshot was taken are replayed on top of it to bring the 
+	 * collection up to date. Finally the indexes listed in the index file
+	 * are rebuilt from the loaded documents.
+	 * 
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	public void load() throws FileNotFoundException, IOException 
+	{
+		lock.writeLock().lock();
+		try {
+			sequence = store.load();
+			savedSequence = sequence;
+			
+			// Bring the snapshot up to date with everything logged since
+			if( log != null )
+				sequence = log.replay(sequence, this);
+			store.reclaim(sequence);
+			
+			loadIndexes();
+			loaded = true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	
+	/**
+	 * Saves a snapshot of the collection to the disk.<br><br>
+	 * 
+	 * The storage backend captures its contents under the read lock, which is
+	 * the only time writers have to wait. The snapshot is then written out 
+	 * without holding the collection in a way that a crash
+	 * at any point leaves a complete snapshot behind. Once the snapshot is on
+	 * disk, the records it contains are dropped from the operation log.
+	 * Nothing is saved while the collection file has not been loaded, so a
+	 * file that failed to load is left as it is.
+	 * 
+	 * @throws IOException
+	 */
+	public void save() throws IOException
+	{
+		OperationLog snapshotLog = null;
+		DocumentStore.Snapshot snapshot = null;
+		long snapshotSequence = 0;
+		
+		synchronized( snapshotLock )
+		{
+			lock.readLock().lock();
+			try {
+				if( !loaded )
+					return;
+				
+				snapshotLog = log;
+				snapshotSequence = sequence;
+				snapshot = store.snapshot(sequence);
+			} finally {
+				lock.readLock().unlock();
+			}
+			
+			snapshot.write();
+			
+			if( snapshotLog != null )
+				snapshotLog.truncate(snapshotSequence);
+			savedSequence = snapshotSequence;
+		}
+	}
+	
+	
+	/**
+	 * Starts a background thread that saves a snapshot of the collection
+	 * every {@code interval} milliseconds, or sooner once {@code operations}
+	 * mutations have been logged since the last snapshot.
+	 * 
+	 * @param interval The time between snapshots in milliseconds
+	 * @param operations The number of logged mutations that triggers a snapshot
+	 */
+	public synchronized void startSnapshots(long interval, long operations)
+	{
+		if( snapshotter != null )
+			return;
+		
+		snapshotter = new Snapshotter(interval, operations);
+		snapshotter.start();
+	}
+	
+	
+	/**
+	 * Asks for a snapshot to be saved. If the background snapshotter is
+	 * running this returns right away and the snapshot is saved on that 
+	 * thread, otherwise the snapshot is saved before returning.
+	 * 
+	 * @throws IOException
+	 */
+	public void requestSnapshot() throws IOException
+	{
+		Snapshotter s = null;
+		
+		synchronized( this ) {
+			s = snapshotter;
+		}
+		
+		if( s != null )
+			s.request();
+		else
+			save();
+	}
+	
+	
+	/**
+	 * Turns on group commit for the operation log of this collection.<br><br>
+	 * 
+	 * Mutations made concurrently from several threads are then written 
+	 * to the log together with one write and one fsync. Each mutation still 
+	 * only returns once its own record is on disk.
+	 * 
+	 * @param window The longest time in milliseconds to wait for more mutations, 0 to disable
+	 * @param size The number of mutations that are written without waiting any longer
+	 */
+	public void setGroupCommit(long window, int size)
+	{
+		groupCommitWindow = window;
+		groupCommitSize = size;
+		
+		if( log != null )
+			log.setGroupCommit(window, size);
+	}
+	
+	
+	/**
+	 * Sets the number of documents a collection needs before a full scan 
+	 * is split up and run on the fork-join pool. Below that, the cost of 
+	 * splitting the scan up outweighs what is gained.
+	 * 
+	 * @param threshold The smallest collection that is scanned in parallel, 0 to disable
+	 */
+	public void setParallelScan(int threshold)
+	{
+		parallelThreshold = Math.max(0, threshold);
+	}
+	
+	
+	/**
+	 * Sets the number of documents a sort holds in memory. A sorted cursor
+	 * without an index to read the order from and with more matching documents
+	 * than this writes them out to temporary files in sorted runs of this size
+	 * and merges the runs as it is read. A sort with a limit only holds
+	 * {@code skip + limit} documents and only uses the disk if that is more.
+	 * 
+	 * @param documents The largest number of documents sorted in memory
+	 */
+	public void setSortBuffer(int documents)
+	{
+		sortBuffer = Math.max(1, documents);
+	}
+	
+	
+	/**
+	 * Closes the operation log and storage backend of this 
+	 * collection and stops the background snapshotter.
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException
+	{
+		Snapshotter s = null;
+		
+		synchronized( this ) {
+			s = snapshotter;
+			snapshotter = null;
+		}
+		
+		// Let a snapshot that is being written finish first
+		if( s != null )
+			s.finish();
+		
+		if( log != null )
+			log.close();
+		
+		lock.writeLock().lock();
+		try {
+			store.close();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	
+	
+	public File getCurrentBasePathFile()
+	{
+		return collectionFile.getParentFile();
+	}
+	public String getCurrentBasePath()
+	{
+		try {
+			return collectionFile.getParentFile().getCanonicalPath();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+	public String getCurrentCollectionFile()
+	{
+		return collectionFile.getName();
+	}
+	
+	
+	
+	/**
+	 * Deletes this collection file
+	 * 
+	 * @return true if the file was successfully deleted 
+	 */
+	public boolean drop()
+	{
+		return collectionFile.delete();
+	}
+	
+	
+	
+	
+	/**
+	 * Returns a database cursor for the matching Document query you are searching for
+	 * 
+	 * @param query The document query to search for
+	 * @return Database cursor matching the search query
+	 */
+	public Cursor find(Document query)
+	{
+		return find(query, new Document());
+	}
+	/**
+	 * Returns a database cursor for the matching Document query you are searching for
+	 * 
+	 * @param query The document query to search for
+	 * @param projection The JSON keys to keep or remove in the resulting cursor
+	 * @return Database cursor matching the seaerch query
+	 */
+	public Cursor find(Document query, Document projection)
+	{
+		return new Cursor(this, query, projection);
+	}
+	
+	
+	
+	
+	/**
+	 * Runs an aggregation pipeline over the documents of this collection
+	 * 
+	 * @param pipeline The stage documents, see {@link Pipeline}
+	 * @return The documents coming out of the last stage
+	 * 
+	 * @throws IllegalArgumentException If a stage is unknown or malformed
+	 */
+	public Iterator<Document> aggregate(List<?> pipeline)
+	{
+		return aggregate(Pipeline.compile(pipeline));
+	}
+	/**
+	 * Runs a compiled aggregation pipeline over the documents of this collection.
+	 * The documents are read from a snapshot of the collection taken when the
+	 * first document is asked for, the same as with {@link #find(Document)}.
+	 * 
+	 * @param pipeline The compiled pipeline
+	 * @return The documents coming out of the last stage
+	 */
+	public Iterator<Document> aggregate(Pipeline pipeline)
+	{
+		return pipeline.run(this);
+	}
+	
+	
+	
+	
+	/**
+	 * Insert a new Document into the database
+	 * 
+	 * @param doc The Document to insert
+	 * @return true if successful, false otherwise
+	 */
+	public boolean insert(Document doc)
+	{
+		long ticket = 0;
+		
+		lock.writeLock().lock();
+		try {
+			// generate a random key for the document if it does not contain one
+			if( !doc.containsKey("_id") )
+				doc.put("_id", newId());
+			
+			if( !store.add(doc, sequence + 1) )
+				return false;
+			index(doc);
+			
+			ticket = log(OperationLog.INSERT, doc.get("_id"), doc);
+			store.reclaim(oldestView());
+		} finally {
+			lock.writeLock().unlock();
+		}
+		
+		return commit(ticket);
+	}
+	/**
+	 * Inserts a list of Documents into the database as a single batch.<br><br>
+	 * 
+	 * The write lock is taken once for the whole batch, the storage backend
+	 * makes room for all of the documents at once, each index adds the batch
+	 * one distinct value at a time and the log records of the batch are 
+	 * written with a single write and a single fsync. A document whose _id
+	 * is already in the collection, or earlier in the batch, is left out.
+	 * 
+	 * @param docs The Documents to insert
+	 * @return true if all of the inserts were successful, false otherwise
+	 */
+	public boolean insert(List<Document> docs)
+	{
+		List<Document> added = null;
+		long ticket = -1;
+		
+		lock.writeLock().lock();
+		try {
+			for( Document doc : docs )
+				if( !doc.containsKey("_id") )
+					doc.put("_id", newId());
+			
+			added = store.add(docs, sequence + 1);
+			for( Index index : indexes.values() )
+				index.add(added);
+			
+			if( !added.isEmpty() )
+				ticket = log(OperationLog.INSERT, added);
+			store.reclaim(oldestView());
+		} finally {
+			lock.writeLock().unlock();
+		}
+		
+		return commit(ticket) && added.size() == docs.size();
+	}
+	
+	
+	
+	
+	/**
+	 * Updates a single matching document in the database
+	 * 
+	 * @param query The Document query to search for
+	 * @param update The new Document to replace
+	 * @return true if successful, false otherwise
+	 */
+	public boolean update(Document query, Document update)
+	{
+		Map<String, Boolean> options = new HashMap<String, Boolean>();
+		options.put("upsert", false);
+		options.put("multi", false);
+		
+		return update(query, update, options);
+	}
+	/**
+	 * Updates single or multiple document(s) in the database.<br><br>
+	 * 
+	 * An update document with operators such as {@code $set} or {@code $inc}
+	 * changes only the fields it names, see {@link Update}. Only the indexes
+	 * on those fields are updated and the log record holds the operators
+	 * rather than the whole document. An update document without operators
+	 * replaces the whole document.<br><br>
+	 * 
+	 * The new versions of all matching documents are built before any of
+	 * them is stored, so an operator that does not apply to one of them, 
+	 * such as {@code $inc} on a string, leaves the collection unchanged.<br><br>
+	 * 
+	 * With upsert set and no matching document, a new document is inserted
+	 * instead, built from the fields the query matches by equality with the
+	 * update applied on top, see {@link Update#upsert(Document)}.
+	 * 
+	 * @param query The Document query to search for
+	 * @param update The update operators, or the new Document to replace 
+	 * @param options Option map containing upsert and multi values
+	 * @return true if successful, false otherwise
+	 * 
+	 * @throws IllegalArgumentException If the update is malformed or does not apply to a matching document
+	 */
+	public boolean update(Document query, Document update, Map<String, Boolean> options)
+	{
+		Update compiled = Update.compile(update);
+		String op = compiled.isReplacement() ? OperationLog.UPDATE : OperationLog.MODIFY;
+		long ticket = -1;
+		
+		lock.writeLock().lock();
+		try {
+			Cursor cursor = find(query);
+			
+			// if multi is not set, then just do a single update
+			if( !options.get("multi").booleanValue() )
+				cursor.limit(1);
+			
+			// The cursor reads the live collection, so find
+			// everything to update before changing anything
+			List<Document> docs = cursor.toArray();
+			List<Document> updated = new ArrayList<Document>(docs.size());
+			for( Document doc : docs )
+				updated.add(compiled.apply(doc));
+			
+			for( int i = 0; i < docs.size(); i++ )
+			{
+				Document doc = updated.get(i);
+				
+				store.update(doc, sequence + 1);
+				reindex(docs.get(i), doc, compiled);
+				ticket = Math.max(ticket, log(op, doc.get("_id"), compiled.isReplacement() ? doc : update));
+			}
+			
+			if( docs.isEmpty() && Boolean.TRUE.equals(options.get("upsert")) )
+			{
+				Document doc = compiled.upsert(query);
+				
+				// Only happens when the query names an _id it does not match
+				if( !store.add(doc, sequence + 1) )
+					return false;
+				index(doc);
+				ticket = log(OperationLog.INSERT, doc.get("_id"), doc);
+			}
+			store.reclaim(oldestView());
+		} finally {
+			lock.writeLock().unlock();
+		}
+		
+		return commit(ticket);
+	}
+	
+	
+	
+	
+	/**
+	 * Remove a single Document from the database
+	 * 
+	 * @param query The Document query to search for
+	 * @return true if successful, false otherwise
+	 */
+	public boolean remove(Document query)
+	{
+		return remove(query, false);
+	}
+	/**
+	 * Removes Document(s) from the database
+	 * 
+	 * @param query The Document query to search for
+	 * @param justOne true to remove a single Document, false to remove all matching Documents 
+	 * @return true if all removes were successful, false otherwise
+	 */
+	public boolean remove(Document query, boolean justOne)
+	{
+		boolean result = true;
+		long ticket = -1;
+		
+		lock.writeLock().lock();
+		try {
+			Cursor cursor = find(query);
+			if( justOne )
+				cursor.limit(1);
+			
+			// Find everything to remove before changing the collection
+			for( Document doc : cursor.toArray() )
+			{
+				result &= store.remove(doc, sequence + 1);
+				unindex(doc);
+				ticket = Math.max(ticket, log(OperationLog.REMOVE, doc.get("_id"), null));
+			}
+			store.reclaim(oldestView());
+		} finally {
+			lock.writeLock().unlock();
+		}
+		
+		return commit(ticket) && result;
+	}
+	
+	
+	
+	
+	/**
+	 * Creates an index for every field in the specification, replacing any
+	 * index already on that field. A value of 1 or -1 creates a sorted index 
+	 * that serves equality and range queries, a value of {@code "hashed"}
+	 * creates a hash index that only serves equality queries.<br><br>
+	 * 
+	 * The index is built from the documents already in the collection and 
+	 * is kept up to date from then on. Its specification is saved in the 
+	 * index file so the index is rebuilt when the collection is loaded.
+	 * 
+	 * @param spec The index specification, for instance {@code {"age":1}}
+	 * @return true if successful, false otherwise
+	 */
+	public boolean createIndex(Document spec)
+	{
+		List<Index> created = new ArrayList<Index>();
+		
+		try {
+			for( String field : spec.getKeys() )
+				created.add(Index.create(field, spec.get(field)));
+		} catch (IllegalArgumentException e) {
+			e.printStackTrace();
+			return false;
+		}
+		
+		lock.writeLock().lock();
+		try {
+			for( Index index : created )
+				index.add(store);
+			
+			for( Index index : created )
+				indexes.put(index.getField(), index);
+			
+			return saveIndexes();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	
+	/**
+	 * Drops the indexes on every field in the specification
+	 * 
+	 * @param spec The index specification, for instance {@code {"age":1}}
+	 * @return true if an index was dropped, false otherwise
+	 */
+	public boolean dropIndex(Document spec)
+	{
+		boolean dropped = false;
+		
+		lock.writeLock().lock();
+		try {
+			for( String field : spec.getKeys() )
+				dropped |= indexes.remove(field) != null;
+			
+			return saveIndexes() && dropped;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	
+	/**
+	 * @return The specifications of the indexes on this collection
+	 */
+	public List<Document> getIndexes()
+	{
+		List<Document> specs = new ArrayList<Document>();
+		
+		lock.readLock().lock();
+		try {
+			for( Index index : indexes.values() )
+				specs.add(new Document(index.getSpec()));
+		} finally {
+			lock.readLock().unlock();
+		}
+		return specs;
+	}
+	
+	
+	/**
+	 * Adds a document to every index
+	 * 
+	 * @param doc The stored document
+	 */
+	private void index(Document doc)
+	{
+		for( Index index : indexes.values() )
+			index.add(doc);
+	}
+	
+	
+	/**
+	 * Removes a document from every index, before it is changed or removed
+	 * 
+	 * @param doc The stored document
+	 */
+	private void unindex(Document doc)
+	{
+		for( Index index : indexes.values() )
+			index.remove(doc);
+	}
+	
+	
+	/**
+	 * Moves an updated document in the indexes on the fields the update can
+	 * change, the other indexes still hold the right value for it
+	 * 
+	 * @param doc The stored document before the update
+	 * @param updated The new version of the document
+	 * @param update The update that built the new version
+	 */
+	private void reindex(Document doc, Document updated, Update update)
+	{
+		for( Index index : indexes.values() )
+		{
+			if( !update.changes(index.getField()) )
+				continue;
+			
+			index.remove(doc);
+			index.add(updated);
+		}
+	}
+	
+	
+	/**
+	 * Reads the index file and rebuilds the indexes it lists
+	 * 
+	 * @throws IOException If the index file cannot be read
+	 */
+	private void loadIndexes() throws IOException
+	{
+		indexes.clear();
+		if( indexFile == null || !indexFile.exists() )
+			return;
+		
+		Reader in = new InputStreamReader(new FileInputStream(indexFile), "UTF-8");
+		try {
+			Object specs = JSONValue.parse(in);
+			if( !(specs instanceof JSONArray) )
+				throw new IOException("Index file " + indexFile + " is corrupt");
+			
+			for( Object spec : (JSONArray) specs ) {
+				JSONObject obj = (JSONObject) spec;
+				Index index = Index.create((String) obj.get("field"), obj.get("type"));
+				indexes.put(index.getField(), index);
+			}
+		} catch (ClassCastException | IllegalArgumentException e) {
+			throw new IOException("Index file " + indexFile + " is corrupt: " + e);
+		} finally {
+			in.close();
+		}
+		
+		for( Index index : indexes.values() )
+			index.add(store);
+	}
+	
+	
+	/**
+	 * Writes the specifications of the indexes to the index file. The file
+	 * is written next to the index file first and then swapped in for it.
+	 * 
+	 * @return true if successful, false otherwise
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean saveIndexes()
+	{
+		if( indexFile == null )
+			return true;
+		
+		JSONArray specs = new JSONArray();
+		for( Index index : indexes.values() )
+			specs.add(index.getSpec());
+		
+		File temp = new File(indexFile.getPath() + ".tmp");
+		try {
+			FileOutputStream out = new FileOutputStream(temp);
+			try {
+				out.write(specs.toJSONString().getBytes("UTF-8"));
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+			OperationLog.move(temp, indexFile);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+		return true;
+	}
+	
+	
+	/**
+	 * Assigns the next sequence number to an operation and queues
+	 * it on the operation log, if this collection is backed by a file.
+	 * The versions the operation wrote are already stamped with that
+	 * sequence number.
+	 * 
+	 * @param op The operation type
+	 * @param id The _id of the document
+	 * @param doc The document contents, or null
+	 * @return The ticket to wait on with {@link #commit(long)}
+	 */
+	private long log(String op, Object id, Document doc)
+	{
+		sequence++;
+		if( log == null )
+			return -1;
+		
+		try {
+			return log.enqueue(sequence, op, id, doc);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return LOG_FAILED;
+		}
+	}
+	
+	
+	/**
+	 * Assigns consecutive sequence numbers to a batch of operations
+	 * of the same type and queues them on the operation log together.
+	 * 
+	 * @param op The operation type
+	 * @param docs The documents the operations apply to
+	 * @return The ticket to wait on with {@link #commit(long)}
+	 */
+	private long log(String op, List<Document> docs)
+	{
+		long first = sequence + 1;
+		
+		sequence += docs.size();
+		if( log == null )
+			return -1;
+		
+		try {
+			return log.enqueue(first, op, docs);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return LOG_FAILED;
+		}
+	}
+	
+	
+	/**
+	 * Generates the _id of a document inserted without one: a random
+	 * version 4 UUID. It is drawn from a per-thread generator rather than
+	 * the shared secure random of {@link UUID#randomUUID()}, which costs
+	 * more than the rest of an insert. The server uses it as well, to give
+	 * a document its _id before deciding which shard the document goes to.
+	 * 
+	 * @return The new _id
+	 */
+	public static String newId()
+	{
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		long high = (random.nextLong() & ~0xF000L) | 0x4000L;
+		long low = (random.nextLong() & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L;
+		
+		return new UUID(high, low).toString();
+	}
+	
+	
+	/**
+	 * Waits until the logged operations with the given ticket are on disk.
+	 * This is called after releasing the write lock so that other threads 
+	 * can add their operations to the same group commit.
+	 * 
+	 * @param ticket The ticket returned by {@link #log(String, Object, Document)}
+	 * @return true if the operations are durable, false otherwise
+	 */
+	private boolean commit(long ticket)
+	{
+		if( ticket == LOG_FAILED )
+			return false;
+		
+		try {
+			if( log != null )
+				log.await(ticket);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+		return true;
+	}
+	
+	
+	/**
+	 * Applies a record read back from the operation log to this
+	 * collection without logging it again.
+	 * 
+	 * @param record The log record
+	 */
+	void apply(JSONObject record)
+	{
+		String op = (String) record.get("op");
+		Object id = record.get("_id");
+		long seq = ((Number) record.get("seq")).longValue();
+		Document doc = store.get(id);
+		
+		if( OperationLog.INSERT.equals(op) ) {
+			if( doc == null ) {
+				doc = new Document(record.get("doc"));
+				store.add(doc, seq);
+				index(doc);
+			}
+		}
+		else if( OperationLog.UPDATE.equals(op) || OperationLog.MODIFY.equals(op) ) {
+			if( doc != null ) {
+				Document changes = new Document(record.get("doc"));
+				Update update = OperationLog.MODIFY.equals(op) ? Update.compile(changes) : Update.replacement(changes);
+				Document updated = update.apply(doc);
+				
+				store.update(updated, seq);
+				reindex(doc, updated, update);
+			}
+		}
+		else if( OperationLog.REMOVE.equals(op) ) {
+			if( doc != null ) {
+				store.remove(doc, seq);
+				unindex(doc);
+			}
+		}
+	}
+	
+	/**
+	 * Opens a view of the collection as it is now for a cursor. The 
+	 * versions the view can see are kept until the view is closed, or 
+	 * until the cursor is garbage collected if it is never closed. This
+	 * is called while holding the read lock, so no operation is half done.
+	 * 
+	 * @param cursor The cursor reading the view
+	 * @return The view
+	 */
+	View openView(Cursor cursor)
+	{
+		View view = new View(cursor, sequence, abandoned);
+		synchronized( views ) {
+			views.add(view);
+		}
+		return view;
+	}
+	
+	
+	/**
+	 * Closes a view opened by {@link #openView(Cursor)}
+	 * 
+	 * @param view The view
+	 */
+	void closeView(View view)
+	{
+		synchronized( views ) {
+			views.remove(view);
+		}
+	}
+	
+	
+	/**
+	 * @return The sequence number of the oldest view still open, or the current one if there is none
+	 */
+	private long oldestView()
+	{
+		long oldest = sequence;
+		Reference<? extends Cursor> dropped = null;
+		
+		synchronized( views )
+		{
+			while( (dropped = abandoned.poll()) != null )
+				views.remove(dropped);
+			
+			for( View view : views )
+				oldest = Math.min(oldest, view.sequence);
+		}
+		return oldest;
+	}
+	
+	@Override
+	public String toString() 
+	{
+		StringBuilder sb = new StringBuilder("[");
+		for( Document doc : store ) {
+			if( sb.length() > 1 )
+				sb.append(", ");
+			sb.append(doc);
+		}
+		return sb.append("]").toString();
+	}
+	
+	
+	/**
+	 * The collection as it was at a sequence number, read by a cursor
+	 */
+	static class View extends WeakReference<Cursor>
+	{
+		final long sequence;
+		
+		View(Cursor cursor, long sequence, ReferenceQueue<Cursor> queue)
+		{
+			super(cursor, queue);
+			this.sequence = sequence;
+		}
+	}
+	
+	
+	/**
+	 * Background thread that saves snapshots of the collection off of 
+	 * the request path, either periodically, once enough mutations have 
+	 * been logged, or when one is requested.
+	 */
+	class Snapshotter extends Thread
+	{
+		private long interval = 0;
+		private long operations = 0;
+		private long lastSnapshot = 0;
+		private boolean requested = false;
+		private boolean running = true;
+		
+		public Snapshotter(long interval, long operations)
+		{
+			super("Collection-Snapshotter");
+			setDaemon(true);
+			
+			this.interval = interval;
+			this.operations = operations;
+			lastSnapshot = System.currentTimeMillis();
+		}
+		
+		public synchronized void request()
+		{
+			requested = true;
+			notifyAll();
+		}
+		
+		public void finish()
+		{
+			synchronized( this ) {
+				running = false;
+				notifyAll();
+			}
+			
+			try {
+				join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		/**
+		 * @return true if a snapshot should be saved now
+		 */
+		private boolean due()
+		{
+			long logged = sequence - savedSequence;
+			
+			if( logged == 0 )
+				return false;
+			
+			return logged >= operations || System.currentTimeMillis() - lastSnapshot >= interval;
+		}
+		
+		@Override
+		public void run()
+		{
+			while( true )
+			{
+				synchronized( this )
+				{
+					try {
+						// Check at least once a second whether a snapshot is due
+						while( running && !requested && !due() )
+							wait(Math.max(1, Math.min(interval, 1000)));
+					} catch (InterruptedException e) {
+						return;
+					}
+					
+					if( !running )
+						return;
+					requested = false;
+				}
+				
+				try {
+					save();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				lastSnapshot = System.currentTimeMillis();
+			}
+		}
+	}
+}
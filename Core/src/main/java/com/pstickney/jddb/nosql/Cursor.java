@@ -1,169 +1,812 @@
-package com.pstickney.jddb.nosql;
-
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Set;
-
-public class Cursor implements Iterator<Document>
-{
-	private Collection collection = null;
-	private Document query = null;
-	private Document projection = null;
-	
-	private List<Document> documents = null; 
-	
-	/**
-	 * Constructs a unique set of {@link Document}s in the {@code collection} that
-	 * is filtered based on the {@code query} document. <br>
-	 * Optionally, a {@code projection} can be specified that limit the fields
-	 * in the resulting documents.
-	 * 
-	 * @param collection The collection in use
-	 * @param query The filter document
-	 * @param projection The field document specifier
-	 */
-	public Cursor(Collection collection, Document query, Document projection)
-	{
-		this.collection = collection;
-		this.query = query;
-		this.projection = projection;
-		
-		documents = new ArrayList<Document>();
-		
-		// Run the query on the collection once we have all the variables set
-		runQuery();
-	}
-	
-	
-	/**
-	 * 
-	 */
-	private void runQuery()
-	{
-		boolean inc = true;
-		Document documentIn = null, documentOut = null;
-		Set<String> queryKeys = query.getKeys(); 
-		Set<String> projectionKeys = projection.getKeys();
-		Iterator<Document> it = collection.documents.iterator();
-		
-		/*
-		 * Loop over every document in the collection in order to filter out
-		 * which ones match and don't match. The ones that match will get 
-		 * returned back to the user.
-		 * 
-		 * Note: looping over all documents in the collection is O(n). 
-		 * 	This should be satisfactory since the number of documents 
-		 * 	per shard should be small.
-		 */
-		while( it.hasNext() )
-		{
-			inc = true;
-			documentIn = it.next();
-			
-			// Check over each key in the query and make sure it 
-			// exists in the document in the collection
-			for (String key : queryKeys)
-				
-				// If the key doesn't exist, mark include as false and go to next document
-				if( !documentIn.containsKey(key) || !documentIn.get(key).equals(query.get(key)) ) {
-					inc = false;
-					break;
-				}
-			
-			// Should not include this document so continue to the next document
-			if( !inc )
-				continue;
-			
-			// Should include this document so set the out value to 
-			// the in value so we can modify it without affecting the original
-			documentOut = documentIn;
-			
-			for(String key : projectionKeys) {
-				if( documentOut.containsKey(key) ) {
-					System.out.println("projKey: (" + key.getClass() + ") " +key);
-					System.out.println("projVal: (" + projection.get(key).getClass() + ") " + projection.get(key));
-					if( (projection.get(key) instanceof Long && (Long)projection.get(key) == 0) ||
-						(projection.get(key) instanceof Boolean && (Boolean)projection.get(key) == false ))
-						
-						// Removes the specific key if it has been 
-						// set to false in the projection
-						documentOut.remove(key);
-				}
-			}
-			documents.add(documentOut);
-		}
-	}
-	
-	
-	/**
-	 * Gets the count of the number of documents in this Cursor
-	 * 
-	 * @return The number of documents
-	 */
-	public int count()
-	{
-		if( documents != null )
-			return documents.size();
-		return 0;
-	}
-
-	
-	/**
-	 * Removes a document from the Cursor
-	 * 
-	 * @param doc The document to remove
-	 * @return true if the the document was in the Cursor
-	 */
-	public boolean remove(Document doc)
-	{
-		if( documents != null )
-			return documents.remove(doc);
-		return false;
-	}
-	
-	
-	/**
-	 * Iterator wrapper to see if the next element exists
-	 * 
-	 * @return true if the iterator has more elements
-	 */
-	@Override
-	public boolean hasNext()
-	{
-		if( documents != null )
-			return documents.iterator().hasNext();
-		return false;
-	}
-
-	
-	/**
-	 * Iterator wrapper for the next element
-	 * 
-	 * @return The next element in the iteration
-	 */
-	@Override
-	public Document next() 
-	{
-		if( documents != null )
-			return documents.iterator().next();
-		return null;
-	}
-
-	
-	/**
-	 * Iterator wrapper to remove elements
-	 */
-	@Override
-	public void remove()
-	{
-		if( documents != null )
-			documents.iterator().remove();
-	}
-	
-	
-	@Override
-	public String toString() {
-		return documents.toString();
-	}
-}
+package com.pstickney.jddb.nosql;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Iterator over the {@link Document}s of a {@link Collection} that match a query.<br><br>
+ * 
+ * The query is evaluated lazily. Nothing is read from the collection until
+ * the first document is asked for, and each call to {@link #next()} only
+ * scans as far as the next matching document, so a caller that stops early
+ * never pays for the rest of the collection and the matches are never held
+ * in memory all at once.<br><br>
+ * 
+ * Reading the whole cursor at once with {@link #toArray()} or counting it on a
+ * large collection without an index splits the scan up over the fork-join pool
+ * instead, see {@link Collection#setParallelScan(int)}.<br><br>
+ * 
+ * A cursor reads a snapshot of the collection as it was when the first
+ * document was asked for. Documents written after that, including by an 
+ * update or remove that was still to come, are not seen, and no operation
+ * is ever seen half done. The cursor only holds the read lock of the collection
+ * while it opens its snapshot, picks an index and reads the _ids out of it.
+ * The documents themselves are read without a lock, so a long scan never
+ * holds up writers.<br><br>
+ * 
+ * The older versions of the documents a cursor can see are kept for it until
+ * it has been read to the end or is closed with {@link #close()}.<br><br>
+ * 
+ * A cursor returns the documents in the order they were inserted unless it
+ * is given a sort order with {@link #sort(Document)}. A sort on a field with
+ * a sorted index reads the documents in the order of the index, which streams
+ * like an unsorted cursor. Any other sort reads every matching document first,
+ * keeping only the first {@code skip + limit} in a heap when there is a limit,
+ * and sorting on disk when there are more than fit in the sort buffer of the
+ * collection, see {@link Collection#setSortBuffer(int)}.
+ */
+public class Cursor implements Iterator<Document>
+{
+	private Collection collection = null;
+	private Document query = null;
+	private Query matcher = null;
+	private Projection projection = null;
+	
+	private int skip = 0;
+	private int limit = 0;
+	private SortOrder order = null;
+	
+	// Opened on the first step, so skip and limit can be set before that
+	private Collection.View view = null;
+	private Iterator<Document> candidates = null;
+	private Document next = null;
+	private int skipped = 0;
+	private int returned = 0;
+	
+	// Whether the candidates come in sort order, and the sort they are read back from if not
+	private boolean inOrder = false;
+	private Sorter sorter = null;
+	
+	// _ids of documents removed from this cursor
+	private Set<Object> removed = null;
+	
+	/**
+	 * Constructs a unique set of {@link Document}s in the {@code collection} that
+	 * is filtered based on the {@code query} document. <br>
+	 * Optionally, a {@code projection} can be specified that limit the fields
+	 * in the resulting documents.
+	 * 
+	 * @param collection The collection in use
+	 * @param query The filter document
+	 * @param projection The field document specifier
+	 */
+	public Cursor(Collection collection, Document query, Document projection)
+	{
+		this.collection = collection;
+		this.query = query;
+		
+		// Compile the query and projection once instead of interpreting them for every document
+		matcher = Query.compile(query);
+		this.projection = Projection.compile(projection);
+		removed = new HashSet<Object>();
+	}
+	
+	
+	/**
+	 * Constructs an unread copy of a cursor, sharing its compiled query
+	 * 
+	 * @param cursor The cursor to copy
+	 */
+	private Cursor(Cursor cursor)
+	{
+		collection = cursor.collection;
+		query = cursor.query;
+		matcher = cursor.matcher;
+		projection = cursor.projection;
+		removed = cursor.removed;
+	}
+	
+	
+	/**
+	 * Skips over the first {@code n} matching documents
+	 * 
+	 * @param n The number of documents to skip
+	 * @return This cursor
+	 * 
+	 * @throws IllegalStateException If the cursor has already been read from
+	 */
+	public Cursor skip(int n)
+	{
+		if( candidates != null )
+			throw new IllegalStateException("Cursor has already been read from");
+		
+		skip = Math.max(0, n);
+		return this;
+	}
+	
+	
+	/**
+	 * Stops the cursor after {@code n} documents have been returned
+	 * 
+	 * @param n The largest number of documents to return, 0 for no limit
+	 * @return This cursor
+	 * 
+	 * @throws IllegalStateException If the cursor has already been read from
+	 */
+	public Cursor limit(int n)
+	{
+		if( candidates != null )
+			throw new IllegalStateException("Cursor has already been read from");
+		
+		limit = Math.max(0, n);
+		return this;
+	}
+	
+	
+	/**
+	 * Returns the documents sorted by a field, 1 for ascending and -1 for
+	 * descending order, as in {@code {"timestamp":-1}}. Skip and limit are 
+	 * applied to the sorted documents.
+	 * 
+	 * @param spec The sort specification
+	 * @return This cursor
+	 * 
+	 * @throws IllegalArgumentException If the sort specification is malformed
+	 * @throws IllegalStateException If the cursor has already been read from
+	 * @see SortOrder
+	 */
+	public Cursor sort(Document spec)
+	{
+		return sort(SortOrder.compile(spec));
+	}
+	/**
+	 * Returns the documents sorted by several fields, as in 
+	 * {@code [{"age":-1},{"name":1}]}. Ties on the first field are
+	 * sorted by the next one.
+	 * 
+	 * @param spec The sort keys, most significant first
+	 * @return This cursor
+	 * 
+	 * @throws IllegalArgumentException If the sort specification is malformed
+	 * @throws IllegalStateException If the cursor has already been read from
+	 * @see SortOrder
+	 */
+	public Cursor sort(List<?> spec)
+	{
+		return sort(SortOrder.compile(spec));
+	}
+	/**
+	 * Returns the documents in a compiled sort order
+	 * 
+	 * @param order The sort order
+	 * @return This cursor
+	 * 
+	 * @throws IllegalStateException If the cursor has already been read from
+	 */
+	Cursor sort(SortOrder order)
+	{
+		if( candidates != null )
+			throw new IllegalStateException("Cursor has already been read from");
+		
+		this.order = order;
+		return this;
+	}
+	
+	
+	/**
+	 * Scans ahead to the next document that matches the query,
+	 * unless there already is one waiting to be returned.
+	 */
+	private void advance()
+	{
+		if( next != null )
+			return;
+		
+		if( candidates == null ) {
+			candidates = candidates();
+			if( order != null && !inOrder )
+				candidates = sorted(candidates);
+		}
+		
+		if( limit > 0 && returned >= limit ) {
+			close();
+			return;
+		}
+		
+		while( candidates.hasNext() )
+		{
+			Document doc = candidates.next();
+			
+			if( !matcher.matches(doc) || removed.contains(doc.get("_id")) )
+				continue;
+			
+			if( skipped < skip ) {
+				skipped++;
+				continue;
+			}
+			
+			next = doc;
+			return;
+		}
+		close();
+	}
+	
+	
+	/**
+	 * Gets the documents that could match the query.<br><br>
+	 * 
+	 * An _id equal to a value, or to one of the values of {@code $in}, is 
+	 * looked up in the _id index of the collection. Otherwise, if any of the
+	 * queried fields are indexed and the index can serve the condition on
+	 * its field, the index with the fewest entries for its condition is used.
+	 * Only when no index can be used is every document in the collection scanned.<br><br>
+	 * 
+	 * A sorted cursor reads the candidates in the order of a sorted index on
+	 * the sort field instead, when that index can give them, see {@link #ordered(Index)}.
+	 * Otherwise the candidates are sorted by {@link #sorted(Iterator)}.<br><br>
+	 * 
+	 * The view of the cursor is opened under the same read lock as the index
+	 * is read, so the _ids read from the index are those of the view.
+	 * 
+	 * @return An iterator over the candidate documents
+	 */
+	private Iterator<Document> candidates()
+	{
+		Lock lock = collection.lock.readLock();
+		
+		lock.lock();
+		try {
+			view = collection.openView(this);
+			
+			List<Object> keys = keys();
+			if( keys != null )
+				return lookup(keys);
+			
+			Index best = plan();
+			List<Object> ordered = order == null ? null : ordered(best);
+			if( ordered != null ) {
+				inOrder = true;
+				return lookup(ordered);
+			}
+			
+			if( best == null )
+				return collection.store.iterator(view.sequence);
+			
+			return lookup(best.get(query.get(best.getField())));
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	
+	/**
+	 * @return The _ids the query asks for, or null if it does not ask for specific _ids
+	 */
+	private List<Object> keys()
+	{
+		Object id = query.get("_id");
+		
+		if( !query.containsKey("_id") )
+			return null;
+		if( !Query.isOperator(id) )
+			return byValue(Collections.singletonList(id));
+		
+		Map<?, ?> ops = (Map<?, ?>) id;
+		if( ops.containsKey("$eq") )
+			return byValue(Collections.singletonList(ops.get("$eq")));
+		if( ops.get("$in") instanceof List )
+			return byValue((List<?>) ops.get("$in"));
+		return null;
+	}
+	
+	
+	/**
+	 * Documents are stored under their _id as it was inserted, while a query
+	 * compares numbers by value, so a whole number is looked up both as an 
+	 * integer and as a decimal, 5 and 5.0
+	 * 
+	 * @param ids The _ids the query asks for
+	 * @return The distinct _ids to look up
+	 */
+	private static List<Object> byValue(List<?> ids)
+	{
+		Set<Object> keys = new LinkedHashSet<Object>();
+		
+		for( Object id : ids ) {
+			Object normal = Index.normalize(id);
+			keys.add(id);
+			if( normal instanceof Long ) {
+				keys.add(normal);
+				keys.add(((Long) normal).doubleValue());
+			}
+		}
+		return new ArrayList<Object>(keys);
+	}
+	
+	
+	/**
+	 * Looks documents up by _id as the cursor reaches them
+	 * 
+	 * @param keys The _ids of the documents
+	 * @return An iterator over the documents that exist
+	 */
+	private Iterator<Document> lookup(List<Object> keys)
+	{
+		final Iterator<Object> ids = keys.iterator();
+		final long sequence = view.sequence;
+		
+		return new Iterator<Document>() {
+			private Document doc = null;
+			
+			@Override
+			public boolean hasNext() {
+				while( doc == null && ids.hasNext() )
+					doc = collection.store.get(ids.next(), sequence);
+				return doc != null;
+			}
+			
+			@Override
+			public Document next() {
+				if( !hasNext() )
+					throw new NoSuchElementException();
+				
+				Document d = doc;
+				doc = null;
+				return d;
+			}
+		};
+	}
+	
+	
+	/**
+	 * Reads the _ids of the candidates in sort order out of a sorted index on
+	 * the field of a single field sort. This is only done if the index would
+	 * be picked for the query anyway, or no index would be and the collection
+	 * would otherwise be scanned. Called under the read lock.
+	 * 
+	 * @param best The index picked for the query, or null
+	 * @return The _ids in sort order, or null if the index cannot give them
+	 */
+	private List<Object> ordered(Index best)
+	{
+		Index index = order.getFields().size() == 1 ? collection.indexes.get(order.getFields().get(0)) : null;
+		List<Object> ids = null;
+		
+		if( !(index instanceof SortedIndex) || (best != null && best != index) )
+			return null;
+		
+		Object condition = query.get(index.getField());
+		if( best == null ) {
+			// Documents without the field are not in the index, but still have to be returned
+			if( ((SortedIndex) index).size() < collection.store.size() )
+				return null;
+			ids = ((SortedIndex) index).all();
+		}
+		else if( !Query.isOperator(condition) )
+			ids = index.get(condition);
+		else
+			ids = index.getRange((Map<?, ?>) condition);
+		
+		if( ids != null && order.isDescending(0) )
+			Collections.reverse(ids);
+		return ids;
+	}
+	
+	
+	/**
+	 * Sorts the candidates that match the query. When the cursor has a limit
+	 * only the first {@code skip + limit} are kept. Once every candidate has
+	 * been read the view of the cursor is closed, since the sorted documents
+	 * are all that is read from then on.
+	 * 
+	 * @param candidates The candidate documents
+	 * @return The matching documents in order
+	 * 
+	 * @throws UncheckedIOException If the sort cannot use its run files
+	 */
+	private Iterator<Document> sorted(Iterator<Document> candidates)
+	{
+		sorter = new Sorter(order, limit == 0 ? 0 : (long) skip + limit, collection.sortBuffer);
+		
+		try {
+			while( candidates.hasNext() ) {
+				Document doc = candidates.next();
+				if( matcher.matches(doc) && !removed.contains(doc.get("_id")) )
+					sorter.add(doc);
+			}
+			
+			if( view != null )
+				collection.closeView(view);
+			view = null;
+			
+			return sorter.sorted();
+		} catch (IOException e) {
+			close();
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	
+	/**
+	 * Picks the most selective index for the query
+	 * 
+	 * @return The index to use, or null if none of the queried fields are indexed
+	 */
+	private Index plan()
+	{
+		Index best = null;
+		int bestCount = Integer.MAX_VALUE;
+		
+		for( String key : query.getKeys() )
+		{
+			Index index = collection.indexes.get(key);
+			if( index == null )
+				continue;
+			
+			// The index may not be able to serve the condition
+			int count = index.count(query.get(key));
+			if( count >= 0 && count < bestCount ) {
+				best = index;
+				bestCount = count;
+			}
+		}
+		return best;
+	}
+	
+	
+	/**
+	 * Gets the count of the number of documents in this Cursor, taking
+	 * skip and limit into account. This does not move the cursor.<br><br>
+	 * 
+	 * An empty query is answered from the size of the collection and a query
+	 * on a single indexed field from the index if it answers the condition
+	 * exactly, without reading any documents. Otherwise the matches are counted without being kept,
+	 * stopping as soon as the limit is reached.
+	 * 
+	 * @return The number of documents
+	 */
+	public int count()
+	{
+		int total = -1;
+		Lock lock = collection.lock.readLock();
+		
+		// Documents removed from the cursor have to be counted one by one
+		if( removed.isEmpty() )
+		{
+			lock.lock();
+			try {
+				Set<String> keys = query.getKeys();
+				Index index = keys.size() == 1 ? collection.indexes.get(keys.iterator().next()) : null;
+				
+				if( keys.isEmpty() )
+					total = collection.store.size();
+				else if( index != null && index.covers(query.get(index.getField())) )
+					total = index.count(query.get(index.getField()));
+			} finally {
+				lock.unlock();
+			}
+		}
+		
+		if( total < 0 )
+			total = scan();
+		
+		total = Math.max(0, total - skip);
+		if( limit > 0 )
+			total = Math.min(total, limit);
+		return total;
+	}
+	
+	
+	/**
+	 * Counts the matching documents, stopping once skip and limit are covered
+	 * 
+	 * @return The number of matching documents
+	 */
+	private int scan()
+	{
+		if( limit == 0 && isParallel() )
+			return parallelScan(false, false).count + skip;
+		
+		// Count on a copy so that this cursor is not moved
+		Cursor copy = new Cursor(this);
+		int count = 0;
+		
+		copy.limit = limit == 0 ? 0 : skip + limit;
+		while( copy.hasNext() ) {
+			copy.nextStored();
+			count++;
+		}
+		return count;
+	}
+	
+	
+	/**
+	 * Reads the rest of the cursor into a list
+	 * 
+	 * @return The remaining documents
+	 */
+	public List<Document> toArray()
+	{
+		List<Document> result = new ArrayList<Document>();
+		
+		// Without a limit the whole collection gets scanned anyway
+		if( candidates == null && limit == 0 && order == null && isParallel() ) {
+			result = parallelScan(true, true).documents;
+			candidates = Collections.<Document>emptyIterator();
+			returned = result.size();
+			return result;
+		}
+		
+		while( hasNext() )
+			result.add(next());
+		return result;
+	}
+	
+	
+	/**
+	 * @return true if a full scan of the collection should be run in parallel
+	 */
+	private boolean isParallel()
+	{
+		Lock lock = collection.lock.readLock();
+		
+		if( collection.parallelThreshold <= 0 || keys() != null )
+			return false;
+		
+		lock.lock();
+		try {
+			return collection.store.size() >= collection.parallelThreshold && plan() == null;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	
+	/**
+	 * Scans the whole collection on the fork-join pool. The documents are
+	 * split into a few parts per thread, each part is matched, and projected
+	 * if asked to, on its own, and the results of the parts are put back
+	 * together in order. Only splitting the documents up is done under
+	 * the read lock, and the parts keep reading the snapshot taken then.
+	 * 
+	 * @param collect true to keep the matching documents, false to only count them
+	 * @param project true to keep the projected documents rather than the stored ones
+	 * @return The matching documents after skip, or only their count
+	 */
+	private Matches parallelScan(boolean collect, boolean project)
+	{
+		ForkJoinPool pool = ForkJoinPool.commonPool();
+		List<Iterable<Document>> parts = null;
+		Collection.View snapshot = null;
+		Matches matches = null;
+		Lock lock = collection.lock.readLock();
+		
+		// A count runs a scan too, so the scan has a view of its own
+		lock.lock();
+		try {
+			snapshot = collection.openView(this);
+			parts = collection.store.split(pool.getParallelism() * 4, snapshot.sequence);
+		} finally {
+			lock.unlock();
+		}
+		
+		try {
+			matches = pool.invoke(new Scan(parts, 0, parts.size(), collect, project && skip == 0));
+		} finally {
+			collection.closeView(snapshot);
+		}
+		
+		// Skipped documents were left unprojected by the parts
+		if( collect && skip > 0 ) {
+			List<Document> docs = matches.documents.subList(Math.min(skip, matches.documents.size()), matches.documents.size());
+			matches.documents = new ArrayList<Document>(docs.size());
+			for( Document doc : docs )
+				matches.documents.add(project ? projection.apply(doc) : doc);
+		}
+		matches.count = Math.max(0, matches.count - skip);
+		return matches;
+	}
+	
+	
+	/**
+	 * Removes a document from the Cursor so that it is not returned
+	 * 
+	 * @param doc The document to remove
+	 * @return true if the the document was not already removed
+	 */
+	public boolean remove(Document doc)
+	{
+		return removed.add(doc.get("_id"));
+	}
+	
+	
+	/**
+	 * Iterator wrapper to see if the next element exists
+	 * 
+	 * @return true if the iterator has more elements
+	 */
+	@Override
+	public boolean hasNext()
+	{
+		advance();
+		return next != null;
+	}
+	
+	
+	/**
+	 * Iterator wrapper for the next element
+	 * 
+	 * @return The next element in the iteration
+	 */
+	@Override
+	public Document next()
+	{
+		return projection.apply(nextStored());
+	}
+	
+	
+	/**
+	 * Moves to the next element without projecting it
+	 * 
+	 * @return The next element as it is stored in the collection
+	 */
+	private Document nextStored()
+	{
+		if( !hasNext() )
+			throw new NoSuchElementException();
+		
+		Document doc = next;
+		next = null;
+		returned++;
+		return doc;
+	}
+	
+	
+	/**
+	 * Closes the cursor, so that it returns no more documents and the
+	 * versions kept for its snapshot can be reclaimed. A cursor is closed
+	 * by itself once it has been read to the end.
+	 */
+	public void close()
+	{
+		if( view != null )
+			collection.closeView(view);
+		if( sorter != null )
+			sorter.close();
+		
+		view = null;
+		next = null;
+		candidates = Collections.<Document>emptyIterator();
+	}
+	
+	
+	/**
+	 * Documents cannot be removed from the collection through a cursor
+	 */
+	@Override
+	public void remove()
+	{
+		throw new UnsupportedOperationException("remove");
+	}
+	
+	
+	/**
+	 * The documents matched by part of a parallel scan
+	 */
+	private static class Matches
+	{
+		int count = 0;
+		List<Document> documents = null;
+	}
+	
+	
+	/**
+	 * Fork-join task that scans a range of the parts of the collection.
+	 * A range of more than one part is split in half until each task
+	 * scans a single part.
+	 */
+	private class Scan extends RecursiveTask<Matches>
+	{
+		private List<Iterable<Document>> parts = null;
+		private int from = 0, to = 0;
+		private boolean collect = false, project = false;
+		
+		Scan(List<Iterable<Document>> parts, int from, int to, boolean collect, boolean project)
+		{
+			this.parts = parts;
+			this.from = from;
+			this.to = to;
+			this.collect = collect;
+			this.project = project;
+		}
+		
+		@Override
+		protected Matches compute()
+		{
+			if( to - from > 1 ) {
+				int mid = (from + to) >>> 1;
+				Scan left = new Scan(parts, from, mid, collect, project);
+				left.fork();
+				Matches right = new Scan(parts, mid, to, collect, project).compute();
+				return merge(left.join(), right);
+			}
+			
+			Matches matches = new Matches();
+			matches.documents = new ArrayList<Document>();
+			
+			for( int i = from; i < to; i++ )
+				for( Document doc : parts.get(i) )
+					if( matcher.matches(doc) && !removed.contains(doc.get("_id")) ) {
+						matches.count++;
+						if( collect )
+							matches.documents.add(project ? projection.apply(doc) : doc);
+					}
+			return matches;
+		}
+		
+		private Matches merge(Matches left, Matches right)
+		{
+			left.count += right.count;
+			left.documents.addAll(right.documents);
+			return left;
+		}
+	}
+	
+	
+	/**
+	 * Writes the rest of the cursor as a JSON array, in the same form as a
+	 * list of documents is printed. Each document is projected as it is
+	 * written, without building a projected copy of it first.
+	 * 
+	 * @param out The writer to write to
+	 * 
+	 * @throws IOException
+	 */
+	public void writeTo(Writer out) throws IOException
+	{
+		Iterator<Document> it = null;
+		
+		if( candidates == null && limit == 0 && order == null && isParallel() ) {
+			List<Document> docs = parallelScan(true, false).documents;
+			candidates = Collections.<Document>emptyIterator();
+			returned = docs.size();
+			it = docs.iterator();
+		}
+		else
+			it = new Iterator<Document>() {
+				@Override public boolean hasNext() {
+					return Cursor.this.hasNext();
+				}
+				@Override public Document next() {
+					return nextStored();
+				}
+			};
+		
+		out.write('[');
+		for( boolean first = true; it.hasNext(); first = false ) {
+			if( !first )
+				out.write(", ");
+			projection.write(it.next(), out);
+		}
+		out.write(']');
+	}
+	
+	
+	/**
+	 * Reads the rest of the cursor into a string
+	 */
+	@Override
+	public String toString() {
+		StringWriter out = new StringWriter();
+		try {
+			writeTo(out);
+		} catch (IOException e) {
+			// Writing to a string does not fail
+		}
+		return out.toString();
+	}
+}
@@ -0,0 +1,377 @@
+package com.pstickney.jddb.nosql;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary encoding for {@link Document}s.<br><br>
+ * 
+ * The encoding is similar to BSON. Every value is written with a one byte
+ * type tag and every variable sized value carries its length up front, so a
+ * reader can skip over any field without decoding it. Numbers are stored in
+ * their binary form rather than as text, which makes encoding and decoding
+ * much cheaper than going through a JSON string and the JSON parser.<br><br>
+ * 
+ * The layout of an encoded document is
+ * 
+ * <pre>
+ * object:  int length, field*, byte 0
+ * field:   byte type, short nameLength, byte[] name, value
+ * array:   int length, (byte type, value)*, byte 0
+ * value:   nothing for null, true and false
+ *          long for integers, double for decimals
+ *          int length, byte[] utf8 for strings
+ *          object or array
+ * </pre>
+ * 
+ * where the length of an object or array counts every byte that follows it.
+ * All numbers are big-endian.
+ * 
+ * @author pstickne
+ */
+public class DocumentCodec
+{
+	public static final byte END = 0;
+	public static final byte NULL = 1;
+	public static final byte TRUE = 2;
+	public static final byte FALSE = 3;
+	public static final byte LONG = 4;
+	public static final byte DOUBLE = 5;
+	public static final byte STRING = 6;
+	public static final byte OBJECT = 7;
+	public static final byte ARRAY = 8;
+	
+	// Encoding buffers are reused per thread
+	private static final ThreadLocal<Encoder> ENCODER = new ThreadLocal<Encoder>() {
+		@Override protected Encoder initialValue() {
+			return new Encoder();
+		}
+	};
+	
+	
+	/**
+	 * Encodes a document
+	 * 
+	 * @param doc The document to encode
+	 * @return The encoded document
+	 * 
+	 * @throws IllegalArgumentException If the document holds a value that is not a JSON type
+	 */
+	public static byte[] encode(Document doc)
+	{
+		Encoder encoder = ENCODER.get();
+		encoder.reset();
+		encoder.writeObject(doc.getJSONObject());
+		return encoder.toByteArray();
+	}
+	
+	
+	/**
+	 * Decodes a document
+	 * 
+	 * @param bytes The encoded document
+	 * @return The document
+	 * 
+	 * @throws IllegalArgumentException If the bytes are not a valid encoded document
+	 */
+	public static Document decode(byte[] bytes)
+	{
+		return decode(ByteBuffer.wrap(bytes), 0);
+	}
+	
+	
+	/**
+	 * Decodes the document that starts at the given position of the buffer.
+	 * The position of the buffer itself is not changed, so the buffer can be
+	 * shared, for instance a segment of a memory-mapped file.
+	 * 
+	 * @param buf The buffer holding the encoded document
+	 * @param offset The position the document starts at
+	 * @return The document
+	 * 
+	 * @throws IllegalArgumentException If the bytes are not a valid encoded document
+	 */
+	public static Document decode(ByteBuffer buf, int offset)
+	{
+		ByteBuffer in = buf.duplicate();
+		in.position(offset);
+		
+		try {
+			return new Document(readObject(in));
+		} catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("Truncated document", e);
+		}
+	}
+	
+	
+	/**
+	 * Decodes a single top-level field of the document that starts at the
+	 * given position of the buffer, skipping over every other field without
+	 * decoding it.
+	 * 
+	 * @param buf The buffer holding the encoded document
+	 * @param offset The position the document starts at
+	 * @param name The name of the field
+	 * @return The value of the field, or null if the document does not have it
+	 */
+	public static Object decodeField(ByteBuffer buf, int offset, String name)
+	{
+		ByteBuffer in = buf.duplicate();
+		byte[] wanted = name.getBytes(StandardCharsets.UTF_8);
+		byte type = 0;
+		
+		in.position(offset + 4);
+		while( (type = in.get()) != END )
+		{
+			int length = in.getShort() & 0xFFFF;
+			
+			if( length == wanted.length && matches(in, wanted) ) {
+				in.position(in.position() + length);
+				return readValue(in, type);
+			}
+			
+			in.position(in.position() + length);
+			skipValue(in, type);
+		}
+		return null;
+	}
+	
+	
+	/**
+	 * @return true if the next bytes in the buffer equal {@code bytes}
+	 */
+	private static boolean matches(ByteBuffer in, byte[] bytes)
+	{
+		int p = in.position();
+		for( int i = 0; i < bytes.length; i++ )
+			if( in.get(p + i) != bytes[i] )
+				return false;
+		return true;
+	}
+	
+	
+	@SuppressWarnings("unchecked")
+	private static JSONObject readObject(ByteBuffer in)
+	{
+		JSONObject obj = new JSONObject();
+		byte type = 0;
+		
+		in.getInt();
+		while( (type = in.get()) != END )
+		{
+			String name = readString(in, in.getShort() & 0xFFFF);
+			obj.put(name, readValue(in, type));
+		}
+		return obj;
+	}
+	
+	
+	@SuppressWarnings("unchecked")
+	private static JSONArray readArray(ByteBuffer in)
+	{
+		JSONArray arr = new JSONArray();
+		byte type = 0;
+		
+		in.getInt();
+		while( (type = in.get()) != END )
+			arr.add(readValue(in, type));
+		return arr;
+	}
+	
+	
+	private static Object readValue(ByteBuffer in, byte type)
+	{
+		switch( type )
+		{
+			case NULL:		return null;
+			case TRUE:		return Boolean.TRUE;
+			case FALSE:		return Boolean.FALSE;
+			case LONG:		return in.getLong();
+			case DOUBLE:	return in.getDouble();
+			case STRING:	return readString(in, in.getInt());
+			case OBJECT:	return readObject(in);
+			case ARRAY:		return readArray(in);
+			default:		throw new IllegalArgumentException("Unknown type " + type);
+		}
+	}
+	
+	
+	private static void skipValue(ByteBuffer in, byte type)
+	{
+		switch( type )
+		{
+			case NULL:
+			case TRUE:
+			case FALSE:		break;
+			case LONG:
+			case DOUBLE:	in.position(in.position() + 8); break;
+			case STRING:
+			case OBJECT:
+			case ARRAY:		int length = in.getInt(); in.position(in.position() + length); break;
+			default:		throw new IllegalArgumentException("Unknown type " + type);
+		}
+	}
+	
+	
+	private static String readString(ByteBuffer in, int length)
+	{
+		String str = null;
+		
+		if( in.hasArray() ) {
+			str = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+			in.position(in.position() + length);
+		}
+		else {
+			byte[] bytes = new byte[length];
+			in.get(bytes);
+			str = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return str;
+	}
+	
+	
+	/**
+	 * Growable output buffer that writes the encoding and patches in
+	 * the lengths of objects and arrays once they are known.
+	 */
+	static class Encoder
+	{
+		private byte[] buf = new byte[256];
+		private int pos = 0;
+		
+		void reset()
+		{
+			pos = 0;
+		}
+		
+		byte[] toByteArray()
+		{
+			return Arrays.copyOf(buf, pos);
+		}
+		
+		private void ensure(int n)
+		{
+			if( pos + n > buf.length )
+				buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+		}
+		
+		private void writeByte(int b)
+		{
+			ensure(1);
+			buf[pos++] = (byte) b;
+		}
+		
+		private void writeShort(int v)
+		{
+			ensure(2);
+			buf[pos++] = (byte) (v >>> 8);
+			buf[pos++] = (byte) v;
+		}
+		
+		private void writeInt(int v, int at)
+		{
+			buf[at] = (byte) (v >>> 24);
+			buf[at + 1] = (byte) (v >>> 16);
+			buf[at + 2] = (byte) (v >>> 8);
+			buf[at + 3] = (byte) v;
+		}
+		
+		private void writeInt(int v)
+		{
+			ensure(4);
+			writeInt(v, pos);
+			pos += 4;
+		}
+		
+		private void writeLong(long v)
+		{
+			writeInt((int) (v >>> 32));
+			writeInt((int) v);
+		}
+		
+		private void writeBytes(byte[] bytes)
+		{
+			ensure(bytes.length);
+			System.arraycopy(bytes, 0, buf, pos, bytes.length);
+			pos += bytes.length;
+		}
+		
+		void writeObject(Map<?, ?> obj)
+		{
+			int start = pos;
+			writeInt(0);
+			
+			for( Map.Entry<?, ?> entry : obj.entrySet() )
+			{
+				byte[] name = String.valueOf(entry.getKey()).getBytes(StandardCharsets.UTF_8);
+				if( name.length > 0xFFFF )
+					throw new IllegalArgumentException("Field name is too long");
+				
+				writeByte(typeOf(entry.getValue()));
+				writeShort(name.length);
+				writeBytes(name);
+				writeValue(entry.getValue());
+			}
+			
+			writeByte(END);
+			writeInt(pos - start - 4, start);
+		}
+		
+		void writeArray(List<?> arr)
+		{
+			int start = pos;
+			writeInt(0);
+			
+			for( Object value : arr ) {
+				writeByte(typeOf(value));
+				writeValue(value);
+			}
+			
+			writeByte(END);
+			writeInt(pos - start - 4, start);
+		}
+		
+		private void writeValue(Object value)
+		{
+			if( value == null || value instanceof Boolean )
+				return;
+			else if( value instanceof Double || value instanceof Float )
+				writeLong(Double.doubleToLongBits(((Number) value).doubleValue()));
+			else if( value instanceof Number )
+				writeLong(((Number) value).longValue());
+			else if( value instanceof String ) {
+				byte[] bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+				writeInt(bytes.length);
+				writeBytes(bytes);
+			}
+			else if( value instanceof Map )
+				writeObject((Map<?, ?>) value);
+			else if( value instanceof List )
+				writeArray((List<?>) value);
+			else if( value instanceof Document )
+				writeObject(((Document) value).getJSONObject());
+		}
+		
+		private static byte typeOf(Object value)
+		{
+			if( value == null )							return NULL;
+			if( value instanceof Boolean )				return ((Boolean) value) ? TRUE : FALSE;
+			if( value instanceof Double ||
+				value instanceof Float )				return DOUBLE;
+			if( value instanceof Number )				return LONG;
+			if( value instanceof String )				return STRING;
+			if( value instanceof Map ||
+				value instanceof Document )				return OBJECT;
+			if( value instanceof List )					return ARRAY;
+			
+			throw new IllegalArgumentException("Cannot encode " + value.getClass().getName());
+		}
+	}
+}
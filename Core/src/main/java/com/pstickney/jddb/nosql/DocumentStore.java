@@ -0,0 +1,172 @@
+package com.pstickney.jddb.nosql;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Storage backend that holds the documents of a {@link Collection}.<br><br>
+ * 
+ * The collection takes care of the operation log, sequence numbers and
+ * locking. A store only has to keep the current documents and be able to
+ * persist them as of a given sequence number, so that the collection
+ * can replay the newer records of its log on top of it after a restart.<br><br>
+ * 
+ * A stored document is never changed. Every change is stamped with the
+ * sequence number of its operation and adds a new version of the document,
+ * keeping the old ones, so a reader can ask for the documents as they were
+ * at a given sequence number while writers carry on. Old versions are kept
+ * until the collection calls {@link #reclaim(long)}, see {@link Versions}.<br><br>
+ * 
+ * The methods that change the store are called while holding the write lock
+ * of the collection and the others while holding its read lock, possibly
+ * from many threads at once. The iterators of a store and the parts returned
+ * by {@link #split(int, long)} are read without any lock, so a long scan does
+ * not hold up writers. They must never fail because the store changed.
+ * {@link Snapshot#write()} is also called without a lock so that a snapshot
+ * does not hold up readers and writers.
+ * 
+ * @author pstickne
+ */
+public interface DocumentStore extends Iterable<Document>
+{
+	/**
+	 * Loads the persisted documents, replacing anything in the store.
+	 * 
+	 * @return The sequence number of the last operation contained in the store
+	 * 
+	 * @throws IOException
+	 */
+	long load() throws IOException;
+	
+	
+	/**
+	 * Captures the current contents of the store. Writing the captured
+	 * contents to disk is done afterwards by {@link Snapshot#write()}.
+	 * 
+	 * @param sequence The sequence number of the last operation applied
+	 * @return The snapshot to write
+	 */
+	Snapshot snapshot(long sequence);
+	
+	
+	/**
+	 * Adds a new document to the store. The _id of a document is its
+	 * primary key, so a document is not added if the store already holds
+	 * one with the same _id.
+	 * 
+	 * @param doc The document
+	 * @param sequence The sequence number of the operation
+	 * @return true if the document was added
+	 */
+	boolean add(Document doc, long sequence);
+	
+	
+	/**
+	 * Adds a batch of new documents, leaving out any document whose _id
+	 * is already stored or comes up earlier in the batch. The documents
+	 * that are added are stamped with consecutive sequence numbers.
+	 * 
+	 * @param docs The documents
+	 * @param sequence The sequence number of the first operation
+	 * @return The documents that were added, in order
+	 */
+	List<Document> add(List<Document> docs, long sequence);
+	
+	
+	/**
+	 * Replaces the stored document that has the same _id with a new version
+	 * 
+	 * @param doc The new version of the document
+	 * @param sequence The sequence number of the operation
+	 */
+	void update(Document doc, long sequence);
+	
+	
+	/**
+	 * Removes a document from the store
+	 * 
+	 * @param doc The document, as returned by the store
+	 * @param sequence The sequence number of the operation
+	 * @return true if the document was in the store
+	 */
+	boolean remove(Document doc, long sequence);
+	
+	
+	/**
+	 * Gets the document with the given _id. Stores index their documents
+	 * by _id, so this is expected to take constant time.
+	 * 
+	 * @param id The _id of the document
+	 * @return The current version of the document, or null if there is none
+	 */
+	Document get(Object id);
+	
+	
+	/**
+	 * Gets the document with the given _id as it was at a sequence number
+	 * 
+	 * @param id The _id of the document
+	 * @param sequence The sequence number of the snapshot
+	 * @return The version of the document in the snapshot, or null if there is none
+	 */
+	Document get(Object id, long sequence);
+	
+	
+	/**
+	 * Iterates over the documents as they were at a sequence number, in
+	 * insertion order. {@link #iterator()} iterates over the current versions.
+	 * 
+	 * @param sequence The sequence number of the snapshot
+	 * @return An iterator over the documents in the snapshot
+	 */
+	Iterator<Document> iterator(long sequence);
+	
+	
+	/**
+	 * Splits the documents of the store into consecutive parts that can be
+	 * read on different threads, for a parallel scan. Read in order, the parts
+	 * hold every document in the order the store iterates them.
+	 * 
+	 * @param parts The number of parts to split the documents into
+	 * @param sequence The sequence number of the snapshot
+	 * @return At most {@code parts} parts
+	 */
+	List<Iterable<Document>> split(int parts, long sequence);
+	
+	
+	/**
+	 * @return The number of documents currently in the store
+	 */
+	int size();
+	
+	
+	/**
+	 * Drops the versions that no snapshot at or after {@code oldest} can see
+	 * 
+	 * @param oldest The sequence number of the oldest snapshot still being read
+	 */
+	void reclaim(long oldest);
+	
+	
+	/**
+	 * Releases any files held by the store.
+	 * 
+	 * @throws IOException
+	 */
+	void close() throws IOException;
+	
+	
+	/**
+	 * The contents of a store captured by {@link DocumentStore#snapshot(long)}.
+	 */
+	interface Snapshot
+	{
+		/**
+		 * Makes the captured contents durable on disk.
+		 * 
+		 * @throws IOException
+		 */
+		void write() throws IOException;
+	}
+}
@@ -0,0 +1,96 @@
+package com.pstickney.jddb.nosql;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Index that keeps the values of a field in a hash map. It answers
+ * equality queries in constant time but cannot be used for ranges.<br><br>
+ * 
+ * Queries compare numbers by value, so whole numbers are kept as longs
+ * whether they were stored as 5 or 5.0.
+ * 
+ * @author pstickne
+ */
+public class HashIndex extends Index
+{
+	private Map<Object, Set<Object>> entries = null;
+	
+	
+	/**
+	 * Construct a hash index on a field
+	 * 
+	 * @param field The name of the indexed field
+	 */
+	public HashIndex(String field)
+	{
+		super(field);
+		entries = new HashMap<Object, Set<Object>>();
+	}
+	
+	
+	@Override
+	public String getType()
+	{
+		return HASHED;
+	}
+	
+	
+	@Override
+	protected List<Object> getEqual(Object value)
+	{
+		Set<Object> ids = entries.get(normalize(value));
+		if( ids == null )
+			return new ArrayList<Object>();
+		return new ArrayList<Object>(ids);
+	}
+	
+	
+	@Override
+	protected int countEqual(Object value)
+	{
+		Set<Object> ids = entries.get(normalize(value));
+		return ids == null ? 0 : ids.size();
+	}
+	
+	
+	@Override
+	protected void put(Object value, Object id)
+	{
+		Set<Object> ids = entries.get(normalize(value));
+		if( ids == null )
+			entries.put(normalize(value), ids = new LinkedHashSet<Object>());
+		ids.add(id);
+	}
+	
+	
+	@Override
+	protected void putAll(Object value, List<Object> ids)
+	{
+		Set<Object> existing = entries.get(normalize(value));
+		if( existing == null )
+			entries.put(normalize(value), new LinkedHashSet<Object>(ids));
+		else
+			existing.addAll(ids);
+	}
+	
+	
+	@Override
+	protected void delete(Object value, Object id)
+	{
+		Set<Object> ids = entries.get(normalize(value));
+		if( ids != null && ids.remove(id) && ids.isEmpty() )
+			entries.remove(normalize(value));
+	}
+	
+	
+	@Override
+	public void clear()
+	{
+		entries.clear();
+	}
+}
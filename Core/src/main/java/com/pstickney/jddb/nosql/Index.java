@@ -0,0 +1,383 @@
+package com.pstickney.jddb.nosql;
+
+import org.json.simple.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Secondary index on a single field of the documents in a {@link Collection}.
+ * The field can be a dotted path into embedded documents, as in queries.<br><br>
+ * 
+ * An index maps each value of the field to the _ids of the documents
+ * holding that value. Documents that do not have the field are left out.
+ * The collection keeps its indexes up to date on every insert, update and
+ * remove, and {@link Cursor} uses them to find the documents that can match
+ * a query without scanning the whole collection. Every document found
+ * through an index is still checked against the full query, so an index 
+ * may return more documents than match but never fewer.<br><br>
+ * 
+ * An index serves the query conditions on its field that are an equality,
+ * {@code $eq} or {@code $in}. A {@link SortedIndex} also serves the range
+ * operators {@code $gt}, {@code $gte}, {@code $lt} and {@code $lte}.<br><br>
+ * 
+ * This class contains abstract functions which need to be defined by
+ * the index type to determine how the values are kept.
+ * 
+ * @author pstickne
+ */
+public abstract class Index
+{
+	// Index types, as given in the index specification
+	public static final String HASHED = "hashed";
+	public static final String SORTED = "sorted";
+	
+	private String field = null;
+	private String path[] = null;
+	
+	
+	/**
+	 * Construct an index on a field
+	 * 
+	 * @param field The name of the indexed field
+	 */
+	protected Index(String field)
+	{
+		this.field = field;
+		this.path = Query.path(field);
+	}
+	
+	
+	/**
+	 * Creates an index from its specification value, as given to
+	 * {@code createIndex({field: value})}. A value of {@code "hashed"}
+	 * creates a {@link HashIndex}, a value of 1 or -1 creates a 
+	 * {@link SortedIndex}.
+	 * 
+	 * @param field The name of the indexed field
+	 * @param type The specification value
+	 * @return The new, empty index
+	 * 
+	 * @throws IllegalArgumentException If the specification value is not a known index type
+	 */
+	public static Index create(String field, Object type)
+	{
+		if( HASHED.equals(type) )
+			return new HashIndex(field);
+		if( SORTED.equals(type) || (type instanceof Number && Math.abs(((Number) type).intValue()) == 1) )
+			return new SortedIndex(field);
+		
+		throw new IllegalArgumentException("Unknown index type " + type + " for field " + field);
+	}
+	
+	
+	/**
+	 * @return The name of the indexed field
+	 */
+	public String getField()
+	{
+		return field;
+	}
+	
+	
+	/**
+	 * @return The type of this index, {@link #HASHED} or {@link #SORTED}
+	 */
+	public abstract String getType();
+	
+	
+	/**
+	 * Gets the _ids of the documents that can match a query condition on the field
+	 * 
+	 * @param condition The value of the field in the query
+	 * @return A copy of the matching _ids, or null if this index cannot serve the condition
+	 */
+	public List<Object> get(Object condition)
+	{
+		if( !Query.isOperator(condition) )
+			return getEqual(condition);
+		
+		Map<?, ?> ops = (Map<?, ?>) condition;
+		if( ops.containsKey("$eq") )
+			return getEqual(ops.get("$eq"));
+		
+		if( ops.get("$in") instanceof List ) {
+			List<Object> ids = new ArrayList<Object>();
+			for( Object value : distinct((List<?>) ops.get("$in")) )
+				ids.addAll(getEqual(value));
+			return ids;
+		}
+		return getRange(ops);
+	}
+	
+	
+	/**
+	 * Gets the number of documents that can match a query condition on the
+	 * field, which the query planner uses to pick the most selective index.
+	 * 
+	 * @param condition The value of the field in the query
+	 * @return The number of matching documents, or -1 if this index cannot serve the condition
+	 */
+	public int count(Object condition)
+	{
+		if( !Query.isOperator(condition) )
+			return countEqual(condition);
+		
+		Map<?, ?> ops = (Map<?, ?>) condition;
+		if( ops.containsKey("$eq") )
+			return countEqual(ops.get("$eq"));
+		
+		if( ops.get("$in") instanceof List ) {
+			int count = 0;
+			for( Object value : distinct((List<?>) ops.get("$in")) )
+				count += countEqual(value);
+			return count;
+		}
+		return countRange(ops);
+	}
+	
+	
+	/**
+	 * Checks if the documents this index finds for a query condition are
+	 * exactly the documents that match it, so they do not have to be checked.
+	 * This holds when the condition is only served operators on numbers, 
+	 * strings, booleans or null.
+	 * 
+	 * @param condition The value of the field in the query
+	 * @return true if the index answers the condition exactly
+	 */
+	public boolean covers(Object condition)
+	{
+		if( !Query.isOperator(condition) )
+			return isScalar(condition);
+		
+		Map<?, ?> ops = (Map<?, ?>) condition;
+		for( Map.Entry<?, ?> entry : ops.entrySet() )
+		{
+			Object op = entry.getKey();
+			
+			if( op.equals("$eq") || op.equals("$in") ) {
+				if( ops.size() > 1 )
+					return false;
+				if( op.equals("$eq") && !isScalar(entry.getValue()) )
+					return false;
+				if( op.equals("$in") ) {
+					if( !(entry.getValue() instanceof List) )
+						return false;
+					for( Object value : (List<?>) entry.getValue() )
+						if( !isScalar(value) )
+							return false;
+				}
+			}
+			else if( !(op.equals("$gt") || op.equals("$gte") || op.equals("$lt") || op.equals("$lte")) )
+				return false;
+		}
+		return count(condition) >= 0;
+	}
+	
+	
+	/**
+	 * Gets the _ids of the documents whose field equals the value
+	 * 
+	 * @param value The value of the field
+	 * @return A copy of the matching _ids
+	 */
+	protected abstract List<Object> getEqual(Object value);
+	
+	
+	/**
+	 * Gets the number of documents whose field equals the value
+	 * 
+	 * @param value The value of the field
+	 * @return The number of matching documents
+	 */
+	protected abstract int countEqual(Object value);
+	
+	
+	/**
+	 * Gets the _ids of the documents whose field lies in the range given by
+	 * the {@code $gt}, {@code $gte}, {@code $lt} and {@code $lte} operators.
+	 * Only a sorted index can serve ranges.
+	 * 
+	 * @param ops The operators of the query condition
+	 * @return A copy of the matching _ids, or null if this index cannot serve the range
+	 */
+	protected List<Object> getRange(Map<?, ?> ops)
+	{
+		return null;
+	}
+	
+	
+	/**
+	 * Gets the number of documents whose field lies in the range
+	 * 
+	 * @param ops The operators of the query condition
+	 * @return The number of matching documents, or -1 if this index cannot serve the range
+	 * @see #getRange(Map)
+	 */
+	protected int countRange(Map<?, ?> ops)
+	{
+		return -1;
+	}
+	
+	
+	/**
+	 * Adds an entry to the index
+	 * 
+	 * @param value The value of the field
+	 * @param id The _id of the document
+	 */
+	protected abstract void put(Object value, Object id);
+	
+	
+	/**
+	 * Removes an entry from the index
+	 * 
+	 * @param value The value of the field
+	 * @param id The _id of the document
+	 */
+	protected abstract void delete(Object value, Object id);
+	
+	
+	/**
+	 * Removes every entry from the index
+	 */
+	public abstract void clear();
+	
+	
+	/**
+	 * Indexes a document under the current value of its field
+	 * 
+	 * @param doc The document
+	 */
+	public void add(Document doc)
+	{
+		Object value = Query.resolve(doc.getJSONObject(), path);
+		if( value != Query.MISSING )
+			put(value, doc.get("_id"));
+	}
+	
+	
+	/**
+	 * Indexes a batch of documents. The _ids are grouped by the value of
+	 * the field first, so each distinct value is only looked up in the
+	 * index once however many documents hold it.
+	 * 
+	 * @param docs The documents
+	 */
+	public void add(Iterable<Document> docs)
+	{
+		Map<Object, List<Object>> groups = new HashMap<Object, List<Object>>();
+		
+		for( Document doc : docs )
+		{
+			Object value = Query.resolve(doc.getJSONObject(), path);
+			if( value == Query.MISSING )
+				continue;
+			
+			List<Object> ids = groups.get(normalize(value));
+			if( ids == null )
+				groups.put(normalize(value), ids = new ArrayList<Object>(1));
+			ids.add(doc.get("_id"));
+		}
+		
+		for( Map.Entry<Object, List<Object>> group : groups.entrySet() )
+			putAll(group.getKey(), group.getValue());
+	}
+	
+	
+	/**
+	 * Adds the entries of a group of documents that hold the same value.
+	 * By default each entry is added on its own.
+	 * 
+	 * @param value The value of the field
+	 * @param ids The _ids of the documents
+	 */
+	protected void putAll(Object value, List<Object> ids)
+	{
+		for( Object id : ids )
+			put(value, id);
+	}
+	
+	
+	/**
+	 * Removes a document from the index. This must be called with
+	 * the document as it was indexed, before its contents are changed.
+	 * 
+	 * @param doc The document
+	 */
+	public void remove(Document doc)
+	{
+		Object value = Query.resolve(doc.getJSONObject(), path);
+		if( value != Query.MISSING )
+			delete(value, doc.get("_id"));
+	}
+	
+	
+	/**
+	 * Gets the form a value is compared in. Queries compare numbers by
+	 * value, so whole numbers become longs whether they were stored
+	 * as 5 or 5.0, and other numbers become doubles.
+	 * 
+	 * @param value The value
+	 * @return The normalized value
+	 */
+	static Object normalize(Object value)
+	{
+		if( value instanceof Long || !(value instanceof Number) )
+			return value;
+		
+		if( Query.isIntegral((Number) value) )
+			return ((Number) value).longValue();
+		
+		double d = ((Number) value).doubleValue();
+		if( d == Math.rint(d) && Math.abs(d) < 0x1p63 )
+			return (long) d;
+		return d;
+	}
+	
+	
+	/**
+	 * @return The distinct values of a list, compared as queries compare them
+	 */
+	private static Set<Object> distinct(List<?> values)
+	{
+		Set<Object> set = new LinkedHashSet<Object>();
+		for( Object value : values )
+			set.add(normalize(value));
+		return set;
+	}
+	
+	
+	/**
+	 * @return true if the value is a number, string, boolean or null
+	 */
+	private static boolean isScalar(Object value)
+	{
+		return value == null || value instanceof Number || value instanceof String || value instanceof Boolean;
+	}
+	
+	
+	/**
+	 * @return The specification of this index, as saved in the index file
+	 */
+	@SuppressWarnings("unchecked")
+	public JSONObject getSpec()
+	{
+		JSONObject spec = new JSONObject();
+		spec.put("field", field);
+		spec.put("type", getType());
+		return spec;
+	}
+	
+	
+	@Override
+	public String toString()
+	{
+		return getSpec().toString();
+	}
+}
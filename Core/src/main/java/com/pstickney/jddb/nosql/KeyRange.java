@@ -0,0 +1,198 @@
+package com.pstickney.jddb.nosql;
+
+import org.json.simple.JSONObject;
+
+import java.util.Comparator;
+
+/**
+ * A range of the values of a shard key, from its lower bound up to but
+ * not including its upper bound. The documents of a range sharded
+ * collection are placed on the shards in ranges of this kind, called
+ * chunks.<br><br>
+ * 
+ * Values are ordered like a {@link SortedIndex} orders them, null first,
+ * then numbers, strings, booleans and everything else, so the ranges of
+ * a shard key cover every value it can have. The bounds {@link #MIN} and
+ * {@link #MAX} lie below and above every value. In JSON they are written
+ * as {@code {"$minKey":1}} and {@code {"$maxKey":1}}, and a range as
+ * {@code {"key":"ts","min":{"$minKey":1},"max":1700000000}}.
+ * 
+ * @author pstickne
+ */
+public class KeyRange
+{
+	public static final Object MIN = new Bound("$minKey");
+	public static final Object MAX = new Bound("$maxKey");
+	
+	/**
+	 * The order of the values of a shard key, with {@link #MIN} and {@link #MAX}
+	 */
+	public static final Comparator<Object> ORDER = new Comparator<Object>() {
+		@Override
+		public int compare(Object a, Object b) {
+			if( a == b )
+				return 0;
+			if( a == MIN || b == MAX )
+				return -1;
+			if( a == MAX || b == MIN )
+				return 1;
+			return SortedIndex.ORDER.compare(a, b);
+		}
+	};
+	
+	private String key = null;
+	private Object min = null;
+	private Object max = null;
+	
+	
+	/**
+	 * Creates a range of a shard key
+	 * 
+	 * @param key The name of the shard key
+	 * @param min The lowest value in the range, or {@link #MIN}
+	 * @param max The value above the range, or {@link #MAX}
+	 */
+	public KeyRange(String key, Object min, Object max)
+	{
+		this.key = key;
+		this.min = min;
+		this.max = max;
+	}
+	
+	
+	/**
+	 * Reads a range from its JSON form
+	 * 
+	 * @param json The range
+	 * @return The range
+	 * 
+	 * @throws IllegalArgumentException If the JSON is not a range
+	 */
+	public static KeyRange parse(Object json)
+	{
+		if( !(json instanceof JSONObject) || !(((JSONObject) json).get("key") instanceof String) )
+			throw new IllegalArgumentException("A range takes a key, a min and a max");
+		
+		JSONObject range = (JSONObject) json;
+		return new KeyRange((String) range.get("key"), fromJSON(range.get("min")), fromJSON(range.get("max")));
+	}
+	
+	
+	/**
+	 * @return The name of the shard key
+	 */
+	public String getKey()
+	{
+		return key;
+	}
+	
+	
+	/**
+	 * @return The lowest value in the range, or {@link #MIN}
+	 */
+	public Object getMin()
+	{
+		return min;
+	}
+	
+	
+	/**
+	 * @return The value above the range, or {@link #MAX}
+	 */
+	public Object getMax()
+	{
+		return max;
+	}
+	
+	
+	/**
+	 * @param value A value of the shard key
+	 * @return true if the value lies in the range
+	 */
+	public boolean contains(Object value)
+	{
+		return ORDER.compare(min, value) <= 0 && ORDER.compare(value, max) < 0;
+	}
+	
+	
+	/**
+	 * @param doc A document
+	 * @return true if the shard key of the document lies in the range, a document without it counts as null
+	 */
+	public boolean contains(Document doc)
+	{
+		return contains(doc.get(key));
+	}
+	
+	
+	/**
+	 * @return The range in JSON
+	 */
+	@SuppressWarnings("unchecked")
+	public JSONObject toJSON()
+	{
+		JSONObject json = new JSONObject();
+		
+		json.put("key", key);
+		json.put("min", toJSON(min));
+		json.put("max", toJSON(max));
+		return json;
+	}
+	
+	
+	/**
+	 * @return A value or bound in JSON
+	 */
+	@SuppressWarnings("unchecked")
+	public static Object toJSON(Object value)
+	{
+		if( !(value instanceof Bound) )
+			return value;
+		
+		JSONObject json = new JSONObject();
+		json.put(value.toString(), 1L);
+		return json;
+	}
+	
+	
+	/**
+	 * @return The value or bound of its JSON form
+	 */
+	public static Object fromJSON(Object json)
+	{
+		if( json instanceof JSONObject && ((JSONObject) json).size() == 1 ) {
+			if( ((JSONObject) json).containsKey(MIN.toString()) )
+				return MIN;
+			if( ((JSONObject) json).containsKey(MAX.toString()) )
+				return MAX;
+		}
+		return json;
+	}
+	
+	
+	@Override
+	public String toString()
+	{
+		return toJSON().toJSONString();
+	}
+	
+	
+	/**
+	 * A bound below or above every value
+	 */
+	private static class Bound
+	{
+		private String name = null;
+		
+		Bound(String name)
+		{
+			this.name = name;
+		}
+		
+		@Override
+		public String toString()
+		{
+			return name;
+		}
+	}
+}
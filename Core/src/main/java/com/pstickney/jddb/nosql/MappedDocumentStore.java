@@ -0,0 +1,594 @@
+package com.pstickney.jddb.nosql;
+
+import org.json.simple.JSONValue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Document store that keeps the documents in a memory-mapped file
+ * instead of on the heap.<br><br>
+ * 
+ * The file is append-only. It starts with a header and is followed by
+ * one record per stored version of a document. Updating a document appends
+ * a new record for it and removing one appends a delete record, so nothing
+ * before the end of the last snapshot is ever written to again. The only
+ * thing kept on the heap is an index from each document's _id to the offset
+ * of its current record. Documents are decoded when they are read, so the
+ * file can be far larger than the heap and loading only has to scan the
+ * record headers instead of parsing every document.<br><br>
+ * 
+ * Since a record is never overwritten, an offset stays readable after the
+ * document has been updated or removed. The index therefore keeps the older
+ * offsets of a document as its older versions, see {@link Versions}.<br><br>
+ * 
+ * The file is mapped in segments of {@value #SEGMENT} bytes and a record never
+ * spans two segments. The layout is
+ * 
+ * <pre>
+ * header: int magic, int version, long sequence, long end, long reserved
+ * record: int length, byte type, unsigned short idLength, byte[] id, byte[] document
+ * </pre>
+ * 
+ * where {@code length} counts the bytes following it, {@code id} is the _id
+ * of the document as JSON and {@code document} is the document encoded by
+ * {@link DocumentCodec}.
+ * A length of 0 means the rest of the segment is unused.
+ * 
+ * @author pstickne
+ */
+public class MappedDocumentStore implements DocumentStore
+{
+	static final int SEGMENT = 1 << 24;
+	
+	private static final int MAGIC = 0x4A444442;
+	private static final int VERSION = 2;
+	private static final int HEADER = 32;
+	
+	// The longest _id a record has room for, in bytes of JSON
+	static final int MAX_ID = 0xFFFF;
+	
+	private static final byte LIVE = 1;
+	private static final byte DELETED = 2;
+	
+	private File file = null;
+	private RandomAccessFile raf = null;
+	private FileChannel channel = null;
+	private List<MappedByteBuffer> segments = null;
+	
+	// Offset the next record is written at
+	private long end = HEADER;
+	
+	// The records of every version of each document, in insertion order
+	private Versions<Long> offsets = null;
+	
+	
+	/**
+	 * Construct a store backed by the given file. The file is
+	 * mapped when the store is loaded.
+	 * 
+	 * @param file The collection file
+	 */
+	public MappedDocumentStore(File file)
+	{
+		this.file = file;
+		segments = new CopyOnWriteArrayList<MappedByteBuffer>();
+		offsets = new Versions<Long>();
+	}
+	
+	
+	/**
+	 * Maps the file and scans the record headers to rebuild the offset
+	 * index. Superseded records are skipped, and if they take up more of
+	 * the file than the live ones the file is compacted first.
+	 */
+	@Override
+	public long load() throws IOException
+	{
+		long sequence = open();
+		long garbage = 0, pos = HEADER;
+		
+		while( pos < end )
+		{
+			ByteBuffer buf = segments.get(segment(pos));
+			int p = position(pos);
+			
+			// The rest of this segment is unused, skip to the next one
+			if( SEGMENT - p < 4 || buf.getInt(p) == 0 ) {
+				pos = (long) (segment(pos) + 1) * SEGMENT;
+				continue;
+			}
+			
+			int length = buf.getInt(p);
+			byte type = buf.get(p + 4);
+			String id = readId(buf, p);
+			
+			// A later record for the same document supersedes the earlier one
+			if( type == LIVE ) {
+				if( !offsets.put(id, pos, 0) )
+					garbage++;
+			}
+			else {
+				if( offsets.remove(id, 0) )
+					garbage++;
+				garbage++;
+			}
+			
+			pos += 4 + length;
+		}
+		
+		// Nothing is reading yet, so only the current records are kept
+		offsets.reclaim(Long.MAX_VALUE);
+		
+		if( garbage > offsets.size() )
+			return compact(sequence);
+		return sequence;
+	}
+	
+	
+	/**
+	 * Opens and maps the file, writing a new header if it is empty.
+	 * 
+	 * @return The sequence number stored in the header
+	 * 
+	 * @throws IOException If the file is not a mapped collection file
+	 */
+	private long open() throws IOException
+	{
+		close();
+		offsets.clear();
+		
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		
+		long size = channel.size();
+		if( size == 0 )
+		{
+			map(HEADER);
+			ByteBuffer header = segments.get(0);
+			header.putInt(0, MAGIC);
+			header.putInt(4, VERSION);
+			header.putLong(8, 0);
+			header.putLong(16, HEADER);
+			end = HEADER;
+			return 0;
+		}
+		
+		map(size);
+		ByteBuffer header = segments.get(0);
+		if( size < HEADER || header.getInt(0) != MAGIC || header.getInt(4) != VERSION )
+			throw new IOException("Collection file " + file + " is not a mapped collection file");
+		
+		end = header.getLong(16);
+		return header.getLong(8);
+	}
+	
+	
+	/**
+	 * Rewrites the file with only the current record of each document,
+	 * then swaps it in for the collection file.
+	 * 
+	 * @param sequence The sequence number the file contains
+	 * @return The sequence number the file contains
+	 * 
+	 * @throws IOException
+	 */
+	private long compact(long sequence) throws IOException
+	{
+		File temp = new File(file.getPath() + ".tmp");
+		temp.delete();
+		
+		MappedDocumentStore compacted = new MappedDocumentStore(temp);
+		compacted.open();
+		for( Long offset : offsets.values(Long.MAX_VALUE) )
+			compacted.append(record(offset));
+		compacted.snapshot(sequence).write();
+		compacted.close();
+		
+		close();
+		OperationLog.move(temp, file);
+		MemoryDocumentStore.syncDirectory(file.getAbsoluteFile().getParentFile());
+		
+		return load();
+	}
+	
+	
+	/**
+	 * Forces every record written so far to disk and then records
+	 * the end offset and sequence number in the header. Records written
+	 * after the snapshot was taken lie past the end offset and are
+	 * ignored when loading, the operation log replays them instead.
+	 */
+	@Override
+	public Snapshot snapshot(final long sequence)
+	{
+		final long snapshotEnd = end;
+		
+		return new Snapshot() {
+			@Override
+			public void write() throws IOException {
+				for( MappedByteBuffer segment : segments )
+					segment.force();
+				
+				MappedByteBuffer header = segments.get(0);
+				header.putLong(8, sequence);
+				header.putLong(16, snapshotEnd);
+				header.force();
+			}
+		};
+	}
+	
+	
+	@Override
+	public boolean add(Document doc, long sequence)
+	{
+		String id = key(doc.get("_id"));
+		if( offsets.contains(id) )
+			return false;
+		
+		offsets.put(id, append(LIVE, doc), sequence);
+		return true;
+	}
+	
+	
+	/**
+	 * Encodes the whole batch first and grows the file once to fit all
+	 * of its records, then appends them one after another.
+	 */
+	@Override
+	public List<Document> add(List<Document> docs, long sequence)
+	{
+		List<Document> added = new ArrayList<Document>(docs.size());
+		List<byte[]> records = new ArrayList<byte[]>(docs.size());
+		HashSet<String> batch = new HashSet<String>();
+		long pos = end;
+		
+		for( Document doc : docs )
+		{
+			String id = key(doc.get("_id"));
+			if( offsets.contains(id) || !batch.add(id) )
+				continue;
+			
+			byte[] record = encode(LIVE, doc);
+			if( record.length > SEGMENT )
+				throw new IllegalArgumentException("Document is larger than " + SEGMENT + " bytes");
+			if( SEGMENT - position(pos) < record.length )
+				pos = (long) (segment(pos) + 1) * SEGMENT;
+			pos += record.length;
+			
+			added.add(doc);
+			records.add(record);
+		}
+		
+		try {
+			map(pos);
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not grow " + file, e);
+		}
+		
+		for( int i = 0; i < added.size(); i++ )
+			offsets.put(key(added.get(i).get("_id")), append(records.get(i)), sequence + i);
+		return added;
+	}
+	
+	
+	/**
+	 * Appends a new record for the document and adds its offset as
+	 * the new version, keeping the document in the same place.
+	 */
+	@Override
+	public void update(Document doc, long sequence)
+	{
+		String id = key(doc.get("_id"));
+		if( offsets.contains(id) )
+			offsets.put(id, append(LIVE, doc), sequence);
+	}
+	
+	
+	@Override
+	public boolean remove(Document doc, long sequence)
+	{
+		String id = key(doc.get("_id"));
+		if( !offsets.remove(id, sequence) )
+			return false;
+		
+		append(DELETED, doc);
+		return true;
+	}
+	
+	
+	@Override
+	public Document get(Object id)
+	{
+		return get(id, Long.MAX_VALUE);
+	}
+	
+	
+	@Override
+	public Document get(Object id, long sequence)
+	{
+		Long offset = offsets.get(key(id), sequence);
+		if( offset == null )
+			return null;
+		return decode(offset);
+	}
+	
+	
+	@Override
+	public int size()
+	{
+		return offsets.size();
+	}
+	
+	
+	@Override
+	public void reclaim(long oldest)
+	{
+		offsets.reclaim(oldest);
+	}
+	
+	
+	/**
+	 * Iterates over the documents in insertion order, decoding
+	 * each one only when it is reached.
+	 */
+	@Override
+	public Iterator<Document> iterator()
+	{
+		return iterator(Long.MAX_VALUE);
+	}
+	
+	
+	@Override
+	public Iterator<Document> iterator(long sequence)
+	{
+		final Iterator<Long> it = offsets.iterator(sequence);
+		
+		return new Iterator<Document>() {
+			@Override
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+			
+			@Override
+			public Document next() {
+				return decode(it.next());
+			}
+		};
+	}
+	
+	
+	/**
+	 * Copies the record offsets in the snapshot and splits them into ranges
+	 * of about the same size. Each part decodes its documents when it is read,
+	 * so the decoding is spread over the threads reading the parts.
+	 */
+	@Override
+	public List<Iterable<Document>> split(int parts, long sequence)
+	{
+		List<Long> snapshot = offsets.values(sequence);
+		final long all[] = new long[snapshot.size()];
+		List<Iterable<Document>> result = new ArrayList<Iterable<Document>>();
+		int i = 0, size = (all.length + parts - 1) / Math.max(1, parts);
+		
+		for( Long offset : snapshot )
+			all[i++] = offset;
+		
+		for( int from = 0; from < all.length; from += size )
+		{
+			final int start = from, end = Math.min(all.length, from + size);
+			
+			result.add(new Iterable<Document>() {
+				@Override
+				public Iterator<Document> iterator() {
+					return new Iterator<Document>() {
+						private int next = start;
+						
+						@Override
+						public boolean hasNext() {
+							return next < end;
+						}
+						
+						@Override
+						public Document next() {
+							return decode(all[next++]);
+						}
+					};
+				}
+			});
+		}
+		return result;
+	}
+	
+	
+	@Override
+	public void close() throws IOException
+	{
+		segments.clear();
+		
+		if( channel != null )
+			channel.close();
+		if( raf != null )
+			raf.close();
+		
+		channel = null;
+		raf = null;
+	}
+	
+	
+	/**
+	 * Builds the record for a document
+	 * 
+	 * @param type The record type
+	 * @param doc The document
+	 * @return The record bytes, starting with the length
+	 * 
+	 * @throws IllegalArgumentException If the _id of the document is too long
+	 */
+	private byte[] encode(byte type, Document doc)
+	{
+		byte[] id = key(doc.get("_id")).getBytes(StandardCharsets.UTF_8);
+		if( id.length > MAX_ID )
+			throw new IllegalArgumentException("The _id of a document is larger than " + MAX_ID + " bytes");
+		
+		byte[] payload = type == LIVE ? DocumentCodec.encode(doc) : new byte[0];
+		
+		ByteBuffer record = ByteBuffer.allocate(4 + 1 + 2 + id.length + payload.length);
+		record.putInt(record.capacity() - 4);
+		record.put(type);
+		record.putShort((short) id.length);
+		record.put(id);
+		record.put(payload);
+		
+		return record.array();
+	}
+	
+	
+	/**
+	 * Decodes the document stored in the record at the offset
+	 * straight out of the mapped segment
+	 * 
+	 * @param offset The offset of the record
+	 * @return The document
+	 */
+	private Document decode(long offset)
+	{
+		ByteBuffer buf = segments.get(segment(offset));
+		int p = position(offset);
+		
+		return DocumentCodec.decode(buf, p + 7 + (buf.getShort(p + 5) & 0xFFFF));
+	}
+	
+	
+	/**
+	 * Copies the raw bytes of the record at the offset
+	 * 
+	 * @param offset The offset of the record
+	 * @return The record bytes, starting with the length
+	 */
+	private byte[] record(long offset)
+	{
+		ByteBuffer buf = segments.get(segment(offset)).duplicate();
+		int p = position(offset);
+		byte[] record = new byte[4 + buf.getInt(p)];
+		
+		buf.position(p);
+		buf.get(record);
+		return record;
+	}
+	
+	
+	/**
+	 * Reads the _id out of a record header
+	 * 
+	 * @param buf The segment holding the record
+	 * @param p The position of the record in the segment
+	 * @return The _id as JSON
+	 */
+	private String readId(ByteBuffer buf, int p)
+	{
+		byte[] id = new byte[buf.getShort(p + 5) & 0xFFFF];
+		ByteBuffer dup = buf.duplicate();
+		
+		dup.position(p + 7);
+		dup.get(id);
+		return new String(id, StandardCharsets.UTF_8);
+	}
+	
+	
+	/**
+	 * Appends a record for the document to the end of the file
+	 * 
+	 * @param type The record type
+	 * @param doc The document
+	 * @return The offset of the record
+	 */
+	private long append(byte type, Document doc)
+	{
+		return append(encode(type, doc));
+	}
+	
+	
+	/**
+	 * Appends a record to the end of the file. If the record does not
+	 * fit in the rest of the current segment it starts the next one, and
+	 * the rest of the current segment is marked unused. That part of the
+	 * file can still hold records written after the last snapshot, before
+	 * a restart, which would otherwise be read back on the next load.
+	 * 
+	 * @param record The record bytes, starting with the length
+	 * @return The offset of the record
+	 */
+	private long append(byte[] record)
+	{
+		if( record.length > SEGMENT )
+			throw new IllegalArgumentException("Document is larger than " + SEGMENT + " bytes");
+		
+		long pos = end;
+		if( SEGMENT - position(pos) < record.length )
+			pos = (long) (segment(pos) + 1) * SEGMENT;
+		
+		try {
+			map(pos + record.length);
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not grow " + file, e);
+		}
+		
+		if( pos != end && SEGMENT - position(end) >= 4 )
+			segments.get(segment(end)).putInt(position(end), 0);
+		
+		ByteBuffer buf = segments.get(segment(pos)).duplicate();
+		buf.position(position(pos));
+		buf.put(record);
+		
+		end = pos + record.length;
+		return pos;
+	}
+	
+	
+	/**
+	 * Maps enough segments of the file to cover {@code size} bytes,
+	 * growing the file if needed.
+	 * 
+	 * @param size The number of bytes that need to be mapped
+	 * 
+	 * @throws IOException
+	 */
+	private void map(long size) throws IOException
+	{
+		while( (long) segments.size() * SEGMENT < size )
+			segments.add(channel.map(FileChannel.MapMode.READ_WRITE, (long) segments.size() * SEGMENT, SEGMENT));
+	}
+	
+	
+	private static int segment(long offset)
+	{
+		return (int) (offset / SEGMENT);
+	}
+	
+	
+	private static int position(long offset)
+	{
+		return (int) (offset % SEGMENT);
+	}
+	
+	
+	/**
+	 * @param id The _id of a document
+	 * @return The key of the document in the offset index
+	 */
+	private static String key(Object id)
+	{
+		return JSONValue.toJSONString(id);
+	}
+}
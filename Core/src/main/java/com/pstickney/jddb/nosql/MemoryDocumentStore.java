@@ -0,0 +1,297 @@
+package com.pstickney.jddb.nosql;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ParseException;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Document store that keeps every document on the heap.<br><br>
+ * 
+ * The collection file holds a JSON snapshot of the form
+ * {@code {"sequence":N,"documents":[...]}}, which is streamed in
+ * when the store is loaded and rewritten as a whole by each snapshot.<br><br>
+ * 
+ * The versions of the documents are kept by {@link Versions}, keyed by
+ * their _id, so looking up, replacing or removing a single document takes
+ * constant time while iteration still follows insertion order. Readers never
+ * lock them, so a scan can run while documents are being written.
+ * 
+ * @author pstickne
+ */
+public class MemoryDocumentStore implements DocumentStore
+{
+	// Stands in for a null _id, which the versions cannot be keyed by
+	private static final Object NULL_ID = new Object();
+	
+	private File file = null;
+	private Versions<Document> documents = null;
+	
+	
+	/**
+	 * Construct a store backed by the given snapshot file
+	 * 
+	 * @param file The collection file, or null for a store that is never saved
+	 */
+	public MemoryDocumentStore(File file)
+	{
+		this.file = file;
+		documents = new Versions<Document>();
+	}
+	
+	
+	/**
+	 * Loads the snapshot off of disk. It is read as a stream, one
+	 * document at a time, so loading never needs to hold the whole
+	 * file in memory at once.
+	 */
+	@Override
+	public long load() throws IOException
+	{
+		long sequence = 0;
+		documents.clear();
+		
+		if( file == null )
+			return sequence;
+		
+		// Left behind if we crashed while writing a snapshot
+		new File(file.getPath() + ".tmp").delete();
+		
+		if( file.exists() && file.length() > 0 )
+		{
+			/*
+			 * Snapshots are swapped in atomically, so a file we cannot
+			 * parse is really damaged. Refuse to load it rather than
+			 * carry on with an empty collection that would overwrite it.
+			 */
+			Reader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), 1 << 16);
+			SnapshotReader reader = new SnapshotReader() {
+				@Override
+				public void onDocument(Document doc) {
+					documents.put(key(doc.get("_id")), doc, 0);
+				}
+			};
+			
+			try {
+				sequence = reader.read(in);
+			} catch (ParseException | ClassCastException e) {
+				throw new IOException("Collection file " + file + " is corrupt: " + e);
+			} finally {
+				in.close();
+			}
+			documents.reclaim(Long.MAX_VALUE);
+		}
+		
+		return sequence;
+	}
+	
+	
+	/**
+	 * Copies the document references so writers can carry on right away.
+	 * The snapshot is then written to a temporary file next to the collection
+	 * file, forced to disk and renamed over the collection file in one atomic
+	 * step, so a crash at any point leaves a complete snapshot behind.
+	 */
+	@Override
+	public Snapshot snapshot(final long sequence)
+	{
+		final List<JSONObject> copy = new ArrayList<JSONObject>(documents.size());
+		for( Document doc : this )
+			copy.add(doc.getJSONObject());
+		
+		return new Snapshot() {
+			@Override
+			public void write() throws IOException {
+				if( file != null )
+					writeSnapshot(copy, sequence);
+			}
+		};
+	}
+	
+	
+	/**
+	 * Writes the snapshot to disk and swaps it in for the collection file
+	 * 
+	 * @param snapshot The documents of the snapshot
+	 * @param sequence The sequence number the snapshot contains
+	 * 
+	 * @throws IOException
+	 */
+	private void writeSnapshot(List<JSONObject> snapshot, long sequence) throws IOException
+	{
+		// Create the directory if it doesn't exist
+		file.getAbsoluteFile().getParentFile().mkdirs();
+		
+		// Write the snapshot to the temporary file one document at a time
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+			writer.write("{\"sequence\":" + sequence + ",\"documents\":[");
+			for( int i = 0; i < snapshot.size(); i++ ) {
+				if( i > 0 )
+					writer.write(',');
+				JSONObject.writeJSONString(snapshot.get(i), writer);
+			}
+			writer.write("]}");
+			writer.flush();
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		
+		// Swap the new snapshot in and make the rename itself durable
+		OperationLog.move(temp, file);
+		syncDirectory(file.getAbsoluteFile().getParentFile());
+	}
+	
+	
+	/**
+	 * Forces a directory entry change, such as a rename, to disk.
+	 * Not every platform allows opening a directory, in which case
+	 * this does nothing.
+	 * 
+	 * @param dir The directory
+	 */
+	public static void syncDirectory(File dir)
+	{
+		try {
+			FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+			try {
+				channel.force(true);
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			// Not supported here, the rename is still atomic
+		}
+	}
+	
+	
+	/**
+	 * Adds the document unless one with the same _id is already stored
+	 */
+	@Override
+	public boolean add(Document doc, long sequence)
+	{
+		Object id = key(doc.get("_id"));
+		if( documents.contains(id) )
+			return false;
+		
+		documents.put(id, doc, sequence);
+		return true;
+	}
+	
+	
+	@Override
+	public List<Document> add(List<Document> docs, long sequence)
+	{
+		List<Document> added = new ArrayList<Document>(docs.size());
+		
+		for( Document doc : docs )
+			if( add(doc, sequence + added.size()) )
+				added.add(doc);
+		return added;
+	}
+	
+	
+	/**
+	 * The new version goes in the slot of the old one, so the
+	 * document keeps its place in the iteration order
+	 */
+	@Override
+	public void update(Document doc, long sequence)
+	{
+		Object id = key(doc.get("_id"));
+		if( documents.contains(id) )
+			documents.put(id, doc, sequence);
+	}
+	
+	
+	@Override
+	public boolean remove(Document doc, long sequence)
+	{
+		return documents.remove(key(doc.get("_id")), sequence);
+	}
+	
+	
+	@Override
+	public Document get(Object id)
+	{
+		return documents.get(key(id));
+	}
+	
+	
+	@Override
+	public Document get(Object id, long sequence)
+	{
+		return documents.get(key(id), sequence);
+	}
+	
+	
+	/**
+	 * Copies the documents in the snapshot into a list and splits it into
+	 * sublists of about the same size
+	 */
+	@Override
+	public List<Iterable<Document>> split(int parts, long sequence)
+	{
+		List<Document> all = documents.values(sequence);
+		List<Iterable<Document>> result = new ArrayList<Iterable<Document>>();
+		int size = (all.size() + parts - 1) / Math.max(1, parts);
+		
+		for( int from = 0; from < all.size(); from += size )
+			result.add(all.subList(from, Math.min(all.size(), from + size)));
+		return result;
+	}
+	
+	
+	@Override
+	public int size()
+	{
+		return documents.size();
+	}
+	
+	
+	@Override
+	public void reclaim(long oldest)
+	{
+		documents.reclaim(oldest);
+	}
+	
+	
+	@Override
+	public Iterator<Document> iterator()
+	{
+		return documents.iterator(Long.MAX_VALUE);
+	}
+	
+	
+	@Override
+	public Iterator<Document> iterator(long sequence)
+	{
+		return documents.iterator(sequence);
+	}
+	
+	
+	@Override
+	public void close() throws IOException
+	{
+	}
+	
+	
+	/**
+	 * @param id The _id of a document
+	 * @return The key of the document in the versions
+	 */
+	private static Object key(Object id)
+	{
+		return id == null ? NULL_ID : id;
+	}
+}
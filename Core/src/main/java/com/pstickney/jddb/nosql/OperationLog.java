@@ -0,0 +1,542 @@
+package com.pstickney.jddb.nosql;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only operation log for a {@link Collection}.<br><br>
+ * 
+ * Every mutation made to a collection is written to the end of this log
+ * as a single line JSON record before the call returns. Each record carries
+ * the sequence number of the operation so that, when the collection is loaded,
+ * only the records newer than the last saved snapshot are replayed on top of it.<br><br>
+ * 
+ * A record has the form {@code {"seq":1,"op":"insert","_id":"...","doc":{...}}}
+ * where {@code op} is one of {@code insert}, {@code update}, {@code modify} or
+ * {@code remove}. An {@code update} record holds the whole new document, a
+ * {@code modify} record only holds the update operators that changed it, see
+ * {@link Update}.<br><br>
+ * 
+ * Records are queued with {@link #enqueue(long, String, Object, Document)}
+ * and callers block in {@link #await(long)} until the batch containing
+ * their record is on disk. By default the caller writes the batch itself
+ * in {@link #await(long)}, together with any records queued by others in
+ * the meantime. When group commit is turned on with
+ * {@link #setGroupCommit(long, int)}, a background committer holds each
+ * batch open for a while and writes all of its records with a single
+ * write and a single fsync.
+ * 
+ * @author pstickne
+ */
+public class OperationLog
+{
+	public static final String INSERT = "insert";
+	public static final String UPDATE = "update";
+	public static final String MODIFY = "modify";
+	public static final String REMOVE = "remove";
+	
+	private File logFile = null;
+	private FileOutputStream out = null;
+	private final Object writeLock = new Object();
+	
+	// Group commit settings and the committer thread, null when disabled
+	private long window = 0;
+	private int batchSize = 1;
+	private Committer committer = null;
+	
+	// The batch currently being filled and the state of the batches written
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	private int pendingCount = 0;
+	private long pendingBatch = 0;
+	private long durableBatch = -1;
+	
+	// The batches that could not be written, which only happens when the disk fails
+	private Map<Long, IOException> failures = new HashMap<Long, IOException>();
+	
+	
+	/**
+	 * Construct an operation log backed by the given file.
+	 * The file is created the first time a record is appended.
+	 * 
+	 * @param file The log file
+	 */
+	public OperationLog(File file)
+	{
+		logFile = file;
+	}
+	
+	
+	/**
+	 * Turns group commit on or off.<br><br>
+	 * 
+	 * With group commit on, the committer waits up to {@code window}
+	 * milliseconds after the first record of a batch arrives, or until
+	 * {@code size} records are queued, before writing the batch.
+	 * 
+	 * @param window The longest time in milliseconds a batch is held open, 0 to disable
+	 * @param size The number of records that closes a batch early
+	 */
+	public synchronized void setGroupCommit(long window, int size)
+	{
+		this.window = window;
+		this.batchSize = Math.max(1, size);
+		
+		if( window > 0 && committer == null ) {
+			committer = new Committer();
+			committer.start();
+		}
+		else if( window <= 0 && committer != null ) {
+			committer = null;
+			notifyAll();
+		}
+	}
+	
+	
+	/**
+	 * Appends a single operation record to the end of the log and
+	 * waits until it is on disk.
+	 * 
+	 * @param seq The sequence number of the operation
+	 * @param op The operation type
+	 * @param id The _id of the document the operation applies to
+	 * @param doc The document contents, or null if the operation has none
+	 * 
+	 * @throws IOException
+	 */
+	public void append(long seq, String op, Object id, Document doc) throws IOException
+	{
+		await(enqueue(seq, op, id, doc));
+	}
+	
+	
+	/**
+	 * Queues a single operation record to be written to the log.<br><br>
+	 * 
+	 * The record joins the batch currently being filled, and the returned
+	 * ticket has to be passed to {@link #await(long)} before the operation
+	 * can be acknowledged. Nothing is written here, so this can be called
+	 * while holding the lock of the collection.
+	 * 
+	 * @param seq The sequence number of the operation
+	 * @param op The operation type
+	 * @param id The _id of the document the operation applies to
+	 * @param doc The document contents, or null if the operation has none
+	 * @return The ticket of the batch the record belongs to
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized long enqueue(long seq, String op, Object id, Document doc) throws IOException
+	{
+		pending.write(record(seq, op, id, doc));
+		pendingCount++;
+		notifyAll();
+		
+		return pendingBatch;
+	}
+	
+	
+	/**
+	 * Queues the records of a batch of operations of the same type on
+	 * documents, with consecutive sequence numbers starting at {@code seq}.
+	 * They all join the batch currently being filled, so they are written
+	 * with a single write and forced to disk once.
+	 * 
+	 * @param seq The sequence number of the first operation
+	 * @param op The operation type
+	 * @param docs The documents the operations apply to, in order
+	 * @return The ticket of the batch the records belong to
+	 * 
+	 * @throws IOException
+	 * @see #enqueue(long, String, Object, Document)
+	 */
+	public synchronized long enqueue(long seq, String op, List<Document> docs) throws IOException
+	{
+		for( Document doc : docs )
+			pending.write(record(seq++, op, doc.get("_id"), doc));
+		pendingCount += docs.size();
+		notifyAll();
+		
+		return pendingBatch;
+	}
+	
+	
+	/**
+	 * Builds the line of a single operation record
+	 * 
+	 * @return The record as UTF-8, ending in a newline
+	 */
+	@SuppressWarnings("unchecked")
+	private static byte[] record(long seq, String op, Object id, Document doc)
+	{
+		JSONObject record = new JSONObject();
+		record.put("seq", seq);
+		record.put("op", op);
+		if( id != null )
+			record.put("_id", id);
+		if( doc != null )
+			record.put("doc", doc.getJSONObject());
+		
+		return (record.toJSONString() + "\n").getBytes(StandardCharsets.UTF_8);
+	}
+	
+	
+	/**
+	 * Blocks until the batch with the given ticket has been written
+	 * and forced to disk. Without group commit the caller writes the
+	 * batch itself, unless another caller already took it.
+	 * 
+	 * @param ticket The ticket returned by {@link #enqueue(long, String, Object, Document)}
+	 * 
+	 * @throws IOException If the batch could not be written
+	 */
+	public void await(long ticket) throws IOException
+	{
+		IOException failure = null;
+		
+		synchronized( this )
+		{
+			while( durableBatch < ticket && committer != null )
+			{
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted waiting for group commit");
+				}
+			}
+		}
+		
+		// Once flush has the write lock, every batch taken before is on disk
+		if( !isDurable(ticket) )
+			flush();
+		
+		synchronized( this ) {
+			failure = failures.get(ticket);
+		}
+		if( failure != null )
+			throw failure;
+	}
+	
+	
+	/**
+	 * @return true if the batch with the given ticket has been written
+	 */
+	private synchronized boolean isDurable(long ticket)
+	{
+		return durableBatch >= ticket;
+	}
+	
+	
+	/**
+	 * Takes every queued record and writes them as one batch with a
+	 * single write and a single fsync, then wakes up every caller waiting
+	 * on that batch. The batches are taken and written while holding the
+	 * write lock, so they reach the file in the order they were queued.
+	 */
+	private void flush()
+	{
+		byte[] batch = null;
+		long ticket = 0;
+		IOException error = null;
+		
+		synchronized( writeLock )
+		{
+			synchronized( this )
+			{
+				if( pendingCount == 0 )
+					return;
+				
+				batch = pending.toByteArray();
+				pending.reset();
+				pendingCount = 0;
+				ticket = pendingBatch++;
+			}
+			
+			try {
+				write(batch, batch.length);
+			} catch (IOException e) {
+				error = e;
+			}
+			
+			synchronized( this )
+			{
+				if( error != null )
+					failures.put(ticket, error);
+				durableBatch = ticket;
+				notifyAll();
+			}
+		}
+	}
+	
+	
+	/**
+	 * Writes the bytes to the end of the log file and forces them to disk.
+	 * 
+	 * @param bytes The bytes to write
+	 * @param length The number of bytes to write
+	 * 
+	 * @throws IOException
+	 */
+	private void write(byte[] bytes, int length) throws IOException
+	{
+		synchronized( writeLock )
+		{
+			// Open the log lazily so that an unused collection never creates a file
+			if( out == null ) {
+				logFile.getParentFile().mkdirs();
+				out = new FileOutputStream(logFile, true);
+			}
+			
+			out.write(bytes, 0, length);
+			out.flush();
+			out.getChannel().force(false);
+		}
+	}
+	
+	
+	/**
+	 * Replays every record in the log with a sequence number greater
+	 * than {@code after} onto the collection.<br><br>
+	 * 
+	 * If the last record in the log was only partially written, because
+	 * the process died in the middle of an append, the log is cut back to
+	 * the end of the last complete record. A record is only complete once
+	 * its newline is written, a record that reads as whole JSON but lost
+	 * its newline is dropped as well, or the next append would continue
+	 * on the same line.
+	 * 
+	 * @param after The sequence number already contained in the collection
+	 * @param collection The collection to apply the records to
+	 * @return The sequence number of the last record in the log
+	 * 
+	 * @throws IOException
+	 */
+	public long replay(long after, Collection collection) throws IOException
+	{
+		long last = after, valid = 0, length = 0, end = 0;
+		String line = null;
+		JSONObject record = null;
+		JSONParser parser = new JSONParser();
+		
+		synchronized( writeLock )
+		{
+			// Left behind if we crashed while cutting back the log
+			new File(logFile.getPath() + ".tmp").delete();
+			
+			if( !logFile.exists() )
+				return last;
+			
+			length = logFile.length();
+			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(logFile), StandardCharsets.UTF_8));
+			try {
+				while( (line = in.readLine()) != null )
+				{
+					// The last line has no newline if it was torn
+					end = valid + line.getBytes(StandardCharsets.UTF_8).length + 1;
+					if( end > length )
+						break;
+					
+					try {
+						record = (JSONObject) parser.parse(line);
+					} catch (ParseException | ClassCastException e) {
+						break;
+					}
+					
+					// Skip anything that is already part of the snapshot
+					long seq = ((Number) record.get("seq")).longValue();
+					if( seq > after )
+						collection.apply(record);
+					
+					last = Math.max(last, seq);
+					valid = end;
+				}
+			} finally {
+				in.close();
+			}
+			
+			// Drop a torn record at the tail so new appends start on a clean line
+			if( valid < length )
+			{
+				RandomAccessFile raf = new RandomAccessFile(logFile, "rw");
+				try {
+					raf.setLength(valid);
+				} finally {
+					raf.close();
+				}
+			}
+		}
+		
+		return last;
+	}
+	
+	
+	/**
+	 * Drops every record up to and including the sequence number {@code upTo}.
+	 * This is called once a snapshot containing those records has safely been
+	 * written to disk.<br><br>
+	 * 
+	 * Records that were appended while the snapshot was being written are 
+	 * copied to a new log file, which then atomically replaces the old one.
+	 * Appends wait while this happens, which only takes as long as copying
+	 * the records that are newer than the snapshot.
+	 * 
+	 * @param upTo The sequence number contained in the snapshot
+	 * 
+	 * @throws IOException
+	 */
+	public void truncate(long upTo) throws IOException
+	{
+		String line = null;
+		JSONObject record = null;
+		JSONParser parser = new JSONParser();
+		
+		synchronized( writeLock )
+		{
+			if( !logFile.exists() )
+				return;
+			
+			// The log is reopened by the next write once it has been replaced
+			if( out != null )
+				out.close();
+			out = null;
+			
+			File temp = new File(logFile.getPath() + ".tmp");
+			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(logFile), StandardCharsets.UTF_8));
+			FileOutputStream tempOut = new FileOutputStream(temp);
+			try {
+				Writer writer = new BufferedWriter(new OutputStreamWriter(tempOut, StandardCharsets.UTF_8));
+				while( (line = in.readLine()) != null )
+				{
+					try {
+						record = (JSONObject) parser.parse(line);
+					} catch (ParseException | ClassCastException e) {
+						break;
+					}
+					
+					if( ((Number) record.get("seq")).longValue() > upTo ) {
+						writer.write(line);
+						writer.write('\n');
+					}
+				}
+				writer.flush();
+				tempOut.getFD().sync();
+			} finally {
+				in.close();
+				tempOut.close();
+			}
+			
+			move(temp, logFile);
+		}
+	}
+	
+	
+	/**
+	 * Replaces the target file with the source file in a single step,
+	 * so that a crash leaves either the old or the new file in place.
+	 * 
+	 * @param source The new file
+	 * @param target The file to replace
+	 * 
+	 * @throws IOException
+	 */
+	public static void move(File source, File target) throws IOException
+	{
+		try {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+	
+	
+	/**
+	 * Closes the log file if it is open. Any records still waiting
+	 * for a group commit are written out first.
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException
+	{
+		Committer c = null;
+		
+		synchronized( this )
+		{
+			c = committer;
+			committer = null;
+			notifyAll();
+		}
+		
+		// Let the committer finish writing whatever is still queued
+		if( c != null )
+		{
+			try {
+				c.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		flush();
+		
+		synchronized( writeLock )
+		{
+			if( out != null )
+				out.close();
+			out = null;
+		}
+	}
+	
+	
+	/**
+	 * Background thread that holds each batch open for the group
+	 * commit window and then writes it out with {@link #flush()}.
+	 */
+	class Committer extends Thread
+	{
+		public Committer()
+		{
+			super("OperationLog-Committer");
+			setDaemon(true);
+		}
+		
+		@Override
+		public void run()
+		{
+			while( true )
+			{
+				synchronized( OperationLog.this )
+				{
+					try {
+						// Sleep until the first record of the next batch arrives
+						while( pendingCount == 0 )
+						{
+							if( committer != this )
+								return;
+							OperationLog.this.wait();
+						}
+						
+						// Hold the batch open for the window unless it fills up first
+						long deadline = System.currentTimeMillis() + window, remaining;
+						while( committer == this && pendingCount < batchSize &&
+								(remaining = deadline - System.currentTimeMillis()) > 0 )
+							OperationLog.this.wait(remaining);
+					} catch (InterruptedException e) {
+						// Write out what we have so that no caller is left waiting
+					}
+				}
+				
+				// Written outside of the lock so the next batch can fill up meanwhile
+				flush();
+			}
+		}
+	}
+}
@@ -0,0 +1,699 @@
+package com.pstickney.jddb.nosql;
+
+import org.json.simple.JSONObject;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * An aggregation pipeline compiled into the stages the documents of a
+ * collection stream through, one stage after the other.<br><br>
+ * 
+ * A pipeline is an array of stage documents, each with a single stage
+ * operator:
+ * 
+ * <pre>
+ * {"$match":{query}}           keeps the documents matching the query, see {@link Query}
+ * {"$project":{projection}}    keeps or drops fields, see {@link Projection}
+ * {"$group":{"_id":expression, "field":{"$sum":expression}, ...}}
+ *                              one document per distinct _id, with the accumulated fields
+ * {"$sort":{"field":1}}        sorts ascending by a field, -1 sorts descending
+ * {"$skip":n}                  drops the first n documents
+ * {"$limit":n}                 keeps the first n documents
+ * </pre>
+ * 
+ * The documents of JSON objects do not keep the order of their fields, so
+ * sorting on more than one field takes an array such as
+ * {@code {"$sort":[{"age":-1},{"name":1}]}}.<br><br>
+ * 
+ * An expression is either a string such as {@code "$address.city"}, the
+ * value at that path of the document, an object of expressions, or any
+ * other value, which is taken as it is. The accumulators of {@code $group}
+ * are {@code $sum}, {@code $avg}, {@code $min}, {@code $max}, {@code $first},
+ * {@code $last} and {@code $push}, so {@code {"$sum":1}} counts the documents
+ * of a group.<br><br>
+ * 
+ * The {@code $match}, {@code $project}, {@code $skip} and {@code $limit}
+ * stages stream, handing on each document as it comes, while {@code $group}
+ * and {@code $sort} read all of their input first. A {@code $match} at the
+ * start of the pipeline runs as a query on the collection, so it uses the
+ * indexes of the collection.<br><br>
+ * 
+ * A pipeline over a sharded collection is split in two with
+ * {@link #getShardStages()} and {@link #getMergePipeline()}. Every shard
+ * runs the first part on its own documents, grouping them in partial form
+ * if the pipeline groups, and the server runs the second part on the
+ * results of all of the shards, so only the groups rather than the
+ * documents leave the shards.
+ * 
+ * @author pstickne
+ */
+public class Pipeline
+{
+	private List<Stage> stages = null;
+	private List<Object> specs = null;
+	
+	// The two parts of the pipeline when it runs across shards, built on first use
+	private List<Object> shardStages = null;
+	private Pipeline merge = null;
+	
+	
+	/**
+	 * Construct a pipeline from compiled stages
+	 * 
+	 * @param stages The stages
+	 * @param specs The stage documents the stages were compiled from
+	 */
+	private Pipeline(List<Stage> stages, List<Object> specs)
+	{
+		this.stages = stages;
+		this.specs = specs;
+	}
+	
+	
+	/**
+	 * Compiles a pipeline
+	 * 
+	 * @param specs The stage documents
+	 * @return The compiled pipeline
+	 * 
+	 * @throws IllegalArgumentException If a stage is unknown or malformed
+	 */
+	public static Pipeline compile(List<?> specs)
+	{
+		return compile(specs, false);
+	}
+	
+	
+	/**
+	 * Compiles a pipeline. A partial pipeline is the part of a pipeline a
+	 * shard runs, see {@link #getShardStages()}, whose {@code $group} stage
+	 * gives the partial values of its accumulators for the server to merge.
+	 * 
+	 * @param specs The stage documents
+	 * @param partial true to compile the part run on a shard
+	 * @return The compiled pipeline
+	 * 
+	 * @throws IllegalArgumentException If a stage is unknown or malformed
+	 */
+	public static Pipeline compile(List<?> specs, boolean partial)
+	{
+		List<Stage> stages = new ArrayList<Stage>();
+		
+		for( int i = 0; i < specs.size(); i++ )
+		{
+			Stage stage = stage(specs.get(i), partial);
+			if( partial && stage instanceof Group && i < specs.size() - 1 )
+				throw new IllegalArgumentException("A partial pipeline has to end at its $group stage");
+			stages.add(stage);
+		}
+		
+		for( int i = 0; i < stages.size(); i++ )
+			if( stages.get(i) instanceof Sort )
+				((Sort) stages.get(i)).keep = Math.max(0, bound(stages, i + 1));
+		
+		return new Pipeline(stages, new ArrayList<Object>(specs));
+	}
+	
+	
+	/**
+	 * Compiles a single stage document
+	 */
+	private static Stage stage(Object spec, boolean partial)
+	{
+		if( !(spec instanceof Map) || ((Map<?, ?>) spec).size() != 1 )
+			throw new IllegalArgumentException("A stage has to be a document with a single stage operator");
+		
+		Map.Entry<?, ?> entry = ((Map<?, ?>) spec).entrySet().iterator().next();
+		String op = String.valueOf(entry.getKey());
+		Object value = entry.getValue();
+		
+		if( op.equals("$match") )
+			return new Match(document(op, value));
+		if( op.equals("$project") )
+			return new Project(Projection.compile(document(op, value)));
+		if( op.equals("$group") )
+			return new Group(document(op, value), partial ? Group.PARTIAL : Group.FULL);
+		if( op.equals("$sort") )
+			return new Sort(value);
+		if( op.equals("$skip") )
+			return new Skip(count(op, value, 0));
+		if( op.equals("$limit") )
+			return new Limit(count(op, value, 1));
+		throw new IllegalArgumentException("Unknown pipeline stage " + op);
+	}
+	
+	
+	/**
+	 * @return The value of a stage that takes a document, as a document
+	 */
+	@SuppressWarnings("unchecked")
+	private static Document document(String op, Object value)
+	{
+		if( value instanceof JSONObject )
+			return new Document((JSONObject) value);
+		if( !(value instanceof Map) )
+			throw new IllegalArgumentException(op + " takes a document");
+		
+		JSONObject obj = new JSONObject();
+		obj.putAll((Map<?, ?>) value);
+		return new Document(obj);
+	}
+	
+	
+	/**
+	 * @return The value of a stage that takes a whole number of at least {@code min}
+	 */
+	private static long count(String op, Object value, long min)
+	{
+		if( !(value instanceof Number) || !Query.isIntegral((Number) value) || ((Number) value).longValue() < min )
+			throw new IllegalArgumentException(op + " takes a whole number of at least " + min);
+		return ((Number) value).longValue();
+	}
+	
+	
+	/**
+	 * Works out how many documents the {@code $skip} and {@code $limit}
+	 * stages starting at a stage let through
+	 * 
+	 * @param stages The stages
+	 * @param from The first stage to look at
+	 * @return The number of documents, or -1 if the stages there do not limit them
+	 */
+	private static long bound(List<Stage> stages, int from)
+	{
+		long offset = 0, bound = -1;
+		
+		for( int i = from; i < stages.size(); i++ )
+		{
+			if( stages.get(i) instanceof Skip )
+				offset += ((Skip) stages.get(i)).n;
+			else if( stages.get(i) instanceof Limit )
+				bound = bound < 0 ? offset + ((Limit) stages.get(i)).n : Math.min(bound, offset + ((Limit) stages.get(i)).n);
+			else
+				break;
+		}
+		return bound;
+	}
+	
+	
+	/**
+	 * Checks that an expression only reads fields and holds constants
+	 * 
+	 * @throws IllegalArgumentException If the expression is malformed
+	 */
+	private static void checkExpression(Object expr)
+	{
+		if( expr instanceof String && expr.equals("$") )
+			throw new IllegalArgumentException("The field path $ is empty");
+		
+		if( expr instanceof Map ) {
+			if( Query.isOperator(expr) )
+				throw new IllegalArgumentException("Expression operators are not supported: " + expr);
+			for( Object value : ((Map<?, ?>) expr).values() )
+				checkExpression(value);
+		}
+	}
+	
+	
+	/**
+	 * Evaluates an expression against a document
+	 * 
+	 * @param expr The expression
+	 * @param obj The contents of the document
+	 * @return The value, or {@link Query#MISSING} if it reads a field the document does not have
+	 */
+	@SuppressWarnings("unchecked")
+	static Object evaluate(Object expr, Map<?, ?> obj)
+	{
+		if( expr instanceof String && ((String) expr).startsWith("$") )
+			return Query.resolve(obj, Query.path(((String) expr).substring(1)));
+		
+		if( expr instanceof Map ) {
+			JSONObject value = new JSONObject();
+			for( Map.Entry<?, ?> entry : ((Map<?, ?>) expr).entrySet() ) {
+				Object field = evaluate(entry.getValue(), obj);
+				if( field != Query.MISSING )
+					value.put(entry.getKey(), field);
+			}
+			return value;
+		}
+		return expr;
+	}
+	
+	
+	/**
+	 * Runs the pipeline over the documents of a collection. A {@code $match}
+	 * and a {@code $sort} at the start of the pipeline are run by the cursor
+	 * of the collection, so they can use its indexes.
+	 * 
+	 * @param collection The collection
+	 * @return The documents coming out of the last stage
+	 */
+	public Iterator<Document> run(Collection collection)
+	{
+		Cursor cursor = null;
+		int first = 0;
+		
+		if( first < stages.size() && stages.get(first) instanceof Match )
+			cursor = collection.find(((Match) stages.get(first++)).query);
+		else
+			cursor = collection.find(new Document());
+		
+		if( first < stages.size() && stages.get(first) instanceof Sort ) {
+			Sort sort = (Sort) stages.get(first++);
+			cursor.sort(sort.order);
+			if( sort.keep > 0 && sort.keep <= Integer.MAX_VALUE )
+				cursor.limit((int) sort.keep);
+		}
+		return run(cursor, first);
+	}
+	
+	
+	/**
+	 * Runs the pipeline over a stream of documents
+	 * 
+	 * @param source The documents
+	 * @return The documents coming out of the last stage
+	 */
+	public Iterator<Document> run(Iterator<Document> source)
+	{
+		return run(source, 0);
+	}
+	
+	
+	/**
+	 * Runs the stages from {@code first} on over a stream of documents
+	 */
+	private Iterator<Document> run(Iterator<Document> source, int first)
+	{
+		Iterator<Document> it = source;
+		
+		for( int i = first; i < stages.size(); i++ )
+			it = stages.get(i).apply(it);
+		return it;
+	}
+	
+	
+	/**
+	 * Gets the stages each shard runs on its own documents, to be compiled
+	 * with {@link #compile(List, boolean)} as a partial pipeline. These are
+	 * the {@code $match} and {@code $project} stages at the start of the
+	 * pipeline, followed by the first {@code $group}, or else by the first
+	 * {@code $sort} and a {@code $limit} when the pipeline only needs the
+	 * first documents after the sort.
+	 * 
+	 * @return The stage documents of the shard part of the pipeline
+	 */
+	public List<Object> getShardStages()
+	{
+		split();
+		return shardStages;
+	}
+	
+	
+	/**
+	 * Gets the part of the pipeline the server runs on the results of all
+	 * of the shards, which merges their groups or sorts their documents
+	 * again and then runs the rest of the pipeline.
+	 * 
+	 * @return The merge part of the pipeline
+	 */
+	public Pipeline getMergePipeline()
+	{
+		split();
+		return merge;
+	}
+	
+	
+	/**
+	 * Splits the pipeline into the shard part and the merge part
+	 */
+	@SuppressWarnings("unchecked")
+	private synchronized void split()
+	{
+		List<Stage> merged = new ArrayList<Stage>();
+		List<Object> mergedSpecs = new ArrayList<Object>();
+		int i = 0;
+		
+		if( shardStages != null )
+			return;
+		shardStages = new ArrayList<Object>();
+		
+		while( i < stages.size() && (stages.get(i) instanceof Match || stages.get(i) instanceof Project) )
+			shardStages.add(specs.get(i++));
+		
+		if( i < stages.size() && stages.get(i) instanceof Group )
+		{
+			shardStages.add(specs.get(i));
+			merged.add(((Group) stages.get(i)).merging());
+			mergedSpecs.add(specs.get(i++));
+		}
+		else
+		{
+			// The shards only have to hand on the documents that can get past the skips and limits
+			boolean sorts = i < stages.size() && stages.get(i) instanceof Sort;
+			long bound = bound(stages, sorts ? i + 1 : i);
+			
+			if( bound >= 0 ) {
+				JSONObject limit = new JSONObject();
+				limit.put("$limit", bound);
+				
+				if( sorts )
+					shardStages.add(specs.get(i));
+				shardStages.add(limit);
+			}
+		}
+		
+		merged.addAll(stages.subList(i, stages.size()));
+		mergedSpecs.addAll(specs.subList(i, specs.size()));
+		merge = new Pipeline(merged, mergedSpecs);
+	}
+	
+	
+	/**
+	 * A compiled stage
+	 */
+	static abstract class Stage
+	{
+		/**
+		 * @param in The documents coming into the stage
+		 * @return The documents coming out of the stage
+		 */
+		abstract Iterator<Document> apply(Iterator<Document> in);
+	}
+	
+	
+	/**
+	 * The documents coming out of a streaming stage, fetched one at a time
+	 */
+	private static abstract class Stream implements Iterator<Document>
+	{
+		private Document next = null;
+		
+		/**
+		 * @return The next document, or null if there are no more
+		 */
+		abstract Document fetch();
+		
+		@Override
+		public boolean hasNext()
+		{
+			if( next == null )
+				next = fetch();
+			return next != null;
+		}
+		
+		@Override
+		public Document next()
+		{
+			if( !hasNext() )
+				throw new NoSuchElementException();
+			
+			Document doc = next;
+			next = null;
+			return doc;
+		}
+	}
+	
+	
+	/**
+	 * {@code $match}
+	 */
+	private static class Match extends Stage
+	{
+		private Document query = null;
+		private Query compiled = null;
+		
+		Match(Document query)
+		{
+			this.query = query;
+			this.compiled = Query.compile(query);
+		}
+		
+		@Override
+		Iterator<Document> apply(final Iterator<Document> in)
+		{
+			return new Stream() {
+				@Override Document fetch() {
+					while( in.hasNext() ) {
+						Document doc = in.next();
+						if( compiled.matches(doc) )
+							return doc;
+					}
+					return null;
+				}
+			};
+		}
+	}
+	
+	
+	/**
+	 * {@code $project}
+	 */
+	private static class Project extends Stage
+	{
+		private Projection projection = null;
+		
+		Project(Projection projection)
+		{
+			this.projection = projection;
+		}
+		
+		@Override
+		Iterator<Document> apply(final Iterator<Document> in)
+		{
+			return new Stream() {
+				@Override Document fetch() {
+					return in.hasNext() ? projection.apply(in.next()) : null;
+				}
+			};
+		}
+	}
+	
+	
+	/**
+	 * {@code $skip}
+	 */
+	private static class Skip extends Stage
+	{
+		private long n = 0;
+		
+		Skip(long n)
+		{
+			this.n = n;
+		}
+		
+		@Override
+		Iterator<Document> apply(final Iterator<Document> in)
+		{
+			return new Stream() {
+				private long skipped = 0;
+				
+				@Override Document fetch() {
+					for( ; skipped < n && in.hasNext(); skipped++ )
+						in.next();
+					return in.hasNext() ? in.next() : null;
+				}
+			};
+		}
+	}
+	
+	
+	/**
+	 * {@code $limit}, which stops reading its input once it has enough documents
+	 */
+	private static class Limit extends Stage
+	{
+		private long n = 0;
+		
+		Limit(long n)
+		{
+			this.n = n;
+		}
+		
+		@Override
+		Iterator<Document> apply(final Iterator<Document> in)
+		{
+			return new Stream() {
+				private long returned = 0;
+				
+				@Override Document fetch() {
+					if( returned >= n || !in.hasNext() )
+						return null;
+					returned++;
+					return in.next();
+				}
+			};
+		}
+	}
+	
+	
+	/**
+	 * {@code $sort}. When the stages after it skip and limit, only the
+	 * documents that can get past them are kept, see {@link Sorter}.
+	 */
+	private static class Sort extends Stage
+	{
+		private SortOrder order = null;
+		private long keep = 0;
+		
+		Sort(Object spec)
+		{
+			order = SortOrder.compile(spec);
+		}
+		
+		@Override
+		Iterator<Document> apply(Iterator<Document> in)
+		{
+			Sorter sorter = new Sorter(order, keep, Sorter.DEFAULT_BUFFER);
+			
+			try {
+				while( in.hasNext() )
+					sorter.add(in.next());
+				return sorter.sorted();
+			} catch (IOException e) {
+				sorter.close();
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+	
+	
+	/**
+	 * {@code $group}. A full group gives the results of its accumulators,
+	 * a partial group gives their partial values and a merging group
+	 * takes the documents of partial groups and gives the results.
+	 */
+	private static class Group extends Stage
+	{
+		static final int FULL = 0;
+		static final int PARTIAL = 1;
+		static final int MERGE = 2;
+		
+		private Object id = null;
+		private String names[] = null;
+		private String ops[] = null;
+		private Object exprs[] = null;
+		private int mode = FULL;
+		
+		Group(Document spec, int mode)
+		{
+			if( !spec.containsKey("_id") )
+				throw new IllegalArgumentException("$group needs an _id");
+			
+			List<String> fields = new ArrayList<String>(spec.getKeys());
+			fields.remove("_id");
+			
+			this.id = spec.get("_id");
+			this.names = fields.toArray(new String[fields.size()]);
+			this.ops = new String[names.length];
+			this.exprs = new Object[names.length];
+			this.mode = mode;
+			checkExpression(id);
+			
+			for( int i = 0; i < names.length; i++ )
+			{
+				Object acc = spec.get(names[i]);
+				if( !(acc instanceof Map) || ((Map<?, ?>) acc).size() != 1 )
+					throw new IllegalArgumentException("The field " + names[i] + " of $group needs a single accumulator");
+				
+				Map.Entry<?, ?> entry = ((Map<?, ?>) acc).entrySet().iterator().next();
+				ops[i] = String.valueOf(entry.getKey());
+				exprs[i] = entry.getValue();
+				Accumulator.create(ops[i]);
+				checkExpression(exprs[i]);
+			}
+		}
+		
+		/**
+		 * Construct a group with the same _id and accumulators as another one
+		 */
+		private Group(Group group, int mode)
+		{
+			this.id = group.id;
+			this.names = group.names;
+			this.ops = group.ops;
+			this.exprs = group.exprs;
+			this.mode = mode;
+		}
+		
+		/**
+		 * @return The group that merges the partial groups of this group
+		 */
+		Group merging()
+		{
+			return new Group(this, MERGE);
+		}
+		
+		@Override
+		@SuppressWarnings("unchecked")
+		Iterator<Document> apply(Iterator<Document> in)
+		{
+			Map<Object, Object> ids = new HashMap<Object, Object>();
+			Map<Object, Accumulator[]> groups = new LinkedHashMap<Object, Accumulator[]>();
+			
+			while( in.hasNext() )
+			{
+				Map<?, ?> obj = in.next().getJSONObject();
+				Object value = mode == MERGE ? obj.get("_id") : evaluate(id, obj);
+				if( value == Query.MISSING )
+					value = null;
+				
+				Object key = key(value);
+				Accumulator accs[] = groups.get(key);
+				if( accs == null ) {
+					accs = new Accumulator[names.length];
+					for( int i = 0; i < names.length; i++ )
+						accs[i] = Accumulator.create(ops[i]);
+					groups.put(key, accs);
+					ids.put(key, value);
+				}
+				
+				for( int i = 0; i < names.length; i++ )
+					if( mode == MERGE )
+						accs[i].merge(obj.get(names[i]));
+					else
+						accs[i].add(evaluate(exprs[i], obj));
+			}
+			
+			List<Document> docs = new ArrayList<Document>(groups.size());
+			for( Map.Entry<Object, Accumulator[]> group : groups.entrySet() )
+			{
+				JSONObject doc = new JSONObject();
+				doc.put("_id", ids.get(group.getKey()));
+				for( int i = 0; i < names.length; i++ )
+					doc.put(names[i], mode == PARTIAL ? group.getValue()[i].partial() : group.getValue()[i].result());
+				docs.add(new Document(doc));
+			}
+			return docs.iterator();
+		}
+		
+		/**
+		 * @return The form a group _id is compared in, which compares numbers by value
+		 */
+		private static Object key(Object value)
+		{
+			if( value instanceof Map ) {
+				Map<Object, Object> key = new HashMap<Object, Object>();
+				for( Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet() )
+					key.put(entry.getKey(), key(entry.getValue()));
+				return key;
+			}
+			if( value instanceof List ) {
+				List<Object> key = new ArrayList<Object>();
+				for( Object element : (List<?>) value )
+					key.add(key(element));
+				return key;
+			}
+			return Index.normalize(value);
+		}
+	}
+}
@@ -0,0 +1,215 @@
+package com.pstickney.jddb.nosql;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A projection document compiled into the set of top-level fields
+ * the documents returned by a query keep.<br><br>
+ * 
+ * A projection either includes fields, as in {@code {"name":1,"age":1}},
+ * in which case only those fields and the _id are kept, or excludes them,
+ * as in {@code {"address":0}}, in which case every other field is kept.
+ * The _id can be left out of an including projection with {@code "_id":0}.
+ * The values 1 and true include a field, 0 and false exclude it.<br><br>
+ * 
+ * A projection never changes the stored document. {@link #apply(Document)}
+ * copies the kept fields into a new document and {@link #write(Document, Writer)}
+ * writes them straight out as JSON without building a document at all.
+ * 
+ * @author pstickne
+ */
+public class Projection
+{
+	private boolean empty = true;
+	private boolean inclusive = false;
+	private boolean includeId = true;
+	
+	// The listed fields, in the order they were given
+	private List<String> fields = null;
+	private Set<String> lookup = null;
+	
+	
+	/**
+	 * Construct an empty projection that keeps every field
+	 */
+	private Projection()
+	{
+		fields = new ArrayList<String>();
+		lookup = new HashSet<String>();
+	}
+	
+	
+	/**
+	 * Compiles a projection document
+	 * 
+	 * @param spec The projection document
+	 * @return The compiled projection
+	 * 
+	 * @throws IllegalArgumentException If the projection both includes and excludes fields
+	 */
+	public static Projection compile(Document spec)
+	{
+		Projection projection = new Projection();
+		boolean including = false, excluding = false;
+		
+		for( String key : spec.getKeys() )
+		{
+			boolean include = isTrue(spec.get(key));
+			
+			if( key.equals("_id") ) {
+				projection.includeId = include;
+				continue;
+			}
+			
+			including |= include;
+			excluding |= !include;
+			projection.fields.add(key);
+			projection.lookup.add(key);
+		}
+		
+		if( including && excluding )
+			throw new IllegalArgumentException("A projection cannot both include and exclude fields");
+		
+		projection.inclusive = including;
+		projection.empty = !including && !excluding && projection.includeId;
+		return projection;
+	}
+	
+	
+	/**
+	 * @return true if the value of a projection field includes the field
+	 */
+	private static boolean isTrue(Object value)
+	{
+		if( value instanceof Boolean )
+			return (Boolean) value;
+		if( value instanceof Number )
+			return ((Number) value).doubleValue() != 0;
+		return value != null;
+	}
+	
+	
+	/**
+	 * @return true if this projection keeps every field
+	 */
+	public boolean isEmpty()
+	{
+		return empty;
+	}
+	
+	
+	/**
+	 * Checks if the documents keep a field
+	 * 
+	 * @param field The name of the field
+	 * @return true if the field is kept
+	 */
+	public boolean includes(String field)
+	{
+		if( field.equals("_id") )
+			return includeId;
+		return inclusive == lookup.contains(field);
+	}
+	
+	
+	/**
+	 * Applies the projection to a document. An empty projection returns
+	 * the document itself, otherwise the kept fields are copied into a new
+	 * document and the document itself is left as it was.
+	 * 
+	 * @param doc The document
+	 * @return The projected document
+	 */
+	@SuppressWarnings("unchecked")
+	public Document apply(Document doc)
+	{
+		if( empty )
+			return doc;
+		
+		Map<String, Object> obj = doc.getJSONObject();
+		JSONObject copy = new JSONObject();
+		
+		if( inclusive )
+		{
+			if( includeId && obj.containsKey("_id") )
+				copy.put("_id", obj.get("_id"));
+			for( String field : fields )
+				if( obj.containsKey(field) )
+					copy.put(field, obj.get(field));
+		}
+		else
+		{
+			for( Map.Entry<String, Object> entry : obj.entrySet() )
+				if( includes(entry.getKey()) )
+					copy.put(entry.getKey(), entry.getValue());
+		}
+		
+		return new Document(copy);
+	}
+	
+	
+	/**
+	 * Writes the kept fields of a document as a JSON object, in the same
+	 * form as {@link Document#toString()}, without copying the document.
+	 * 
+	 * @param doc The document
+	 * @param out The writer to write to
+	 * 
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	public void write(Document doc, Writer out) throws IOException
+	{
+		Map<String, Object> obj = doc.getJSONObject();
+		boolean first = true;
+		
+		if( empty ) {
+			JSONObject.writeJSONString(obj, out);
+			return;
+		}
+		
+		out.write('{');
+		if( inclusive )
+		{
+			if( includeId && obj.containsKey("_id") )
+				first = writeField("_id", obj.get("_id"), first, out);
+			for( String field : fields )
+				if( obj.containsKey(field) )
+					first = writeField(field, obj.get(field), first, out);
+		}
+		else
+		{
+			for( Map.Entry<String, Object> entry : obj.entrySet() )
+				if( includes(entry.getKey()) )
+					first = writeField(entry.getKey(), entry.getValue(), first, out);
+		}
+		out.write('}');
+	}
+	
+	
+	/**
+	 * Writes a single {@code "name":value} pair
+	 * 
+	 * @return false, so the next field is written after a comma
+	 */
+	private static boolean writeField(String name, Object value, boolean first, Writer out) throws IOException
+	{
+		if( !first )
+			out.write(',');
+		
+		out.write('"');
+		out.write(JSONValue.escape(name));
+		out.write("\":");
+		JSONValue.writeJSONString(value, out);
+		return false;
+	}
+}
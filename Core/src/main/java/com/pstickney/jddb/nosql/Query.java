@@ -0,0 +1,508 @@
+package com.pstickney.jddb.nosql;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * A query document compiled into a predicate that can be matched
+ * against documents.<br><br>
+ * 
+ * Every field of a query is either matched by equality, as in
+ * {@code {"name":"bob"}}, or by an object of operators that must all hold,
+ * as in {@code {"age":{"$gte":18,"$lt":65}}}. The operators are
+ * 
+ * <pre>
+ * $eq, $ne                 equal, not equal
+ * $gt, $gte, $lt, $lte     comparisons between numbers or between strings
+ * $in, $nin                equal to one of, or none of, the values in a list
+ * $exists                  the field is present, or with false absent
+ * $regex, $options         the string matches a regular expression, "i" ignores case
+ * </pre>
+ * 
+ * A field name can be a dotted path such as {@code "address.city"}, which
+ * reads the field of an embedded document, or {@code "tags.0"}, which reads
+ * an element of an array. A document that does not have the field only
+ * matches {@code $ne}, {@code $nin} and {@code {"$exists":false}}.<br><br>
+ * 
+ * Compiling does all of the work that does not depend on the document once,
+ * up front. Each field of the query becomes one or more clauses that know
+ * the path to read and hold their constant in the form it is compared in,
+ * so numbers are unboxed and patterns compiled once instead of for every
+ * document. The clauses are ordered so that the cheapest comparisons run
+ * first, and matching a document does not allocate anything.<br><br>
+ * 
+ * Numbers are compared by value, so a query for 5 matches a document
+ * holding 5.0 and the other way around.
+ * 
+ * @author pstickne
+ */
+public class Query
+{
+	/**
+	 * Returned by {@link #resolve(Map, String[])} for a path the document does not have
+	 */
+	static final Object MISSING = new Object();
+	
+	private Clause clauses[] = null;
+	
+	
+	/**
+	 * Construct a query out of its compiled clauses
+	 * 
+	 * @param clauses The clauses, in the order they are evaluated
+	 */
+	private Query(List<Clause> clauses)
+	{
+		this.clauses = clauses.toArray(new Clause[clauses.size()]);
+	}
+	
+	
+	/**
+	 * Compiles a query document
+	 * 
+	 * @param query The query document
+	 * @return The compiled query
+	 * 
+	 * @throws IllegalArgumentException If the query uses an unknown or malformed operator
+	 */
+	public static Query compile(Document query)
+	{
+		List<Clause> clauses = new ArrayList<Clause>();
+		
+		for( String key : query.getKeys() )
+		{
+			String path[] = path(key);
+			Object value = query.get(key);
+			
+			if( isOperator(value) )
+				operators(path, (Map<?, ?>) value, clauses);
+			else
+				clauses.add(equality(path, value));
+		}
+		
+		// Evaluate the cheapest clauses first
+		Collections.sort(clauses, new Comparator<Clause>() {
+			@Override public int compare(Clause a, Clause b) {
+				return Integer.compare(a.cost, b.cost);
+			}
+		});
+		
+		return new Query(clauses);
+	}
+	
+	
+	/**
+	 * Checks if a document matches every clause of this query
+	 * 
+	 * @param doc The document
+	 * @return true if the document matches
+	 */
+	public boolean matches(Document doc)
+	{
+		Map<?, ?> obj = doc.getJSONObject();
+		
+		for( int i = 0; i < clauses.length; i++ )
+			if( !clauses[i].matches(obj) )
+				return false;
+		return true;
+	}
+	
+	
+	/**
+	 * Checks if the value of a query field is an object of operators
+	 * rather than a value to match by equality
+	 * 
+	 * @param value The value of the query field
+	 * @return true if the value is an object of operators
+	 */
+	public static boolean isOperator(Object value)
+	{
+		if( !(value instanceof Map) )
+			return false;
+		
+		for( Object key : ((Map<?, ?>) value).keySet() )
+			if( String.valueOf(key).startsWith("$") )
+				return true;
+		return false;
+	}
+	
+	
+	/**
+	 * Splits a dotted field name into the names along its path
+	 * 
+	 * @param field The field name
+	 * @return The path
+	 */
+	static String[] path(String field)
+	{
+		return field.split(Pattern.quote("."), -1);
+	}
+	
+	
+	/**
+	 * Reads the value at the end of a path out of a document
+	 * 
+	 * @param obj The contents of the document
+	 * @param path The path, as returned by {@link #path(String)}
+	 * @return The value, or {@link #MISSING} if the document does not have it
+	 */
+	static Object resolve(Map<?, ?> obj, String path[])
+	{
+		Object value = obj;
+		
+		for( int i = 0; i < path.length; i++ )
+		{
+			if( value instanceof Map ) {
+				Map<?, ?> map = (Map<?, ?>) value;
+				value = map.get(path[i]);
+				if( value == null && !map.containsKey(path[i]) )
+					return MISSING;
+			}
+			else if( value instanceof List ) {
+				List<?> list = (List<?>) value;
+				int index = index(path[i]);
+				if( index < 0 || index >= list.size() )
+					return MISSING;
+				value = list.get(index);
+			}
+			else
+				return MISSING;
+		}
+		return value;
+	}
+	
+	
+	/**
+	 * @return The array index a path name stands for, or -1 if it is not a number
+	 */
+	static int index(String name)
+	{
+		int index = 0;
+		
+		if( name.isEmpty() || name.length() > 9 )
+			return -1;
+		
+		for( int i = 0; i < name.length(); i++ ) {
+			char c = name.charAt(i);
+			if( c < '0' || c > '9' )
+				return -1;
+			index = index * 10 + (c - '0');
+		}
+		return index;
+	}
+	
+	
+	/**
+	 * Compiles the clauses of an object of operators
+	 * 
+	 * @param path The path of the field
+	 * @param ops The operators
+	 * @param clauses The list to add the clauses to
+	 */
+	private static void operators(String path[], Map<?, ?> ops, List<Clause> clauses)
+	{
+		for( Map.Entry<?, ?> entry : ops.entrySet() )
+		{
+			String op = String.valueOf(entry.getKey());
+			Object value = entry.getValue();
+			
+			if( op.equals("$eq") )
+				clauses.add(equality(path, value));
+			else if( op.equals("$ne") )
+				clauses.add(new Not(equality(path, value)));
+			else if( op.equals("$gt") )
+				clauses.add(new Range(path, value, 1, false));
+			else if( op.equals("$gte") )
+				clauses.add(new Range(path, value, 1, true));
+			else if( op.equals("$lt") )
+				clauses.add(new Range(path, value, -1, false));
+			else if( op.equals("$lte") )
+				clauses.add(new Range(path, value, -1, true));
+			else if( op.equals("$in") )
+				clauses.add(new In(path, list(op, value)));
+			else if( op.equals("$nin") )
+				clauses.add(new Not(new In(path, list(op, value))));
+			else if( op.equals("$exists") )
+				clauses.add(new Exists(path, !Boolean.FALSE.equals(value) && !Long.valueOf(0).equals(value)));
+			else if( op.equals("$regex") )
+				clauses.add(new Regex(path, value, ops.get("$options")));
+			else if( op.equals("$options") ) {
+				if( !ops.containsKey("$regex") )
+					throw new IllegalArgumentException("$options needs a $regex");
+			}
+			else
+				throw new IllegalArgumentException("Unknown query operator " + op);
+		}
+	}
+	
+	
+	/**
+	 * @return The value of a list operator
+	 */
+	private static List<?> list(String op, Object value)
+	{
+		if( !(value instanceof List) )
+			throw new IllegalArgumentException(op + " needs an array");
+		return (List<?>) value;
+	}
+	
+	
+	/**
+	 * Compiles a clause that matches a field equal to a constant
+	 * 
+	 * @param path The path of the field
+	 * @param value The constant
+	 * @return The clause
+	 */
+	private static Clause equality(String path[], final Object value)
+	{
+		if( value == null )
+			return new Clause(path, 0) {
+				@Override boolean test(Object v) {
+					return v == null;
+				}
+			};
+		
+		if( value instanceof Number )
+			return new Range(path, value, 0, true);
+		
+		return new Clause(path, value instanceof String ? 1 : value instanceof Boolean ? 0 : 2) {
+			@Override boolean test(Object v) {
+				return value.equals(v);
+			}
+		};
+	}
+	
+	
+	/**
+	 * @return true if the number is held as a whole number type
+	 */
+	static boolean isIntegral(Number n)
+	{
+		return n instanceof Long || n instanceof Integer || n instanceof Short || n instanceof Byte;
+	}
+	
+	
+	/**
+	 * A compiled condition on a single field of a document
+	 */
+	static abstract class Clause
+	{
+		private String path[] = null;
+		int cost = 0;
+		
+		// Whether a document without the field matches
+		boolean matchesMissing = false;
+		
+		/**
+		 * @param path The path of the field the clause reads
+		 * @param cost The relative cost of evaluating the clause
+		 */
+		Clause(String path[], int cost)
+		{
+			this.path = path;
+			this.cost = cost;
+		}
+		
+		/**
+		 * Reads the field out of the document and tests its value
+		 * 
+		 * @param obj The contents of the document
+		 * @return true if the document matches
+		 */
+		boolean matches(Map<?, ?> obj)
+		{
+			Object v = path.length == 1 ? obj.get(path[0]) : resolve(obj, path);
+			if( v == MISSING || (v == null && path.length == 1 && !obj.containsKey(path[0])) )
+				return matchesMissing;
+			return test(v);
+		}
+		
+		/**
+		 * @param v The value of the field
+		 * @return true if the value satisfies the clause
+		 */
+		abstract boolean test(Object v);
+	}
+	
+	
+	/**
+	 * Clause that compares a field with a number or a string. A comparison
+	 * with 0 as its direction is an equality test. Values of another type
+	 * than the constant never match, so {"$gt":5} does not match strings.
+	 */
+	static class Range extends Clause
+	{
+		private int direction = 0;
+		private boolean inclusive = false;
+		
+		// The constant, unboxed if it is a number
+		private boolean number = false;
+		private boolean integral = false;
+		private long longValue = 0;
+		private double doubleValue = 0;
+		private String string = null;
+		
+		/**
+		 * @param path The path of the field
+		 * @param value The constant to compare with
+		 * @param direction 1 for greater than, -1 for less than, 0 for equal
+		 * @param inclusive true if values equal to the constant match
+		 */
+		Range(String path[], Object value, int direction, boolean inclusive)
+		{
+			super(path, 0);
+			this.direction = direction;
+			this.inclusive = inclusive;
+			
+			if( value instanceof Number ) {
+				Number n = (Number) value;
+				number = true;
+				doubleValue = n.doubleValue();
+				integral = isIntegral(n) || (doubleValue == Math.rint(doubleValue) && Math.abs(doubleValue) < 0x1p63);
+				longValue = isIntegral(n) ? n.longValue() : (long) doubleValue;
+			}
+			else if( value instanceof String ) {
+				string = (String) value;
+				cost = 1;
+			}
+			else
+				throw new IllegalArgumentException("Cannot compare with " + value);
+		}
+		
+		@Override
+		boolean test(Object v)
+		{
+			int cmp = 0;
+			
+			if( number && v instanceof Number ) {
+				Number n = (Number) v;
+				
+				// A long and a double are compared exactly, as a sorted index orders them
+				if( isIntegral(n) && integral ) {
+					long l = n.longValue();
+					cmp = l < longValue ? -1 : l > longValue ? 1 : 0;
+				}
+				else if( isIntegral(n) )
+					cmp = -SortedIndex.compare(doubleValue, n.longValue());
+				else if( integral )
+					cmp = SortedIndex.compare(n.doubleValue(), longValue);
+				else {
+					double d = n.doubleValue();
+					cmp = d < doubleValue ? -1 : d > doubleValue ? 1 : 0;
+				}
+			}
+			else if( string != null && v instanceof String )
+				cmp = ((String) v).compareTo(string);
+			else
+				return false;
+			
+			if( cmp == 0 )
+				return inclusive;
+			return direction != 0 && Integer.signum(cmp) == direction;
+		}
+	}
+	
+	
+	/**
+	 * Clause that matches a field equal to one of a set of values
+	 */
+	static class In extends Clause
+	{
+		private Set<Object> values = null;
+		
+		In(String path[], List<?> values)
+		{
+			super(path, 1);
+			this.values = new HashSet<Object>();
+			for( Object value : values )
+				this.values.add(Index.normalize(value));
+		}
+		
+		@Override
+		boolean test(Object v)
+		{
+			return values.contains(Index.normalize(v));
+		}
+	}
+	
+	
+	/**
+	 * Clause that matches whenever another clause does not,
+	 * including documents that do not have the field
+	 */
+	static class Not extends Clause
+	{
+		private Clause clause = null;
+		
+		Not(Clause clause)
+		{
+			super(clause.path, clause.cost);
+			this.clause = clause;
+			matchesMissing = true;
+		}
+		
+		@Override
+		boolean test(Object v)
+		{
+			return !clause.test(v);
+		}
+	}
+	
+	
+	/**
+	 * Clause that matches on whether a document has the field at all
+	 */
+	static class Exists extends Clause
+	{
+		Exists(String path[], boolean exists)
+		{
+			super(path, 0);
+			matchesMissing = !exists;
+		}
+		
+		@Override
+		boolean test(Object v)
+		{
+			return !matchesMissing;
+		}
+	}
+	
+	
+	/**
+	 * Clause that matches a string field against a regular expression
+	 */
+	static class Regex extends Clause
+	{
+		private Pattern pattern = null;
+		
+		Regex(String path[], Object regex, Object options)
+		{
+			super(path, 3);
+			
+			if( !(regex instanceof String) )
+				throw new IllegalArgumentException("$regex needs a string");
+			
+			int flags = 0;
+			String opts = options == null ? "" : options.toString();
+			if( opts.contains("i") )	flags |= Pattern.CASE_INSENSITIVE;
+			if( opts.contains("m") )	flags |= Pattern.MULTILINE;
+			if( opts.contains("s") )	flags |= Pattern.DOTALL;
+			if( opts.contains("x") )	flags |= Pattern.COMMENTS;
+			
+			pattern = Pattern.compile((String) regex, flags);
+		}
+		
+		@Override
+		boolean test(Object v)
+		{
+			return v instanceof String && pattern.matcher((String) v).find();
+		}
+	}
+}
@@ -0,0 +1,201 @@
+package com.pstickney.jddb.nosql;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.LinkedList;
+
+/**
+ * Streaming reader for a collection snapshot file.<br><br>
+ * 
+ * A snapshot has the form {@code {"sequence":N,"documents":[{...},{...}]}}.
+ * Instead of parsing the whole file into a single {@link JSONObject}, this
+ * reader walks the file with the SAX-style {@link ContentHandler} of the
+ * JSON parser and builds one document at a time. Each document is handed to
+ * {@link #onDocument(Document)} as soon as it is complete, so loading only
+ * needs memory for the document being built on top of the documents kept.<br><br>
+ * 
+ * This class contains an abstract function {@link #onDocument(Document)} which
+ * needs to be defined by the user to determine what to do with each document.
+ * 
+ * @author pstickne
+ */
+public abstract class SnapshotReader implements ContentHandler
+{
+	private long sequence = 0;
+	
+	// Key of the top level entry being read
+	private String entry = null;
+	private boolean inDocuments = false;
+	private int depth = 0;
+	
+	// The containers of the document being built and the key of the next value
+	private LinkedList<Object> stack = new LinkedList<Object>();
+	private String key = null;
+	
+	
+	/**
+	 * This function needs to be manually defined by the user.<br>
+	 * It gets called once for every document in the snapshot, in
+	 * the order they appear in the file.
+	 * 
+	 * @param doc The document that was read
+	 */
+	public abstract void onDocument(Document doc);
+	
+	
+	/**
+	 * Reads a snapshot, calling {@link #onDocument(Document)} for
+	 * every document in it.
+	 * 
+	 * @param in The reader to read the snapshot from
+	 * @return The sequence number stored in the snapshot
+	 * 
+	 * @throws IOException
+	 * @throws ParseException If the snapshot is not valid JSON
+	 */
+	public long read(Reader in) throws IOException, ParseException
+	{
+		new JSONParser().parse(in, this);
+		return sequence;
+	}
+	
+	
+	@Override
+	public void startJSON() throws ParseException, IOException
+	{
+		sequence = 0;
+		entry = null;
+		inDocuments = false;
+		depth = 0;
+		stack.clear();
+	}
+	
+	
+	@Override
+	public void endJSON() throws ParseException, IOException
+	{
+	}
+	
+	
+	@Override
+	public boolean startObject() throws ParseException, IOException
+	{
+		// Only objects inside of the documents array are built
+		if( inDocuments )
+			push(new JSONObject());
+		
+		depth++;
+		return true;
+	}
+	
+	
+	@Override
+	public boolean endObject() throws ParseException, IOException
+	{
+		depth--;
+		
+		if( inDocuments && !stack.isEmpty() )
+		{
+			Object obj = stack.pop();
+			
+			// A document is complete once we are back in the documents array
+			if( stack.isEmpty() )
+				onDocument(new Document((JSONObject) obj));
+		}
+		return true;
+	}
+	
+	
+	@Override
+	public boolean startObjectEntry(String key) throws ParseException, IOException
+	{
+		if( depth == 1 )
+			entry = key;
+		else
+			this.key = key;
+		return true;
+	}
+	
+	
+	@Override
+	public boolean endObjectEntry() throws ParseException, IOException
+	{
+		return true;
+	}
+	
+	
+	@Override
+	public boolean startArray() throws ParseException, IOException
+	{
+		if( inDocuments )
+			push(new JSONArray());
+		else if( depth == 1 && "documents".equals(entry) )
+			inDocuments = true;
+		
+		depth++;
+		return true;
+	}
+	
+	
+	@Override
+	public boolean endArray() throws ParseException, IOException
+	{
+		depth--;
+		
+		if( inDocuments )
+		{
+			if( stack.isEmpty() )
+				inDocuments = false;
+			else
+				stack.pop();
+		}
+		return true;
+	}
+	
+	
+	@Override
+	public boolean primitive(Object value) throws ParseException, IOException
+	{
+		if( depth == 1 && "sequence".equals(entry) && value instanceof Number )
+			sequence = ((Number) value).longValue();
+		else if( inDocuments && !stack.isEmpty() )
+			add(value);
+		return true;
+	}
+	
+	
+	/**
+	 * Adds a new container to the document being built
+	 * 
+	 * @param container The JSONObject or JSONArray
+	 */
+	private void push(Object container)
+	{
+		if( !stack.isEmpty() )
+			add(container);
+		stack.push(container);
+	}
+	
+	
+	/**
+	 * Adds a value to the innermost container of the document being built
+	 * 
+	 * @param value The value to add
+	 */
+	@SuppressWarnings("unchecked")
+	private void add(Object value)
+	{
+		Object parent = stack.peek();
+		
+		if( parent instanceof JSONArray )
+			((JSONArray) parent).add(value);
+		else
+			((JSONObject) parent).put(key, value);
+	}
+}
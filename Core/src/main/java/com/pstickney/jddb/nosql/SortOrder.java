@@ -0,0 +1,128 @@
+package com.pstickney.jddb.nosql;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A sort specification compiled into the order it puts documents in.<br><br>
+ * 
+ * A sort on a single field is a document such as {@code {"age":1}}, where 1
+ * sorts ascending and -1 descending. The documents of JSON objects do not
+ * keep the order of their fields, so a sort on more than one field is an
+ * array of such documents, as in {@code [{"age":-1},{"name":1}]}, which sorts
+ * by the first field and breaks ties with the next.<br><br>
+ * 
+ * Field names can be dotted paths, as in queries. Values are compared in
+ * the order of a {@link SortedIndex}, and a missing field sorts like null.
+ * 
+ * @author pstickne
+ */
+public class SortOrder implements Comparator<Document>
+{
+	private List<String> fields = null;
+	private List<String[]> paths = null;
+	private List<Integer> directions = null;
+	
+	
+	/**
+	 * Construct an empty sort order
+	 */
+	private SortOrder()
+	{
+		fields = new ArrayList<String>();
+		paths = new ArrayList<String[]>();
+		directions = new ArrayList<Integer>();
+	}
+	
+	
+	/**
+	 * Compiles a sort specification
+	 * 
+	 * @param spec A document with a single field, or an array of them
+	 * @return The compiled sort order
+	 * 
+	 * @throws IllegalArgumentException If the specification is malformed
+	 */
+	public static SortOrder compile(Object spec)
+	{
+		SortOrder order = new SortOrder();
+		
+		if( spec instanceof Document )
+			spec = ((Document) spec).getJSONObject();
+		
+		if( spec instanceof Map && ((Map<?, ?>) spec).size() == 1 )
+			order.key((Map<?, ?>) spec);
+		else if( spec instanceof List && !((List<?>) spec).isEmpty() ) {
+			for( Object key : (List<?>) spec ) {
+				if( !(key instanceof Map) || ((Map<?, ?>) key).size() != 1 )
+					throw new IllegalArgumentException("Every key of a sort has to be a document with a single field");
+				order.key((Map<?, ?>) key);
+			}
+		}
+		else
+			throw new IllegalArgumentException("A sort takes a document with a single field or an array of them");
+		
+		return order;
+	}
+	
+	
+	/**
+	 * Adds the single field of a sort key
+	 */
+	private void key(Map<?, ?> key)
+	{
+		Map.Entry<?, ?> entry = key.entrySet().iterator().next();
+		Object direction = entry.getValue();
+		
+		if( !(direction instanceof Number) || Math.abs(((Number) direction).doubleValue()) != 1 )
+			throw new IllegalArgumentException("The direction of a sort key is 1 or -1");
+		
+		fields.add(String.valueOf(entry.getKey()));
+		paths.add(Query.path(String.valueOf(entry.getKey())));
+		directions.add(((Number) direction).intValue());
+	}
+	
+	
+	/**
+	 * @return The sorted fields, most significant first
+	 */
+	public List<String> getFields()
+	{
+		return fields;
+	}
+	
+	
+	/**
+	 * @param i The position of a sorted field
+	 * @return true if that field sorts descending
+	 */
+	public boolean isDescending(int i)
+	{
+		return directions.get(i) < 0;
+	}
+	
+	
+	@Override
+	public int compare(Document a, Document b)
+	{
+		for( int i = 0; i < paths.size(); i++ )
+		{
+			int cmp = SortedIndex.ORDER.compare(value(a, paths.get(i)), value(b, paths.get(i)));
+			if( cmp != 0 )
+				return cmp * directions.get(i);
+		}
+		return 0;
+	}
+	
+	
+	/**
+	 * @return The value a document is sorted by at a path
+	 */
+	private static Object value(Document doc, String path[])
+	{
+		Object value = Query.resolve(doc.getJSONObject(), path);
+		return value == Query.MISSING ? null : value;
+	}
+}
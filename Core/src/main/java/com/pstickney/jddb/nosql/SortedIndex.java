@@ -0,0 +1,342 @@
+package com.pstickney.jddb.nosql;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Index that keeps the values of a field in order, so it can answer
+ * range queries as well as equality queries in logarithmic time.<br><br>
+ * 
+ * Values of different types are ordered null, numbers, strings, booleans
+ * and then objects and arrays. Numbers are compared by value, so 5 and 5.0
+ * share an entry. Like queries, a range only covers values of the same type
+ * as its bounds, so {@code {"$gt":5}} never reaches the strings.
+ * 
+ * @author pstickne
+ */
+public class SortedIndex extends Index
+{
+	/**
+	 * The order values are kept in by a sorted index
+	 */
+	public static final Comparator<Object> ORDER = new Comparator<Object>() {
+		@Override
+		public int compare(Object a, Object b) {
+			int rank = Integer.compare(rank(a), rank(b));
+			if( rank != 0 || a == null )
+				return rank;
+			
+			if( a instanceof Number )
+				return compareNumbers((Number) a, (Number) b);
+			if( a instanceof String )
+				return ((String) a).compareTo((String) b);
+			if( a instanceof Boolean )
+				return ((Boolean) a).compareTo((Boolean) b);
+			return a.toString().compareTo(b.toString());
+		}
+	};
+	
+	private NavigableMap<Object, Set<Object>> entries = null;
+	private int size = 0;
+	
+	
+	/**
+	 * Construct a sorted index on a field
+	 * 
+	 * @param field The name of the indexed field
+	 */
+	public SortedIndex(String field)
+	{
+		super(field);
+		entries = new TreeMap<Object, Set<Object>>(ORDER);
+	}
+	
+	
+	@Override
+	public String getType()
+	{
+		return SORTED;
+	}
+	
+	
+	@Override
+	protected List<Object> getEqual(Object value)
+	{
+		Set<Object> ids = entries.get(value);
+		if( ids == null )
+			return new ArrayList<Object>();
+		return new ArrayList<Object>(ids);
+	}
+	
+	
+	@Override
+	protected int countEqual(Object value)
+	{
+		Set<Object> ids = entries.get(value);
+		return ids == null ? 0 : ids.size();
+	}
+	
+	
+	/**
+	 * Gets the _ids of the documents whose field lies in a range, in the
+	 * order of their values. A null bound leaves that end of the range open.
+	 * 
+	 * @param from The lower bound, or null
+	 * @param fromInclusive true if the lower bound itself is in the range
+	 * @param to The upper bound, or null
+	 * @param toInclusive true if the upper bound itself is in the range
+	 * @return A copy of the matching _ids
+	 */
+	public List<Object> range(Object from, boolean fromInclusive, Object to, boolean toInclusive)
+	{
+		List<Object> result = new ArrayList<Object>();
+		for( Set<Object> ids : slice(from, fromInclusive, to, toInclusive).values() )
+			result.addAll(ids);
+		return result;
+	}
+	
+	
+	/**
+	 * Gets the number of documents whose field lies in a range
+	 * 
+	 * @see #range(Object, boolean, Object, boolean)
+	 */
+	public int countRange(Object from, boolean fromInclusive, Object to, boolean toInclusive)
+	{
+		int count = 0;
+		for( Set<Object> ids : slice(from, fromInclusive, to, toInclusive).values() )
+			count += ids.size();
+		return count;
+	}
+	
+	
+	@Override
+	protected List<Object> getRange(Map<?, ?> ops)
+	{
+		NavigableMap<Object, Set<Object>> slice = slice(ops);
+		if( slice == null )
+			return null;
+		
+		List<Object> result = new ArrayList<Object>();
+		for( Set<Object> ids : slice.values() )
+			result.addAll(ids);
+		return result;
+	}
+	
+	
+	@Override
+	protected int countRange(Map<?, ?> ops)
+	{
+		NavigableMap<Object, Set<Object>> slice = slice(ops);
+		if( slice == null )
+			return -1;
+		
+		int count = 0;
+		for( Set<Object> ids : slice.values() )
+			count += ids.size();
+		return count;
+	}
+	
+	
+	/**
+	 * Gets the part of the index a range of query operators covers. An open
+	 * end of the range stops at the end of the values of the bound's type.
+	 * 
+	 * @param ops The operators of the query condition
+	 * @return The part of the index, or null if the operators are not a range of numbers or strings
+	 */
+	private NavigableMap<Object, Set<Object>> slice(Map<?, ?> ops)
+	{
+		Object from = null, to = null;
+		boolean fromInclusive = false, toInclusive = false;
+		
+		for( Map.Entry<?, ?> entry : ops.entrySet() )
+		{
+			Object op = entry.getKey(), value = entry.getValue();
+			boolean bigger = false;
+			
+			if( op.equals("$gt") || op.equals("$gte") ) {
+				bigger = from == null || ORDER.compare(value, from) > 0;
+				if( bigger || (ORDER.compare(value, from) == 0 && op.equals("$gt")) ) {
+					from = value;
+					fromInclusive = op.equals("$gte");
+				}
+			}
+			else if( op.equals("$lt") || op.equals("$lte") ) {
+				bigger = to == null || ORDER.compare(value, to) < 0;
+				if( bigger || (ORDER.compare(value, to) == 0 && op.equals("$lt")) ) {
+					to = value;
+					toInclusive = op.equals("$lte");
+				}
+			}
+			else
+				return null;
+		}
+		
+		Object bound = from != null ? from : to;
+		if( !(bound instanceof Number || bound instanceof String) )
+			return null;
+		
+		// Bounds of different types cannot both hold
+		if( from != null && to != null && rank(from) != rank(to) )
+			return new TreeMap<Object, Set<Object>>(ORDER);
+		
+		/*
+		 * Close an open end at the edge of the bound's type. Numbers lie
+		 * between null and the empty string, strings between the numbers
+		 * and false.
+		 */
+		if( from == null ) {
+			from = bound instanceof Number ? null : "";
+			fromInclusive = bound instanceof String;
+			return entries.tailMap(from, fromInclusive).headMap(to, toInclusive);
+		}
+		if( to == null ) {
+			to = bound instanceof Number ? (Object) "" : Boolean.FALSE;
+			toInclusive = false;
+		}
+		return ORDER.compare(from, to) > 0 ? new TreeMap<Object, Set<Object>>(ORDER) : entries.subMap(from, fromInclusive, to, toInclusive);
+	}
+	
+	
+	private NavigableMap<Object, Set<Object>> slice(Object from, boolean fromInclusive, Object to, boolean toInclusive)
+	{
+		NavigableMap<Object, Set<Object>> slice = entries;
+		if( from != null )
+			slice = slice.tailMap(from, fromInclusive);
+		if( to != null )
+			slice = slice.headMap(to, toInclusive);
+		return slice;
+	}
+	
+	
+	/**
+	 * Gets the _ids of every indexed document in the order of their values.
+	 * Documents without the field are not in the index.
+	 * 
+	 * @return A copy of the _ids
+	 */
+	public List<Object> all()
+	{
+		List<Object> result = new ArrayList<Object>(size);
+		for( Set<Object> ids : entries.values() )
+			result.addAll(ids);
+		return result;
+	}
+	
+	
+	/**
+	 * @return The number of documents in the index
+	 */
+	public int size()
+	{
+		return size;
+	}
+	
+	
+	@Override
+	protected void put(Object value, Object id)
+	{
+		Set<Object> ids = entries.get(value);
+		if( ids == null )
+			entries.put(value, ids = new LinkedHashSet<Object>());
+		if( ids.add(id) )
+			size++;
+	}
+	
+	
+	@Override
+	protected void putAll(Object value, List<Object> ids)
+	{
+		Set<Object> existing = entries.get(value);
+		if( existing == null )
+			entries.put(value, existing = new LinkedHashSet<Object>(ids.size() * 4 / 3 + 1));
+		
+		int before = existing.size();
+		existing.addAll(ids);
+		size += existing.size() - before;
+	}
+	
+	
+	@Override
+	protected void delete(Object value, Object id)
+	{
+		Set<Object> ids = entries.get(value);
+		if( ids == null || !ids.remove(id) )
+			return;
+		
+		size--;
+		if( ids.isEmpty() )
+			entries.remove(value);
+	}
+	
+	
+	@Override
+	public void clear()
+	{
+		entries.clear();
+		size = 0;
+	}
+	
+	
+	static int rank(Object value)
+	{
+		if( value == null )				return 0;
+		if( value instanceof Number )	return 1;
+		if( value instanceof String )	return 2;
+		if( value instanceof Boolean )	return 3;
+		return 4;
+	}
+	
+	
+	/**
+	 * Compares two numbers by their exact values. Converting a long to a
+	 * double rounds it above 2^53, which would make two different longs
+	 * both equal to the same double and break the order of the index.
+	 * NaN comes after every other number.
+	 */
+	private static int compareNumbers(Number a, Number b)
+	{
+		boolean wholeA = a instanceof Long || a instanceof Integer;
+		boolean wholeB = b instanceof Long || b instanceof Integer;
+		
+		if( wholeA && wholeB )
+			return Long.compare(a.longValue(), b.longValue());
+		if( wholeA )
+			return -compare(b.doubleValue(), a.longValue());
+		if( wholeB )
+			return compare(a.doubleValue(), b.longValue());
+		
+		double x = a.doubleValue();
+		double y = b.doubleValue();
+		if( x < y )
+			return -1;
+		if( x > y )
+			return 1;
+		return Boolean.compare(Double.isNaN(x), Double.isNaN(y));
+	}
+	
+	
+	/**
+	 * Compares a double to a long exactly
+	 */
+	static int compare(double d, long l)
+	{
+		if( Double.isNaN(d) || d >= 0x1p63 )
+			return 1;
+		if( d < -0x1p63 )
+			return -1;
+		
+		// Within the range of a long the whole part of the double is exact
+		long whole = (long) d;
+		if( whole != l )
+			return Long.compare(whole, l);
+		return d < whole ? -1 : d > whole ? 1 : 0;
+	}
+}
@@ -0,0 +1,319 @@
+package com.pstickney.jddb.nosql;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts a stream of documents in a {@link SortOrder}.<br><br>
+ * 
+ * When only the first {@code keep} documents of the order are wanted, as
+ * for a sort followed by a limit, the sorter only holds those in a bounded
+ * heap, so finding the top K of N documents takes memory for K documents
+ * and time in N log K.<br><br>
+ * 
+ * Otherwise the documents are collected in a buffer of at most
+ * {@code bufferSize} documents. Whenever the buffer fills up it is sorted
+ * and written out to a temporary run file in the binary form of
+ * {@link DocumentCodec}, and the sorted runs are merged as the result is
+ * read, holding only one document per run in memory. A sort that fits in
+ * the buffer never touches the disk.<br><br>
+ * 
+ * Documents that compare equal keep the order they were added in.
+ * 
+ * @author pstickne
+ */
+class Sorter
+{
+	// The number of documents sorted in memory unless a collection says otherwise
+	static final int DEFAULT_BUFFER = 100000;
+	
+	private Comparator<Entry> order = null;
+	private long keep = 0;
+	private int bufferSize = DEFAULT_BUFFER;
+	private long added = 0;
+	
+	// The heap of a top-K sort, with the last of the kept documents on top
+	private PriorityQueue<Entry> heap = null;
+	
+	private List<Entry> buffer = null;
+	private List<File> runs = null;
+	
+	// The run files opened by the merge, closed once the merge is done or given up on
+	private List<Run> merging = null;
+	
+	
+	/**
+	 * Construct a sorter
+	 * 
+	 * @param order The sort order
+	 * @param keep The number of documents wanted from the start of the order, 0 for all of them
+	 * @param bufferSize The largest number of documents sorted in memory
+	 */
+	Sorter(final SortOrder order, long keep, int bufferSize)
+	{
+		this.keep = keep;
+		this.bufferSize = Math.max(1, bufferSize);
+		this.buffer = new ArrayList<Entry>();
+		this.runs = new ArrayList<File>();
+		this.merging = new ArrayList<Run>();
+		
+		// Ties are broken by the order the documents were added in
+		this.order = new Comparator<Entry>() {
+			@Override public int compare(Entry a, Entry b) {
+				int cmp = order.compare(a.doc, b.doc);
+				return cmp != 0 ? cmp : Long.compare(a.seq, b.seq);
+			}
+		};
+		
+		if( keep > 0 && keep <= this.bufferSize )
+			heap = new PriorityQueue<Entry>((int) keep + 1, Collections.reverseOrder(this.order));
+	}
+	
+	
+	/**
+	 * Adds a document to the sort
+	 * 
+	 * @param doc The document
+	 * 
+	 * @throws IOException If a full buffer cannot be written out to a run file
+	 */
+	void add(Document doc) throws IOException
+	{
+		Entry entry = new Entry(doc, added++);
+		
+		if( heap != null ) {
+			if( heap.size() < keep )
+				heap.add(entry);
+			else if( order.compare(entry, heap.peek()) < 0 ) {
+				heap.poll();
+				heap.add(entry);
+			}
+			return;
+		}
+		
+		buffer.add(entry);
+		if( buffer.size() >= bufferSize )
+			spill();
+	}
+	
+	
+	/**
+	 * Sorts the buffer and writes it out to a new run file
+	 */
+	private void spill() throws IOException
+	{
+		File file = File.createTempFile("jddb-sort", ".run");
+		DataOutputStream out = null;
+		
+		file.deleteOnExit();
+		runs.add(file);
+		Collections.sort(buffer, order);
+		
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+			for( int i = 0; i < buffer.size() && (keep == 0 || i < keep); i++ )
+				out.write(DocumentCodec.encode(buffer.get(i).doc));
+		} finally {
+			if( out != null )
+				out.close();
+		}
+		buffer.clear();
+	}
+	
+	
+	/**
+	 * Finishes the sort. The sorter cannot be added to after this.
+	 * 
+	 * @return The documents in order, the first {@code keep} of them if a number was given
+	 * 
+	 * @throws IOException If the run files cannot be written or read
+	 */
+	Iterator<Document> sorted() throws IOException
+	{
+		List<Document> docs = new ArrayList<Document>();
+		
+		if( heap != null ) {
+			List<Entry> kept = new ArrayList<Entry>(heap);
+			Collections.sort(kept, order);
+			for( Entry entry : kept )
+				docs.add(entry.doc);
+			heap = null;
+			return docs.iterator();
+		}
+		
+		if( runs.isEmpty() ) {
+			Collections.sort(buffer, order);
+			for( Entry entry : buffer )
+				docs.add(entry.doc);
+			buffer = null;
+			return docs.iterator();
+		}
+		
+		if( !buffer.isEmpty() )
+			spill();
+		return merge();
+	}
+	
+	
+	/**
+	 * Merges the sorted runs. Each run is deleted once it has been read to
+	 * the end, and the runs that are left are closed and deleted once
+	 * {@code keep} documents have been read or the sorter is closed. A
+	 * document from an earlier run comes before an equal one from a later
+	 * run, which keeps equal documents in the order they were added.
+	 */
+	private Iterator<Document> merge() throws IOException
+	{
+		final PriorityQueue<Run> heads = new PriorityQueue<Run>(runs.size(), new Comparator<Run>() {
+			@Override public int compare(Run a, Run b) {
+				return order.compare(a.head, b.head);
+			}
+		});
+		
+		try {
+			for( int i = 0; i < runs.size(); i++ ) {
+				Run run = new Run(runs.get(i), i);
+				merging.add(run);
+				if( run.advance() )
+					heads.add(run);
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+		
+		return new Iterator<Document>() {
+			private long returned = 0;
+			
+			@Override
+			public boolean hasNext() {
+				if( keep > 0 && returned >= keep && !heads.isEmpty() ) {
+					heads.clear();
+					close();
+				}
+				return !heads.isEmpty();
+			}
+			
+			@Override
+			public Document next() {
+				if( !hasNext() )
+					throw new NoSuchElementException();
+				
+				Run run = heads.poll();
+				Document doc = run.head.doc;
+				try {
+					if( run.advance() )
+						heads.add(run);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				returned++;
+				return doc;
+			}
+		};
+	}
+	
+	
+	/**
+	 * Closes the run files still being merged and deletes every run file that is left
+	 */
+	void close()
+	{
+		for( Run run : merging )
+			run.close();
+		merging.clear();
+		
+		for( File file : runs )
+			file.delete();
+	}
+	
+	
+	/**
+	 * A document and the position it was added at
+	 */
+	private static class Entry
+	{
+		final Document doc;
+		final long seq;
+		
+		Entry(Document doc, long seq)
+		{
+			this.doc = doc;
+			this.seq = seq;
+		}
+	}
+	
+	
+	/**
+	 * A run file being merged, with the document it is at
+	 */
+	private static class Run
+	{
+		private File file = null;
+		private DataInputStream in = null;
+		private long position = 0;
+		private int index = 0;
+		Entry head = null;
+		
+		Run(File file, int index) throws IOException
+		{
+			this.file = file;
+			this.index = index;
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		}
+		
+		/**
+		 * Reads the next document of the run, closing and deleting
+		 * the run once it has been read to the end
+		 * 
+		 * @return true if there was another document
+		 */
+		boolean advance() throws IOException
+		{
+			int length = 0;
+			
+			try {
+				length = in.readInt();
+			} catch (EOFException e) {
+				close();
+				return false;
+			}
+			
+			byte bytes[] = new byte[4 + length];
+			bytes[0] = (byte) (length >>> 24);
+			bytes[1] = (byte) (length >>> 16);
+			bytes[2] = (byte) (length >>> 8);
+			bytes[3] = (byte) length;
+			in.readFully(bytes, 4, length);
+			
+			// Later runs hold documents added later, so the run and its position order ties
+			head = new Entry(DocumentCodec.decode(bytes), ((long) index << 40) + position++);
+			return true;
+		}
+		
+		void close()
+		{
+			try {
+				in.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			file.delete();
+		}
+	}
+}
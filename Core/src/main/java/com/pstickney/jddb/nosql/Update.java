@@ -0,0 +1,502 @@
+package com.pstickney.jddb.nosql;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An update document compiled into the changes it makes to a document.<br><br>
+ * 
+ * An update document either holds only update operators, as in
+ * {@code {"$set":{"name":"bob"},"$inc":{"visits":1}}}, which change the
+ * fields they name and leave every other field as it is, or holds no
+ * operators at all, in which case it replaces the whole document. The
+ * operators are
+ * 
+ * <pre>
+ * $set       sets the fields to the given values
+ * $unset     removes the fields
+ * $inc       adds the given numbers to the fields, a missing field counts as 0
+ * $push      appends the given value to the arrays, or each value of {"$each":[...]}
+ * </pre>
+ * 
+ * As in queries, a field name can be a dotted path into embedded documents
+ * and arrays. Embedded documents along a path that do not exist yet are
+ * created.<br><br>
+ * 
+ * Stored documents are never changed, see {@link DocumentStore}, so applying
+ * an update builds the new version of the document. Only the documents and
+ * arrays along the updated paths are copied, everything else is shared with
+ * the old version.
+ * 
+ * @author pstickne
+ */
+public class Update
+{
+	// The document that replaces the whole document, or null for an update with operators
+	private Map<?, ?> replacement = null;
+	
+	private List<Operation> operations = null;
+	
+	
+	/**
+	 * Construct an empty update
+	 */
+	private Update()
+	{
+		operations = new ArrayList<Operation>();
+	}
+	
+	
+	/**
+	 * Compiles an update document
+	 * 
+	 * @param update The update document
+	 * @return The compiled update
+	 * 
+	 * @throws IllegalArgumentException If the update uses an unknown or malformed operator
+	 */
+	public static Update compile(Document update)
+	{
+		Update compiled = new Update();
+		
+		if( !Query.isOperator(update.getJSONObject()) )
+			return replacement(update);
+		
+		for( String op : update.getKeys() )
+		{
+			if( !op.startsWith("$") )
+				throw new IllegalArgumentException("Cannot mix update operators with the field " + op);
+			if( !(update.get(op) instanceof Map) )
+				throw new IllegalArgumentException("The value of " + op + " must be a document");
+			
+			for( Map.Entry<?, ?> entry : ((Map<?, ?>) update.get(op)).entrySet() )
+				compiled.operations.add(operation(op, String.valueOf(entry.getKey()), entry.getValue()));
+		}
+		
+		compiled.checkPaths();
+		return compiled;
+	}
+	
+	
+	/**
+	 * Creates an update that replaces the whole document with the given
+	 * document, even if it has fields that look like operators
+	 * 
+	 * @param doc The new contents of the document
+	 * @return The update
+	 */
+	public static Update replacement(Document doc)
+	{
+		Update update = new Update();
+		update.replacement = doc.getJSONObject();
+		return update;
+	}
+	
+	
+	/**
+	 * Compiles a single operator on a single field
+	 */
+	private static Operation operation(String op, String field, Object value)
+	{
+		if( field.equals("_id") || field.startsWith("_id.") )
+			throw new IllegalArgumentException("The _id of a document cannot be updated");
+		
+		if( op.equals("$set") )
+			return new Assign(field, value);
+		if( op.equals("$unset") )
+			return new Unset(field);
+		if( op.equals("$inc") ) {
+			if( !(value instanceof Number) )
+				throw new IllegalArgumentException("$inc needs a number for " + field);
+			return new Inc(field, (Number) value);
+		}
+		if( op.equals("$push") ) {
+			if( Query.isOperator(value) ) {
+				Object each = ((Map<?, ?>) value).get("$each");
+				if( !(each instanceof List) || ((Map<?, ?>) value).size() > 1 )
+					throw new IllegalArgumentException("$push takes a value or {\"$each\":[...]} for " + field);
+				return new Push(field, (List<?>) each);
+			}
+			return new Push(field, Collections.singletonList(value));
+		}
+		throw new IllegalArgumentException("Unknown update operator " + op);
+	}
+	
+	
+	/**
+	 * Makes sure no two operations update the same field, or a field
+	 * and a field inside of it, since the result would depend on their order
+	 * 
+	 * @throws IllegalArgumentException If two of the paths conflict
+	 */
+	private void checkPaths()
+	{
+		for( int i = 0; i < operations.size(); i++ )
+			for( int j = i + 1; j < operations.size(); j++ )
+				if( overlaps(operations.get(i).field, operations.get(j).field) )
+					throw new IllegalArgumentException("Updating " + operations.get(i).field + " conflicts with updating " + operations.get(j).field);
+	}
+	
+	
+	/**
+	 * @return true if one of the dotted paths is the other or lies inside of it
+	 */
+	private static boolean overlaps(String a, String b)
+	{
+		return a.equals(b) || a.startsWith(b + ".") || b.startsWith(a + ".");
+	}
+	
+	
+	/**
+	 * @return true if this update replaces the whole document
+	 */
+	public boolean isReplacement()
+	{
+		return replacement != null;
+	}
+	
+	
+	/**
+	 * Checks if this update can change the value at a path, which decides
+	 * whether an index on that path has to be updated
+	 * 
+	 * @param field The dotted path
+	 * @return true if the value at the path can change
+	 */
+	public boolean changes(String field)
+	{
+		if( replacement != null )
+			return true;
+		
+		for( Operation operation : operations )
+			if( overlaps(operation.field, field) )
+				return true;
+		return false;
+	}
+	
+	
+	/**
+	 * Builds the new version of a document. The new version keeps the _id of
+	 * the document and the document itself is left as it is for readers that
+	 * still have it.
+	 * 
+	 * @param doc The stored document
+	 * @return The new version of the document
+	 * 
+	 * @throws IllegalArgumentException If an operator does not apply to the value it is given,
+	 * 			such as {@code $inc} on a string
+	 */
+	@SuppressWarnings("unchecked")
+	public Document apply(Document doc)
+	{
+		JSONObject json = new JSONObject();
+		
+		// A replacement gets its own copy so that multiple updated documents never share the same object
+		if( replacement != null ) {
+			json.putAll(replacement);
+			json.put("_id", doc.get("_id"));
+			return new Document(json);
+		}
+		
+		// The containers copied so far, which can be changed without touching the old version
+		Set<Object> copied = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+		
+		json.putAll(doc.getJSONObject());
+		copied.add(json);
+		
+		for( Operation operation : operations )
+			operation.apply(json, copied);
+		return new Document(json);
+	}
+	
+	
+	/**
+	 * Builds the document an upsert inserts when no document matches the
+	 * query. It holds the fields the query matches by equality with this
+	 * update applied on top, and the _id of the query or a new one.
+	 * 
+	 * @param query The query of the upsert
+	 * @return The new document
+	 * 
+	 * @throws IllegalArgumentException If the fields of the query conflict with each other,
+	 * 			or an operator does not apply to them
+	 */
+	@SuppressWarnings("unchecked")
+	public Document upsert(Document query)
+	{
+		JSONObject json = new JSONObject();
+		JSONObject fields = new JSONObject();
+		
+		// Operators of the query, like $or or {"$gt":1}, do not give a value to insert
+		for( String field : query.getKeys() )
+		{
+			Object value = query.get(field);
+			if( field.startsWith("$") || field.startsWith("_id.") || Query.isOperator(value) )
+				continue;
+			
+			if( field.equals("_id") )
+				json.put("_id", value);
+			else
+				fields.put(field, value);
+		}
+		if( !json.containsKey("_id") )
+			json.put("_id", Collection.newId());
+		
+		Document doc = new Document(json);
+		if( !fields.isEmpty() ) {
+			JSONObject set = new JSONObject();
+			set.put("$set", fields);
+			doc = compile(new Document(set)).apply(doc);
+		}
+		return apply(doc);
+	}
+	
+	
+	/**
+	 * A compiled operator on a single field
+	 */
+	static abstract class Operation
+	{
+		private String field = null;
+		private String path[] = null;
+		
+		Operation(String field)
+		{
+			this.field = field;
+			this.path = Query.path(field);
+		}
+		
+		/**
+		 * Works out the new value of the field
+		 * 
+		 * @param current The current value, or {@link Query#MISSING} if the document does not have the field
+		 * @return The new value, or {@link Query#MISSING} to remove the field
+		 */
+		abstract Object update(Object current);
+		
+		/**
+		 * @return true if a missing embedded document along the path should be created
+		 */
+		boolean creates()
+		{
+			return true;
+		}
+		
+		/**
+		 * Walks down the path, copying every document and array along it
+		 * that has not been copied yet, and updates the field at its end
+		 */
+		void apply(Object root, Set<Object> copied)
+		{
+			Object container = root;
+			
+			for( int i = 0; i < path.length - 1; i++ )
+			{
+				Object child = get(container, path[i]);
+				
+				if( child == Query.MISSING || child == null ) {
+					if( !creates() )
+						return;
+					child = new JSONObject();
+					copied.add(child);
+					put(container, path[i], child);
+				}
+				else if( !copied.contains(child) ) {
+					child = copy(child);
+					copied.add(child);
+					put(container, path[i], child);
+				}
+				container = child;
+			}
+			
+			Object value = update(get(container, path[path.length - 1]));
+			if( value == Query.MISSING )
+				remove(container, path[path.length - 1]);
+			else
+				put(container, path[path.length - 1], value);
+		}
+		
+		/**
+		 * @return A shallow copy of an embedded document or array
+		 */
+		@SuppressWarnings("unchecked")
+		private Object copy(Object value)
+		{
+			if( value instanceof Map ) {
+				JSONObject copy = new JSONObject();
+				copy.putAll((Map<?, ?>) value);
+				return copy;
+			}
+			if( value instanceof List ) {
+				JSONArray copy = new JSONArray();
+				copy.addAll((List<?>) value);
+				return copy;
+			}
+			throw new IllegalArgumentException("Cannot update " + field + " inside a value that is not a document or an array");
+		}
+		
+		private Object get(Object container, String name)
+		{
+			if( container instanceof Map ) {
+				Map<?, ?> map = (Map<?, ?>) container;
+				return map.containsKey(name) ? map.get(name) : Query.MISSING;
+			}
+			
+			int index = arrayIndex(name);
+			List<?> list = (List<?>) container;
+			return index < list.size() ? list.get(index) : Query.MISSING;
+		}
+		
+		@SuppressWarnings("unchecked")
+		private void put(Object container, String name, Object value)
+		{
+			if( container instanceof Map ) {
+				((Map<String, Object>) container).put(name, value);
+				return;
+			}
+			
+			// Setting past the end of an array pads it with nulls
+			int index = arrayIndex(name);
+			List<Object> list = (List<Object>) container;
+			while( list.size() <= index )
+				list.add(null);
+			list.set(index, value);
+		}
+		
+		@SuppressWarnings("unchecked")
+		private void remove(Object container, String name)
+		{
+			// Removing an element would shift the ones after it, so it is set to null instead
+			if( container instanceof Map )
+				((Map<String, Object>) container).remove(name);
+			else if( arrayIndex(name) < ((List<?>) container).size() )
+				((List<Object>) container).set(arrayIndex(name), null);
+		}
+		
+		private int arrayIndex(String name)
+		{
+			int index = Query.index(name);
+			if( index < 0 )
+				throw new IllegalArgumentException("Cannot update " + field + ", " + name + " is not an array index");
+			return index;
+		}
+		
+		@Override
+		public String toString()
+		{
+			return field;
+		}
+	}
+	
+	
+	/**
+	 * {@code $set}
+	 */
+	private static class Assign extends Operation
+	{
+		private Object value = null;
+		
+		Assign(String field, Object value)
+		{
+			super(field);
+			this.value = value;
+		}
+		
+		@Override
+		Object update(Object current)
+		{
+			return value;
+		}
+	}
+	
+	
+	/**
+	 * {@code $unset}
+	 */
+	private static class Unset extends Operation
+	{
+		Unset(String field)
+		{
+			super(field);
+		}
+		
+		@Override
+		boolean creates()
+		{
+			return false;
+		}
+		
+		@Override
+		Object update(Object current)
+		{
+			return Query.MISSING;
+		}
+	}
+	
+	
+	/**
+	 * {@code $inc}. Whole numbers stay whole numbers, adding
+	 * a decimal to either side gives a decimal.
+	 */
+	private static class Inc extends Operation
+	{
+		private Number amount = null;
+		
+		Inc(String field, Number amount)
+		{
+			super(field);
+			this.amount = amount;
+		}
+		
+		@Override
+		Object update(Object current)
+		{
+			if( current == Query.MISSING )
+				return amount;
+			if( !(current instanceof Number) )
+				throw new IllegalArgumentException("Cannot apply $inc to " + this + ", it is not a number");
+			
+			Number n = (Number) current;
+			if( Query.isIntegral(n) && Query.isIntegral(amount) )
+				return n.longValue() + amount.longValue();
+			return n.doubleValue() + amount.doubleValue();
+		}
+	}
+	
+	
+	/**
+	 * {@code $push}
+	 */
+	private static class Push extends Operation
+	{
+		private List<?> values = null;
+		
+		Push(String field, List<?> values)
+		{
+			super(field);
+			this.values = values;
+		}
+		
+		@Override
+		@SuppressWarnings("unchecked")
+		Object update(Object current)
+		{
+			JSONArray array = new JSONArray();
+			
+			if( current instanceof List )
+				array.addAll((List<?>) current);
+			else if( current != Query.MISSING )
+				throw new IllegalArgumentException("Cannot apply $push to " + this + ", it is not an array");
+			
+			array.addAll(values);
+			return array;
+		}
+	}
+}
@@ -0,0 +1,285 @@
+package com.pstickney.jddb.nosql;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The versions of the documents of a {@link DocumentStore}, for
+ * multi-version concurrency control.<br><br>
+ * 
+ * Every document is given a slot when it is first added and keeps that slot,
+ * so iterating the slots follows insertion order. A slot holds a chain of
+ * versions, newest first, each stamped with the sequence number of the
+ * operation that wrote it. Removing a document adds a version without a
+ * value. A reader that opened its snapshot at sequence number S sees, in
+ * each slot, the newest version written by an operation up to S.<br><br>
+ * 
+ * Versions that no open snapshot can see any more are reclaimed by
+ * {@link #reclaim(long)}, which cuts them off the end of their chain and
+ * drops slots whose document was removed before every open snapshot.<br><br>
+ * 
+ * Changes are made by one writer at a time, while any number of readers
+ * read without a lock. The slots are kept in concurrent maps and a version
+ * is never changed once it is in a chain, apart from cutting off the versions
+ * behind it, which no reader that could still need them ever walks to.
+ * 
+ * @param <T> The stored value, a document or the offset of a record
+ * 
+ * @author pstickne
+ */
+class Versions<T>
+{
+	private Map<Object, Long> slots = null;
+	private ConcurrentSkipListMap<Long, Version<T>> chains = null;
+	private long nextSlot = 0;
+	private volatile int live = 0;
+	
+	// Slots that have old versions, in the order they were superseded
+	private ArrayDeque<long[]> garbage = null;
+	
+	
+	/**
+	 * Construct an empty set of versions
+	 */
+	Versions()
+	{
+		slots = new ConcurrentHashMap<Object, Long>();
+		chains = new ConcurrentSkipListMap<Long, Version<T>>();
+		garbage = new ArrayDeque<long[]>();
+	}
+	
+	
+	/**
+	 * Drops every version
+	 */
+	void clear()
+	{
+		slots.clear();
+		chains.clear();
+		garbage.clear();
+		nextSlot = 0;
+		live = 0;
+	}
+	
+	
+	/**
+	 * @param key The key of a document
+	 * @return true if the current version of the document is not removed
+	 */
+	boolean contains(Object key)
+	{
+		return get(key) != null;
+	}
+	
+	
+	/**
+	 * Adds a new version of a document
+	 * 
+	 * @param key The key of the document
+	 * @param value The new version
+	 * @param sequence The sequence number of the operation writing it
+	 * @return true if the document did not exist before
+	 */
+	boolean put(Object key, T value, long sequence)
+	{
+		Long slot = slots.get(key);
+		if( slot == null )
+		{
+			chains.put(nextSlot, new Version<T>(value, sequence, null));
+			slots.put(key, nextSlot++);
+			live++;
+			return true;
+		}
+		
+		Version<T> head = chains.get(slot);
+		chains.put(slot, new Version<T>(value, sequence, head));
+		garbage.add(new long[] { slot, sequence });
+		
+		if( head.value != null )
+			return false;
+		live++;
+		return true;
+	}
+	
+	
+	/**
+	 * Removes a document by adding a version without a value
+	 * 
+	 * @param key The key of the document
+	 * @param sequence The sequence number of the operation removing it
+	 * @return true if the document existed
+	 */
+	boolean remove(Object key, long sequence)
+	{
+		Long slot = slots.get(key);
+		Version<T> head = slot == null ? null : chains.get(slot);
+		if( head == null || head.value == null )
+			return false;
+		
+		chains.put(slot, new Removed<T>(key, sequence, head));
+		garbage.add(new long[] { slot, sequence });
+		live--;
+		return true;
+	}
+	
+	
+	/**
+	 * @param key The key of a document
+	 * @return The current version of the document, or null if there is none
+	 */
+	T get(Object key)
+	{
+		return get(key, Long.MAX_VALUE);
+	}
+	
+	
+	/**
+	 * @param key The key of a document
+	 * @param sequence The sequence number of the snapshot
+	 * @return The version of the document in the snapshot, or null if there is none
+	 */
+	T get(Object key, long sequence)
+	{
+		Long slot = slots.get(key);
+		return slot == null ? null : visible(chains.get(slot), sequence);
+	}
+	
+	
+	/**
+	 * @return The number of documents that are not removed
+	 */
+	int size()
+	{
+		return live;
+	}
+	
+	
+	/**
+	 * Iterates over the versions in a snapshot in slot order. The iterator
+	 * is read without a lock and never fails because of a concurrent change.
+	 * 
+	 * @param sequence The sequence number of the snapshot
+	 * @return The versions in the snapshot
+	 */
+	Iterator<T> iterator(final long sequence)
+	{
+		final Iterator<Version<T>> it = chains.values().iterator();
+		
+		return new Iterator<T>() {
+			private T next = null;
+			
+			@Override
+			public boolean hasNext() {
+				while( next == null && it.hasNext() )
+					next = visible(it.next(), sequence);
+				return next != null;
+			}
+			
+			@Override
+			public T next() {
+				if( !hasNext() )
+					throw new NoSuchElementException();
+				
+				T value = next;
+				next = null;
+				return value;
+			}
+		};
+	}
+	
+	
+	/**
+	 * Copies the versions in a snapshot into a list, in slot order
+	 * 
+	 * @param sequence The sequence number of the snapshot
+	 * @return The versions in the snapshot
+	 */
+	List<T> values(long sequence)
+	{
+		List<T> values = new ArrayList<T>(live);
+		Iterator<T> it = iterator(sequence);
+		
+		while( it.hasNext() )
+			values.add(it.next());
+		return values;
+	}
+	
+	
+	/**
+	 * Reclaims every version that no snapshot at or after {@code oldest} can
+	 * see, that is every version behind the newest one written up to {@code oldest}.
+	 * A slot whose document was removed up to {@code oldest} is dropped altogether.
+	 * 
+	 * @param oldest The sequence number of the oldest open snapshot
+	 */
+	void reclaim(long oldest)
+	{
+		while( !garbage.isEmpty() && garbage.peek()[1] <= oldest )
+		{
+			long slot = garbage.poll()[0];
+			Version<T> version = chains.get(slot);
+			
+			while( version != null && version.sequence > oldest )
+				version = version.older;
+			if( version == null )
+				continue;
+			
+			version.older = null;
+			if( version instanceof Removed && chains.get(slot) == version ) {
+				slots.remove(((Removed<T>) version).key, slot);
+				chains.remove(slot);
+			}
+		}
+	}
+	
+	
+	/**
+	 * @return The value of the newest version in the chain written up to the sequence number
+	 */
+	private static <T> T visible(Version<T> version, long sequence)
+	{
+		while( version != null && version.sequence > sequence )
+			version = version.older;
+		return version == null ? null : version.value;
+	}
+	
+	
+	/**
+	 * A version of a document, with the older versions behind it
+	 */
+	private static class Version<T>
+	{
+		final T value;
+		final long sequence;
+		volatile Version<T> older;
+		
+		Version(T value, long sequence, Version<T> older)
+		{
+			this.value = value;
+			this.sequence = sequence;
+			this.older = older;
+		}
+	}
+	
+	
+	/**
+	 * The version that removes a document, which keeps the key of the
+	 * document so the slot can be dropped once the version is reclaimed
+	 */
+	private static class Removed<T> extends Version<T>
+	{
+		final Object key;
+		
+		Removed(Object key, long sequence, Version<T> older)
+		{
+			super(null, sequence, older);
+			this.key = key;
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package com.pstickney.jddb.io;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Encoding and decoding frames
+ * 
+ * @author pstickne
+ */
+public class FrameTest
+{
+	@Test
+	public void roundTripsThroughAStream() throws IOException
+	{
+		String text = "db.collection.find({\"name\":\"Zo\u00eb \u2713\"})";
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		
+		Frame.request(42, text).writeTo(out);
+		Frame.reply(Long.MAX_VALUE, "").writeTo(out);
+		assertThat(out.size(), is(2 * Frame.HEADER + text.getBytes(Frame.UTF8).length));
+		
+		DataInputStream in = input(out.toByteArray());
+		Frame request = Frame.readFrom(in);
+		assertThat(request.getOpcode(), is(Frame.REQUEST));
+		assertThat(request.getId(), is(42L));
+		assertThat(request.isEnd(), is(false));
+		assertThat(request.getText(), is(text));
+		
+		Frame reply = Frame.readFrom(in);
+		assertThat(reply.getOpcode(), is(Frame.REPLY));
+		assertThat(reply.getId(), is(Long.MAX_VALUE));
+		assertThat(reply.isEnd(), is(true));
+		assertThat(reply.getLength(), is(0));
+	}
+	
+	
+	@Test
+	public void headerHoldsOpcodeFlagsIdAndLength()
+	{
+		ByteBuffer header = Frame.reply(0x0102030405060708L, "abc").header();
+		
+		assertThat(header.remaining(), is(Frame.HEADER));
+		assertThat(header.get(0), is(Frame.REPLY));
+		assertThat(header.get(1), is(Frame.END));
+		assertThat(header.getLong(2), is(0x0102030405060708L));
+		assertThat(header.getInt(10), is(3));
+	}
+	
+	
+	@Test
+	public void forwardKeepsThePayloadUnderANewHeader()
+	{
+		Frame frame = Frame.request(1, "payload");
+		Frame forwarded = frame.forward(99, Frame.END);
+		
+		assertThat(forwarded.getId(), is(99L));
+		assertThat(forwarded.getOpcode(), is(Frame.REQUEST));
+		assertThat(forwarded.isEnd(), is(true));
+		assertThat(forwarded.getText(), is("payload"));
+		
+		// Reading the payload of one does not use it up for the other
+		forwarded.payload().get(new byte[3]);
+		assertThat(frame.getText(), is("payload"));
+	}
+	
+	
+	@Test
+	public void refusesALengthOutOfRange() throws IOException
+	{
+		int lengths[] = { -1, Frame.MAX_LENGTH + 1 };
+		
+		for( int length : lengths ) {
+			ByteBuffer header = ByteBuffer.allocate(Frame.HEADER);
+			Frame.putHeader(header, Frame.REQUEST, (byte) 0, 1, length);
+			try {
+				Frame.readFrom(input(header.array()));
+				throw new AssertionError("Read a frame of " + length + " bytes");
+			} catch (EOFException e) {
+				throw new AssertionError("Tried to read a frame of " + length + " bytes");
+			} catch (IOException e) {
+				// Expected
+			}
+		}
+	}
+	
+	
+	@Test(expected = EOFException.class)
+	public void failsOnAFrameCutShort() throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Frame.request(1, "cut short").writeTo(out);
+		
+		byte bytes[] = out.toByteArray();
+		Frame.readFrom(input(Arrays.copyOf(bytes, bytes.length - 1)));
+	}
+	
+	
+	@Test
+	public void outputStreamWritesAWholeReply() throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		FrameOutputStream stream = FrameOutputStream.take();
+		StringBuilder text = new StringBuilder();
+		
+		// Large enough for the stream to grow a few times
+		for( int i = 0; i < 20000; i++ )
+			text.append(i).append(',');
+		stream.write(text.toString().getBytes(Frame.UTF8));
+		assertThat(stream.byteAt(stream.size() - 1), is((byte) ','));
+		stream.truncate(stream.size() - 1);
+		stream.writeReply(Channels.newChannel(out), 7);
+		stream.release();
+		
+		Frame reply = Frame.readFrom(input(out.toByteArray()));
+		assertThat(reply.getOpcode(), is(Frame.REPLY));
+		assertThat(reply.isEnd(), is(true));
+		assertThat(reply.getId(), is(7L));
+		assertThat(reply.getText(), is(text.substring(0, text.length() - 1)));
+	}
+	
+	
+	@Test
+	public void releasedOutputStreamStartsEmpty() throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		FrameOutputStream stream = FrameOutputStream.take();
+		
+		stream.write("old".getBytes(Frame.UTF8));
+		stream.release();
+		
+		stream = FrameOutputStream.take();
+		assertThat(stream.size(), is(0));
+		stream.write("new".getBytes(Frame.UTF8));
+		stream.writeReply(Channels.newChannel(out), 8);
+		stream.release();
+		
+		assertThat(Frame.readFrom(input(out.toByteArray())).getText(), is("new"));
+	}
+	
+	
+	/**
+	 * @return A stream reading the bytes
+	 */
+	private static DataInputStream input(byte bytes[])
+	{
+		return new DataInputStream(new ByteArrayInputStream(bytes));
+	}
+}
@@ -0,0 +1,168 @@
+package com.pstickney.jddb.nosql;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Reloading a collection kept in a memory-mapped file
+ * 
+ * @author pstickne
+ */
+public class MappedDocumentStoreTest
+{
+	private File dir = null;
+	private File file = null;
+	
+	
+	@Before
+	public void setUp() throws IOException
+	{
+		dir = Files.createTempDirectory("jddb-mapped").toFile();
+		file = new File(dir, "test.db");
+		file.createNewFile();
+	}
+	
+	
+	@After
+	public void tearDown()
+	{
+		for( File f : dir.listFiles() )
+			f.delete();
+		dir.delete();
+	}
+	
+	
+	@Test
+	public void reloadsFromTheLogAfterARestart() throws IOException
+	{
+		Collection c = open();
+		for( int i = 0; i < 100; i++ )
+			c.insert(new Document("{\"_id\":" + i + ",\"n\":" + i + "}"));
+		c.update(new Document("{\"_id\":5}"), new Document("{\"$set\":{\"n\":500}}"));
+		c.remove(new Document("{\"_id\":7}"));
+		c.close();
+		
+		c = open();
+		assertThat(c.find(new Document()).count(), is(99));
+		assertThat(((Number) c.find(new Document("{\"_id\":5}")).next().get("n")).longValue(), is(500L));
+		assertThat(c.find(new Document("{\"_id\":7}")).count(), is(0));
+		c.close();
+	}
+	
+	
+	@Test
+	public void reloadsFromTheSnapshotAndTheLog() throws IOException
+	{
+		Collection c = open();
+		for( int i = 0; i < 50; i++ )
+			c.insert(new Document("{\"_id\":" + i + "}"));
+		c.save();
+		for( int i = 50; i < 100; i++ )
+			c.insert(new Document("{\"_id\":" + i + "}"));
+		c.remove(new Document("{\"_id\":0}"));
+		c.close();
+		
+		// Restart twice, so the records written after the snapshot are written over once
+		c = open();
+		c.insert(new Document("{\"_id\":100}"));
+		c.close();
+		
+		c = open();
+		assertThat(c.find(new Document()).count(), is(100));
+		assertThat(c.find(new Document("{\"_id\":0}")).count(), is(0));
+		c.close();
+	}
+	
+	
+	@Test
+	public void ignoresOldRecordsLeftInASkippedSegment() throws IOException
+	{
+		int big = MappedDocumentStore.SEGMENT - 1000;
+		
+		// Fill the first segment without taking a snapshot, as if the process then stopped
+		MappedDocumentStore store = new MappedDocumentStore(file);
+		store.load();
+		store.add(document("old", big), 1);
+		store.close();
+		
+		// A small record goes where the old one began, the next one does not fit after it
+		store = new MappedDocumentStore(file);
+		assertThat(store.load(), is(0L));
+		store.add(document("small", 2000), 1);
+		store.add(document("large", big), 2);
+		store.snapshot(2).write();
+		store.close();
+		
+		store = new MappedDocumentStore(file);
+		assertThat(store.load(), is(2L));
+		
+		List<Object> ids = new ArrayList<Object>();
+		for( Document doc : store )
+			ids.add(doc.get("_id"));
+		assertThat(ids, is(Arrays.<Object>asList("small", "large")));
+		assertThat(((String) store.get("large").get("text")).length(), is(big));
+		store.close();
+	}
+	
+	
+	@Test
+	public void keepsAnIdLongerThanAShortAndRefusesOneTooLong() throws IOException
+	{
+		String id = document("", 40000).get("text").toString();
+		String tooLong = document("", MappedDocumentStore.MAX_ID).get("text").toString();
+		
+		MappedDocumentStore store = new MappedDocumentStore(file);
+		store.load();
+		assertThat(store.add(document(id, 10), 1), is(true));
+		try {
+			store.add(document(tooLong, 10), 2);
+			throw new AssertionError("An _id of " + tooLong.length() + " characters was added");
+		} catch (IllegalArgumentException e) {
+			// Expected, the _id is quoted as JSON
+		}
+		store.snapshot(1).write();
+		store.close();
+		
+		store = new MappedDocumentStore(file);
+		assertThat(store.load(), is(1L));
+		assertThat(store.get(id).get("text"), is((Object) "aaaaaaaaaa"));
+		store.close();
+	}
+	
+	
+	/**
+	 * @return The collection, loaded from its file and log
+	 */
+	private Collection open() throws IOException
+	{
+		Collection c = new Collection(dir.getPath(), file.getName(), Collection.MAPPED);
+		c.load();
+		return c;
+	}
+	
+	
+	/**
+	 * @return A document holding a text of the given length
+	 */
+	private static Document document(String id, int length)
+	{
+		char text[] = new char[length];
+		Arrays.fill(text, 'a');
+		
+		Document doc = new Document();
+		doc.put("_id", id);
+		doc.put("text", new String(text));
+		return doc;
+	}
+}
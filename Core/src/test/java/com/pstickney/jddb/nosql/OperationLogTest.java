@@ -0,0 +1,229 @@
+package com.pstickney.jddb.nosql;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Replaying the operation log of a collection after a crash
+ * 
+ * @author pstickne
+ */
+public class OperationLogTest
+{
+	private File dir = null;
+	private File file = null;
+	private File logFile = null;
+	
+	
+	@Before
+	public void setUp() throws IOException
+	{
+		dir = Files.createTempDirectory("jddb-log").toFile();
+		file = new File(dir, "test.json");
+		logFile = new File(dir, "test.json.log");
+		file.createNewFile();
+	}
+	
+	
+	@After
+	public void tearDown()
+	{
+		for( File f : dir.listFiles() )
+			f.delete();
+		dir.delete();
+	}
+	
+	
+	@Test
+	public void replaysEveryRecordAfterTheSnapshot() throws IOException
+	{
+		Collection c = open();
+		c.insert(new Document("{\"_id\":1,\"a\":1}"));
+		c.insert(new Document("{\"_id\":2,\"a\":2}"));
+		c.update(new Document("{\"_id\":1}"), new Document("{\"$inc\":{\"a\":10}}"));
+		c.remove(new Document("{\"_id\":2}"));
+		c.close();
+		
+		c = open();
+		assertThat(c.find(new Document()).count(), is(1));
+		assertThat(((Number) c.find(new Document("{\"_id\":1}")).next().get("a")).longValue(), is(11L));
+		c.close();
+	}
+	
+	
+	@Test
+	public void dropsARecordCutOffInTheMiddle() throws IOException
+	{
+		Collection c = open();
+		c.insert(new Document("{\"_id\":1}"));
+		c.insert(new Document("{\"_id\":2}"));
+		c.close();
+		
+		cut(5);
+		
+		c = open();
+		assertThat(c.find(new Document()).count(), is(1));
+		c.insert(new Document("{\"_id\":3}"));
+		c.close();
+		
+		c = open();
+		assertThat(c.find(new Document()).count(), is(2));
+		c.close();
+	}
+	
+	
+	@Test
+	public void dropsAWholeRecordThatLostItsNewline() throws IOException
+	{
+		Collection c = open();
+		c.insert(new Document("{\"_id\":1}"));
+		c.insert(new Document("{\"_id\":2}"));
+		c.close();
+		
+		// The JSON of the last record is complete, only the newline is missing
+		cut(1);
+		
+		c = open();
+		assertThat(c.find(new Document()).count(), is(1));
+		c.insert(new Document("{\"_id\":3}"));
+		c.insert(new Document("{\"_id\":4}"));
+		c.close();
+		
+		String log = new String(Files.readAllBytes(logFile.toPath()), StandardCharsets.UTF_8);
+		assertThat(log.split("\n").length, is(3));
+		
+		// Neither of the records acknowledged after the restart is lost
+		c = open();
+		assertThat(c.find(new Document()).count(), is(3));
+		assertThat(c.find(new Document("{\"_id\":4}")).count(), is(1));
+		c.close();
+	}
+	
+	
+	@Test
+	public void ignoresRecordsAlreadyInTheSnapshot() throws IOException
+	{
+		Collection c = open();
+		c.insert(new Document("{\"_id\":1}"));
+		c.save();
+		c.insert(new Document("{\"_id\":2}"));
+		c.close();
+		
+		// Append a copy of the first record, as if the log had not been cut back
+		FileOutputStream out = new FileOutputStream(logFile, true);
+		try {
+			out.write("{\"seq\":1,\"op\":\"remove\",\"_id\":1}\n".getBytes(StandardCharsets.UTF_8));
+		} finally {
+			out.close();
+		}
+		
+		c = open();
+		assertThat(c.find(new Document()).count(), is(2));
+		c.close();
+	}
+	
+	
+	@Test
+	public void acknowledgesEveryInsertWithoutGroupCommit() throws Exception
+	{
+		insertConcurrently(0);
+	}
+	
+	
+	@Test
+	public void groupCommitAcknowledgesEveryInsert() throws Exception
+	{
+		insertConcurrently(5);
+	}
+	
+	
+	/**
+	 * Inserts documents from several threads at once and checks that all of them are logged
+	 * 
+	 * @param window The group commit window, 0 for none
+	 */
+	private void insertConcurrently(long window) throws Exception
+	{
+		final Collection c = open();
+		c.setGroupCommit(window, 16);
+		
+		Thread threads[] = new Thread[8];
+		final boolean results[] = new boolean[threads.length * 50];
+		for( int t = 0; t < threads.length; t++ ) {
+			final int first = t * 50;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for( int i = first; i < first + 50; i++ )
+						results[i] = c.insert(new Document("{\"_id\":" + i + "}"));
+				}
+			};
+			threads[t].start();
+		}
+		for( Thread t : threads )
+			t.join();
+		c.close();
+		
+		for( boolean result : results )
+			assertThat(result, is(true));
+		
+		Collection reloaded = open();
+		assertThat(reloaded.find(new Document()).count(), is(results.length));
+		reloaded.close();
+	}
+	
+	
+	@Test
+	public void doesNotSaveOverAFileThatFailedToLoad() throws IOException
+	{
+		Files.write(file.toPath(), "[{\"_id\":1,".getBytes(StandardCharsets.UTF_8));
+		
+		Collection c = new Collection(dir.getPath(), file.getName());
+		try {
+			c.load();
+			throw new AssertionError("A corrupt collection file was loaded");
+		} catch (IOException e) {
+			// Expected
+		}
+		c.save();
+		c.close();
+		
+		assertThat(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8), is("[{\"_id\":1,"));
+	}
+	
+	
+	/**
+	 * @return The collection, loaded from its file and log
+	 */
+	private Collection open() throws IOException
+	{
+		Collection c = new Collection(dir.getPath(), file.getName());
+		c.load();
+		return c;
+	}
+	
+	
+	/**
+	 * Cuts bytes off of the end of the log, as a crash in the middle of a write would
+	 */
+	private void cut(int bytes) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(logFile, "rw");
+		try {
+			raf.setLength(raf.length() - bytes);
+		} finally {
+			raf.close();
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package com.pstickney.jddb.nosql;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Matching documents with the query operators, with and without indexes
+ * 
+ * @author pstickne
+ */
+public class QueryTest
+{
+	private Collection c = null;
+	
+	
+	@Before
+	public void setUp()
+	{
+		c = new Collection();
+		c.insert(new Document("{\"_id\":1,\"age\":15,\"name\":\"ann\",\"tags\":[\"a\",\"b\"],\"address\":{\"city\":\"Oslo\"}}"));
+		c.insert(new Document("{\"_id\":2,\"age\":30.0,\"name\":\"Bob\",\"tags\":[\"b\"]}"));
+		c.insert(new Document("{\"_id\":3,\"age\":45,\"name\":\"carl\",\"address\":{\"city\":\"Rome\"}}"));
+		c.insert(new Document("{\"_id\":4,\"age\":\"60\",\"name\":\"dora\"}"));
+		c.insert(new Document("{\"_id\":5,\"name\":\"bea\"}"));
+	}
+	
+	
+	@Test
+	public void matchesByEquality()
+	{
+		assertThat(ids("{\"name\":\"carl\"}"), is(list(3)));
+		assertThat(ids("{\"age\":30}"), is(list(2)));
+		assertThat(ids("{\"_id\":2.0}"), is(list(2)));
+		assertThat(ids("{\"address.city\":\"Oslo\"}"), is(list(1)));
+		assertThat(ids("{\"tags.0\":\"b\"}"), is(list(2)));
+		assertThat(ids("{\"age\":15,\"name\":\"bob\"}"), is(list()));
+	}
+	
+	
+	@Test
+	public void comparesNumbersAndStringsSeparately()
+	{
+		assertThat(ids("{\"age\":{\"$gt\":15}}"), is(list(2, 3)));
+		assertThat(ids("{\"age\":{\"$gte\":15,\"$lt\":45}}"), is(list(1, 2)));
+		assertThat(ids("{\"age\":{\"$lte\":30.0}}"), is(list(1, 2)));
+		assertThat(ids("{\"age\":{\"$gte\":\"5\"}}"), is(list(4)));
+		assertThat(ids("{\"name\":{\"$lt\":\"b\"}}"), is(list(1, 2)));
+	}
+	
+	
+	@Test
+	public void matchesMissingFieldsOnlyWithNegations()
+	{
+		assertThat(ids("{\"age\":{\"$ne\":15}}"), is(list(2, 3, 4, 5)));
+		assertThat(ids("{\"age\":{\"$nin\":[15,45]}}"), is(list(2, 4, 5)));
+		assertThat(ids("{\"age\":{\"$exists\":false}}"), is(list(5)));
+		assertThat(ids("{\"address\":{\"$exists\":true}}"), is(list(1, 3)));
+		assertThat(ids("{\"age\":{\"$in\":[45,\"60\",null]}}"), is(list(3, 4)));
+	}
+	
+	
+	@Test
+	public void matchesRegularExpressions()
+	{
+		assertThat(ids("{\"name\":{\"$regex\":\"^b\"}}"), is(list(5)));
+		assertThat(ids("{\"name\":{\"$regex\":\"^b\",\"$options\":\"i\"}}"), is(list(2, 5)));
+		assertThat(ids("{\"age\":{\"$regex\":\"6\"}}"), is(list(4)));
+	}
+	
+	
+	@Test
+	public void indexesFindTheSameDocumentsAsAScan()
+	{
+		String queries[] = {
+			"{\"age\":30}", "{\"age\":{\"$gt\":15}}", "{\"age\":{\"$gte\":15,\"$lt\":45}}",
+			"{\"age\":{\"$in\":[15,45.0]}}", "{\"age\":{\"$ne\":15}}", "{\"age\":{\"$exists\":false}}",
+			"{\"name\":{\"$lt\":\"b\"}}", "{\"name\":{\"$regex\":\"^b\"}}", "{\"_id\":{\"$in\":[2,4,9]}}"
+		};
+		List<List<Object>> scanned = new ArrayList<List<Object>>();
+		
+		for( String query : queries )
+			scanned.add(ids(query));
+		
+		c.createIndex(new Document("{\"age\":1}"));
+		c.createIndex(new Document("{\"name\":\"hashed\"}"));
+		for( int i = 0; i < queries.length; i++ )
+			assertThat(queries[i], ids(queries[i]), is(scanned.get(i)));
+	}
+	
+	
+	@Test
+	public void sortedIndexOrdersLongsAndDoublesExactly()
+	{
+		long big = 1L << 53;
+		
+		assertThat(SortedIndex.ORDER.compare(big + 1, (double) big), is(1));
+		assertThat(SortedIndex.ORDER.compare((double) big, big + 1), is(-1));
+		assertThat(SortedIndex.ORDER.compare(Long.MAX_VALUE, 0x1p63), is(-1));
+		assertThat(SortedIndex.ORDER.compare(-0.0, 0L), is(0));
+		assertThat(SortedIndex.ORDER.compare(2.5, 2L), is(1));
+		assertThat(SortedIndex.ORDER.compare(-2.5, -2L), is(-1));
+		assertThat(SortedIndex.ORDER.compare(Double.NaN, Long.MAX_VALUE), is(1));
+		
+		c.insert(new Document("{\"_id\":6,\"age\":9223372036854775807}"));
+		c.insert(new Document("{\"_id\":7,\"age\":9.223372036854775808E18}"));
+		c.insert(new Document("{\"_id\":8,\"age\":9223372036854775806}"));
+		List<Object> scanned = ids("{\"age\":{\"$gte\":9223372036854775806}}");
+		
+		c.createIndex(new Document("{\"age\":1}"));
+		assertThat(ids("{\"age\":{\"$gte\":9223372036854775806}}"), is(scanned));
+		assertThat(ids("{\"age\":{\"$gt\":9223372036854775807}}"), is(list(7)));
+	}
+	
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void refusesAnUnknownOperator()
+	{
+		Query.compile(new Document("{\"age\":{\"$near\":1}}"));
+	}
+	
+	
+	/**
+	 * @return The _id of every document the query finds, in order
+	 */
+	private List<Object> ids(String query)
+	{
+		List<Object> ids = new ArrayList<Object>();
+		
+		for( Document doc : c.find(new Document(query)).sort(new Document("{\"_id\":1}")).toArray() )
+			ids.add(((Number) doc.get("_id")).longValue());
+		return ids;
+	}
+	
+	
+	/**
+	 * @return The _ids as a list
+	 */
+	private static List<Object> list(long ...ids)
+	{
+		List<Object> list = new ArrayList<Object>();
+		
+		for( long id : ids )
+			list.add(id);
+		return list;
+	}
+}
@@ -0,0 +1,110 @@
+package com.pstickney.jddb.nosql;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Sorting documents in memory and merged from run files on disk
+ * 
+ * @author pstickne
+ */
+public class SorterTest
+{
+	private static final File FDS = new File("/proc/self/fd");
+	
+	
+	@Test
+	public void mergedRunsKeepEqualDocumentsInOrder() throws IOException
+	{
+		Sorter sorter = sorter(0, 95);
+		List<Object> previous = null;
+		int read = 0;
+		
+		for( Iterator<Document> it = sorter.sorted(); it.hasNext(); read++ ) {
+			Document doc = it.next();
+			List<Object> key = key(doc);
+			if( previous != null )
+				assertThat(((Long) key.get(0)) > (Long) previous.get(0) || key.get(0).equals(previous.get(0)) && (Long) key.get(1) > (Long) previous.get(1), is(true));
+			previous = key;
+		}
+		assertThat(read, is(95));
+	}
+	
+	
+	@Test
+	public void limitedMergeClosesTheRunsItDidNotRead() throws IOException
+	{
+		int open = openFiles();
+		
+		Sorter sorter = sorter(15, 100);
+		Iterator<Document> it = sorter.sorted();
+		for( int i = 0; i < 15; i++ )
+			it.next();
+		assertThat(FDS.list().length, is(greaterThan(open)));
+		
+		assertThat(it.hasNext(), is(false));
+		assertThat(FDS.list().length, is(open));
+	}
+	
+	
+	@Test
+	public void closingPartwayClosesTheRuns() throws IOException
+	{
+		int open = openFiles();
+		
+		Sorter sorter = sorter(0, 100);
+		Iterator<Document> it = sorter.sorted();
+		it.next();
+		sorter.close();
+		assertThat(FDS.list().length, is(open));
+	}
+	
+	
+	/**
+	 * @return The number of files open, after a whole sort has loaded what it needs
+	 */
+	private static int openFiles() throws IOException
+	{
+		Assume.assumeTrue(FDS.isDirectory());
+		
+		for( Iterator<Document> it = sorter(0, 100).sorted(); it.hasNext(); )
+			it.next();
+		return FDS.list().length;
+	}
+	
+	
+	/**
+	 * @return A sorter of 10 documents in memory with the count of documents added,
+	 * 			with n going around from 0 to 6 and i counting up
+	 */
+	private static Sorter sorter(long keep, int count) throws IOException
+	{
+		Sorter sorter = new Sorter(SortOrder.compile(new Document("{\"n\":1}").getJSONObject()), keep, 10);
+		
+		for( int i = 0; i < count; i++ )
+			sorter.add(new Document("{\"n\":" + (i % 7) + ",\"i\":" + i + "}"));
+		return sorter;
+	}
+	
+	
+	/**
+	 * @return The n and the i of a document
+	 */
+	private static List<Object> key(Document doc)
+	{
+		List<Object> key = new ArrayList<Object>();
+		
+		key.add(doc.get("n"));
+		key.add(doc.get("i"));
+		return key;
+	}
+}
@@ -0,0 +1,170 @@
+package com.pstickney.jddb.nosql;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Applying the update operators, on their own and through a collection
+ * 
+ * @author pstickne
+ */
+public class UpdateTest
+{
+	@Test
+	public void setsAndUnsetsFieldsAlongPaths()
+	{
+		Document doc = apply("{\"_id\":1,\"a\":1,\"b\":{\"c\":2}}", "{\"$set\":{\"a\":5,\"b.d\":3,\"e.f\":4},\"$unset\":{\"b.c\":1}}");
+		
+		assertThat(doc.getJSONObject(), is(new Document("{\"_id\":1,\"a\":5,\"b\":{\"d\":3},\"e\":{\"f\":4}}").getJSONObject()));
+	}
+	
+	
+	@Test
+	public void incrementsNumbersAndMissingFields()
+	{
+		Document doc = apply("{\"_id\":1,\"n\":1,\"d\":1.5}", "{\"$inc\":{\"n\":2,\"d\":1,\"m\":-3}}");
+		
+		assertThat(doc.get("n"), is((Object) 3L));
+		assertThat(doc.get("d"), is((Object) 2.5));
+		assertThat(doc.get("m"), is((Object) (-3L)));
+	}
+	
+	
+	@Test
+	public void pushesValuesAndEachValue()
+	{
+		Document doc = apply("{\"_id\":1,\"tags\":[\"a\"]}", "{\"$push\":{\"tags\":{\"$each\":[\"b\",\"c\"]},\"new\":1}}");
+		
+		assertThat(doc.get("tags"), is((Object) Arrays.asList("a", "b", "c")));
+		assertThat(doc.get("new"), is((Object) Arrays.asList(1L)));
+	}
+	
+	
+	@Test
+	public void leavesTheOldVersionAsItIs()
+	{
+		Document old = new Document("{\"_id\":1,\"tags\":[\"a\"],\"b\":{\"c\":1},\"other\":{\"x\":1}}");
+		Document doc = Update.compile(new Document("{\"$push\":{\"tags\":\"b\"},\"$set\":{\"b.c\":2}}")).apply(old);
+		
+		assertThat(old.get("tags"), is((Object) Arrays.asList("a")));
+		assertThat(((Map<?, ?>) old.get("b")).get("c"), is((Object) 1L));
+		assertThat(((Map<?, ?>) doc.get("b")).get("c"), is((Object) 2L));
+		
+		// Fields that are not updated are shared rather than copied
+		assertThat(doc.get("other"), is(sameInstance(old.get("other"))));
+	}
+	
+	
+	@Test
+	public void replacesTheWholeDocumentButKeepsItsId()
+	{
+		Document doc = apply("{\"_id\":1,\"a\":1}", "{\"b\":2}");
+		
+		assertThat(doc.get("_id"), is((Object) 1L));
+		assertThat(doc.get("a"), is(nullValue()));
+		assertThat(doc.get("b"), is((Object) 2L));
+	}
+	
+	
+	@Test
+	public void refusesMalformedUpdates()
+	{
+		String updates[] = {
+			"{\"$set\":{\"_id\":2}}", "{\"$inc\":{\"n\":\"1\"}}", "{\"$set\":{\"a\":1},\"b\":2}",
+			"{\"$set\":{\"a\":1},\"$unset\":{\"a.b\":1}}", "{\"$rename\":{\"a\":\"b\"}}"
+		};
+		
+		for( String update : updates ) {
+			try {
+				Update.compile(new Document(update));
+				throw new AssertionError(update + " was compiled");
+			} catch (IllegalArgumentException e) {
+				// Expected
+			}
+		}
+	}
+	
+	
+	@Test
+	public void failedUpdateLeavesTheCollectionUnchanged()
+	{
+		Collection c = new Collection();
+		c.insert(new Document("{\"_id\":1,\"n\":1}"));
+		c.insert(new Document("{\"_id\":2,\"n\":\"two\"}"));
+		
+		try {
+			c.update(new Document(), new Document("{\"$inc\":{\"n\":1}}"), options(true));
+			throw new AssertionError("$inc on a string was applied");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+		assertThat(c.find(new Document("{\"_id\":1}")).next().get("n"), is((Object) 1L));
+		
+		assertThat(c.update(new Document("{\"n\":{\"$exists\":true}}"), new Document("{\"$set\":{\"seen\":true}}"), options(true)), is(true));
+		assertThat(c.find(new Document("{\"seen\":true}")).count(), is(2));
+	}
+	
+	
+	@Test
+	public void updatesTheIndexesOfTheChangedFields()
+	{
+		Collection c = new Collection();
+		c.createIndex(new Document("{\"n\":1}"));
+		c.insert(new Document("{\"_id\":1,\"n\":1}"));
+		
+		c.update(new Document("{\"_id\":1}"), new Document("{\"$inc\":{\"n\":10}}"));
+		assertThat(c.find(new Document("{\"n\":1}")).count(), is(0));
+		assertThat(c.find(new Document("{\"n\":{\"$gt\":10}}")).count(), is(1));
+	}
+	
+	
+	@Test
+	public void upsertInsertsTheQueryWithTheUpdateApplied()
+	{
+		Collection c = new Collection();
+		Map<String, Boolean> upsert = options(false);
+		upsert.put("upsert", true);
+		
+		assertThat(c.update(new Document("{\"_id\":5,\"a.b\":1,\"n\":{\"$gt\":0}}"), new Document("{\"$inc\":{\"n\":2}}"), upsert), is(true));
+		assertThat(c.find(new Document("{\"_id\":5}")).next().getJSONObject(), is(new Document("{\"_id\":5,\"a\":{\"b\":1},\"n\":2}").getJSONObject()));
+		
+		// Once the document is there it is updated rather than inserted again
+		c.update(new Document("{\"_id\":5}"), new Document("{\"$inc\":{\"n\":2}}"), upsert);
+		assertThat(c.find(new Document()).count(), is(1));
+		assertThat(c.find(new Document("{\"_id\":5}")).next().get("n"), is((Object) 4L));
+		
+		// A replacement keeps the _id it is given, or gets a new one
+		c.update(new Document("{\"name\":\"x\"}"), new Document("{\"name\":\"y\"}"), upsert);
+		assertThat(c.find(new Document("{\"name\":\"y\"}")).next().get("_id"), is(notNullValue()));
+		assertThat(c.update(new Document("{\"name\":\"z\"}"), new Document("{\"name\":\"z\"}"), options(false)), is(true));
+		assertThat(c.find(new Document("{\"name\":\"z\"}")).count(), is(0));
+	}
+	
+	
+	/**
+	 * @return The document with the update applied
+	 */
+	private static Document apply(String doc, String update)
+	{
+		return Update.compile(new Document(update)).apply(new Document(doc));
+	}
+	
+	
+	/**
+	 * @return The options of an update that is not an upsert
+	 */
+	private static Map<String, Boolean> options(boolean multi)
+	{
+		Map<String, Boolean> options = new HashMap<String, Boolean>();
+		
+		options.put("upsert", false);
+		options.put("multi", multi);
+		return options;
+	}
+}
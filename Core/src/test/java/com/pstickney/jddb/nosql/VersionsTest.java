@@ -0,0 +1,153 @@
+package com.pstickney.jddb.nosql;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Snapshot reads of the versions of documents, and cursors that see the
+ * collection as it was when they started while it is being changed
+ * 
+ * @author pstickne
+ */
+public class VersionsTest
+{
+	@Test
+	public void snapshotSeesTheVersionsWrittenUpToIt()
+	{
+		Versions<String> versions = new Versions<String>();
+		versions.put("a", "a1", 1);
+		versions.put("b", "b1", 2);
+		versions.put("a", "a2", 3);
+		versions.remove("b", 4);
+		versions.put("c", "c1", 5);
+		
+		assertThat(versions.values(0), is(empty()));
+		assertThat(versions.values(2), is(Arrays.asList("a1", "b1")));
+		assertThat(versions.values(3), is(Arrays.asList("a2", "b1")));
+		assertThat(versions.values(4), is(Arrays.asList("a2")));
+		assertThat(versions.values(Long.MAX_VALUE), is(Arrays.asList("a2", "c1")));
+		assertThat(versions.get("b", 3), is("b1"));
+		assertThat(versions.get("b"), is(nullValue()));
+		assertThat(versions.size(), is(2));
+	}
+	
+	
+	@Test
+	public void reclaimKeepsWhatTheOldestSnapshotSees()
+	{
+		Versions<String> versions = new Versions<String>();
+		versions.put("a", "a1", 1);
+		versions.put("b", "b1", 2);
+		versions.put("a", "a2", 3);
+		versions.remove("b", 4);
+		
+		versions.reclaim(2);
+		assertThat(versions.values(2), is(Arrays.asList("a1", "b1")));
+		
+		versions.reclaim(4);
+		assertThat(versions.values(4), is(Arrays.asList("a2")));
+		assertThat(versions.contains("b"), is(false));
+		
+		// A removed document can come back under the same key
+		assertThat(versions.put("b", "b2", 5), is(true));
+		assertThat(versions.values(5), is(Arrays.asList("a2", "b2")));
+	}
+	
+	
+	@Test
+	public void cursorDoesNotSeeLaterChanges()
+	{
+		Collection c = collection(100);
+		Cursor cursor = c.find(new Document());
+		List<Object> seen = new ArrayList<Object>();
+		
+		// The view of the cursor opens as it reads its first document
+		seen.add(cursor.next().get("n"));
+		
+		c.update(new Document(), new Document("{\"$set\":{\"n\":-1}}"), multi());
+		c.remove(new Document("{\"_id\":{\"$gte\":50}}"));
+		c.insert(new Document("{\"_id\":1000,\"n\":1000}"));
+		
+		while( cursor.hasNext() )
+			seen.add(cursor.next().get("n"));
+		
+		assertThat(seen.size(), is(100));
+		assertThat(seen, not(hasItem((Object) (-1L))));
+		assertThat(seen, not(hasItem((Object) 1000L)));
+		
+		// A cursor started now sees all of the changes
+		assertThat(c.find(new Document()).count(), is(51));
+		assertThat(c.find(new Document("{\"n\":-1}")).count(), is(50));
+	}
+	
+	
+	@Test
+	public void cursorOverAnIndexDoesNotSeeLaterChanges()
+	{
+		Collection c = collection(100);
+		c.createIndex(new Document("{\"n\":1}"));
+		
+		Cursor cursor = c.find(new Document("{\"n\":{\"$lt\":10}}"));
+		assertThat(cursor.hasNext(), is(true));
+		
+		c.update(new Document("{\"n\":{\"$lt\":10}}"), new Document("{\"$inc\":{\"n\":100}}"), multi());
+		c.remove(new Document("{\"_id\":5}"));
+		
+		assertThat(cursor.toArray().size(), is(10));
+		assertThat(c.find(new Document("{\"n\":{\"$lt\":10}}")).count(), is(0));
+	}
+	
+	
+	@Test
+	public void oldVersionsAreReclaimedOnceTheCursorCloses()
+	{
+		Collection c = collection(10);
+		Cursor cursor = c.find(new Document());
+		cursor.next();
+		
+		// Every insert is one operation, so the view of the cursor is at 10
+		c.update(new Document(), new Document("{\"$set\":{\"n\":-1}}"), multi());
+		assertThat(c.store.get(0L, 10).get("n"), is((Object) 0L));
+		assertThat(cursor.toArray().size(), is(9));
+		
+		// The next write reclaims the versions only the cursor could see
+		c.insert(new Document("{\"_id\":10}"));
+		for( int i = 0; i < 10; i++ )
+			assertThat(c.store.get((long) i, 10), is(nullValue()));
+		assertThat(c.store.get(0L, Long.MAX_VALUE).get("n"), is((Object) (-1L)));
+	}
+	
+	
+	/**
+	 * @return A collection of documents with _id and n from 0 up to the count
+	 */
+	private static Collection collection(int count)
+	{
+		Collection c = new Collection();
+		
+		for( int i = 0; i < count; i++ )
+			c.insert(new Document("{\"_id\":" + i + ",\"n\":" + i + "}"));
+		return c;
+	}
+	
+	
+	/**
+	 * @return The options of an update of every matching document
+	 */
+	private static Map<String, Boolean> multi()
+	{
+		Map<String, Boolean> options = new HashMap<String, Boolean>();
+		
+		options.put("upsert", false);
+		options.put("multi", true);
+		return options;
+	}
+}
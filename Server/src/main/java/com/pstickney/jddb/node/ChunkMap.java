@@ -0,0 +1,283 @@
+package com.pstickney.jddb.node;
+
+import com.pstickney.jddb.nosql.KeyRange;
+import com.pstickney.jddb.nosql.MemoryDocumentStore;
+import com.pstickney.jddb.nosql.OperationLog;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The chunks of a range sharded collection: which range of the shard key
+ * lives on which shard.<br><br>
+ * 
+ * The chunks cover every value of the shard key without overlapping, in
+ * the order of {@link KeyRange#ORDER}, so a value is found in a single
+ * chunk and a range of values in the few chunks next to each other that
+ * overlap it. There is one chunk on the first shard to begin with, chunks
+ * are then split in two as they grow and moved to other shards to balance
+ * them, see {@link ServerNode}.<br><br>
+ * 
+ * Shards are named rather than referred to by connection, and the map is
+ * saved to a file every time it changes, so the documents can still be
+ * found after the server or a shard is restarted.
+ * 
+ * @author pstickne
+ */
+public class ChunkMap
+{
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private String key = null;
+	private File file = null;
+	
+	// The chunks by their lower bound
+	private NavigableMap<Object, Chunk> chunks = null;
+	
+	
+	/**
+	 * Creates the chunk map of a shard key, loaded from its file if there is one
+	 * 
+	 * @param key The name of the shard key
+	 * @param file The file the map is kept in
+	 */
+	public ChunkMap(String key, File file)
+	{
+		this.key = key;
+		this.file = file;
+		this.chunks = new TreeMap<Object, Chunk>(KeyRange.ORDER);
+		
+		if( file.exists() )
+			load();
+	}
+	
+	
+	/**
+	 * Gives the whole range of the shard key to a shard, if no shard has any of it yet
+	 * 
+	 * @param shard The name of the shard
+	 */
+	public synchronized void create(String shard)
+	{
+		if( !chunks.isEmpty() )
+			return;
+		
+		chunks.put(KeyRange.MIN, new Chunk(new KeyRange(key, KeyRange.MIN, KeyRange.MAX), shard));
+		save();
+	}
+	
+	
+	/**
+	 * Finds the chunk holding a value of the shard key
+	 * 
+	 * @param value The value, null for a document that does not have the shard key
+	 * @return The chunk, or null if there are no chunks yet
+	 */
+	public synchronized Chunk get(Object value)
+	{
+		Map.Entry<Object, Chunk> chunk = chunks.floorEntry(value);
+		
+		return chunk == null ? null : chunk.getValue();
+	}
+	
+	
+	/**
+	 * Finds the chunks holding any value from one value up to another
+	 * 
+	 * @param low The lowest value
+	 * @param high The highest value
+	 * @return The chunks, in order
+	 */
+	public synchronized List<Chunk> get(Object low, Object high)
+	{
+		Object first = chunks.floorKey(low);
+		
+		if( first == null || KeyRange.ORDER.compare(low, high) > 0 )
+			return new ArrayList<Chunk>();
+		return new ArrayList<Chunk>(chunks.subMap(first, true, high, true).values());
+	}
+	
+	
+	/**
+	 * @return All of the chunks, in order
+	 */
+	public synchronized List<Chunk> getChunks()
+	{
+		return new ArrayList<Chunk>(chunks.values());
+	}
+	
+	
+	/**
+	 * Splits a chunk in two at a value of the shard key. Both halves stay on the
+	 * shard of the chunk and are each counted as holding half of its documents.
+	 * 
+	 * @param chunk The chunk
+	 * @param at The lowest value of the upper half
+	 * @return false if the chunk is gone or the value does not lie inside of it
+	 */
+	public synchronized boolean split(Chunk chunk, Object at)
+	{
+		KeyRange range = chunk.getRange();
+		
+		if( chunks.get(range.getMin()) != chunk || !range.contains(at) || KeyRange.ORDER.compare(at, range.getMin()) == 0 )
+			return false;
+		
+		Chunk lower = new Chunk(new KeyRange(key, range.getMin(), at), chunk.getShard());
+		Chunk upper = new Chunk(new KeyRange(key, at, range.getMax()), chunk.getShard());
+		lower.documents.set(chunk.documents.get() / 2);
+		upper.documents.set(chunk.documents.get() / 2);
+		
+		chunks.put(range.getMin(), lower);
+		chunks.put(at, upper);
+		save();
+		return true;
+	}
+	
+	
+	/**
+	 * Gives a chunk to another shard, once its documents have been copied there
+	 * 
+	 * @param chunk The chunk
+	 * @param shard The name of the shard
+	 */
+	public synchronized void move(Chunk chunk, String shard)
+	{
+		chunk.shard = shard;
+		save();
+	}
+	
+	
+	/**
+	 * Writes the map to a new file, forced to disk, and then puts it in the
+	 * place of the old one, so a crash never leaves half of a map behind or
+	 * an old map after a chunk has moved
+	 */
+	@SuppressWarnings("unchecked")
+	private void save()
+	{
+		JSONObject json = new JSONObject();
+		JSONArray array = new JSONArray();
+		File temp = new File(file.getPath() + ".tmp");
+		
+		for( Chunk chunk : chunks.values() ) {
+			JSONObject obj = chunk.getRange().toJSON();
+			obj.remove("key");
+			obj.put("shard", chunk.getShard());
+			array.add(obj);
+		}
+		json.put("key", key);
+		json.put("chunks", array);
+		
+		try {
+			FileOutputStream out = new FileOutputStream(temp);
+			try {
+				Writer writer = new OutputStreamWriter(out, UTF8);
+				json.writeJSONString(writer);
+				writer.flush();
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+			
+			// Swap the new map in and make the rename itself durable
+			OperationLog.move(temp, file);
+			MemoryDocumentStore.syncDirectory(file.getAbsoluteFile().getParentFile());
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	
+	/**
+	 * Reads the map from its file
+	 */
+	private void load()
+	{
+		Object json = null;
+		
+		try {
+			Reader in = new InputStreamReader(new FileInputStream(file), UTF8);
+			try {
+				json = JSONValue.parse(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		
+		if( !(json instanceof JSONObject) || !(((JSONObject) json).get("chunks") instanceof JSONArray) ) {
+			System.err.println("Ignoring the chunk map in " + file + ", it cannot be read");
+			return;
+		}
+		if( !key.equals(((JSONObject) json).get("key")) ) {
+			System.err.println("Ignoring the chunk map in " + file + ", it is for the shard key " + ((JSONObject) json).get("key"));
+			return;
+		}
+		
+		for( Object obj : (JSONArray) ((JSONObject) json).get("chunks") ) {
+			JSONObject chunk = (JSONObject) obj;
+			KeyRange range = new KeyRange(key, KeyRange.fromJSON(chunk.get("min")), KeyRange.fromJSON(chunk.get("max")));
+			chunks.put(range.getMin(), new Chunk(range, (String) chunk.get("shard")));
+		}
+	}
+	
+	
+	/**
+	 * A range of the shard key and the shard it lives on, with counts
+	 * of how much it has grown and how busy it has been
+	 */
+	public static class Chunk
+	{
+		private KeyRange range = null;
+		private volatile String shard = null;
+		
+		// Documents inserted since the chunk was made, and requests since they were last reset
+		AtomicLong documents = new AtomicLong();
+		AtomicLong operations = new AtomicLong();
+		
+		Chunk(KeyRange range, String shard)
+		{
+			this.range = range;
+			this.shard = shard;
+		}
+		
+		/**
+		 * @return The range of the shard key the chunk holds
+		 */
+		public KeyRange getRange()
+		{
+			return range;
+		}
+		
+		/**
+		 * @return The name of the shard the chunk lives on
+		 */
+		public String getShard()
+		{
+			return shard;
+		}
+		
+		@Override
+		public String toString()
+		{
+			return range + " on " + shard;
+		}
+	}
+}
@@ -0,0 +1,271 @@
+package com.pstickney.jddb.node;
+
+import com.pstickney.jddb.nosql.MemoryDocumentStore;
+import com.pstickney.jddb.nosql.OperationLog;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * A consistent hash ring that places the values of a shard key on shards.<br><br>
+ * 
+ * Every shard is put on the ring at a number of points hashed from its name
+ * and a key belongs to the first shard at or after the hash of the key,
+ * going around the ring. When a shard joins, only the keys next to its
+ * points move to it, about one in every number of shards, while the rest
+ * stay where they are. The many points of every shard spread the keys evenly.<br><br>
+ * 
+ * Shards are placed by name rather than by connection, and the names are
+ * saved to a file every time one joins, so a shard owns the same keys after
+ * it reconnects or the server restarts. A shard never leaves the ring. While
+ * it is disconnected its keys cannot be reached, rather than being handed to
+ * another shard that does not have their documents.<br><br>
+ * 
+ * The documents of the keys a shard takes over still live on the shards
+ * they were placed on before, until they are moved, see {@link ServerNode}.
+ * Until then the ring is not settled, which is saved with it, so documents
+ * still waiting to be moved are not forgotten when the server restarts.<br><br>
+ * 
+ * Lookups never wait. A shard joining builds a new ring and swaps it in,
+ * which happens rarely compared to the lookups.
+ * 
+ * @author pstickne
+ */
+public class HashRing
+{
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private int points = 0;
+	private File file = null;
+	
+	private volatile NavigableMap<Long, String> ring = null;
+	private volatile boolean settled = true;
+	private List<String> names = null;
+	
+	
+	/**
+	 * Creates the ring, loaded from its file if there is one
+	 * 
+	 * @param points The number of points every shard is put on the ring at
+	 * @param file The file the ring is kept in
+	 */
+	public HashRing(int points, File file)
+	{
+		this.points = Math.max(1, points);
+		this.file = file;
+		this.ring = new TreeMap<Long, String>();
+		this.names = new ArrayList<String>();
+		
+		if( file.exists() )
+			load();
+	}
+	
+	
+	/**
+	 * Puts a shard on the ring. Unless it is the first one, the ring is not
+	 * settled until the documents of the keys it takes over have been moved.
+	 * 
+	 * @param name The name of the shard, which decides where it is placed
+	 * @return false if the shard is already on the ring
+	 */
+	public synchronized boolean add(String name)
+	{
+		if( names.contains(name) )
+			return false;
+		
+		NavigableMap<Long, String> next = new TreeMap<Long, String>(ring);
+		for( int i = 0; i < points; i++ )
+			next.put(hash(name + "#" + i), name);
+		
+		names.add(name);
+		ring = next;
+		if( names.size() > 1 )
+			settled = false;
+		save();
+		return true;
+	}
+	
+	
+	/**
+	 * Finds the shard that owns a value of the shard key
+	 * 
+	 * @param key The value of the shard key, null for a document that does not have one
+	 * @return The name of the shard, or null if the ring is empty
+	 */
+	public String get(Object key)
+	{
+		NavigableMap<Long, String> ring = this.ring;
+		
+		if( ring.isEmpty() )
+			return null;
+		
+		Map.Entry<Long, String> point = ring.ceilingEntry(hash(canonical(key)));
+		if( point == null )
+			point = ring.firstEntry();
+		return point.getValue();
+	}
+	
+	
+	/**
+	 * @return The names of the shards on the ring, in the order they joined
+	 */
+	public synchronized List<String> getNames()
+	{
+		return new ArrayList<String>(names);
+	}
+	
+	
+	/**
+	 * @return true if every document lives on the shard that owns its key
+	 */
+	public boolean isSettled()
+	{
+		return settled;
+	}
+	
+	
+	/**
+	 * Marks the ring as settled once the documents have been moved, unless
+	 * another shard joined while they were
+	 * 
+	 * @param size The number of shards on the ring when the documents started to move
+	 * @return true if the ring is settled
+	 */
+	public synchronized boolean settle(int size)
+	{
+		if( !settled && names.size() == size ) {
+			settled = true;
+			save();
+		}
+		return settled;
+	}
+	
+	
+	/**
+	 * Writes the ring to a new file, forced to disk, and then puts it in the
+	 * place of the old one, so a crash never leaves half of a ring behind
+	 */
+	@SuppressWarnings("unchecked")
+	private void save()
+	{
+		JSONObject json = new JSONObject();
+		JSONArray array = new JSONArray();
+		File temp = new File(file.getPath() + ".tmp");
+		
+		array.addAll(names);
+		json.put("points", (long) points);
+		json.put("shards", array);
+		json.put("settled", settled);
+		
+		try {
+			FileOutputStream out = new FileOutputStream(temp);
+			try {
+				Writer writer = new OutputStreamWriter(out, UTF8);
+				json.writeJSONString(writer);
+				writer.flush();
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+			
+			// Swap the new ring in and make the rename itself durable
+			OperationLog.move(temp, file);
+			MemoryDocumentStore.syncDirectory(file.getAbsoluteFile().getParentFile());
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	
+	/**
+	 * Reads the ring from its file. The number of points it was saved with
+	 * wins over the one asked for, since changing it would move the keys.
+	 */
+	private void load()
+	{
+		Object json = null;
+		
+		try {
+			Reader in = new InputStreamReader(new FileInputStream(file), UTF8);
+			try {
+				json = JSONValue.parse(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		
+		if( !(json instanceof JSONObject) || !(((JSONObject) json).get("shards") instanceof JSONArray) ) {
+			System.err.println("Ignoring the hash ring in " + file + ", it cannot be read");
+			return;
+		}
+		
+		JSONObject saved = (JSONObject) json;
+		if( saved.get("points") instanceof Number && ((Number) saved.get("points")).intValue() != points ) {
+			System.err.println("The hash ring in " + file + " has " + saved.get("points") + " points for every shard, keeping them");
+			points = Math.max(1, ((Number) saved.get("points")).intValue());
+		}
+		
+		for( Object name : (JSONArray) saved.get("shards") ) {
+			for( int i = 0; i < points; i++ )
+				ring.put(hash(name + "#" + i), (String) name);
+			names.add((String) name);
+		}
+		settled = !Boolean.FALSE.equals(saved.get("settled"));
+	}
+	
+	
+	/**
+	 * The text of a key that is hashed. Numbers that are equal by value, like
+	 * 5 and 5.0, have to land on the same shard because a query for one
+	 * matches the other, and strings are quoted so "5" does not.
+	 * 
+	 * @param key The value of the shard key
+	 * @return The text to hash
+	 */
+	private static String canonical(Object key)
+	{
+		if( key instanceof Double || key instanceof Float ) {
+			double d = ((Number) key).doubleValue();
+			if( d == Math.rint(d) && !Double.isInfinite(d) && Math.abs(d) < 0x1p63 )
+				return String.valueOf((long) d);
+		}
+		return JSONValue.toJSONString(key);
+	}
+	
+	
+	/**
+	 * @return The first 8 bytes of the MD5 digest of the text
+	 */
+	private static long hash(String text)
+	{
+		try {
+			byte digest[] = MessageDigest.getInstance("MD5").digest(text.getBytes(UTF8));
+			long hash = 0;
+			for( int i = 0; i < 8; i++ )
+				hash = (hash << 8) | (digest[i] & 0xFF);
+			return hash;
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform has MD5
+			throw new IllegalStateException(e);
+		}
+	}
+}
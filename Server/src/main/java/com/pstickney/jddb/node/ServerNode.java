@@ -1,409 +1,1608 @@
-package com.pstickney.jddb.node;
-
-import com.pstickney.jddb.io.ProcessSocketInput;
-
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.PrintWriter;
-import java.net.BindException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Properties;
-
-public class ServerNode extends Node
-{
-	private List<ClientThread> clients = null;
-	private List<ShardThread> shards = null;
-	
-	/**
-	 * Creates a server node that handles the input and output 
-	 * transactions between clients and shard nodes.<br><br>
-	 * 
-	 * The server node is required as a single point-of-contact 
-	 * for clients to connect to when trying to establish 
-	 * communication to the shards.
-	 * 
-	 * @param prop The configuration settings for the server
-	 */
-	public ServerNode(Properties prop)
-	{
-		super(prop);
-		
-		PORT = Integer.parseInt(properties.getProperty("port"));
-	}
-	
-	/**
-	 * Calling this method on a {@link #ServerNode(Properties)} will
-	 * start up the server socket and listen for incoming connections.
-	 * 
-	 * 
-	 */
-	@Override
-	public void start()
-	{
-		super.start();
-		
-		clients = new ArrayList<ClientThread>();
-		shards = new ArrayList<ShardThread>();
-		
-		System.out.println("\nServerNode is starting up...");
-		
-		/*
-		 * Creates a server socket and binds to the specified port.
-		 * We will maintain a backlog queue of 500 to process the requests.
-		 * If the port is already in use, tell the user and exit the program 
-		 */
-		try {
-			ssock = new ServerSocket(PORT, 500);
-		} catch (BindException e) {
-			System.err.println("\nPort is already in use, please choose another.");
-			System.exit(1);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		/*
-		 * Register a new virtual machine shutdown hook.
-		 * The JVM will run this code in response to two kinds of events:
-		 * 
-		 * 		1) 	The program exits normally, when the last non-daemon thread exists
-		 * 			or when the exit method is invoked
-		 * 		2)	The JVM is terminated in response to a user interrupt, such as 
-		 * 			typing ^C or such as when the user logs off or system shuts down.
-		 */
-		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
-			@Override public void run() {
-				stop();
-			}
-		}));
-
-		
-		System.out.println("ServerNode is listening for shard servers on port " + PORT);
-		while( true )
-		{
-			try {
-				new DeciderThread(ssock.accept()).start();
-			} catch (IOException e) {
-				// Do nothing
-			}
-		}
-	}
-	
-	
-	/**
-	 * This stop is special in the case that is contains multiple 
-	 * client and shard threads that all need to be closed once this
-	 * application is stopped.
-	 */
-	@Override
-	public void stop()
-	{
-		super.stop();
-		System.out.println("\nServerNode is shutting down...");
-		
-		/*
-		 * Loop over all the clients in the client list
-		 * and call the close function on each of those threads
-		 */
-		System.out.println("Closing all ClientNode connections");
-		ClientThread ct = null;
-		while( !clients.isEmpty() )
-		{
-			ct = clients.get(0);
-			ct.close();
-		}
-		
-		/*
-		 * Loop over all the shards in the shard list
-		 * and call the close function on each of those threads
-		 */
-		System.out.println("Closing all ShardNode connections");
-		ShardThread st = null;
-		while( !shards.isEmpty() )
-		{
-			st = shards.get(0);
-			st.close();
-		}
-		
-		// Finally, close this application's server socket
-		try {
-			if( ssock != null )
-				ssock.close();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-	}
-
-	/**
-	 * Main application method. This is called when the user starts up
-	 * the jddb-server.jar. The args input should be the properties file
-	 * to tell the program which port to run on.
-	 * 
-	 * @param args The set of arguments supplied to the program.
-	 */
-	public static void main(String ...args)
-	{
-		if( args.length < 1 ) {
-			System.out.println("USAGE: ./jddb-server config.properties\n");
-			return;
-		}
-		
-		InputStream in = null;
-		Properties prop = new Properties();
-		
-		try {
-			in = new FileInputStream(args[0]);
-			prop.load(in);
-		} catch (IOException e) {
-			e.printStackTrace();
-		} finally {
-			if( in != null ) {
-				try {
-					in.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
-		}
-
-		new ServerNode(prop).start();
-	}
-
-	
-	/**
-	 * This thread will handle the server socket accept method. 
-	 * It takes the result socket and sends a request to the 
-	 * new connection asking it to IDENTIFY itself.<br><br>
-	 * 
-	 * Once the connection returns a response with either
-	 * SHARD or CLIENT, the decider can then spawn a new
-	 * thread that matches the new connection's affiliation.
-	 * Finally, the decider thread will terminate itself.
-	 */
-	class DeciderThread extends Thread
-	{
-		private Socket socket = null;
-		private PrintWriter out = null;
-		
-		public DeciderThread(Socket sock)
-		{
-			socket = sock;
-			try {
-				out = new PrintWriter(socket.getOutputStream(), true);
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		}
-		
-		public void close()
-		{
-			// Close the socket connection if it is not null
-			try {
-				if( socket != null )
-					socket.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		}
-		
-		@Override
-		public void run() 
-		{
-			super.run();
-			
-			System.out.println("\nNew connection from " + socket.getInetAddress().getHostAddress() + ":" + socket.getPort());
-			
-			/*
-			 * Creates a process socket input listener.
-			 * 
-			 * This sole purpose is to listen for the next incoming
-			 * message from the socket with the affiliation of the 
-			 * new connection. It will then spawn a new affiliated thread
-			 * and then terminate itself.
-			 */
-			ProcessSocketInput psi = new ProcessSocketInput(socket) {
-				@Override
-				@SuppressWarnings("deprecation")
-				public void onStreamInput(String input, boolean isError) {
-					if( input == null )
-						return;
-					
-					System.out.println(input);
-					
-					/*
-					 * Here we check if the return value from the 
-					 * call to IDENTIFY is equal to "CLIENT" or "SHARD"
-					 * and create corresponding threads for both.
-					 */
-					if( input.equalsIgnoreCase("client") ) {
-						new ClientThread(socket).start();
-						Thread.currentThread().stop();
-					} else if( input.equalsIgnoreCase("shard") ) {
-						new ShardThread(socket).start();
-						Thread.currentThread().stop();
-					}
-				}
-			};
-			psi.start();
-			
-			/*
-			 * Send out the request to the new connection to determine
-			 * what exactly it is.
-			 */
-			System.out.printf("Asking affiliation...");
-			out.println("IDENTIFY");
-			out.flush();
-		}
-	}
-	
-	
-	/**
-	 * This thread will handle all client connections that connect to the server. 
-	 */
-	class ClientThread extends Thread 
-	{
-		private Socket socket = null;
-		private PrintWriter out = null;
-		
-		public ClientThread(Socket sock)
-		{
-			socket = sock;
-			try {
-				out = new PrintWriter(socket.getOutputStream(), true);
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		}
-		
-		public void send(String str)
-		{
-			out.println(str);
-			out.flush();
-		}
-		
-		public void close()
-		{
-			try {
-				if( socket != null )
-					socket.close();
-				
-				clients.remove(this);
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		}
-		
-		@Override
-		public void run()
-		{
-			super.run();
-			
-			System.out.println("Adding new client thread to client list.");
-			clients.add(this);
-			
-			/*
-			 * Creates a process socket input listener
-			 * 
-			 * Here we want to listen for any requests coming form the clients.
-			 * In general, we want to Map the message out to all the shard nodes.
-			 */
-			ProcessSocketInput psi = new ProcessSocketInput(socket) {
-				@Override
-				public void onStreamInput(String input, boolean isError) {
-					if( input == null )
-						return;
-					
-					System.out.println("Client " + socket.getInetAddress().getHostAddress() + ":" + socket.getPort() + ": " + input);
-					
-					if( isError )
-						out.println("Warning: " + input);
-					else {
-						if( input.startsWith("db.") )
-						{
-							for( ShardThread st : shards )
-								st.send(input);
-						}
-					}
-					out.flush();
-				}
-			};
-			psi.start();
-		}
-	}
-	
-	
-	/**
-	 * This thread will handle all shard connections that connect to the server.
-	 */
-	class ShardThread extends Thread
-	{
-		private Socket socket = null;
-		private PrintWriter out = null;
-		
-		public ShardThread(Socket sock)
-		{
-			socket = sock;
-			try {
-				out = new PrintWriter(socket.getOutputStream(), true);
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		}
-		
-		public void send(String cmd)
-		{
-			out.println(cmd);
-			out.flush();
-		}
-		
-		public void close()
-		{
-			try {
-				if( socket != null )
-					socket.close();
-				
-				shards.remove(this);
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		}
-		
-		@Override
-		public void run() 
-		{
-			super.run();
-			
-			System.out.println("Adding new shard thread to shard list.");
-			shards.add(this);
-			
-			/*
-			 * Creates a process socket input listener.
-			 * 
-			 * Here we listen for responses coming form the shard. 
-			 * In general, this will be results from user commands
-			 * that have been previously sent to the shards
-			 */
-			ProcessSocketInput psi = new ProcessSocketInput(socket) {
-				@Override
-				public void onStreamInput(String input, boolean isError) {
-					if( input == null )
-						return;
-					
-					System.out.println(input);
-					
-					if( isError )
-						out.println("Warning: " + input);
-					else {
-						for( ClientThread ct : clients )
-							ct.send(input);
-					}
-					out.flush();
-				}
-			};
-			psi.start();
-		}
-	}
-}
+package com.pstickney.jddb.node;
+
+import com.pstickney.jddb.io.ChannelConnection;
+import com.pstickney.jddb.io.EventLoop;
+import com.pstickney.jddb.io.Frame;
+import com.pstickney.jddb.io.Threads;
+import com.pstickney.jddb.node.ChunkMap.Chunk;
+import com.pstickney.jddb.nosql.Collection;
+import com.pstickney.jddb.nosql.Document;
+import com.pstickney.jddb.nosql.KeyRange;
+import com.pstickney.jddb.nosql.Pipeline;
+import com.pstickney.jddb.nosql.Query;
+import com.pstickney.jddb.nosql.SortedIndex;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class ServerNode extends Node
+{
+	// How long the server waits for a shard to answer a request of its own
+	private static final long CALL_TIMEOUT = 60000;
+	
+	// How many documents are moved at a time when a shard joins the hash
+	// ring, and how long to wait before trying again when a move failed
+	private static final int REHASH_BATCH = 1000;
+	private static final long REHASH_RETRY = 10000;
+	
+	private List<ClientConnection> clients = null;
+	private List<ShardConnection> shards = null;
+	
+	private ServerSocketChannel channel = null;
+	private EventLoop loops[] = null;
+	private ExecutorService workers = null;
+	
+	// Requests waiting for the replies of the shards, by the id they were sent to the shards with
+	private Map<Long, Request> requests = null;
+	private AtomicLong nextRequest = null;
+	
+	// The documents are placed on the shards by the hash of their shard key,
+	// or with range sharding by the chunk their shard key lies in
+	private String shardKey = null;
+	private HashRing ring = null;
+	private ChunkMap chunks = null;
+	private Map<String, ShardConnection> named = null;
+	
+	// Set when a shard connects to the hash ring, under its lock, so the
+	// documents waiting for it are moved
+	private boolean connected = false;
+	
+	// Chunks are split once this many documents were inserted, or once
+	// they were asked for this many times between two balancing rounds
+	private long chunkSize = 0;
+	private long chunkOperations = 0;
+	private long balanceInterval = 0;
+	
+	// The chunk being moved, while requests to its shards are held back
+	private volatile Migration migration = null;
+	private ReadWriteLock cutover = null;
+	
+	/**
+	 * Creates a server node that handles the input and output 
+	 * transactions between clients and shard nodes.<br><br>
+	 * 
+	 * The server node is required as a single point-of-contact 
+	 * for clients to connect to when trying to establish 
+	 * communication to the shards.<br><br>
+	 * 
+	 * Connections are not given threads of their own. A few event loop 
+	 * threads, {@code ioThreads} of them, read and write all of the sockets
+	 * and hand every frame that arrives to a pool of {@code workerThreads}
+	 * worker threads, see {@link ChannelConnection}. With {@code virtualThreads}
+	 * the frames are handled on virtual threads instead, see {@link Threads}.<br><br>
+	 * 
+	 * Everything is sent in {@link Frame}s. Every request carries an id chosen
+	 * by the client and the frames of its reply carry the same id, the last
+	 * one flagged as the end of the reply, so a client can send many requests
+	 * without waiting for the replies and match them up as they arrive. The
+	 * replies of the shards only ever go to the client that sent the request,
+	 * passed on with a new header but without decoding their payload.<br><br>
+	 * 
+	 * Every document lives on a single shard, picked by hashing the value of
+	 * its {@code shardKey}, {@code _id} by default, onto a {@link HashRing}
+	 * with {@code ringPoints} points for every shard, kept in {@code ringFile}.
+	 * Writes and queries that name the shard key only go to the shards that
+	 * own it, see {@link #route(String)}. When a shard joins, the documents
+	 * of the keys it takes over are moved to it, see {@link #rehash()}.<br><br>
+	 * 
+	 * With {@code sharding=range} the shard key is cut into ranges instead,
+	 * the chunks of a {@link ChunkMap} kept in {@code chunkFile}, so values
+	 * that are close together live on the same shard and a range query only
+	 * goes to the shards of the chunks it overlaps. A chunk is split once
+	 * {@code chunkSize} documents were inserted into it, or once it was asked
+	 * for {@code chunkOperations} times within {@code balanceInterval}
+	 * milliseconds, and chunks are moved between shards to keep as many on
+	 * each, see {@link #balance()}.
+	 * 
+	 * @param prop The configuration settings for the server
+	 */
+	public ServerNode(Properties prop)
+	{
+		super(prop);
+		
+		PORT = Integer.parseInt(properties.getProperty("port"));
+		
+		shardKey = properties.getProperty("shardKey", "_id").trim();
+		named = new ConcurrentHashMap<String, ShardConnection>();
+		cutover = new ReentrantReadWriteLock();
+		
+		if( properties.getProperty("sharding", "hash").trim().equalsIgnoreCase("range") ) {
+			chunks = new ChunkMap(shardKey, new File(properties.getProperty("chunkFile", "chunks.json").trim()));
+			chunkSize = Long.parseLong(properties.getProperty("chunkSize", "10000").trim());
+			chunkOperations = Long.parseLong(properties.getProperty("chunkOperations", "0").trim());
+			balanceInterval = Long.parseLong(properties.getProperty("balanceInterval", "10000").trim());
+		}
+		else
+			ring = new HashRing(Integer.parseInt(properties.getProperty("ringPoints", "128").trim()), 
+					new File(properties.getProperty("ringFile", "ring.json").trim()));
+	}
+	
+	/**
+	 * Calling this method on a {@link #ServerNode(Properties)} will
+	 * start up the server socket and listen for incoming connections.
+	 * 
+	 * 
+	 */
+	@Override
+	public void start()
+	{
+		super.start();
+		
+		clients = new CopyOnWriteArrayList<ClientConnection>();
+		shards = new CopyOnWriteArrayList<ShardConnection>();
+		requests = new ConcurrentHashMap<Long, Request>();
+		nextRequest = new AtomicLong();
+		
+		System.out.println("\nServerNode is starting up...");
+		
+		/*
+		 * Creates a server socket and binds to the specified port.
+		 * We will maintain a backlog queue of 500 to process the requests.
+		 * If the port is already in use, tell the user and exit the program 
+		 */
+		try {
+			channel = ServerSocketChannel.open();
+			channel.bind(new InetSocketAddress(PORT), 500);
+			ssock = channel.socket();
+		} catch (BindException e) {
+			System.err.println("\nPort is already in use, please choose another.");
+			System.exit(1);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		
+		/*
+		 * Start the event loops that do the reading and writing of every
+		 * connection, and the worker threads that handle what they read.
+		 */
+		int ioThreads = Integer.parseInt(properties.getProperty("ioThreads", "1").trim());
+		int workerThreads = Integer.parseInt(properties.getProperty("workerThreads", 
+				String.valueOf(Runtime.getRuntime().availableProcessors())).trim());
+		
+		workers = Threads.newPool(Math.max(1, workerThreads));
+		loops = new EventLoop[Math.max(1, ioThreads)];
+		try {
+			for( int i = 0; i < loops.length; i++ ) {
+				loops[i] = new EventLoop("ServerNode-io-" + i);
+				loops[i].start();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+		
+		/*
+		 * Register a new virtual machine shutdown hook.
+		 * The JVM will run this code in response to two kinds of events:
+		 * 
+		 * 		1) 	The program exits normally, when the last non-daemon thread exists
+		 * 			or when the exit method is invoked
+		 * 		2)	The JVM is terminated in response to a user interrupt, such as 
+		 * 			typing ^C or such as when the user logs off or system shuts down.
+		 */
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override public void run() {
+				stop();
+			}
+		}));
+		
+		
+		// Range sharded chunks are split and balanced in the background,
+		// and documents are moved to the shards that join the hash ring
+		if( chunks != null )
+			Threads.start("ServerNode-balancer", new Runnable() {
+				@Override public void run() {
+					balancer();
+				}
+			});
+		else
+			Threads.start("ServerNode-rehasher", new Runnable() {
+				@Override public void run() {
+					rehasher();
+				}
+			});
+		
+		
+		System.out.println("ServerNode is listening for shard servers on port " + PORT);
+		
+		/*
+		 * Accept connections on this thread and spread them over the event
+		 * loops. Every new connection is asked to IDENTIFY itself.
+		 */
+		for( int next = 0; channel.isOpen(); next = (next + 1) % loops.length )
+		{
+			try {
+				Connection connection = new Connection(channel.accept());
+				
+				System.out.println("\nNew connection from " + connection.getAddress());
+				loops[next].register(connection);
+				
+				System.out.printf("Asking affiliation...");
+				connection.send(Frame.request(0, "IDENTIFY"));
+			} catch (IOException e) {
+				// Do nothing
+			}
+		}
+	}
+	
+	
+	/**
+	 * This stop is special in the case that is contains multiple 
+	 * client and shard threads that all need to be closed once this
+	 * application is stopped.
+	 */
+	@Override
+	public void stop()
+	{
+		super.stop();
+		System.out.println("\nServerNode is shutting down...");
+		
+		/*
+		 * Loop over all the clients in the client list
+		 * and call the close function on each of those threads
+		 */
+		System.out.println("Closing all ClientNode connections");
+		for( ClientConnection cc : clients )
+			cc.close();
+		
+		/*
+		 * Loop over all the shards in the shard list
+		 * and call the close function on each of those threads
+		 */
+		System.out.println("Closing all ShardNode connections");
+		for( ShardConnection sc : shards )
+			sc.close();
+		
+		// Close the connections that never identified themselves and stop the event loops
+		if( loops != null ) {
+			for( EventLoop loop : loops )
+				if( loop != null )
+					loop.close();
+		}
+		if( workers != null )
+			workers.shutdown();
+		
+		// Finally, close this application's server socket
+		try {
+			if( ssock != null )
+				ssock.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Handles a request of a client
+	 * 
+	 * @param client The client that sent the command
+	 * @param clientId The id the client gave the request
+	 * @param cmd The command
+	 */
+	private void handle(ClientConnection client, long clientId, String cmd)
+	{
+		if( cmd.toLowerCase().startsWith("db.collection.aggregate") )
+			aggregate(client, clientId, cmd);
+		else if( cmd.startsWith("db.") )
+			forward(client, clientId, cmd);
+		else
+			new Request(0, client, clientId, new ArrayList<ShardConnection>()).answer("Unknown call to " + cmd);
+	}
+	
+	
+	/**
+	 * Sends a command to the shards it concerns and passes their replies
+	 * on to the client that sent it
+	 * 
+	 * @param client The client that sent the command
+	 * @param clientId The id the client gave the request
+	 * @param cmd The command
+	 */
+	private void forward(ClientConnection client, long clientId, String cmd)
+	{
+		Map<ShardConnection, String> targets = null;
+		
+		// The route is worked out under the lock, so a chunk that moves
+		// in the meantime cannot send the command to its old shard
+		cutover.readLock().lock();
+		try {
+			targets = route(cmd);
+			if( targets.isEmpty() )
+				throw new IllegalArgumentException("No shard is connected");
+			if( !park(client, clientId, cmd, targets.keySet()) )
+				dispatch(new Request(nextRequest.incrementAndGet(), client, clientId, new ArrayList<ShardConnection>(targets.keySet())), targets);
+		} catch (IllegalArgumentException e) {
+			new Request(0, client, clientId, new ArrayList<ShardConnection>()).answer(e.getMessage());
+		} finally {
+			cutover.readLock().unlock();
+		}
+	}
+	
+	
+	/**
+	 * Works out which shards a command has to go to.<br><br>
+	 * 
+	 * An insert goes to the shard that owns the shard key of its document. A
+	 * document inserted without an _id is given one here first, when the _id 
+	 * is the shard key, since the shard would otherwise make up one that hashes
+	 * somewhere else. The documents of an insertMany() are split into one batch
+	 * for every shard they go to.<br><br>
+	 * 
+	 * A find(), update() or remove() whose query holds the shard key, as a value
+	 * or with {@code $eq} or {@code $in}, only goes to the shards owning those
+	 * values, and with range sharding one that asks for a range of the shard
+	 * key with {@code $gt}, {@code $gte}, {@code $lt} and {@code $lte} only goes
+	 * to the shards of the chunks in that range. Any other query, and every 
+	 * other command, goes to all shards.
+	 * Malformed inserts go to a single shard, which answers with the error.
+	 * A command for a value of the shard key whose shard is not connected
+	 * is refused, rather than sent nowhere.
+	 * 
+	 * @param cmd The command
+	 * @return The command to send to each shard
+	 * 
+	 * @throws IllegalArgumentException If the command cannot be run on documents spread over shards,
+	 *                                  or no connected shard owns a value it names
+	 */
+	@SuppressWarnings("unchecked")
+	private Map<ShardConnection, String> route(String cmd)
+	{
+		String parts[] = splitOnCharacter(cmd, '.');
+		String call = parts.length > 2 ? parts[2] : "";
+		
+		if( call.indexOf("(") < 0 || call.lastIndexOf(")") < call.indexOf("(") )
+			return scatter(cmd);
+		
+		String method = call.substring(0, call.indexOf("(")).trim().toLowerCase();
+		String args[] = splitOnCharacter(call.substring(call.indexOf("(")+1, call.lastIndexOf(")")), ',');
+		Object first = JSONValue.parse(args[0]);
+		
+		if( method.equals("insert") )
+		{
+			if( args.length != 1 || !(first instanceof JSONObject) )
+				return target(any(), cmd);
+			
+			JSONObject doc = (JSONObject) first;
+			if( shardKey.equals("_id") && !doc.containsKey("_id") ) {
+				doc.put("_id", Collection.newId());
+				cmd = "db.collection.insert(" + doc.toJSONString() + ")";
+			}
+			return target(owned(doc.get(shardKey), true), cmd);
+		}
+		
+		else if( method.equals("insertmany") )
+		{
+			Map<ShardConnection, JSONArray> batches = new LinkedHashMap<ShardConnection, JSONArray>();
+			Map<ShardConnection, String> targets = new LinkedHashMap<ShardConnection, String>();
+			
+			if( args.length != 1 || !(first instanceof JSONArray) || ((JSONArray) first).isEmpty() )
+				return target(any(), cmd);
+			
+			for( Object obj : (JSONArray) first )
+			{
+				if( !(obj instanceof JSONObject) )
+					return target(any(), cmd);
+				
+				JSONObject doc = (JSONObject) obj;
+				if( shardKey.equals("_id") && !doc.containsKey("_id") )
+					doc.put("_id", Collection.newId());
+				
+				ShardConnection owner = owned(doc.get(shardKey), true);
+				if( !batches.containsKey(owner) )
+					batches.put(owner, new JSONArray());
+				batches.get(owner).add(doc);
+			}
+			
+			for( Map.Entry<ShardConnection, JSONArray> batch : batches.entrySet() )
+				targets.put(batch.getKey(), "db.collection.insertMany(" + batch.getValue().toJSONString() + ")");
+			return targets;
+		}
+		
+		else if( method.equals("find") || method.equals("update") || method.equals("remove") )
+		{
+			Set<ShardConnection> owners = first instanceof JSONObject ? owners((JSONObject) first) : null;
+			Map<ShardConnection, String> targets = new LinkedHashMap<ShardConnection, String>();
+			
+			if( method.equals("update") && first instanceof JSONObject && args.length >= 2 )
+				checkUpdate((JSONObject) first, JSONValue.parse(args[1]), args.length == 3 ? JSONValue.parse(args[2]) : null);
+			
+			// Until the documents have been moved to the shards that joined
+			// the ring, the one asked for may still be on its old shard
+			if( owners == null || (ring != null && !ring.isSettled()) )
+				return scatter(cmd);
+			
+			// A query that cannot match anything still needs an answer
+			if( owners.isEmpty() )
+				return target(any(), cmd);
+			
+			for( ShardConnection owner : owners )
+				targets.put(owner, cmd);
+			return targets;
+		}
+		
+		return scatter(cmd);
+	}
+	
+	
+	/**
+	 * Finds the shards owning the documents a query can match, by the shard key
+	 * 
+	 * @param query The query document
+	 * @return The shards, or null if the query can match documents on any shard
+	 * 
+	 * @throws IllegalArgumentException If a shard owning a value the query asks for is not connected
+	 */
+	private Set<ShardConnection> owners(JSONObject query)
+	{
+		Set<ShardConnection> owners = new LinkedHashSet<ShardConnection>();
+		List<Object> keys = new ArrayList<Object>();
+		Object value = query.get(shardKey);
+		
+		if( !query.containsKey(shardKey) )
+			return null;
+		
+		if( Query.isOperator(value) )
+		{
+			JSONObject ops = (JSONObject) value;
+			
+			if( ops.size() == 1 && ops.containsKey("$eq") )
+				keys.add(ops.get("$eq"));
+			else if( ops.size() == 1 && ops.get("$in") instanceof JSONArray )
+				keys.addAll((JSONArray) ops.get("$in"));
+			else if( chunks != null && isRange(ops) )
+				return rangeOwners(ops);
+			else
+				return null;
+		}
+		else
+			keys.add(value);
+		
+		for( Object key : keys )
+			owners.add(owned(key, false));
+		return owners;
+	}
+	
+	
+	/**
+	 * Finds the shards of the chunks a range of the shard key overlaps. A
+	 * range only covers values of the same type as its bounds, so a range
+	 * with one bound ends where the values of that type end.
+	 * 
+	 * @param ops The operators of the range, {@code {"$gte":1,"$lt":5}}
+	 * @return The shards
+	 * 
+	 * @throws IllegalArgumentException If the shard of one of the chunks is not connected
+	 */
+	private Set<ShardConnection> rangeOwners(JSONObject ops)
+	{
+		Set<ShardConnection> owners = new LinkedHashSet<ShardConnection>();
+		Object low = ops.containsKey("$gt") ? ops.get("$gt") : ops.get("$gte");
+		Object high = ops.containsKey("$lt") ? ops.get("$lt") : ops.get("$lte");
+		
+		if( !ops.containsKey("$gt") && !ops.containsKey("$gte") )
+			low = high instanceof Number ? Double.NEGATIVE_INFINITY : high instanceof String ? "" : KeyRange.MIN;
+		if( !ops.containsKey("$lt") && !ops.containsKey("$lte") )
+			high = low instanceof Number ? "" : low instanceof String ? Boolean.FALSE : KeyRange.MAX;
+		
+		for( Chunk chunk : chunks.get(low, high) ) {
+			ShardConnection owner = named.get(chunk.getShard());
+			chunk.operations.incrementAndGet();
+			if( owner == null )
+				throw new IllegalArgumentException("No shard owns keys " + chunk.getRange() + ", " + chunk.getShard() + " is not connected");
+			owners.add(owner);
+		}
+		return owners;
+	}
+	
+	
+	/**
+	 * @return true if the operators only ask for a range, with at most one bound on either side
+	 */
+	private static boolean isRange(JSONObject ops)
+	{
+		for( Object op : ops.keySet() )
+			if( !op.equals("$gt") && !op.equals("$gte") && !op.equals("$lt") && !op.equals("$lte") )
+				return false;
+		return !(ops.containsKey("$gt") && ops.containsKey("$gte")) && !(ops.containsKey("$lt") && ops.containsKey("$lte"));
+	}
+	
+	
+	/**
+	 * Finds the shard that owns a value of the shard key, on the hash ring 
+	 * or by its chunk, which counts the request against the chunk
+	 * 
+	 * @param key The value of the shard key
+	 * @param insert true if a document with the value is inserted
+	 * @return The shard, or null if it is not connected
+	 */
+	private ShardConnection owner(Object key, boolean insert)
+	{
+		if( chunks == null ) {
+			String name = ring.get(key);
+			return name == null ? null : named.get(name);
+		}
+		
+		Chunk chunk = chunks.get(key);
+		if( chunk == null )
+			return null;
+		
+		chunk.operations.incrementAndGet();
+		if( insert && chunk.documents.incrementAndGet() == chunkSize )
+			synchronized( chunks ) {
+				chunks.notifyAll();
+			}
+		return named.get(chunk.getShard());
+	}
+	
+	
+	/**
+	 * Finds the shard that owns a value of the shard key, like {@link #owner},
+	 * for a command that cannot go anywhere else
+	 * 
+	 * @param key The value of the shard key
+	 * @param insert true if a document with the value is inserted
+	 * @return The shard
+	 * 
+	 * @throws IllegalArgumentException If no connected shard owns the value
+	 */
+	private ShardConnection owned(Object key, boolean insert)
+	{
+		ShardConnection owner = owner(key, insert);
+		
+		if( owner == null )
+			throw new IllegalArgumentException("No shard owns key " + JSONValue.toJSONString(key) + " of " + shardKey);
+		return owner;
+	}
+	
+	
+	/**
+	 * @return Any one of the shards, or null if there are none
+	 */
+	private ShardConnection any()
+	{
+		for( ShardConnection sc : shards )
+			return sc;
+		return null;
+	}
+	
+	
+	/**
+	 * Makes sure an update keeps every document on the shard that owns it.
+	 * The document an upsert inserts takes the fields its query matches by
+	 * equality, so the query has to match the shard key by equality for the
+	 * document to be inserted on the one shard that owns it. An upsert also
+	 * has to wait until the documents have been moved to the shards that
+	 * joined the hash ring. The shard key of a document cannot be changed,
+	 * which for the _id the shards already make sure of.
+	 * 
+	 * @param query The query of the update
+	 * @param update The update document
+	 * @param options The options of the update, or null
+	 * 
+	 * @throws IllegalArgumentException If the update could move a document off its shard
+	 */
+	private void checkUpdate(JSONObject query, Object update, Object options)
+	{
+		boolean upsert = options instanceof JSONObject && Boolean.TRUE.equals(((JSONObject) options).get("upsert"));
+		
+		if( upsert && (!query.containsKey(shardKey) || Query.isOperator(query.get(shardKey))) )
+			throw new IllegalArgumentException("Illegal update: an upsert needs to match the shard key " + shardKey + " by equality");
+		
+		// The document could still be on another shard than the one the upsert would insert it on
+		if( upsert && ring != null && !ring.isSettled() )
+			throw new IllegalArgumentException("Illegal update: an upsert cannot run while documents are moved to a new shard, try again later");
+		
+		if( shardKey.equals("_id") || !(update instanceof JSONObject) )
+			return;
+		
+		// A replacement has to keep the value of the shard key the query asks for
+		if( !Query.isOperator(update) ) {
+			Object key = query.get(shardKey);
+			Object replaced = ((JSONObject) update).get(shardKey);
+			if( Query.isOperator(key) || !((JSONObject) update).containsKey(shardKey) || SortedIndex.ORDER.compare(key, replaced) != 0 )
+				throw new IllegalArgumentException("Illegal update: a replacement has to keep the shard key " + shardKey + " of the query");
+			return;
+		}
+		
+		for( Object ops : ((JSONObject) update).values() )
+			if( ops instanceof JSONObject )
+				for( Object field : ((JSONObject) ops).keySet() )
+					if( field.equals(shardKey) || String.valueOf(field).startsWith(shardKey + ".") )
+						throw new IllegalArgumentException("Illegal update: the shard key " + shardKey + " cannot be updated");
+	}
+	
+	
+	/**
+	 * @return The command for every shard
+	 */
+	private Map<ShardConnection, String> scatter(String cmd)
+	{
+		Map<ShardConnection, String> targets = new LinkedHashMap<ShardConnection, String>();
+		
+		for( ShardConnection sc : shards )
+			targets.put(sc, cmd);
+		return targets;
+	}
+	
+	
+	/**
+	 * @return The command for a single shard, or for none if there is no shard
+	 */
+	private Map<ShardConnection, String> target(ShardConnection shard, String cmd)
+	{
+		Map<ShardConnection, String> targets = new LinkedHashMap<ShardConnection, String>();
+		
+		if( shard != null )
+			targets.put(shard, cmd);
+		return targets;
+	}
+	
+	
+	/**
+	 * Runs an aggregation pipeline across the shards.<br><br>
+	 * 
+	 * Every shard runs the shard part of the pipeline on its own documents,
+	 * see {@link Pipeline#getShardStages()}, and answers with its partial
+	 * results on a single line. Once all of the shards have answered, the 
+	 * merge part of the pipeline runs on their results here and the final
+	 * results are sent to the client.
+	 * 
+	 * @param client The client that sent the command
+	 * @param clientId The id the client gave the request
+	 * @param cmd The {@code db.collection.aggregate([...])} command
+	 */
+	private void aggregate(ClientConnection client, long clientId, String cmd)
+	{
+		Object stages = null;
+		Pipeline pipeline = null;
+		Request request = new Request(0, client, clientId, new ArrayList<ShardConnection>());
+		
+		if( cmd.indexOf("(") >= 0 && cmd.lastIndexOf(")") > cmd.indexOf("(") )
+			stages = JSONValue.parse(cmd.substring(cmd.indexOf("(")+1, cmd.lastIndexOf(")")));
+		if( !(stages instanceof JSONArray) ) {
+			request.answer("aggregate() takes an array of stages");
+			return;
+		}
+		
+		try {
+			pipeline = Pipeline.compile((JSONArray) stages);
+		} catch (IllegalArgumentException e) {
+			request.answer("Illegal pipeline: " + e.getMessage());
+			return;
+		}
+		
+		cutover.readLock().lock();
+		try {
+			Map<ShardConnection, String> targets = scatter("db.collection.aggregate(" + JSONValue.toJSONString(pipeline.getShardStages()) + ", {\"partial\":true})");
+			if( targets.isEmpty() )
+				request.answer("No shard is connected");
+			else if( !park(client, clientId, cmd, targets.keySet()) )
+				dispatch(new Aggregation(nextRequest.incrementAndGet(), client, clientId, 
+						pipeline.getMergePipeline(), new ArrayList<ShardConnection>(targets.keySet())), targets);
+		} finally {
+			cutover.readLock().unlock();
+		}
+	}
+	
+	
+	/**
+	 * Sends a request to the shards it waits for, tagged with its id
+	 * 
+	 * @param request The request
+	 * @param cmds The command to send to each shard
+	 */
+	private void dispatch(Request request, Map<ShardConnection, String> cmds)
+	{
+		Frame frame = null;
+		String text = null;
+		
+		requests.put(request.id, request);
+		for( Map.Entry<ShardConnection, String> cmd : cmds.entrySet() )
+		{
+			// The same command for several shards is only encoded once
+			if( frame == null || !cmd.getValue().equals(text) ) {
+				text = cmd.getValue();
+				frame = Frame.request(request.id, text);
+			}
+			cmd.getKey().send(frame);
+		}
+		
+		// A shard that went away in the meantime will never answer, and with
+		// no shards connected at all there is nothing to wait for
+		for( ShardConnection sc : request.getShards() )
+			if( !shards.contains(sc) )
+				request.end(sc);
+		request.finish();
+	}
+	
+	
+	/**
+	 * Holds a request back while a chunk is moved between shards it goes
+	 * to. It is handled again once the chunk has been moved, see {@link #migrate}.
+	 * Only called with the read lock of the cutover held.
+	 * 
+	 * @param client The client that sent the command
+	 * @param clientId The id the client gave the request
+	 * @param cmd The command
+	 * @param targets The shards the command goes to
+	 * @return true if the request was held back
+	 */
+	private boolean park(final ClientConnection client, final long clientId, final String cmd, Set<ShardConnection> targets)
+	{
+		Migration moving = migration;
+		
+		if( moving == null || (!targets.contains(moving.from) && !targets.contains(moving.to)) )
+			return false;
+		
+		moving.parked.add(new Runnable() {
+			@Override public void run() {
+				handle(client, clientId, cmd);
+			}
+		});
+		return true;
+	}
+	
+	
+	/**
+	 * Sends a command to a shard on behalf of the server itself and waits for the reply
+	 * 
+	 * @param shard The shard
+	 * @param cmd The command
+	 * @return The reply, or null if the shard went away or did not answer in time
+	 */
+	private String call(ShardConnection shard, String cmd)
+	{
+		Call call = new Call(nextRequest.incrementAndGet(), shard);
+		
+		dispatch(call, target(shard, cmd));
+		return call.await(CALL_TIMEOUT);
+	}
+	
+	
+	/**
+	 * Runs a round of balancing every {@code balanceInterval} milliseconds,
+	 * or as soon as a chunk has grown to {@code chunkSize} documents
+	 */
+	private void balancer()
+	{
+		while( channel.isOpen() )
+		{
+			synchronized( chunks ) {
+				try {
+					chunks.wait(balanceInterval);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			
+			try {
+				balance();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	
+	/**
+	 * A round of balancing. Chunks that have grown too large or too busy are
+	 * split, then chunks are moved one at a time from the shard with the most
+	 * chunks to the one with the fewest, until no shard has two more than 
+	 * another. The busiest chunk of a shard is moved first, so a hot range 
+	 * is spread over the shards once it has been split.
+	 */
+	private void balance()
+	{
+		for( Chunk chunk : chunks.getChunks() )
+			if( chunk.documents.get() >= chunkSize || (chunkOperations > 0 && chunk.operations.get() >= chunkOperations) )
+				split(chunk);
+		
+		while( true )
+		{
+			Map<String, List<Chunk>> placed = new LinkedHashMap<String, List<Chunk>>();
+			String most = null, fewest = null;
+			Chunk busiest = null;
+			
+			for( ShardConnection sc : shards )
+				placed.put(sc.name, new ArrayList<Chunk>());
+			for( Chunk chunk : chunks.getChunks() )
+				if( placed.containsKey(chunk.getShard()) )
+					placed.get(chunk.getShard()).add(chunk);
+			
+			for( String name : placed.keySet() ) {
+				if( most == null || placed.get(name).size() > placed.get(most).size() )
+					most = name;
+				if( fewest == null || placed.get(name).size() < placed.get(fewest).size() )
+					fewest = name;
+			}
+			if( most == null || placed.get(most).size() - placed.get(fewest).size() < 2 )
+				break;
+			
+			for( Chunk chunk : placed.get(most) )
+				if( busiest == null || chunk.operations.get() > busiest.operations.get() )
+					busiest = chunk;
+			if( !migrate(busiest, most, fewest) )
+				break;
+		}
+		
+		for( Chunk chunk : chunks.getChunks() )
+			chunk.operations.set(0);
+	}
+	
+	
+	/**
+	 * Splits a chunk at the middle of its documents, which its shard finds.
+	 * A chunk that turns out to be small enough after all is left alone, and
+	 * so is one whose documents all have the same shard key, which cannot be
+	 * split. Either way it is counted with the documents it really has.
+	 * 
+	 * @param chunk The chunk
+	 */
+	private void split(Chunk chunk)
+	{
+		ShardConnection owner = named.get(chunk.getShard());
+		Object answer = owner == null ? null : JSONValue.parse(String.valueOf(call(owner, "db.collection.chunkSplit(" + chunk.getRange() + ")")));
+		
+		if( !(answer instanceof JSONObject) || !(((JSONObject) answer).get("documents") instanceof Number) )
+			return;
+		
+		JSONObject split = (JSONObject) answer;
+		chunk.documents.set(((Number) split.get("documents")).longValue());
+		
+		boolean large = chunk.documents.get() >= chunkSize;
+		boolean busy = chunkOperations > 0 && chunk.operations.get() >= chunkOperations;
+		
+		if( (large || busy) && split.containsKey("at") && chunks.split(chunk, split.get("at")) )
+			System.out.println("Split chunk " + chunk.getRange() + " at " + JSONValue.toJSONString(split.get("at")));
+		else if( large )
+			chunk.documents.set(0);
+	}
+	
+	
+	/**
+	 * Moves a chunk to another shard.<br><br>
+	 * 
+	 * Requests to either of the two shards are held back while the chunk is 
+	 * moved. Once the requests already sent to them have been answered, the
+	 * documents of the chunk are copied to the new shard, the chunk is given
+	 * to it and the documents are removed from the old shard, so no request
+	 * sees them twice or not at all. Then the held back requests are sent on, 
+	 * to wherever the chunk lives now. Splitting keeps the chunks small, which 
+	 * keeps this short. If anything goes wrong the chunk stays where it was.
+	 * 
+	 * @param chunk The chunk
+	 * @param fromName The name of the shard the chunk lives on
+	 * @param toName The name of the shard to move it to
+	 * @return true if the chunk was moved, false if it was not or either shard is not connected
+	 */
+	private boolean migrate(Chunk chunk, String fromName, String toName)
+	{
+		String range = chunk.getRange().toString();
+		String docs = null;
+		boolean moved = false;
+		
+		Migration moving = begin(fromName, toName);
+		if( moving == null )
+			return false;
+		
+		ShardConnection from = moving.from, to = moving.to;
+		try {
+			// Documents left behind by a move that failed are cleared first
+			if( drained(from, to) && call(to, "db.collection.chunkRemove(" + range + ")") != null )
+				docs = call(from, "db.collection.chunkDocuments(" + range + ")");
+			
+			if( docs != null && docs.startsWith("[") && (docs.equals("[]") || "true".equals(call(to, "db.collection.insertMany(" + docs + ")"))) )
+			{
+				chunks.move(chunk, to.name);
+				moved = true;
+				
+				if( call(from, "db.collection.chunkRemove(" + range + ")") == null )
+					System.err.println("Could not remove the documents of " + range + " from " + from.name);
+				System.out.println("Moved chunk " + range + " from " + from.name + " to " + to.name);
+			}
+			else {
+				call(to, "db.collection.chunkRemove(" + range + ")");
+				System.err.println("Could not move chunk " + range + " from " + from.name + " to " + to.name);
+			}
+		} finally {
+			end();
+		}
+		return moved;
+	}
+	
+	
+	/**
+	 * Starts holding back the requests to two shards, so that something
+	 * can be moved between them
+	 * 
+	 * @param from The name of the shard to move from
+	 * @param to The name of the shard to move to
+	 * @return The migration, or null if either shard is not connected
+	 */
+	private Migration begin(String from, String to)
+	{
+		cutover.writeLock().lock();
+		try {
+			// Either shard may have gone away since it was picked
+			ShardConnection fromShard = named.get(from), toShard = named.get(to);
+			if( fromShard == null || toShard == null )
+				return null;
+			
+			migration = new Migration(fromShard, toShard);
+			return migration;
+		} finally {
+			cutover.writeLock().unlock();
+		}
+	}
+	
+	
+	/**
+	 * Stops holding back requests and sends on the ones that were held
+	 * back, before any new one
+	 */
+	private void end()
+	{
+		cutover.writeLock().lock();
+		try {
+			Migration moving = migration;
+			migration = null;
+			for( Runnable request : moving.parked )
+				request.run();
+		} finally {
+			cutover.writeLock().unlock();
+		}
+	}
+	
+	
+	/**
+	 * Moves documents to the shards that joined the hash ring, as soon as one
+	 * joins, and again every {@code REHASH_RETRY} milliseconds or when a shard
+	 * connects until all of them have been moved
+	 */
+	private void rehasher()
+	{
+		while( channel.isOpen() )
+		{
+			// A shard that connected while the last round ran is not waited for
+			synchronized( ring ) {
+				try {
+					if( !connected )
+						ring.wait(ring.isSettled() ? 0 : REHASH_RETRY);
+				} catch (InterruptedException e) {
+					return;
+				}
+				connected = false;
+			}
+			
+			try {
+				if( !ring.isSettled() && rehash() )
+					System.out.println("Every document lives on the shard that owns its key");
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	
+	/**
+	 * Moves every document to the shard that owns its key on the hash ring.<br><br>
+	 * 
+	 * The keys a shard takes over when it joins the ring still have their
+	 * documents on the shards they were placed on before. Until they have
+	 * been moved a find(), update() or remove() goes to every shard, not only
+	 * to the owner of its key, see {@link #route(String)}. Every shard is asked
+	 * for the shard keys of its documents and the ones that belong elsewhere
+	 * are moved a batch at a time, see {@link #move}.
+	 * 
+	 * @return true if every document is on its shard, false if a shard is not
+	 *         connected or a move failed, and it has to be tried again
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean rehash()
+	{
+		List<String> names = ring.getNames();
+		boolean complete = true;
+		
+		for( String name : names )
+		{
+			ShardConnection shard = named.get(name);
+			Object docs = shard == null ? null : JSONValue.parse(String.valueOf(call(shard, "db.collection.find({}, {\"" + JSONValue.escape(shardKey) + "\":1})")));
+			Map<String, JSONArray> misplaced = new LinkedHashMap<String, JSONArray>();
+			
+			if( !(docs instanceof JSONArray) ) {
+				complete = false;
+				continue;
+			}
+			
+			for( Object obj : (JSONArray) docs ) {
+				JSONObject doc = (JSONObject) obj;
+				String owner = ring.get(doc.get(shardKey));
+				if( owner == null || owner.equals(name) )
+					continue;
+				if( !misplaced.containsKey(owner) )
+					misplaced.put(owner, new JSONArray());
+				misplaced.get(owner).add(doc.get("_id"));
+			}
+			
+			for( Map.Entry<String, JSONArray> ids : misplaced.entrySet() )
+				for( int i = 0; i < ids.getValue().size(); i += REHASH_BATCH ) {
+					JSONArray batch = new JSONArray();
+					batch.addAll(ids.getValue().subList(i, Math.min(i + REHASH_BATCH, ids.getValue().size())));
+					if( !move(batch, name, ids.getKey()) ) {
+						System.err.println("Could not move documents from " + name + " to " + ids.getKey());
+						complete = false;
+						break;
+					}
+				}
+		}
+		return complete && ring.settle(names.size());
+	}
+	
+	
+	/**
+	 * Moves documents from one shard to another by their _id.<br><br>
+	 * 
+	 * Like a chunk, see {@link #migrate}, requests to either shard are held
+	 * back while the documents are copied to the new shard and then removed
+	 * from the old one. A document with the same _id that is already on the
+	 * new shard was inserted there after the shard took over its key, and 
+	 * is newer than the one moved, so it is kept and the old one dropped.
+	 * 
+	 * @param ids The _id of every document to move
+	 * @param fromName The name of the shard the documents are on
+	 * @param toName The name of the shard that owns their keys
+	 * @return true if the documents were moved
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean move(JSONArray ids, String fromName, String toName)
+	{
+		Migration moving = begin(fromName, toName);
+		boolean moved = false;
+		
+		if( moving == null )
+			return false;
+		
+		try {
+			String docs = drained(moving.from, moving.to) ? call(moving.from, "db.collection.find({\"_id\":{\"$in\":" + ids.toJSONString() + "}})") : null;
+			Object found = docs == null ? null : JSONValue.parse(docs);
+			JSONArray copied = new JSONArray();
+			
+			if( !(found instanceof JSONArray) )
+				return false;
+			if( ((JSONArray) found).isEmpty() )
+				return true;
+			
+			// Only the documents still there are moved, some may have been removed since
+			for( Object doc : (JSONArray) found )
+				copied.add(((JSONObject) doc).get("_id"));
+			String query = "{\"_id\":{\"$in\":" + copied.toJSONString() + "}}";
+			
+			if( call(moving.to, "db.collection.insertMany(" + docs + ")") != null
+					&& String.valueOf(copied.size()).equals(String.valueOf(call(moving.to, "db.collection.find(" + query + ").count()")).trim()) )
+				moved = call(moving.from, "db.collection.remove(" + query + ")") != null;
+		} finally {
+			end();
+		}
+		return moved;
+	}
+	
+	
+	/**
+	 * Waits until the requests sent to either of two shards have been answered
+	 * 
+	 * @return false if they were not answered in time
+	 */
+	private boolean drained(ShardConnection from, ShardConnection to)
+	{
+		long deadline = System.currentTimeMillis() + CALL_TIMEOUT;
+		
+		while( System.currentTimeMillis() < deadline )
+		{
+			boolean busy = false;
+			for( Request request : requests.values() )
+				if( !(request instanceof Call) && (request.getShards().contains(from) || request.getShards().contains(to)) )
+					busy = true;
+			if( !busy )
+				return true;
+			
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				return false;
+			}
+		}
+		return false;
+	}
+	
+	
+	/**
+	 * Main application method. This is called when the user starts up
+	 * the jddb-server.jar. The args input should be the properties file
+	 * to tell the program which port to run on.
+	 * 
+	 * @param args The set of arguments supplied to the program.
+	 */
+	public static void main(String ...args)
+	{
+		if( args.length < 1 ) {
+			System.out.println("USAGE: ./jddb-server config.properties\n");
+			return;
+		}
+		
+		InputStream in = null;
+		Properties prop = new Properties();
+		
+		try {
+			in = new FileInputStream(args[0]);
+			prop.load(in);
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			if( in != null ) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		
+		new ServerNode(prop).start();
+	}
+	
+	
+	/**
+	 * A connection accepted by the server. It has been sent a request to
+	 * IDENTIFY itself.<br><br>
+	 * 
+	 * Once the connection returns a response with either
+	 * SHARD or CLIENT, every frame it sends from then on is 
+	 * handed to the client or shard connection that matches 
+	 * its affiliation.
+	 */
+	class Connection extends ChannelConnection
+	{
+		private ClientConnection client = null;
+		private ShardConnection shard = null;
+		
+		public Connection(SocketChannel channel) throws IOException
+		{
+			super(channel, workers);
+		}
+		
+		@Override
+		public void onFrameInput(Frame frame)
+		{
+			if( client != null )
+				client.onFrameInput(frame);
+			else if( shard != null )
+				shard.onFrameInput(frame);
+			else if( frame.getOpcode() == Frame.REPLY )
+			{
+				String input = frame.getText();
+				System.out.println(input);
+				
+				/*
+				 * Here we check if the return value from the 
+				 * call to IDENTIFY is equal to "CLIENT" or "SHARD"
+				 * and create corresponding connections for both.
+				 * A shard follows "SHARD" with its name.
+				 */
+				if( input.equalsIgnoreCase("client") ) {
+					System.out.println("Adding new client connection to client list.");
+					client = new ClientConnection(this);
+					clients.add(client);
+				} else if( input.toLowerCase().startsWith("shard") ) {
+					System.out.println("Adding new shard connection to shard list.");
+					try {
+						shard = new ShardConnection(this, input.substring(5).trim());
+						shards.add(shard);
+					} catch (IllegalStateException e) {
+						System.err.println(e.getMessage() + ", closing the new connection");
+						close();
+					}
+				}
+			}
+		}
+		
+		@Override
+		public void onClose()
+		{
+			if( client != null )
+				client.close();
+			if( shard != null )
+				shard.close();
+		}
+	}
+	
+	
+	/**
+	 * This will handle all client connections that connect to the server. 
+	 */
+	class ClientConnection
+	{
+		private Connection connection = null;
+		
+		public ClientConnection(Connection conn)
+		{
+			connection = conn;
+		}
+		
+		public void send(Frame frame)
+		{
+			connection.send(frame);
+		}
+		
+		public void close()
+		{
+			connection.close();
+			clients.remove(this);
+		}
+		
+		/*
+		 * Here we want to handle any requests coming form the clients.
+		 * In general, we want to Map the message out to all the shard nodes.
+		 */
+		public void onFrameInput(Frame frame)
+		{
+			if( frame.getOpcode() != Frame.REQUEST )
+				return;
+			
+			String input = frame.getText();
+			long id = frame.getId();
+			
+			System.out.println("Client " + connection.getAddress() + ": " + input);
+			
+			handle(this, id, input);
+		}
+	}
+	
+	
+	/**
+	 * This will handle all shard connections that connect to the server.
+	 */
+	class ShardConnection
+	{
+		private Connection connection = null;
+		private String name = null;
+		
+		public ShardConnection(Connection conn, String name)
+		{
+			connection = conn;
+			
+			// A shard without a name goes by its address. Two shards of the same
+			// name would own the same keys, so the second one is turned away.
+			if( name.isEmpty() )
+				name = connection.getAddress();
+			if( named.putIfAbsent(name, this) != null )
+				throw new IllegalStateException("A shard named " + name + " is already connected");
+			this.name = name;
+			
+			if( chunks != null )
+				chunks.create(name);
+			else
+				synchronized( ring ) {
+					// A shard that joins takes over keys whose documents have to be moved,
+					// and one that comes back may hold documents waiting to be moved
+					ring.add(name);
+					connected = true;
+					ring.notifyAll();
+				}
+		}
+		
+		public void send(Frame frame)
+		{
+			connection.send(frame);
+		}
+		
+		public void close()
+		{
+			connection.close();
+			shards.remove(this);
+			named.remove(name, this);
+			
+			// Requests waiting for this shard go on without it
+			for( Request request : requests.values() )
+				request.end(this);
+		}
+		
+		/*
+		 * Here we handle responses coming form the shard. 
+		 * In general, this will be results from user commands
+		 * that have been previously sent to the shards
+		 */
+		public void onFrameInput(Frame frame)
+		{
+			Request request = frame.getOpcode() == Frame.REPLY ? requests.get(frame.getId()) : null;
+			
+			if( request != null )
+				request.reply(this, frame);
+		}
+	}
+	
+	
+	/**
+	 * A request waiting for the replies of the shards it was sent to. The
+	 * frames of every reply are passed on to the client as they arrive, 
+	 * with the id the client gave the request and only the last one of all
+	 * flagged as the end of the reply. The request is done once every shard
+	 * has ended its reply or disconnected.
+	 */
+	class Request
+	{
+		protected long id = 0;
+		protected ClientConnection client = null;
+		private long clientId = 0;
+		private List<ShardConnection> shards = null;
+		protected Set<ShardConnection> waiting = null;
+		private boolean finished = false;
+		
+		public Request(long id, ClientConnection client, long clientId, List<ShardConnection> shards)
+		{
+			this.id = id;
+			this.client = client;
+			this.clientId = clientId;
+			this.shards = shards;
+			this.waiting = new HashSet<ShardConnection>(shards);
+		}
+		
+		/**
+		 * @return The shards the request was sent to
+		 */
+		public List<ShardConnection> getShards()
+		{
+			return shards;
+		}
+		
+		/**
+		 * Sends the end of the reply to the client
+		 */
+		protected void send(String text)
+		{
+			client.send(Frame.reply(clientId, text));
+		}
+		
+		/**
+		 * Answers the client without asking the shards
+		 */
+		public void answer(String text)
+		{
+			finished = true;
+			send(text);
+		}
+		
+		/**
+		 * Adds a frame of the reply of a shard
+		 */
+		public synchronized void reply(ShardConnection shard, Frame frame)
+		{
+			if( !waiting.contains(shard) )
+				return;
+			
+			if( frame.isEnd() )
+				waiting.remove(shard);
+			
+			if( waiting.isEmpty() )
+				finish(frame);
+			else
+				pass(frame);
+		}
+		
+		/**
+		 * Stops waiting for a shard that disconnected
+		 */
+		public synchronized void end(ShardConnection shard)
+		{
+			if( waiting.remove(shard) )
+				finish();
+		}
+		
+		/**
+		 * Ends the reply to the client, if no shard is left to wait for
+		 */
+		public synchronized void finish()
+		{
+			if( waiting.isEmpty() )
+				finish(null);
+		}
+		
+		private void finish(Frame last)
+		{
+			if( finished )
+				return;
+			
+			finished = true;
+			requests.remove(id);
+			complete(last);
+		}
+		
+		/**
+		 * Passes a frame that does not end the reply on to the client
+		 */
+		protected void pass(Frame frame)
+		{
+			if( frame.getLength() > 0 )
+				client.send(frame.forward(clientId, 0));
+		}
+		
+		/**
+		 * Ends the reply to the client once every shard has answered
+		 * 
+		 * @param last The last frame from a shard, or null if the last shard disconnected
+		 */
+		protected void complete(Frame last)
+		{
+			if( last != null )
+				client.send(last.forward(clientId, Frame.END));
+			else
+				send("");
+		}
+	}
+	
+	
+	/**
+	 * An aggregation waiting for the partial results of the shards it was
+	 * sent to. The results are merged and sent to the client once every
+	 * shard has answered or disconnected.
+	 */
+	class Aggregation extends Request
+	{
+		private Pipeline merge = null;
+		private List<Document> results = null;
+		private String error = null;
+		
+		public Aggregation(long id, ClientConnection client, long clientId, Pipeline merge, List<ShardConnection> shards)
+		{
+			super(id, client, clientId, shards);
+			this.merge = merge;
+			this.results = new ArrayList<Document>();
+		}
+		
+		/**
+		 * Adds the answer of a shard, either an array of partial results or an error
+		 */
+		@Override
+		protected void pass(Frame frame)
+		{
+			String answer = frame.getText();
+			Object array = JSONValue.parse(answer);
+			
+			if( array instanceof JSONArray ) {
+				for( Object obj : (JSONArray) array )
+					results.add(new Document(obj));
+			}
+			else if( error == null )
+				error = answer;
+		}
+		
+		/**
+		 * Merges the results and sends them to the client
+		 */
+		@Override
+		@SuppressWarnings("unchecked")
+		protected void complete(Frame last)
+		{
+			if( last != null )
+				pass(last);
+			
+			if( error != null ) {
+				send(error);
+				return;
+			}
+			
+			JSONArray merged = new JSONArray();
+			try {
+				Iterator<Document> it = merge.run(results.iterator());
+				while( it.hasNext() )
+					merged.add(it.next().getJSONObject());
+			} catch (RuntimeException e) {
+				send("Could not merge the results of the shards: " + e);
+				return;
+			}
+			send(merged.toJSONString());
+		}
+	}
+	
+	
+	/**
+	 * A request the server sends to a shard itself, to split or move a chunk.
+	 * The reply is kept for the thread waiting for it rather than passed on 
+	 * to a client.
+	 */
+	class Call extends Request
+	{
+		private StringBuilder text = null;
+		private boolean done = false;
+		private boolean answered = false;
+		
+		public Call(long id, ShardConnection shard)
+		{
+			super(id, null, 0, new ArrayList<ShardConnection>(Arrays.asList(shard)));
+			this.text = new StringBuilder();
+		}
+		
+		@Override
+		protected void pass(Frame frame)
+		{
+			text.append(frame.getText());
+		}
+		
+		@Override
+		protected synchronized void complete(Frame last)
+		{
+			if( last != null ) {
+				pass(last);
+				answered = true;
+			}
+			done = true;
+			notifyAll();
+		}
+		
+		/**
+		 * Waits for the reply
+		 * 
+		 * @param timeout The longest time to wait, in milliseconds
+		 * @return The reply, or null if the shard went away or did not answer in time
+		 */
+		public synchronized String await(long timeout)
+		{
+			long deadline = System.currentTimeMillis() + timeout;
+			
+			while( !done && System.currentTimeMillis() < deadline ) {
+				try {
+					wait(Math.max(1, deadline - System.currentTimeMillis()));
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+			
+			if( !done )
+				requests.remove(id);
+			return answered ? text.toString() : null;
+		}
+	}
+	
+	
+	/**
+	 * A chunk being moved between two shards, and the requests to
+	 * those shards that are held back until it has been moved
+	 */
+	class Migration
+	{
+		private ShardConnection from = null;
+		private ShardConnection to = null;
+		private List<Runnable> parked = null;
+		
+		public Migration(ShardConnection from, ShardConnection to)
+		{
+			this.from = from;
+			this.to = to;
+			this.parked = Collections.synchronizedList(new ArrayList<Runnable>());
+		}
+	}
+}
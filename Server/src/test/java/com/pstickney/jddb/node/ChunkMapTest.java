@@ -0,0 +1,134 @@
+package com.pstickney.jddb.node;
+
+import com.pstickney.jddb.node.ChunkMap.Chunk;
+import com.pstickney.jddb.nosql.KeyRange;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Routing values of a shard key to chunks as they are split and moved,
+ * and keeping the chunks across a restart
+ * 
+ * @author pstickne
+ */
+public class ChunkMapTest
+{
+	private File dir = null;
+	private File file = null;
+	
+	
+	@Before
+	public void setUp() throws IOException
+	{
+		dir = Files.createTempDirectory("jddb-chunks").toFile();
+		file = new File(dir, "chunks.json");
+	}
+	
+	
+	@After
+	public void tearDown()
+	{
+		for( File f : dir.listFiles() )
+			f.delete();
+		dir.delete();
+	}
+	
+	
+	@Test
+	public void firstShardGetsEveryValue()
+	{
+		ChunkMap chunks = new ChunkMap("ts", file);
+		assertThat(chunks.get(1L), is(nullValue()));
+		
+		chunks.create("a");
+		chunks.create("b");
+		assertThat(chunks.getChunks().size(), is(1));
+		assertThat(chunks.get(null).getShard(), is("a"));
+		assertThat(chunks.get("text").getShard(), is("a"));
+		assertThat(chunks.get(KeyRange.MAX).getShard(), is("a"));
+	}
+	
+	
+	@Test
+	public void movedChunkRoutesToItsNewShard()
+	{
+		ChunkMap chunks = new ChunkMap("ts", file);
+		chunks.create("a");
+		
+		assertThat(chunks.split(chunks.get(0L), 100L), is(true));
+		assertThat(chunks.split(chunks.get(0L), 50L), is(true));
+		chunks.move(chunks.get(100L), "b");
+		
+		assertThat(chunks.get(10L).getShard(), is("a"));
+		assertThat(chunks.get(50L).getShard(), is("a"));
+		assertThat(chunks.get(99.5).getShard(), is("a"));
+		assertThat(chunks.get(100L).getShard(), is("b"));
+		assertThat(chunks.get("text").getShard(), is("b"));
+		assertThat(shards(chunks.get(60L, 200L)), is(Arrays.asList("a", "b")));
+		assertThat(shards(chunks.get(0L, 10L)), is(Arrays.asList("a")));
+		assertThat(chunks.get(10L, 0L), is(empty()));
+	}
+	
+	
+	@Test
+	public void refusesASplitOutsideOfTheChunk()
+	{
+		ChunkMap chunks = new ChunkMap("ts", file);
+		chunks.create("a");
+		chunks.split(chunks.get(0L), 100L);
+		
+		Chunk lower = chunks.get(0L);
+		assertThat(chunks.split(lower, 200L), is(false));
+		assertThat(chunks.split(lower, KeyRange.MIN), is(false));
+		
+		// A chunk that was split already is gone
+		Chunk whole = chunks.get(200L);
+		assertThat(chunks.split(whole, 300L), is(true));
+		assertThat(chunks.split(whole, 400L), is(false));
+		assertThat(chunks.getChunks().size(), is(3));
+	}
+	
+	
+	@Test
+	public void keepsItsChunksAcrossARestart()
+	{
+		ChunkMap chunks = new ChunkMap("ts", file);
+		chunks.create("a");
+		chunks.split(chunks.get(0L), "m");
+		chunks.move(chunks.get("m"), "b");
+		
+		ChunkMap reloaded = new ChunkMap("ts", file);
+		assertThat(reloaded.getChunks().size(), is(2));
+		assertThat(reloaded.get(5L).getShard(), is("a"));
+		assertThat(reloaded.get("n").getShard(), is("b"));
+		assertThat(reloaded.get(true).getShard(), is("b"));
+		assertThat(new File(dir, "chunks.json.tmp").exists(), is(false));
+		
+		// The map of another shard key is not used
+		assertThat(new ChunkMap("other", file).getChunks(), is(empty()));
+	}
+	
+	
+	/**
+	 * @return The shard of every chunk
+	 */
+	private static List<String> shards(List<Chunk> chunks)
+	{
+		List<String> shards = new ArrayList<String>();
+		
+		for( Chunk chunk : chunks )
+			shards.add(chunk.getShard());
+		return shards;
+	}
+}
@@ -0,0 +1,151 @@
+package com.pstickney.jddb.node;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Placing keys on the hash ring as shards join, and keeping the ring
+ * across a restart
+ * 
+ * @author pstickne
+ */
+public class HashRingTest
+{
+	private static final int KEYS = 10000;
+	
+	private File dir = null;
+	private File file = null;
+	
+	
+	@Before
+	public void setUp() throws IOException
+	{
+		dir = Files.createTempDirectory("jddb-ring").toFile();
+		file = new File(dir, "ring.json");
+	}
+	
+	
+	@After
+	public void tearDown()
+	{
+		for( File f : dir.listFiles() )
+			f.delete();
+		dir.delete();
+	}
+	
+	
+	@Test
+	public void emptyRingOwnsNothing()
+	{
+		HashRing ring = new HashRing(16, file);
+		
+		assertThat(ring.get(1L), is(nullValue()));
+		assertThat(ring.isSettled(), is(true));
+		assertThat(file.exists(), is(false));
+	}
+	
+	
+	@Test
+	public void joiningShardOnlyTakesOverKeys()
+	{
+		HashRing ring = ring("a", "b", "c");
+		String before[] = owners(ring);
+		int moved = 0;
+		
+		assertThat(ring.add("d"), is(true));
+		assertThat(ring.add("d"), is(false));
+		
+		String after[] = owners(ring);
+		for( int i = 0; i < KEYS; i++ ) {
+			if( after[i].equals(before[i]) )
+				continue;
+			assertThat(after[i], is("d"));
+			moved++;
+		}
+		
+		// About a quarter of the keys, spread by the points of every shard
+		assertThat(moved, is(both(greaterThan(KEYS / 8)).and(lessThan(KEYS / 2))));
+	}
+	
+	
+	@Test
+	public void ringIsSettledOnceTheDocumentsHaveMoved()
+	{
+		HashRing ring = new HashRing(16, file);
+		
+		// The first shard has nothing to take over
+		ring.add("a");
+		assertThat(ring.isSettled(), is(true));
+		
+		ring.add("b");
+		assertThat(ring.isSettled(), is(false));
+		
+		// A shard that joined while the documents were moved has to wait for its own
+		ring.add("c");
+		assertThat(ring.settle(2), is(false));
+		assertThat(ring.settle(3), is(true));
+	}
+	
+	
+	@Test
+	public void numbersEqualByValueHaveTheSameOwner()
+	{
+		HashRing ring = ring("a", "b", "c", "d");
+		
+		for( long i = 0; i < 100; i++ )
+			assertThat(ring.get((double) i), is(ring.get(i)));
+	}
+	
+	
+	@Test
+	public void keepsItsShardsAcrossARestart()
+	{
+		HashRing ring = ring("a", "b");
+		String before[] = owners(ring);
+		
+		// Every key keeps its owner, even when asked for another number of points
+		HashRing reloaded = new HashRing(64, file);
+		assertThat(reloaded.getNames(), is(Arrays.asList("a", "b")));
+		assertThat(reloaded.isSettled(), is(false));
+		assertThat(owners(reloaded), is(before));
+		
+		reloaded.settle(2);
+		assertThat(new HashRing(16, file).isSettled(), is(true));
+		assertThat(new File(dir, "ring.json.tmp").exists(), is(false));
+	}
+	
+	
+	/**
+	 * @return A ring of 16 points for every shard, with the shards in order
+	 */
+	private HashRing ring(String ...names)
+	{
+		HashRing ring = new HashRing(16, file);
+		
+		for( String name : names )
+			ring.add(name);
+		return ring;
+	}
+	
+	
+	/**
+	 * @return The owner of every key from 0 up to {@link #KEYS}
+	 */
+	private static String[] owners(HashRing ring)
+	{
+		String owners[] = new String[KEYS];
+		
+		for( int i = 0; i < KEYS; i++ )
+			owners[i] = ring.get((long) i);
+		return owners;
+	}
+}
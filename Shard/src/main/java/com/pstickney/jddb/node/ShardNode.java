@@ -1,482 +1,852 @@
-package com.pstickney.jddb.node;
-
-import com.pstickney.jddb.io.ProcessConsoleInput;
-import com.pstickney.jddb.io.ProcessSocketInput;
-import com.pstickney.jddb.nosql.Collection;
-import com.pstickney.jddb.nosql.Document;
-
-import java.io.*;
-import java.net.ConnectException;
-import java.net.Socket;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Properties;
-import java.util.regex.Pattern;
-
-public class ShardNode extends Node
-{
-	private Collection COLLECTION = null;
-	
-	/**
-	 * Creates a database shard that will provide horizontal partitioning 
-	 * to your database.<br><br>
-	 * 
-	 * Each shard will have its own separate space on disk as well as its
-	 * own individual JVM memory space. Shards should be started up in 
-	 * separate consoles to provide this functionality and should also use
-	 * separate config.properties files. 
-	 * 
-	 * @param prop The configuration settings for this shard
-	 */
-	public ShardNode(Properties prop)
-	{
-		super(prop);
-		
-		
-		// Extract the server address and port from the property file
-		SERVER = properties.getProperty("server").trim();
-		PORT = Integer.parseInt(properties.getProperty("port").trim());
-		
-		
-		// Extract the basePath and collection file from the property file
-		BASEPATH = properties.getProperty("basePath").trim();
-		COLLECTIONFILE = properties.getProperty("file").trim();
-		
-		
-		/*
-		 * Here we want to check for the loopback interface.
-		 * In order to connect to a socket on the loopback interface which 
-		 * is the current machine, we need to pass null as the address argument.
-		 * 
-		 * Therefore, localhost and 127.0.0.1 must be changed to null if passed.
-		 */
-		if( SERVER.equalsIgnoreCase("localhost") || SERVER.equalsIgnoreCase("127.0.0.1") )
-			SERVER = null;
-		
-		
-		// Create a new shard specific collection
-		COLLECTION = new Collection(BASEPATH, COLLECTIONFILE);
-		try {
-			COLLECTION.load();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-	}
-	
-	/**
-	 * Calling this method on a {@link #ShardNode(Properties)} will attempt to 
-	 * establish a connection to the server address and port specified in the 
-	 * config file provided to this application as a command line parameter.<br><br>
-	 * 
-	 * A local console input listener will be created to listen for
-	 * incoming requests made locally by the user.
-	 * 
-	 * Likewise, once a connection has been established, a socket input stream listener
-	 * will be created to listen for incoming requests from the server.<br><br>
-	 */
-	@Override
-	public void start() 
-	{
-		super.start();
-		
-		/*
-		 * Register a new virtual machine shutdown hook.
-		 * The JVM will run this code in response to two kinds of events:
-		 * 
-		 * 		1) 	The program exits normally, when the last non-daemon thread exists
-		 * 			or when the exit method is invoked
-		 * 		2)	The JVM is terminated in response to a user interrupt, such as 
-		 * 			typing ^C or such as when the user logs off or system shuts down.
-		 */
-		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
-			@Override public void run() {
-				stop();
-			}
-		}));
-		
-		
-		/*
-		 * Starup the ProcessConsoleInput listener.
-		 * 
-		 * This listens on the current console for user input. 
-		 * The user inputs requests in the form of a String command line argument
-		 * which will be processed by the console.
-		 */
-		ProcessConsoleInput pci = new ProcessConsoleInput(System.console()) {
-			@Override
-			public void onConsoleInput(String cmd) {
-				exec(System.console(), cmd);
-			}
-		};
-		pci.start();
-		
-		
-		while( true )
-		{
-			try {
-				/*
-				 * Create socket connect to SERVER:PORT
-				 * If this line throws an error because we can't connect,
-				 * we will jump down to the ConnectException catch handler
-				 * and do nothing but wait and try to connect again until
-				 * a connection can be established.
-				 */
-				csock = new Socket(SERVER, PORT);
-				
-				/*
-				 * Startup the ProcessInputStream listener.
-				 * 
-				 * This listens on the socket connected to the server for any incoming requests. 
-				 * These requests are in the form of a String command line argument to be 
-				 * processed by the console.
-				 */
-				ProcessSocketInput pis = new ProcessSocketInput(csock) {
-					@Override
-					public void onStreamInput(String input, boolean isError) {
-						if( input == null )
-							return;
-						
-						if( isError ) 
-							System.out.println("Warning: " + input);
-						else
-							exec(csock, input);
-					}
-				};
-				pis.start();
-				
-				// We have a connection to the server and stared the socket input listener,
-				// now we can break out of the loop and continue execution.
-				break;
-				
-			} catch (ConnectException e) {
-				// The server isn't started yet so just keep looping
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-			
-			// Sleep for 5 seconds so that we have time to start the server if required
-			try {
-				Thread.sleep(5000);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
-		}
-	}
-	
-	/**
-	 * Calling this method on a Node will attempt to close any open
-	 * sockets that have been connected to the server. 
-	 */
-	@Override
-	public void stop() 
-	{
-		super.stop();
-		
-		// Close the socket if it is not null
-		try {
-			if( csock != null )
-				csock.close();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-	}
-	
-	/**
-	 * Executes the command on the shard that was supplied by console input.<br>
-	 * This is just a function wrapper that specifies the output stream to 
-	 * send the results to once the execution has finished.
-	 * 
-	 * @param console The console the user is using
-	 * @param cmd The command to execute
-	 */
-	public void exec(Console console, String cmd)
-	{
-		exec(System.out, cmd);
-	}
-	
-	/**
-	 * Executes the command on the shard that was supplied by socket input
-	 * This is just a function wrapper that specifies the output stream to 
-	 * send the results to once the execution has finished.
-	 * 
-	 * @param socket The socket connected to the server
-	 * @param cmd The command to execute
-	 */
-	public void exec(Socket socket, String cmd)
-	{
-		try {
-			exec(socket.getOutputStream(), cmd);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-	}
-	
-	/**
-	 * Executes the command on the shard.<br><br>
-	 * 
-	 * Once the execution has finished, the results will then be pushed
-	 * to the output stream that was previously specified by the wrapper
-	 * functions.
-	 * 
-	 * @param stream The output stream to send the results to
-	 * @param cmd The command to execute
-	 */
-	public void exec(OutputStream stream, String cmd)
-	{
-		String parts[];
-		PrintWriter out = new PrintWriter(stream);
-		
-		// Happens when the user hits ^C on the keyboard
-		if( cmd == null )
-			return;
-		
-		// Stop the shard
-		if( cmd.toLowerCase().equals("exit") )
-			System.exit(0);
-		
-		
-		// This lets the server know what kind of application 
-		// is connecting to the server.
-		else if( cmd.toLowerCase().equals("identify") )
-			out.println("SHARD");
-		
-		
-		// Change the JSON database file you are using
-		else if( cmd.toLowerCase().startsWith("use") )
-		{
-			parts = cmd.split(Pattern.quote(" "));
-			if( parts.length == 2 )
-			{
-				String c = parts[1];
-				
-				if( !COLLECTION.getCurrentCollectionFile().equals(c) )
-				{
-					try {
-						COLLECTION.connectTo(COLLECTION.getCurrentBasePath(), c);
-					} catch (FileNotFoundException e) {
-						out.println(e.toString());
-						out.println("\nSee: SHOW COLLECTIONS\n");
-					}
-				}
-			}
-			else
-				out.println("\nUsage: USE [collection_name]\n");
-		}
-		
-		
-		// Show or list some general info about the server status and collections
-		else if( cmd.toLowerCase().startsWith("show") || cmd.toLowerCase().startsWith("list") )
-		{
-			parts = cmd.split(Pattern.quote(" "));
-			if( parts.length == 2 )
-			{
-				String c = parts[1];
-				
-				if( c.equalsIgnoreCase("collections") )
-				{
-					// Filter files by extension of ".json"
-					File file = new File(COLLECTION.getCurrentBasePath());
-					File files[] = file.listFiles(new FilenameFilter() {
-						@Override public boolean accept(File dir, String name) {
-							return name.endsWith(".json");
-						}
-					});
-					
-					for( File f : files )
-						out.println(f.getName());
-				}
-				else if( c.equalsIgnoreCase("status") )
-				{
-					out.println("Using Server Address: " + (SERVER == null ? "127.0.0.1" : SERVER));
-					out.println("Using Base Path: " + COLLECTION.getCurrentBasePath());
-					out.println("Using Database: " + COLLECTION.getCurrentCollectionFile());
-				}
-				else
-					out.println("\nUsage: " + parts[0] + " [collections | status]\n");
-			}
-			else
-				out.println("\nUsage: " + parts[0] + " [collections | status]\n");
-		}
-		
-		
-		// Issue commands on the database collection file
-		else if( cmd.toLowerCase().startsWith("db") )
-		{
-			parts = splitOnCharacter(cmd, '.');
-			
-			
-			
-			// output the collection itself
-			if( cmd.equalsIgnoreCase("db.collection") )
-				out.println(COLLECTION);
-			
-			
-			
-			// Find a specific set of records matching the query document
-			else if( cmd.toLowerCase().contains("db.collection.find") )
-			{
-				String	funcCall = parts[2],
-						insideParens = funcCall.substring(funcCall.indexOf("(")+1, funcCall.indexOf(")"));
-				String[] args = splitOnCharacter(insideParens, ',');
-				
-				if( args.length == 1 )
-					out.println(COLLECTION.find(new Document(args[0])));
-				else if( args.length == 2 )
-					out.println(COLLECTION.find(new Document(args[0]), new Document(args[1])));
-				else
-					out.println("Illegal number of arguments to find()");
-			}
-			
-			
-			
-			// Insert a Document into the collection 
-			else if( cmd.toLowerCase().contains("db.collection.insert") )
-			{
-				String	funcCall = parts[2],
-						insideParens = funcCall.substring(funcCall.indexOf("(")+1, funcCall.indexOf(")"));
-				String[] args = splitOnCharacter(insideParens, ',');
-				
-				if( args.length == 1 )
-					out.println(COLLECTION.insert(new Document(args[0])));
-				else
-					out.println("Illegal number of arguments to insert()");
-			}
-			
-			
-			
-			// Update a Document that is already in the collection
-			else if( cmd.toLowerCase().contains("db.collection.update") )
-			{
-				String	funcCall = parts[2],
-						insideParens = funcCall.substring(funcCall.indexOf("(")+1, funcCall.indexOf(")"));
-				String[] args = splitOnCharacter(insideParens, ',');
-				
-				if( args.length == 2 )
-					out.println(COLLECTION.update(new Document(args[0]), new Document(args[1])));
-				else
-					out.println("Illegal number of arguments to find()");
-			}
-			
-			
-			
-			// Remove a Document from the collection
-			else if( cmd.toLowerCase().contains("db.collection.remove") )
-			{
-				String	funcCall = parts[2],
-						insideParens = funcCall.substring(funcCall.indexOf("(")+1, funcCall.indexOf(")"));
-				String[] args = splitOnCharacter(insideParens, ',');
-				
-				if( args.length == 1 )
-					out.println(COLLECTION.remove(new Document(args[0])));
-				else if( args.length == 2 )
-					out.println(COLLECTION.remove(new Document(args[0]), Boolean.parseBoolean(args[1])));
-				else
-					out.println("Illegal number of arguments to remove()");
-			}
-			
-			
-			
-			// Save the collection to disk
-			else if( cmd.toLowerCase().contains("db.collection.save") )
-			{
-				try {
-					COLLECTION.save();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			} 
-			
-			
-			
-			// If nothing matches the call the user made, mark it as an error
-			else 
-			{
-				out.println("Unknown call to " + cmd);
-			}
-		}
-		else
-		{
-			out.println("\nUsage: jddb-shard.jar config.properties\n");
-			out.println("Commands:");
-			out.printf("\t%-40s\t%s\n", "HELP", "Shows the help menu.");
-			out.printf("\t%-40s\t%s\n", "USE  [collection]", "Change your current document collection to the specified one.");
-			out.printf("\t%-40s\t%s\n", "SHOW [collections | status]", "Display information about related topic.");
-			out.printf("\t%-40s\t%s\n", "LIST [collections | status]", "Alias of SHOW.");
-			out.println("");
-		}
-		out.flush();
-	}
-	
-	
-	/**
-	 * Split a string on a specific character. This will do a special split 
-	 * in which it will not split on the character if it is inside quotes {@code (")}
-	 * or curly braces {@code ({})}.
-	 * 
-	 * @param str The string to split
-	 * @param c The character to split on
-	 * @return A string array of {@code str} tokenized by {@code c}.
-	 */
-	public String[] splitOnCharacter(String str, Character c)
-	{
-		List<String> result = new ArrayList<>();
-		StringBuilder sb = new StringBuilder();
-		boolean inBrace = false, inQuote = false;
-		
-		// Loop through every character in the array
-		for( int i = 0; i < str.length(); i++ )
-		{
-			/*
-			 * if the character is found and we are not in a
-			 * curly brace or quote, add to the result array
-			 * and clear the string buffer
-			 */
-			if( str.charAt(i) == c && !inBrace && !inQuote ) {
-				result.add(sb.toString());
-				sb.setLength(0);
-				continue;
-			}
-			
-			if( str.charAt(i) == '{' )					inBrace = true;
-			else if( str.charAt(i) == '}' )				inBrace = false;
-			else if( str.charAt(i) == '"' && !inQuote )	inQuote = true;
-			else if( str.charAt(i) == '"' && inQuote )	inQuote = false;
-			
-			// Add every non-token character to the string buffer
-			sb.append(str.charAt(i));
-		}
-		
-		// Add everything in the string buffer after the last found token
-		result.add(sb.toString());
-		
-		return result.toArray(new String[result.size()]);
-	}
-	
-	public static void main(String ...args)
-	{
-		if( args.length < 1 ) {
-			System.out.println("USAGE: ./jddb-shard config.properties\n");
-			return;
-		}
-		
-		InputStream in = null;
-		Properties prop = new Properties();
-		
-		try {
-			in = new FileInputStream(args[0]);
-			prop.load(in);
-		} catch (IOException e) {
-			e.printStackTrace();
-		} finally {
-			if( in != null ) {
-				try {
-					in.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
-		}
-
-		new ShardNode(prop).start();
-	}
-}
+package com.pstickney.jddb.node;
+
+import com.pstickney.jddb.io.Frame;
+import com.pstickney.jddb.io.FrameOutputStream;
+import com.pstickney.jddb.io.ProcessConsoleInput;
+import com.pstickney.jddb.io.ProcessSocketInput;
+import com.pstickney.jddb.io.Threads;
+import com.pstickney.jddb.nosql.Collection;
+import com.pstickney.jddb.nosql.Cursor;
+import com.pstickney.jddb.nosql.Document;
+import com.pstickney.jddb.nosql.KeyRange;
+import com.pstickney.jddb.nosql.Pipeline;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import java.io.*;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.regex.Pattern;
+
+public class ShardNode extends Node
+{
+	private Collection COLLECTION = null;
+	private ExecutorService WORKERS = null;
+	private String NAME = null;
+	
+	/**
+	 * Creates a database shard that will provide horizontal partitioning 
+	 * to your database.<br><br>
+	 * 
+	 * Each shard will have its own separate space on disk as well as its
+	 * own individual JVM memory space. Shards should be started up in 
+	 * separate consoles to provide this functionality and should also use
+	 * separate config.properties files. 
+	 * 
+	 * @param prop The configuration settings for this shard
+	 */
+	public ShardNode(Properties prop)
+	{
+		super(prop);
+		
+		
+		// Extract the server address and port from the property file
+		SERVER = properties.getProperty("server").trim();
+		PORT = Integer.parseInt(properties.getProperty("port").trim());
+		
+		
+		// Extract the basePath and collection file from the property file
+		BASEPATH = properties.getProperty("basePath").trim();
+		COLLECTIONFILE = properties.getProperty("file").trim();
+		
+		
+		/*
+		 * The server places the documents on the shards by the names the shards
+		 * give when they connect, so the name has to stay the same when the shard
+		 * is restarted. By default it is the host and the path of the collection.
+		 */
+		String host = "localhost";
+		try {
+			host = InetAddress.getLocalHost().getHostName();
+		} catch (UnknownHostException e) {
+			// Keep localhost
+		}
+		NAME = properties.getProperty("name", host + ":" + new File(BASEPATH, COLLECTIONFILE).getAbsolutePath()).trim();
+		
+		
+		/*
+		 * Here we want to check for the loopback interface.
+		 * In order to connect to a socket on the loopback interface which 
+		 * is the current machine, we need to pass null as the address argument.
+		 * 
+		 * Therefore, localhost and 127.0.0.1 must be changed to null if passed.
+		 */
+		if( SERVER.equalsIgnoreCase("localhost") || SERVER.equalsIgnoreCase("127.0.0.1") )
+			SERVER = null;
+		
+		
+		// Create a new shard specific collection, kept in the configured storage backend
+		String storage = properties.getProperty("storage", Collection.MEMORY).trim();
+		COLLECTION = new Collection(BASEPATH, COLLECTIONFILE, storage);
+		
+		/*
+		 * A collection that cannot be loaded is not served. Carrying on would
+		 * hand out sequence numbers that clash with the ones in the log and
+		 * the next snapshot would save what was loaded over the damaged file.
+		 */
+		try {
+			COLLECTION.load();
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.err.println("\nThe collection " + COLLECTIONFILE + " cannot be loaded, fix or remove it and start the shard again.");
+			System.exit(1);
+		}
+		
+		
+		/*
+		 * Snapshots are saved in the background so that saving never 
+		 * holds up requests. Between snapshots every mutation is kept 
+		 * in the collection's operation log.
+		 */
+		long snapshotInterval = Long.parseLong(properties.getProperty("snapshotInterval", "60000").trim());
+		long snapshotOperations = Long.parseLong(properties.getProperty("snapshotOperations", "10000").trim());
+		COLLECTION.startSnapshots(snapshotInterval, snapshotOperations);
+		
+		
+		// Unindexed queries over collections at least this large are scanned in parallel
+		if( properties.getProperty("parallelScanThreshold") != null )
+			COLLECTION.setParallelScan(Integer.parseInt(properties.getProperty("parallelScanThreshold").trim()));
+		
+		// Sorts of more documents than this are merged from sorted runs on disk
+		if( properties.getProperty("sortBuffer") != null )
+			COLLECTION.setSortBuffer(Integer.parseInt(properties.getProperty("sortBuffer").trim()));
+		
+		
+		/*
+		 * When a number of worker threads is given, requests arriving from
+		 * the server are executed on a pool of that many threads. Queries then
+		 * run side by side and a long scan does not hold up the writes behind it.
+		 * With virtual threads every request gets a virtual thread of its own.
+		 */
+		int threads = Integer.parseInt(properties.getProperty("workerThreads", "0").trim());
+		
+		/*
+		 * Group commit is optional. When a window is given, writes arriving 
+		 * together can share a single fsync of the log, which takes writes
+		 * executed on several threads, so it always comes with a worker pool.
+		 */
+		if( properties.getProperty("groupCommitWindow") != null )
+		{
+			long window = Long.parseLong(properties.getProperty("groupCommitWindow").trim());
+			int size = Integer.parseInt(properties.getProperty("groupCommitSize", "64").trim());
+			
+			COLLECTION.setGroupCommit(window, size);
+			if( window > 0 && threads <= 0 )
+				threads = 16;
+		}
+		
+		if( threads > 0 )
+			WORKERS = Threads.newPool(threads);
+	}
+	
+	/**
+	 * Calling this method on a {@link #ShardNode(Properties)} will attempt to 
+	 * establish a connection to the server address and port specified in the 
+	 * config file provided to this application as a command line parameter.<br><br>
+	 * 
+	 * A local console input listener will be created to listen for
+	 * incoming requests made locally by the user.
+	 * 
+	 * Likewise, once a connection has been established, a socket input stream listener
+	 * will be created to listen for incoming requests from the server.<br><br>
+	 */
+	@Override
+	public void start() 
+	{
+		super.start();
+		
+		/*
+		 * Register a new virtual machine shutdown hook.
+		 * The JVM will run this code in response to two kinds of events:
+		 * 
+		 * 		1) 	The program exits normally, when the last non-daemon thread exists
+		 * 			or when the exit method is invoked
+		 * 		2)	The JVM is terminated in response to a user interrupt, such as 
+		 * 			typing ^C or such as when the user logs off or system shuts down.
+		 */
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override public void run() {
+				stop();
+			}
+		}));
+		
+		
+		/*
+		 * Starup the ProcessConsoleInput listener.
+		 * 
+		 * This listens on the current console for user input. 
+		 * The user inputs requests in the form of a String command line argument
+		 * which will be processed by the console.
+		 */
+		ProcessConsoleInput pci = new ProcessConsoleInput(System.console()) {
+			@Override
+			public void onConsoleInput(String cmd) {
+				exec(System.console(), cmd);
+			}
+		};
+		pci.start();
+		
+		
+		while( true )
+		{
+			try {
+				/*
+				 * Create socket connect to SERVER:PORT
+				 * If this line throws an error because we can't connect,
+				 * we will jump down to the ConnectException catch handler
+				 * and do nothing but wait and try to connect again until
+				 * a connection can be established.
+				 */
+				csock = SocketChannel.open(new InetSocketAddress(InetAddress.getByName(SERVER), PORT)).socket();
+				
+				/*
+				 * Startup the ProcessInputStream listener.
+				 * 
+				 * This listens on the socket connected to the server for any incoming requests. 
+				 * These requests are in the form of a String command line argument to be 
+				 * processed by the console.
+				 */
+				ProcessSocketInput pis = new ProcessSocketInput(csock) {
+					@Override
+					public void onFrameInput(final Frame input) {
+						if( input.getOpcode() != Frame.REQUEST )
+							return;
+						
+						if( WORKERS != null )
+							WORKERS.submit(new Runnable() {
+								@Override public void run() {
+									exec(csock, input);
+								}
+							});
+						else
+							exec(csock, input);
+					}
+				};
+				pis.start();
+				
+				// We have a connection to the server and stared the socket input listener,
+				// now we can break out of the loop and continue execution.
+				break;
+				
+			} catch (ConnectException e) {
+				// The server isn't started yet so just keep looping
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			
+			// Sleep for 5 seconds so that we have time to start the server if required
+			try {
+				Thread.sleep(5000);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Calling this method on a Node will attempt to close any open
+	 * sockets that have been connected to the server. 
+	 */
+	@Override
+	public void stop() 
+	{
+		super.stop();
+		
+		// Close the socket if it is not null
+		try {
+			if( csock != null )
+				csock.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		
+		// Stop taking new requests before closing the collection
+		if( WORKERS != null )
+			WORKERS.shutdown();
+		
+		// Close the collection's operation log
+		try {
+			COLLECTION.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Executes the command on the shard that was supplied by console input.<br>
+	 * This is just a function wrapper that specifies the output stream to 
+	 * send the results to once the execution has finished.
+	 * 
+	 * @param console The console the user is using
+	 * @param cmd The command to execute
+	 */
+	public void exec(Console console, String cmd)
+	{
+		exec(System.out, cmd);
+	}
+	
+	/**
+	 * Executes the command on the shard that was supplied by socket input
+	 * This is just a function wrapper that specifies the output stream to 
+	 * send the results to once the execution has finished.<br><br>
+	 * 
+	 * The results go back in a single reply frame with the id of the 
+	 * request, see {@link Frame}. The server uses the id to match up the
+	 * replies, which come back in any order when requests run on worker threads.
+	 * The results are encoded as UTF-8 into a reused direct buffer, which
+	 * goes out to the channel of the socket together with the header in a
+	 * single write, see {@link FrameOutputStream}.
+	 * 
+	 * @param socket The socket connected to the server
+	 * @param request The request frame holding the command to execute
+	 */
+	public void exec(Socket socket, Frame request)
+	{
+		FrameOutputStream results = FrameOutputStream.take();
+		
+		try {
+			// The server waits for a reply to every request, even one that fails
+			try {
+				exec(results, request.getText());
+			} catch (RuntimeException e) {
+				byte error[] = e.toString().getBytes(Frame.UTF8);
+				results.reset();
+				results.write(error, 0, error.length);
+			}
+			
+			// The reply holds the lines of the results without the last line break
+			if( results.size() > 0 && results.byteAt(results.size() - 1) == '\n' )
+				results.truncate(results.size() - 1);
+			if( results.size() > 0 && results.byteAt(results.size() - 1) == '\r' )
+				results.truncate(results.size() - 1);
+			
+			results.writeReply(socket.getChannel(), request.getId());
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			results.release();
+		}
+	}
+	
+	
+	/**
+	 * Executes the command on the shard.<br><br>
+	 * 
+	 * Once the execution has finished, the results will then be pushed
+	 * to the output stream that was previously specified by the wrapper
+	 * functions. The results are written out all at once so that the
+	 * results of commands running on different threads are not mixed.
+	 * 
+	 * @param stream The output stream to send the results to
+	 * @param cmd The command to execute
+	 */
+	@SuppressWarnings("unchecked")
+	public void exec(OutputStream stream, String cmd)
+	{
+		String parts[];
+		StringWriter buffer = new StringWriter();
+		PrintWriter out = new PrintWriter(buffer);
+		
+		// Happens when the user hits ^C on the keyboard
+		if( cmd == null )
+			return;
+		
+		// Stop the shard
+		if( cmd.toLowerCase().equals("exit") )
+			System.exit(0);
+		
+		
+		// This lets the server know what kind of application 
+		// is connecting to the server, and the name of the shard.
+		else if( cmd.toLowerCase().equals("identify") )
+			out.println("SHARD " + NAME);
+		
+		
+		// Change the JSON database file you are using
+		else if( cmd.toLowerCase().startsWith("use") )
+		{
+			parts = cmd.split(Pattern.quote(" "));
+			if( parts.length == 2 )
+			{
+				String c = parts[1];
+				
+				if( !COLLECTION.getCurrentCollectionFile().equals(c) )
+				{
+					String path = COLLECTION.getCurrentBasePath();
+					String previous = COLLECTION.getCurrentCollectionFile();
+					
+					try {
+						COLLECTION.connectTo(path, c);
+						
+						// Go back to the collection that was in use if the new one cannot be loaded
+						try {
+							COLLECTION.load();
+						} catch (IOException e) {
+							out.println(e.toString());
+							out.println("\nStill using " + previous + "\n");
+							COLLECTION.connectTo(path, previous);
+							COLLECTION.load();
+						}
+					} catch (FileNotFoundException e) {
+						out.println(e.toString());
+						out.println("\nSee: SHOW COLLECTIONS\n");
+					} catch (IOException e) {
+						out.println(e.toString());
+					}
+				}
+			}
+			else
+				out.println("\nUsage: USE [collection_name]\n");
+		}
+		
+		
+		// Show or list some general info about the server status and collections
+		else if( cmd.toLowerCase().startsWith("show") || cmd.toLowerCase().startsWith("list") )
+		{
+			parts = cmd.split(Pattern.quote(" "));
+			if( parts.length == 2 )
+			{
+				String c = parts[1];
+				
+				if( c.equalsIgnoreCase("collections") )
+				{
+					// Filter files by extension of ".json"
+					File file = new File(COLLECTION.getCurrentBasePath());
+					File files[] = file.listFiles(new FilenameFilter() {
+						@Override public boolean accept(File dir, String name) {
+							return name.endsWith(".json");
+						}
+					});
+					
+					for( File f : files )
+						out.println(f.getName());
+				}
+				else if( c.equalsIgnoreCase("status") )
+				{
+					out.println("Using Server Address: " + (SERVER == null ? "127.0.0.1" : SERVER));
+					out.println("Using Base Path: " + COLLECTION.getCurrentBasePath());
+					out.println("Using Database: " + COLLECTION.getCurrentCollectionFile());
+				}
+				else
+					out.println("\nUsage: " + parts[0] + " [collections | status]\n");
+			}
+			else
+				out.println("\nUsage: " + parts[0] + " [collections | status]\n");
+		}
+		
+		
+		// Issue commands on the database collection file
+		else if( cmd.toLowerCase().startsWith("db") )
+		{
+			parts = splitOnCharacter(cmd, '.');
+			
+			
+			
+			// output the collection itself
+			if( cmd.equalsIgnoreCase("db.collection") )
+				out.println(COLLECTION);
+			
+			
+			
+			// The server splits and moves the chunks of a range sharded collection
+			// with these. Each takes a range of the shard key, see KeyRange, and 
+			// reads, removes or finds the middle of the documents that lie in it
+			else if( cmd.toLowerCase().contains("db.collection.chunk") )
+			{
+				String	funcCall = parts[2],
+						method = funcCall.substring(0, funcCall.indexOf("(")).trim(),
+						insideParens = funcCall.substring(funcCall.indexOf("(")+1, funcCall.lastIndexOf(")"));
+				
+				try {
+					KeyRange range = KeyRange.parse(JSONValue.parse(insideParens));
+					List<Document> docs = chunk(range);
+					
+					if( method.equalsIgnoreCase("chunkDocuments") ) {
+						JSONArray array = new JSONArray();
+						for( Document doc : docs )
+							array.add(doc.getJSONObject());
+						out.println(array.toJSONString());
+					}
+					else if( method.equalsIgnoreCase("chunkRemove") ) {
+						JSONArray ids = new JSONArray();
+						for( Document doc : docs )
+							ids.add(doc.get("_id"));
+						if( !ids.isEmpty() )
+							COLLECTION.remove(new Document("{\"_id\":{\"$in\":" + ids.toJSONString() + "}}"));
+						out.println(docs.size());
+					}
+					else if( method.equalsIgnoreCase("chunkSplit") )
+						out.println(splitPoint(range, docs));
+					else
+						out.println("Unknown call to " + cmd);
+				} catch (IllegalArgumentException e) {
+					out.println("Illegal range: " + e.getMessage());
+				}
+			}
+			
+			
+			
+			// Find a specific set of records matching the query document,
+			// optionally followed by .sort({...}), .skip(n), .limit(n) and .count()
+			else if( cmd.toLowerCase().contains("db.collection.find") )
+			{
+				String	funcCall = parts[2],
+						insideParens = funcCall.substring(funcCall.indexOf("(")+1, funcCall.lastIndexOf(")"));
+				String[] args = splitOnCharacter(insideParens, ',');
+				Cursor cursor = null;
+				boolean count = false;
+				
+				try {
+					if( args.length == 1 )
+						cursor = COLLECTION.find(new Document(args[0]));
+					else if( args.length == 2 )
+						cursor = COLLECTION.find(new Document(args[0]), new Document(args[1]));
+					else
+						out.println("Illegal number of arguments to find()");
+				} catch (IllegalArgumentException e) {
+					out.println("Illegal query: " + e.getMessage());
+				}
+				
+				for( int i = 3; cursor != null && i < parts.length; i++ )
+				{
+					String	modifier = parts[i].substring(0, parts[i].indexOf("(")).trim(),
+							value = parts[i].substring(parts[i].indexOf("(")+1, parts[i].lastIndexOf(")")).trim();
+					
+					if( modifier.equalsIgnoreCase("sort") ) {
+						Object spec = JSONValue.parse(value);
+						try {
+							if( spec instanceof List )
+								cursor.sort((List<?>) spec);
+							else if( spec instanceof JSONObject )
+								cursor.sort(new Document((JSONObject) spec));
+							else
+								throw new IllegalArgumentException("A sort takes a document or an array");
+						} catch (IllegalArgumentException e) {
+							out.println("Illegal sort: " + e.getMessage());
+							cursor = null;
+						}
+					}
+					else if( modifier.equalsIgnoreCase("skip") )
+						cursor.skip(Integer.parseInt(value));
+					else if( modifier.equalsIgnoreCase("limit") )
+						cursor.limit(Integer.parseInt(value));
+					else if( modifier.equalsIgnoreCase("count") )
+						count = true;
+					else {
+						out.println("Unknown cursor method " + modifier + "()");
+						cursor = null;
+					}
+				}
+				
+				try {
+					if( cursor != null && count )
+						out.println(cursor.count());
+					else if( cursor != null ) {
+						cursor.writeTo(out);
+						out.println();
+					}
+				} catch (IllegalArgumentException e) {
+					out.println("Illegal query: " + e.getMessage());
+				} catch (IOException e) {
+					out.println(e.toString());
+				}
+			}
+			
+			
+			
+			// Run an aggregation pipeline over the collection. The server sends the
+			// shard part of a pipeline with the option {"partial":true}, which leaves
+			// its groups unfinished so they can be merged with those of other shards
+			else if( cmd.toLowerCase().contains("db.collection.aggregate") )
+			{
+				String	funcCall = parts[2],
+						insideParens = funcCall.substring(funcCall.indexOf("(")+1, funcCall.lastIndexOf(")"));
+				String[] args = splitOnCharacter(insideParens, ',');
+				Object stages = JSONValue.parse(args[0]);
+				Object options = args.length == 2 ? JSONValue.parse(args[1]) : new JSONObject();
+				
+				try {
+					if( !(stages instanceof JSONArray) || !(options instanceof JSONObject) || args.length > 2 )
+						out.println("aggregate() takes an array of stages");
+					else {
+						boolean partial = Boolean.TRUE.equals(((JSONObject) options).get("partial"));
+						Iterator<Document> it = COLLECTION.aggregate(Pipeline.compile((JSONArray) stages, partial));
+						JSONArray results = new JSONArray();
+						
+						while( it.hasNext() )
+							results.add(it.next().getJSONObject());
+						out.println(results.toJSONString());
+					}
+				} catch (IllegalArgumentException e) {
+					out.println("Illegal pipeline: " + e.getMessage());
+				}
+			}
+			
+			
+			
+			// Insert an array of Documents into the collection as one batch
+			else if( cmd.toLowerCase().contains("db.collection.insertmany") )
+			{
+				String	funcCall = parts[2],
+						insideParens = funcCall.substring(funcCall.indexOf("(")+1, funcCall.lastIndexOf(")"));
+				String[] args = splitOnCharacter(insideParens, ',');
+				Object array = args.length == 1 ? JSONValue.parse(args[0]) : null;
+				List<Document> docs = new ArrayList<Document>();
+				
+				if( array instanceof JSONArray )
+					for( Object obj : (JSONArray) array )
+						if( obj instanceof JSONObject )
+							docs.add(new Document(obj));
+						else
+							array = null;
+				
+				if( array instanceof JSONArray )
+					out.println(COLLECTION.insert(docs));
+				else
+					out.println("insertMany() takes a single array of documents");
+			}
+			
+			
+			
+			// Insert a Document into the collection 
+			else if( cmd.toLowerCase().contains("db.collection.insert") )
+			{
+				String	funcCall = parts[2],
+						insideParens = funcCall.substring(funcCall.indexOf("(")+1, funcCall.lastIndexOf(")"));
+				String[] args = splitOnCharacter(insideParens, ',');
+				
+				if( args.length == 1 )
+					out.println(COLLECTION.insert(new Document(args[0])));
+				else
+					out.println("Illegal number of arguments to insert()");
+			}
+			
+			
+			
+			// Update a Document that is already in the collection
+			else if( cmd.toLowerCase().contains("db.collection.update") )
+			{
+				String	funcCall = parts[2],
+						insideParens = funcCall.substring(funcCall.indexOf("(")+1, funcCall.lastIndexOf(")"));
+				String[] args = splitOnCharacter(insideParens, ',');
+				
+				try {
+					if( args.length == 2 )
+						out.println(COLLECTION.update(new Document(args[0]), new Document(args[1])));
+					else if( args.length == 3 )
+						out.println(COLLECTION.update(new Document(args[0]), new Document(args[1]), updateOptions(new Document(args[2]))));
+					else
+						out.println("Illegal number of arguments to update()");
+				} catch (IllegalArgumentException e) {
+					out.println("Illegal update: " + e.getMessage());
+				}
+			}
+			
+			
+			
+			// Remove a Document from the collection
+			else if( cmd.toLowerCase().contains("db.collection.remove") )
+			{
+				String	funcCall = parts[2],
+						insideParens = funcCall.substring(funcCall.indexOf("(")+1, funcCall.lastIndexOf(")"));
+				String[] args = splitOnCharacter(insideParens, ',');
+				
+				try {
+					if( args.length == 1 )
+						out.println(COLLECTION.remove(new Document(args[0])));
+					else if( args.length == 2 )
+						out.println(COLLECTION.remove(new Document(args[0]), Boolean.parseBoolean(args[1].trim())));
+					else
+						out.println("Illegal number of arguments to remove()");
+				} catch (IllegalArgumentException e) {
+					out.println("Illegal query: " + e.getMessage());
+				}
+			}
+			
+			
+			
+			// Create an index on one or more fields of the collection
+			else if( cmd.toLowerCase().contains("db.collection.createindex") )
+			{
+				String	funcCall = parts[2],
+						insideParens = funcCall.substring(funcCall.indexOf("(")+1, funcCall.lastIndexOf(")"));
+				String[] args = splitOnCharacter(insideParens, ',');
+				
+				if( args.length == 1 )
+					out.println(COLLECTION.createIndex(new Document(args[0])));
+				else
+					out.println("Illegal number of arguments to createIndex()");
+			}
+			
+			
+			
+			// Drop the indexes on one or more fields of the collection
+			else if( cmd.toLowerCase().contains("db.collection.dropindex") )
+			{
+				String	funcCall = parts[2],
+						insideParens = funcCall.substring(funcCall.indexOf("(")+1, funcCall.lastIndexOf(")"));
+				String[] args = splitOnCharacter(insideParens, ',');
+				
+				if( args.length == 1 )
+					out.println(COLLECTION.dropIndex(new Document(args[0])));
+				else
+					out.println("Illegal number of arguments to dropIndex()");
+			}
+			
+			
+			
+			// List the indexes of the collection
+			else if( cmd.toLowerCase().contains("db.collection.getindexes") )
+				out.println(COLLECTION.getIndexes());
+			
+			
+			
+			// Save a snapshot of the collection to disk in the background
+			else if( cmd.toLowerCase().contains("db.collection.save") )
+			{
+				try {
+					COLLECTION.requestSnapshot();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			} 
+			
+			
+			
+			// If nothing matches the call the user made, mark it as an error
+			else 
+			{
+				out.println("Unknown call to " + cmd);
+			}
+		}
+		else
+		{
+			out.println("\nUsage: jddb-shard.jar config.properties\n");
+			out.println("Commands:");
+			out.printf("\t%-40s\t%s\n", "HELP", "Shows the help menu.");
+			out.printf("\t%-40s\t%s\n", "USE  [collection]", "Change your current document collection to the specified one.");
+			out.printf("\t%-40s\t%s\n", "SHOW [collections | status]", "Display information about related topic.");
+			out.printf("\t%-40s\t%s\n", "LIST [collections | status]", "Alias of SHOW.");
+			out.println("");
+		}
+		out.flush();
+		
+		try {
+			synchronized( stream ) {
+				stream.write(buffer.toString().getBytes(Frame.UTF8));
+				stream.flush();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	
+	/**
+	 * Finds the documents whose shard key lies in a range
+	 * 
+	 * @param range The range
+	 * @return The documents
+	 */
+	private List<Document> chunk(KeyRange range)
+	{
+		List<Document> docs = new ArrayList<Document>();
+		Cursor cursor = COLLECTION.find(new Document());
+		
+		while( cursor.hasNext() ) {
+			Document doc = cursor.next();
+			if( range.contains(doc) )
+				docs.add(doc);
+		}
+		return docs;
+	}
+	
+	
+	/**
+	 * Finds where to split a range in two halves holding about as many
+	 * documents each. Every document with the same shard key stays on
+	 * the same side, so a range holding a single value cannot be split.
+	 * 
+	 * @param range The range
+	 * @param docs The documents in the range
+	 * @return {@code {"at":value,"documents":n}}, without the value if the range cannot be split
+	 */
+	@SuppressWarnings("unchecked")
+	private JSONObject splitPoint(KeyRange range, List<Document> docs)
+	{
+		List<Object> keys = new ArrayList<Object>();
+		JSONObject split = new JSONObject();
+		
+		split.put("documents", docs.size());
+		for( Document doc : docs )
+			keys.add(doc.get(range.getKey()));
+		Collections.sort(keys, KeyRange.ORDER);
+		
+		// The lower half cannot be empty, so the split goes above the lowest key
+		for( int i = keys.size() / 2; i < keys.size(); i++ ) {
+			if( KeyRange.ORDER.compare(keys.get(i), keys.get(0)) > 0 ) {
+				split.put("at", keys.get(i));
+				break;
+			}
+		}
+		return split;
+	}
+	
+	
+	/**
+	 * Reads the options of an update, {@code {"multi":true,"upsert":false}}.
+	 * An option that is left out is false.
+	 * 
+	 * @param doc The options document
+	 * @return The option map taken by {@link Collection#update(Document, Document, Map)}
+	 */
+	private Map<String, Boolean> updateOptions(Document doc)
+	{
+		Map<String, Boolean> options = new HashMap<String, Boolean>();
+		options.put("multi", Boolean.TRUE.equals(doc.get("multi")));
+		options.put("upsert", Boolean.TRUE.equals(doc.get("upsert")));
+		return options;
+	}
+	
+	
+	public static void main(String ...args)
+	{
+		if( args.length < 1 ) {
+			System.out.println("USAGE: ./jddb-shard config.properties\n");
+			return;
+		}
+		
+		InputStream in = null;
+		Properties prop = new Properties();
+		
+		try {
+			in = new FileInputStream(args[0]);
+			prop.load(in);
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			if( in != null ) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		
+		new ShardNode(prop).start();
+	}
+}